@@ -41,6 +41,8 @@ public class ASPClientSocket {
     //data observable we can send data through
     private static PublishSubject<JSONObject> dataObservable;
     private static Disposable dataSubscriber;
+    //binary audio frames to send over the websocket
+    private static PublishSubject<byte []> audioObservable;
 
     //our websocket connection to the ASP
     private static WebSocketManager aspWebSocketManager;
@@ -512,6 +514,10 @@ public class ASPClientSocket {
         dataSubscriber = dataObservable.subscribe(i -> parseData(i));
     }
 
+    public void setAudioObservable(PublishSubject<byte []> observable){
+        audioObservable = observable;
+    }
+
     public static void startWebSocket(){
         webSocketStarted = true;
         WebSocketThread = new Thread(new WebSocketThread());
@@ -523,6 +529,7 @@ public class ASPClientSocket {
             //start a thread to hold the websocket connection to ASP
             aspWebSocketManager = new WebSocketManager(SERVER_IP, "8887");
             aspWebSocketManager.setObservable(dataObservable);
+            aspWebSocketManager.setAudioObservable(audioObservable);
             aspWebSocketManager.setSourceName("asg_web_socket"); //should be pulled from R.string
             aspWebSocketManager.run(); //start socket which will auto reconnect on disconnect
         }
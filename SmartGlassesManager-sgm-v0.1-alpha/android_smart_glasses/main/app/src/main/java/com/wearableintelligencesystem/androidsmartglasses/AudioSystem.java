@@ -9,18 +9,24 @@ import android.media.AudioRecord;
 import android.util.Base64;
 import android.util.Log;
 
+import com.wearableintelligencesystem.androidsmartglasses.comms.AudioCodec;
+import com.wearableintelligencesystem.androidsmartglasses.comms.AudioFrameProtocol;
 import com.wearableintelligencesystem.androidsmartglasses.comms.MessageTypes;
+import com.wearableintelligencesystem.androidsmartglasses.comms.PcmAudioCodec;
 import com.wearableintelligencesystem.androidsmartglasses.sensors.AudioChunkCallback;
 import com.wearableintelligencesystem.androidsmartglasses.sensors.BluetoothMic;
 import com.example.wearableintelligencesystemandroidsmartglasses.R;
 import com.wearableintelligencesystem.androidsmartglasses.utils.AES;
+import com.wearableintelligencesystem.androidsmartglasses.utils.AesGcmSession;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.util.concurrent.BlockingQueue;
 
+import io.reactivex.rxjava3.disposables.Disposable;
 import io.reactivex.rxjava3.subjects.PublishSubject;
 
 public class AudioSystem {
@@ -29,6 +35,15 @@ public class AudioSystem {
 
     //data observable we can send data through
     private static PublishSubject<JSONObject> dataObservable;
+    private Disposable dataSubscriber;
+
+    //binary audio frames to send to the ASP, see comms/AudioFrameProtocol
+    private static PublishSubject<byte []> audioObservable;
+    private int audioFrameSequence = 0;
+    //raw PCM until the ASP picks a codec. Every frame says how it's encoded, so switching mid stream is safe
+    private volatile AudioCodec audioCodec = new PcmAudioCodec();
+    //encrypts audio frames once the ASP has given us a session salt
+    private volatile AesGcmSession audioCrypto;
 
     //encryption key - TEMPORARILY HARD CODED - change to local storage, user can set
     private String secretKey;
@@ -124,22 +139,20 @@ public class AudioSystem {
         return decryptedBytes;
     }
 
-    public void sendBytes(byte [] data) {
-        try {
-            JSONObject audioChunkJson = new JSONObject();
-            String encodedData = Base64.encodeToString(data, Base64.DEFAULT);
-            audioChunkJson.put(MessageTypes.MESSAGE_TYPE_LOCAL, MessageTypes.AUDIO_CHUNK_DECRYPTED);
-            audioChunkJson.put(MessageTypes.AUDIO_DATA, encodedData);
-            dataObservable.onNext(audioChunkJson);
-        } catch (JSONException e){
-            e.printStackTrace();
+    //audio goes out as a binary websocket frame, not Base64 in JSON
+    public void sendBytes(ByteBuffer data) {
+        if (audioObservable == null){
+            return;
+        }
+        byte [] frame = AudioFrameProtocol.encode(AudioFrameProtocol.STREAM_ID_MIC, audioFrameSequence++, System.currentTimeMillis(), audioCodec, data, audioCrypto);
+        if (frame != null) {
+            audioObservable.onNext(frame);
         }
     }
 
     private void receiveChunk(ByteBuffer chunk){
-        byte[] audio_bytes = chunk.array();
         //byte[] encrypted_audio_bytes = encryptBytes(audio_bytes);
-        sendBytes(audio_bytes);
+        sendBytes(chunk);
     }
 
     private void activateBluetoothSco() {
@@ -156,6 +169,44 @@ public class AudioSystem {
 
     public void setObservable(PublishSubject observable){
         dataObservable = observable;
+        dataSubscriber = dataObservable.subscribe(i -> handleDataStream(i));
+    }
+
+    private void handleDataStream(JSONObject data){
+        try {
+            String typeOf = data.getString(MessageTypes.MESSAGE_TYPE_LOCAL);
+            if (typeOf.equals(MessageTypes.AUDIO_CODEC_SELECT)) {
+                setAudioCodec((byte) data.getInt(MessageTypes.AUDIO_CODEC));
+                if (data.has(MessageTypes.AUDIO_CRYPTO_SALT)) {
+                    setAudioCrypto(Base64.decode(data.getString(MessageTypes.AUDIO_CRYPTO_SALT), Base64.NO_WRAP));
+                }
+            }
+        } catch (JSONException e){
+            e.printStackTrace();
+        }
+    }
+
+    //derive this connection's key once, every frame after this is encrypted
+    private void setAudioCrypto(byte [] salt){
+        try {
+            audioCrypto = new AesGcmSession(secretKey, salt);
+        } catch (GeneralSecurityException e){
+            e.printStackTrace();
+        }
+    }
+
+    private void setAudioCodec(byte sampleFormat){
+        AudioCodec codec = AudioCodec.create(sampleFormat);
+        if (codec == null){
+            Log.d(TAG, "ASP selected unsupported audio codec: " + sampleFormat);
+            return;
+        }
+        Log.d(TAG, "Switching audio codec to: " + sampleFormat);
+        audioCodec = codec;
+    }
+
+    public void setAudioObservable(PublishSubject<byte []> observable){
+        audioObservable = observable;
     }
 
 }
\ No newline at end of file
@@ -91,6 +91,7 @@ public class WearableAiService extends Service {
     //observables to send data around app
     PublishSubject<JSONObject> dataObservable;
     private Disposable dataSubscriber;
+    PublishSubject<byte []> audioObservable;
 
     //bluetooth sensors
     private BluetoothScanner mBluetoothScanner;
@@ -112,10 +113,12 @@ public class WearableAiService extends Service {
 
         dataObservable = PublishSubject.create();
         dataSubscriber = dataObservable.subscribe(i -> handleDataStream(i));
+        audioObservable = PublishSubject.create();
 
         //setup our connection to the ASP
         asp_client_socket = ASPClientSocket.getInstance(this);
         asp_client_socket.setObservable(dataObservable);
+        asp_client_socket.setAudioObservable(audioObservable);
 
         //first we have to listen for the UDP broadcast from the compute module so we know the IP address to connect to. Once we get that , we will connect to it on a socket and starting sending pictures
         //this will start the asp socket when ASP address is received and ASP is not connected. If ASP socket already running, it will update the ASP address (useful when ASP IP changes, like on new wifi)
@@ -125,6 +128,7 @@ public class WearableAiService extends Service {
         //setup audio streaming
         audioSystem = new AudioSystem(this);
         audioSystem.setObservable(dataObservable);
+        audioSystem.setAudioObservable(audioObservable);
         audioSystem.startStreaming();
 
         mContext = this;
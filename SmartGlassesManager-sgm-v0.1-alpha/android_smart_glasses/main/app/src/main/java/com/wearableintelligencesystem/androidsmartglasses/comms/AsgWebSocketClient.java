@@ -33,7 +33,9 @@ import java.util.Map;
 import org.java_websocket.client.WebSocketClient;
 
 import org.java_websocket.drafts.Draft;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
 import org.java_websocket.handshake.ServerHandshake;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -54,6 +56,9 @@ public class AsgWebSocketClient extends WebSocketClient {
     //observables to send data around app
     PublishSubject<JSONObject> dataObservable;
     Disposable dataSubscriber;
+    //binary audio frames, sent as websocket binary messages
+    PublishSubject<byte []> audioObservable;
+    Disposable audioSubscriber;
 
     private String mySourceName;
 
@@ -92,10 +97,30 @@ public class AsgWebSocketClient extends WebSocketClient {
         mySourceName = "web_socket";
     }
 
+    //tell the ASP which audio codecs we can encode, it answers with AUDIO_CODEC_SELECT
+    private void sendAudioCodecOffer(){
+        try {
+            JSONObject offer = new JSONObject();
+            offer.put(MessageTypes.MESSAGE_TYPE_LOCAL, MessageTypes.AUDIO_CODEC_OFFER);
+            JSONArray codecs = new JSONArray();
+            for (byte format : AudioCodec.SUPPORTED_SAMPLE_FORMATS){
+                codecs.put(format);
+            }
+            offer.put(MessageTypes.AUDIO_CODECS, codecs);
+            sendJson(offer);
+        } catch (JSONException e){
+            e.printStackTrace();
+        }
+    }
+
     public void setObservable(PublishSubject<JSONObject> dataO){
         dataObservable = dataO;
     }
 
+    public void setAudioObservable(PublishSubject<byte []> audioO){
+        audioObservable = audioO;
+    }
+
     public void setSourceName(String name){
         mySourceName = name;
     }
@@ -132,6 +157,10 @@ public class AsgWebSocketClient extends WebSocketClient {
         setConnectionLostTimeout(6);
         startConnectionLostTimer();
         dataSubscriber = dataObservable.subscribe(i -> parseData(i));
+        if (audioObservable != null) {
+            audioSubscriber = audioObservable.subscribe(i -> sendBytes(i));
+        }
+        sendAudioCodecOffer();
         // if you plan to refuse connection based on ip or httpfields overload: onWebsocketHandshakeReceivedAsClient
     }
 
@@ -159,6 +188,9 @@ public class AsgWebSocketClient extends WebSocketClient {
             Log.d(TAG, "dispose data subscriber");
             dataSubscriber.dispose();
         }
+        if (audioSubscriber != null) {
+            audioSubscriber.dispose();
+        }
 
         if (!killme) {
             Log.d(TAG, "Ask manager to restart me");
@@ -197,10 +229,7 @@ public class AsgWebSocketClient extends WebSocketClient {
     private void parseData(JSONObject data){
         try {
             String typeOf = data.getString(MessageTypes.MESSAGE_TYPE_LOCAL);
-            if (typeOf.equals(MessageTypes.AUDIO_CHUNK_DECRYPTED)) {
-                //sendString(data.getString(MessageTypes.AUDIO_DATA));
-                sendJson(data);
-            } else if (typeOf.equals(MessageTypes.VISUAL_SEARCH_QUERY)) {
+            if (typeOf.equals(MessageTypes.VISUAL_SEARCH_QUERY)) {
                 sendJson(data);
             } else if (typeOf.equals(MessageTypes.POV_IMAGE)) {
                 sendJson(data);
@@ -223,4 +252,15 @@ public class AsgWebSocketClient extends WebSocketClient {
         }
     }
 
+    //audio frames are dropped while we're not connected, the ASP only wants live audio
+    public void sendBytes(byte [] data){
+        if (connected == 2){
+            try {
+                send(data);
+            } catch (WebsocketNotConnectedException e){
+                e.printStackTrace();
+            }
+        }
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,43 @@
+package com.wearableintelligencesystem.androidsmartglasses.comms;
+
+import java.nio.ByteBuffer;
+
+//encodes 16 bit little endian PCM before it's sent to the ASP. The codec is picked at connect time (AUDIO_CODEC_OFFER/AUDIO_CODEC_SELECT)
+//and every audio frame carries its sample format, so the ASP always knows how to decode it
+//must match comms/AudioCodec on the ASP
+public abstract class AudioCodec {
+    //in order of preference, the ASP gets the final say
+    public static final byte [] SUPPORTED_SAMPLE_FORMATS = {
+            AudioFrameProtocol.SAMPLE_FORMAT_IMA_ADPCM_16KHZ,
+            AudioFrameProtocol.SAMPLE_FORMAT_MULAW_16KHZ,
+            AudioFrameProtocol.SAMPLE_FORMAT_PCM_16BIT_LE_16KHZ
+    };
+
+    public abstract byte getSampleFormat();
+
+    //exact number of bytes encode() will write for this many samples
+    public abstract int getEncodedLength(int samples);
+
+    //encode the remaining bytes of pcm (16 bit little endian) into dst at its current position. Doesn't move pcm's position, advances dst's
+    public abstract void encode(ByteBuffer pcm, ByteBuffer dst);
+
+    //returns null if we don't support the format
+    public static AudioCodec create(byte sampleFormat){
+        switch (sampleFormat){
+            case AudioFrameProtocol.SAMPLE_FORMAT_PCM_16BIT_LE_16KHZ:
+                return new PcmAudioCodec();
+            case AudioFrameProtocol.SAMPLE_FORMAT_MULAW_16KHZ:
+                return new MuLawAudioCodec();
+            case AudioFrameProtocol.SAMPLE_FORMAT_IMA_ADPCM_16KHZ:
+                return new ImaAdpcmAudioCodec();
+            default:
+                return null;
+        }
+    }
+
+    //read sample i of 16 bit little endian pcm, relative to the buffer's position
+    protected static short getSample(ByteBuffer pcm, int i){
+        int idx = pcm.position() + i * 2;
+        return (short) ((pcm.get(idx) & 0xff) | (pcm.get(idx + 1) << 8));
+    }
+}
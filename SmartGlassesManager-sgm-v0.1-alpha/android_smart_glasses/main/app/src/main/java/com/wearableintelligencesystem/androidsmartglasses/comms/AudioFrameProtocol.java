@@ -0,0 +1,59 @@
+package com.wearableintelligencesystem.androidsmartglasses.comms;
+
+import com.wearableintelligencesystem.androidsmartglasses.utils.AesGcmSession;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+
+//binary audio frames sent over the ASG<->ASP websocket. JSON is only used for control messages, audio goes as a websocket binary message with this fixed header in front of the samples, encoded with the AudioCodec for the sample format
+//must match comms/AudioFrameProtocol on the ASP
+//header layout (big endian):
+//  byte  version
+//  byte  sample format
+//  short stream id
+//  int   sequence number
+//  long  capture timestamp (ms since epoch)
+//if the sample format has SAMPLE_FORMAT_ENCRYPTED set, the payload is AES-GCM encrypted with the header as associated data, and ends with the tag
+public class AudioFrameProtocol {
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+
+    //sample formats
+    public static final byte SAMPLE_FORMAT_PCM_16BIT_LE_16KHZ = 1;
+    public static final byte SAMPLE_FORMAT_MULAW_16KHZ = 2;
+    public static final byte SAMPLE_FORMAT_IMA_ADPCM_16KHZ = 3;
+    public static final byte SAMPLE_FORMAT_ENCRYPTED = (byte) 0x80; //flag, or'd with the sample format
+
+    //stream ids
+    public static final short STREAM_ID_MIC = 1;
+
+    //build a frame from the remaining 16 bit little endian pcm in the buffer, encoding it straight into the frame. Doesn't change the position of the given buffer
+    public static byte [] encode(short streamId, int sequenceNumber, long captureTime, AudioCodec codec, ByteBuffer samples){
+        return encode(streamId, sequenceNumber, captureTime, codec, samples, null);
+    }
+
+    //same as above, but if crypto isn't null the payload is encrypted in place after encoding. Returns null if encryption failed
+    public static byte [] encode(short streamId, int sequenceNumber, long captureTime, AudioCodec codec, ByteBuffer samples, AesGcmSession crypto){
+        int payloadLength = codec.getEncodedLength(samples.remaining() / 2);
+        int tagLength = (crypto == null) ? 0 : AesGcmSession.TAG_LENGTH;
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payloadLength + tagLength).order(ByteOrder.BIG_ENDIAN);
+        frame.put(VERSION);
+        frame.put((byte) (codec.getSampleFormat() | ((crypto == null) ? 0 : SAMPLE_FORMAT_ENCRYPTED)));
+        frame.putShort(streamId);
+        frame.putInt(sequenceNumber);
+        frame.putLong(captureTime);
+        codec.encode(samples, frame);
+
+        if (crypto != null){
+            byte [] bytes = frame.array();
+            try {
+                crypto.encrypt(streamId, sequenceNumber, ByteBuffer.wrap(bytes, 0, HEADER_SIZE), ByteBuffer.wrap(bytes, HEADER_SIZE, payloadLength), ByteBuffer.wrap(bytes, HEADER_SIZE, payloadLength + tagLength));
+            } catch (GeneralSecurityException e){
+                e.printStackTrace();
+                return null;
+            }
+        }
+        return frame.array();
+    }
+}
@@ -0,0 +1,94 @@
+package com.wearableintelligencesystem.androidsmartglasses.comms;
+
+import java.nio.ByteBuffer;
+
+//IMA ADPCM, 4:1. Every frame starts with a 4 byte header (predictor as 16 bit little endian, step index, flags) so frames
+//can be decoded on their own even if the one before was dropped. Nibbles are packed low nibble first
+public class ImaAdpcmAudioCodec extends AudioCodec {
+    public static final int HEADER_SIZE = 4;
+    public static final int FLAG_ODD_SAMPLES = 0x01; //last nibble is padding
+
+    static final int [] INDEX_TABLE = {
+            -1, -1, -1, -1, 2, 4, 6, 8,
+            -1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+    static final int [] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+            19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+            130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+            876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+            5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+            15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    //the step index carries over between frames, the predictor restarts at the first sample of each frame
+    private int index = 0;
+
+    @Override
+    public byte getSampleFormat(){
+        return AudioFrameProtocol.SAMPLE_FORMAT_IMA_ADPCM_16KHZ;
+    }
+
+    @Override
+    public int getEncodedLength(int samples){
+        return HEADER_SIZE + (samples + 1) / 2;
+    }
+
+    @Override
+    public void encode(ByteBuffer pcm, ByteBuffer dst){
+        int samples = pcm.remaining() / 2;
+        int predictor = samples > 0 ? getSample(pcm, 0) : 0;
+
+        dst.put((byte) (predictor & 0xff));
+        dst.put((byte) ((predictor >> 8) & 0xff));
+        dst.put((byte) index);
+        dst.put((byte) ((samples % 2 == 1) ? FLAG_ODD_SAMPLES : 0));
+
+        int packed = 0;
+        for (int i = 0; i < samples; i++){
+            int step = STEP_TABLE[index];
+            int diff = getSample(pcm, i) - predictor;
+            int nibble = 0;
+            if (diff < 0){
+                nibble = 8;
+                diff = -diff;
+            }
+
+            //quantize diff to 3 bits, and track what the decoder will reconstruct
+            int delta = step >> 3;
+            if (diff >= step){
+                nibble |= 4;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step){
+                nibble |= 2;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step){
+                nibble |= 1;
+                delta += step;
+            }
+
+            predictor += ((nibble & 8) != 0) ? -delta : delta;
+            predictor = Math.max(-32768, Math.min(32767, predictor));
+            index = Math.max(0, Math.min(88, index + INDEX_TABLE[nibble]));
+
+            if (i % 2 == 0){
+                packed = nibble;
+            } else {
+                dst.put((byte) (packed | (nibble << 4)));
+            }
+        }
+        if (samples % 2 == 1){
+            dst.put((byte) packed);
+        }
+    }
+}
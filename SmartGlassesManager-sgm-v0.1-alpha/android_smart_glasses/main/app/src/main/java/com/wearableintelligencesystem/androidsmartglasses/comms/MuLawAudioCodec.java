@@ -0,0 +1,46 @@
+package com.wearableintelligencesystem.androidsmartglasses.comms;
+
+import java.nio.ByteBuffer;
+
+//G.711 mu-law, 2:1
+public class MuLawAudioCodec extends AudioCodec {
+    private static final int BIAS = 0x84;
+    private static final int CLIP = 32635;
+
+    @Override
+    public byte getSampleFormat(){
+        return AudioFrameProtocol.SAMPLE_FORMAT_MULAW_16KHZ;
+    }
+
+    @Override
+    public int getEncodedLength(int samples){
+        return samples;
+    }
+
+    @Override
+    public void encode(ByteBuffer pcm, ByteBuffer dst){
+        int samples = pcm.remaining() / 2;
+        for (int i = 0; i < samples; i++){
+            dst.put(encodeSample(getSample(pcm, i)));
+        }
+    }
+
+    public static byte encodeSample(short pcmSample){
+        int sample = pcmSample;
+        int sign = (sample >> 8) & 0x80;
+        if (sign != 0){
+            sample = -sample;
+        }
+        if (sample > CLIP){
+            sample = CLIP;
+        }
+        sample += BIAS;
+
+        int exponent = 7;
+        for (int mask = 0x4000; (sample & mask) == 0 && exponent > 0; mask >>= 1){
+            exponent--;
+        }
+        int mantissa = (sample >> (exponent + 3)) & 0x0f;
+        return (byte) ~(sign | (exponent << 4) | mantissa);
+    }
+}
@@ -0,0 +1,24 @@
+package com.wearableintelligencesystem.androidsmartglasses.comms;
+
+import java.nio.ByteBuffer;
+
+//no compression, raw 16 bit little endian pcm
+public class PcmAudioCodec extends AudioCodec {
+    @Override
+    public byte getSampleFormat(){
+        return AudioFrameProtocol.SAMPLE_FORMAT_PCM_16BIT_LE_16KHZ;
+    }
+
+    @Override
+    public int getEncodedLength(int samples){
+        return samples * 2;
+    }
+
+    @Override
+    public void encode(ByteBuffer pcm, ByteBuffer dst){
+        int len = (pcm.remaining() / 2) * 2;
+        for (int i = 0; i < len; i++){
+            dst.put(pcm.get(pcm.position() + i));
+        }
+    }
+}
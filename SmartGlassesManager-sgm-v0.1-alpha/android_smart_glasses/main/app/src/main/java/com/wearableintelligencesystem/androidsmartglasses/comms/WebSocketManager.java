@@ -23,6 +23,7 @@ public class WebSocketManager implements Runnable{
     //data to save and pass to the socket
     //observables to send data around app
     PublishSubject<JSONObject> dataObservable;
+    PublishSubject<byte []> audioObservable;
     String mySourceName;
 
     private static Handler handler;
@@ -34,6 +35,10 @@ public class WebSocketManager implements Runnable{
         dataObservable = dataO;
     }
 
+    public void setAudioObservable(PublishSubject<byte []> audioO){
+        audioObservable = audioO;
+    }
+
     public void setSourceName(String name){
         mySourceName = name;
     }
@@ -115,6 +120,7 @@ public class WebSocketManager implements Runnable{
                     Log.d(TAG, "Trying to connect...");
                     ws = new AsgWebSocketClient(WebSocketManager.this, serverURI);
                     ws.setObservable(dataObservable);
+                    ws.setAudioObservable(audioObservable);
                     ws.setSourceName(mySourceName);
                     ws.setReuseAddr(true);
                     connected = ws.connectBlocking(2500, TimeUnit.MILLISECONDS); //add this so we don't get stuck trying to connect if the ip address updated
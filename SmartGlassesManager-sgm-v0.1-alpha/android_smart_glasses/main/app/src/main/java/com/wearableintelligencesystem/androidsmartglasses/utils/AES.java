@@ -1,8 +1,10 @@
 package com.wearableintelligencesystem.androidsmartglasses.utils;
 
 import android.util.Base64;
+import android.util.Log;
 
 import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -11,40 +13,98 @@ import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 
 public class AES {
+    private static final String TAG = "WearableAi_AES";
 
-    private static SecretKeySpec secretKey;
-    private static byte[] key;
+    //the current key and the secret it was derived from, replaced whole on a key change so the ciphers can check it without locking
+    private static final class DerivedKey {
+        final String secret;
+        final SecretKeySpec key;
+
+        DerivedKey(String secret, SecretKeySpec key){
+            this.secret = secret;
+            this.key = key;
+        }
+    }
+    private static volatile DerivedKey derivedKey;
+
+    //one cipher per thread per direction, Cipher.getInstance is slow and ciphers aren't thread safe
+    private static final class ThreadCipher {
+        Cipher cipher;
+        //the key the cipher was last initialized with
+        SecretKeySpec key;
+    }
+    private static final ThreadLocal<ThreadCipher> encryptCipher = new ThreadLocal<>();
+    private static final ThreadLocal<ThreadCipher> decryptCipher = new ThreadLocal<>();
 
     public static void setKey(String myKey)
     {
-        MessageDigest sha = null;
+        deriveKey(myKey);
+    }
+
+    //only runs the key derivation when the secret changes. Returns the key for this secret, null if it couldn't be made
+    private static synchronized DerivedKey deriveKey(String myKey)
+    {
+        DerivedKey current = derivedKey;
+        if (current != null && current.secret.equals(myKey)){
+            return current;
+        }
         try {
-            key = myKey.getBytes("UTF-8");
-            sha = MessageDigest.getInstance("SHA-1");
+            byte [] key = myKey.getBytes("UTF-8");
+            MessageDigest sha = MessageDigest.getInstance("SHA-1");
             key = sha.digest(key);
             key = Arrays.copyOf(key, 16);
-            secretKey = new SecretKeySpec(key, "AES");
+            current = new DerivedKey(myKey, new SecretKeySpec(key, "AES"));
+            derivedKey = current;
+            return current;
         }
-        catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+        catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            Log.e(TAG, "Couldn't derive the AES key", e);
+        }
+        return null;
+    }
+
+    //the key for this secret, no lock unless the secret changed. Uses what deriveKey hands back rather than reading
+    //derivedKey again, another thread may have switched it to its own secret in between
+    private static SecretKeySpec getKey(String secret) throws GeneralSecurityException
+    {
+        DerivedKey current = derivedKey;
+        if (current == null || !current.secret.equals(secret)){
+            current = deriveKey(secret);
+            if (current == null){
+                throw new GeneralSecurityException("Couldn't derive the AES key");
+            }
+        }
+        return current.key;
+    }
+
+    //get this thread's cipher, only initialized again if the key changed. ECB has no IV, so an initialized cipher is reusable after doFinal
+    private static Cipher getCipher(int mode, String secret) throws GeneralSecurityException
+    {
+        SecretKeySpec currentKey = getKey(secret);
+        ThreadLocal<ThreadCipher> holder = (mode == Cipher.ENCRYPT_MODE) ? encryptCipher : decryptCipher;
+        ThreadCipher threadCipher = holder.get();
+        if (threadCipher == null){
+            threadCipher = new ThreadCipher();
+            threadCipher.cipher = Cipher.getInstance("AES/ECB/PKCS7Padding");
+            holder.set(threadCipher);
         }
-        catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+        if (threadCipher.key != currentKey){
+            threadCipher.cipher.init(mode, currentKey);
+            threadCipher.key = currentKey;
         }
+        return threadCipher.cipher;
     }
 
     public static String encrypt(String strToEncrypt, String secret)
     {
         try
         {
-            setKey(secret);
-            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS7Padding");
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+            Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, secret);
             return Base64.encodeToString(cipher.doFinal(strToEncrypt.getBytes("UTF-8")), Base64.DEFAULT);
         }
         catch (Exception e)
         {
-            System.out.println("Error while encrypting: " + e.toString());
+            Log.e(TAG, "Error while encrypting", e);
         }
         return null;
     }
@@ -54,14 +114,12 @@ public class AES {
     {
         try
         {
-            setKey(secret);
-            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS7Padding");
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+            Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, secret);
             return cipher.doFinal(bytesToEncrypt);
         }
         catch (Exception e)
         {
-            System.out.println("Error while encrypting: " + e.toString());
+            Log.e(TAG, "Error while encrypting", e);
         }
         return null;
     }
@@ -71,14 +129,12 @@ public class AES {
     {
         try
         {
-            setKey(secret);
-            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS7PADDING");
-            cipher.init(Cipher.DECRYPT_MODE, secretKey);
+            Cipher cipher = getCipher(Cipher.DECRYPT_MODE, secret);
             return new String(cipher.doFinal(Base64.decode(strToDecrypt, Base64.DEFAULT)));
         }
         catch (Exception e)
         {
-            System.out.println("Error while decrypting: " + e.toString());
+            Log.e(TAG, "Error while decrypting", e);
         }
         return null;
     }
@@ -88,15 +144,43 @@ public class AES {
     {
         try
         {
-            setKey(secret);
-            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS7PADDING");
-            cipher.init(Cipher.DECRYPT_MODE, secretKey);
+            Cipher cipher = getCipher(Cipher.DECRYPT_MODE, secret);
             return cipher.doFinal(bytesToDecrypt);
         }
         catch (Exception e)
         {
-            System.out.println("Error while decrypting: " + e.toString());
+            Log.e(TAG, "Error while decrypting", e);
         }
         return null;
     }
-}
\ No newline at end of file
+
+    //decrypt into a caller supplied buffer, which can be the input buffer itself (in place). Returns the number of plain bytes, or -1 on failure
+    public static int decrypt(byte [] input, int inputOffset, int inputLength, byte [] output, int outputOffset, String secret)
+    {
+        try
+        {
+            Cipher cipher = getCipher(Cipher.DECRYPT_MODE, secret);
+            return cipher.doFinal(input, inputOffset, inputLength, output, outputOffset);
+        }
+        catch (Exception e)
+        {
+            Log.e(TAG, "Error while decrypting", e);
+        }
+        return -1;
+    }
+
+    //encrypt into a caller supplied buffer, which must have room for inputLength rounded up to the next 16 bytes. Returns the number of encrypted bytes, or -1 on failure
+    public static int encrypt(byte [] input, int inputOffset, int inputLength, byte [] output, int outputOffset, String secret)
+    {
+        try
+        {
+            Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, secret);
+            return cipher.doFinal(input, inputOffset, inputLength, output, outputOffset);
+        }
+        catch (Exception e)
+        {
+            Log.e(TAG, "Error while encrypting", e);
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,209 @@
+package com.wearableintelligencesystem.androidsmartglasses.comms;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The ASG's encoders and frame headers. The ASP's decoders are in the other app, so frames are decoded here with
+ * reference decoders for the same wire format.
+ */
+public class AudioCodecTest {
+    //40 ms at 16 kHz, about what one AudioRecord read gives us
+    private static final int FRAME_SAMPLES = 640;
+
+    //REFERENCE DECODERS
+
+    //G.711 mu-law
+    private static short decodeMuLaw(byte code){
+        int u = ~code & 0xff;
+        int exponent = (u >> 4) & 0x07;
+        int sample = ((((u & 0x0f) << 3) + 0x84) << exponent) - 0x84;
+        return (short) (((u & 0x80) != 0) ? -sample : sample);
+    }
+
+    //IMA ADPCM, everything it needs is in the frame's header
+    private static short [] decodeAdpcm(byte [] frame){
+        int predictor = (short) ((frame[0] & 0xff) | (frame[1] << 8));
+        int index = frame[2] & 0xff;
+        int samples = (frame.length - ImaAdpcmAudioCodec.HEADER_SIZE) * 2 - (((frame[3] & ImaAdpcmAudioCodec.FLAG_ODD_SAMPLES) != 0) ? 1 : 0);
+        short [] out = new short[samples];
+        for (int i = 0; i < samples; i++){
+            int b = frame[ImaAdpcmAudioCodec.HEADER_SIZE + i / 2];
+            int nibble = ((i % 2 == 0) ? b : (b >> 4)) & 0x0f;
+            int step = ImaAdpcmAudioCodec.STEP_TABLE[index];
+            int delta = step >> 3;
+            if ((nibble & 4) != 0) delta += step;
+            if ((nibble & 2) != 0) delta += step >> 1;
+            if ((nibble & 1) != 0) delta += step >> 2;
+            predictor += ((nibble & 8) != 0) ? -delta : delta;
+            predictor = Math.max(-32768, Math.min(32767, predictor));
+            index = Math.max(0, Math.min(88, index + ImaAdpcmAudioCodec.INDEX_TABLE[nibble]));
+            out[i] = (short) predictor;
+        }
+        return out;
+    }
+
+    //a few tones and some noise, loud enough to use most of the 16 bits
+    private static short [] speechLike(int samples, long seed){
+        Random random = new Random(seed);
+        short [] pcm = new short[samples];
+        for (int i = 0; i < samples; i++){
+            double t = i / 16000.0;
+            double envelope = 0.5 + 0.5 * Math.sin(2 * Math.PI * 3 * t);
+            double v = envelope * (9000 * Math.sin(2 * Math.PI * 220 * t) + 5000 * Math.sin(2 * Math.PI * 1250 * t) + 2000 * Math.sin(2 * Math.PI * 3100 * t))
+                    + 300 * random.nextGaussian();
+            pcm[i] = (short) Math.max(-32768, Math.min(32767, Math.round(v)));
+        }
+        return pcm;
+    }
+
+    private static double snrDb(short [] reference, int offset, short [] decoded){
+        double signal = 0;
+        double noise = 0;
+        for (int i = 0; i < decoded.length; i++){
+            signal += (double) reference[offset + i] * reference[offset + i];
+            double error = reference[offset + i] - decoded[i];
+            noise += error * error;
+        }
+        return 10 * Math.log10(signal / Math.max(noise, 1));
+    }
+
+    //16 bit little endian, the way AudioRecord hands it to us
+    private static ByteBuffer pcmBytes(short [] pcm, int offset, int samples){
+        ByteBuffer bytes = ByteBuffer.allocate(samples * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < samples; i++){
+            bytes.putShort(pcm[offset + i]);
+        }
+        bytes.flip();
+        return bytes;
+    }
+
+    private static byte [] encode(AudioCodec codec, short [] pcm, int offset, int samples){
+        ByteBuffer in = pcmBytes(pcm, offset, samples);
+        ByteBuffer out = ByteBuffer.allocate(codec.getEncodedLength(samples));
+        codec.encode(in, out);
+        assertFalse(out.hasRemaining());
+        assertEquals(0, in.position());
+        return out.array();
+    }
+
+    //ENCODERS
+
+    @Test
+    public void encodedLengthIsExact(){
+        short [] pcm = speechLike(FRAME_SAMPLES + 1, 1);
+        for (byte format : AudioCodec.SUPPORTED_SAMPLE_FORMATS){
+            for (int samples : new int[]{0, 1, 2, FRAME_SAMPLES, FRAME_SAMPLES + 1}){
+                AudioCodec codec = AudioCodec.create(format);
+                assertEquals(format, codec.getSampleFormat());
+                //encode() checks the buffer ends up exactly full
+                encode(codec, pcm, 0, samples);
+            }
+        }
+        assertNull(AudioCodec.create((byte) 9));
+    }
+
+    @Test
+    public void muLawKnownCodes(){
+        assertEquals((byte) 0xff, MuLawAudioCodec.encodeSample((short) 0));
+        assertEquals((byte) 0x7f, MuLawAudioCodec.encodeSample((short) -1));
+        assertEquals((byte) 0x80, MuLawAudioCodec.encodeSample(Short.MAX_VALUE));
+        assertEquals((byte) 0x00, MuLawAudioCodec.encodeSample(Short.MIN_VALUE));
+        //every level decodes back to itself
+        for (int code = 0; code < 256; code++){
+            if (code != 0x7f){
+                assertEquals((byte) code, MuLawAudioCodec.encodeSample(decodeMuLaw((byte) code)));
+            }
+        }
+    }
+
+    @Test
+    public void muLawRoundTrip(){
+        short [] pcm = speechLike(16000, 2);
+        byte [] encoded = encode(new MuLawAudioCodec(), pcm, 0, pcm.length);
+        short [] decoded = new short[pcm.length];
+        for (int i = 0; i < pcm.length; i++){
+            decoded[i] = decodeMuLaw(encoded[i]);
+        }
+        assertTrue(snrDb(pcm, 0, decoded) > 35);
+    }
+
+    @Test
+    public void adpcmRoundTrip(){
+        short [] pcm = speechLike(16000, 3);
+        short [] decoded = new short[pcm.length];
+        ImaAdpcmAudioCodec codec = new ImaAdpcmAudioCodec();
+        for (int offset = 0; offset < pcm.length; offset += FRAME_SAMPLES){
+            int samples = Math.min(FRAME_SAMPLES, pcm.length - offset);
+            short [] frameDecoded = decodeAdpcm(encode(codec, pcm, offset, samples));
+            assertEquals(samples, frameDecoded.length);
+            System.arraycopy(frameDecoded, 0, decoded, offset, samples);
+        }
+        assertTrue(snrDb(pcm, 0, decoded) > 20);
+    }
+
+    @Test
+    public void adpcmHeader(){
+        short [] pcm = speechLike(2 * FRAME_SAMPLES + 1, 4);
+        ImaAdpcmAudioCodec codec = new ImaAdpcmAudioCodec();
+        byte [] first = encode(codec, pcm, 0, FRAME_SAMPLES);
+        assertEquals(pcm[0], (short) ((first[0] & 0xff) | (first[1] << 8)));
+        assertEquals(0, first[2]);
+        assertEquals(0, first[3]);
+
+        //the step index carries over, the predictor restarts at the frame's first sample
+        byte [] second = encode(codec, pcm, FRAME_SAMPLES, FRAME_SAMPLES + 1);
+        assertEquals(pcm[FRAME_SAMPLES], (short) ((second[0] & 0xff) | (second[1] << 8)));
+        assertTrue(second[2] > 0);
+        assertEquals(ImaAdpcmAudioCodec.FLAG_ODD_SAMPLES, second[3]);
+        assertEquals(FRAME_SAMPLES + 1, decodeAdpcm(second).length);
+    }
+
+    @Test
+    public void adpcmFrameDecodesWithoutTheOneBefore(){
+        short [] pcm = speechLike(3 * FRAME_SAMPLES, 5);
+        ImaAdpcmAudioCodec codec = new ImaAdpcmAudioCodec();
+        encode(codec, pcm, 0, FRAME_SAMPLES);
+        //the middle frame is dropped on the way, the last one still decodes from its own header
+        encode(codec, pcm, FRAME_SAMPLES, FRAME_SAMPLES);
+        short [] last = decodeAdpcm(encode(codec, pcm, 2 * FRAME_SAMPLES, FRAME_SAMPLES));
+        assertTrue(snrDb(pcm, 2 * FRAME_SAMPLES, last) > 20);
+    }
+
+    @Test
+    public void pcmIsCopied(){
+        short [] pcm = speechLike(FRAME_SAMPLES, 6);
+        ByteBuffer encoded = ByteBuffer.wrap(encode(new PcmAudioCodec(), pcm, 0, FRAME_SAMPLES)).order(ByteOrder.LITTLE_ENDIAN);
+        for (short sample : pcm){
+            assertEquals(sample, encoded.getShort());
+        }
+    }
+
+    //FRAMES
+
+    @Test
+    public void frameHeader(){
+        short [] pcm = speechLike(FRAME_SAMPLES, 7);
+        ByteBuffer samples = pcmBytes(pcm, 0, FRAME_SAMPLES);
+        AudioCodec codec = new ImaAdpcmAudioCodec();
+        byte [] frame = AudioFrameProtocol.encode(AudioFrameProtocol.STREAM_ID_MIC, 0x12345678, 1700000000123L, codec, samples);
+        assertEquals(0, samples.position());
+        assertEquals(AudioFrameProtocol.HEADER_SIZE + codec.getEncodedLength(FRAME_SAMPLES), frame.length);
+
+        ByteBuffer header = ByteBuffer.wrap(frame).order(ByteOrder.BIG_ENDIAN);
+        assertEquals(AudioFrameProtocol.VERSION, header.get());
+        assertEquals(AudioFrameProtocol.SAMPLE_FORMAT_IMA_ADPCM_16KHZ, header.get());
+        assertEquals(AudioFrameProtocol.STREAM_ID_MIC, header.getShort());
+        assertEquals(0x12345678, header.getInt());
+        assertEquals(1700000000123L, header.getLong());
+
+        byte [] payload = new byte[frame.length - AudioFrameProtocol.HEADER_SIZE];
+        System.arraycopy(frame, AudioFrameProtocol.HEADER_SIZE, payload, 0, payload.length);
+        assertTrue(snrDb(pcm, 0, decodeAdpcm(payload)) > 20);
+    }
+}
@@ -0,0 +1,91 @@
+package com.wearableintelligencesystem.androidsmartglasses.utils;
+
+import com.wearableintelligencesystem.androidsmartglasses.comms.AudioFrameProtocol;
+import com.wearableintelligencesystem.androidsmartglasses.comms.PcmAudioCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.AEADBadTagException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Encrypted audio frames as AudioFrameProtocol builds them: they have to decrypt with the header as associated data,
+ * anything tampered with has to be rejected, and each sequence number gets its own nonce.
+ */
+public class AesGcmSessionTest {
+    private static final String SECRET = "test secret";
+
+    private static ByteBuffer pcm(int bytes, long seed){
+        byte [] pcm = new byte[bytes];
+        new Random(seed).nextBytes(pcm);
+        return ByteBuffer.wrap(pcm);
+    }
+
+    private static byte [] frame(AesGcmSession session, int sequence, ByteBuffer pcm){
+        byte [] frame = AudioFrameProtocol.encode(AudioFrameProtocol.STREAM_ID_MIC, sequence, 1700000000000L, new PcmAudioCodec(), pcm, session);
+        assertNotNull(frame);
+        return frame;
+    }
+
+    //what the ASP does with the frame
+    private static byte [] decrypt(AesGcmSession session, byte [] frame) throws GeneralSecurityException {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        short streamId = buffer.getShort(2);
+        int sequence = buffer.getInt(4);
+        ByteBuffer out = ByteBuffer.allocate(frame.length);
+        int length = session.decrypt(streamId, sequence, ByteBuffer.wrap(frame, 0, AudioFrameProtocol.HEADER_SIZE),
+                ByteBuffer.wrap(frame, AudioFrameProtocol.HEADER_SIZE, frame.length - AudioFrameProtocol.HEADER_SIZE), out);
+        return Arrays.copyOf(out.array(), length);
+    }
+
+    private static void assertRejected(AesGcmSession session, byte [] frame) throws GeneralSecurityException {
+        try {
+            decrypt(session, frame);
+            fail("frame was accepted");
+        } catch (AEADBadTagException e){
+            //expected
+        }
+    }
+
+    @Test
+    public void encryptedFrameRoundTrips() throws GeneralSecurityException {
+        byte [] salt = AesGcmSession.newSalt();
+        AesGcmSession session = new AesGcmSession(SECRET, salt);
+        ByteBuffer pcm = pcm(1280, 1);
+        byte [] frame = frame(session, 3, pcm);
+        assertEquals(0, pcm.position());
+        assertEquals(AudioFrameProtocol.HEADER_SIZE + 1280 + AesGcmSession.TAG_LENGTH, frame.length);
+        assertEquals((byte) (AudioFrameProtocol.SAMPLE_FORMAT_PCM_16BIT_LE_16KHZ | AudioFrameProtocol.SAMPLE_FORMAT_ENCRYPTED), frame[1]);
+        assertArrayEquals(pcm.array(), decrypt(new AesGcmSession(SECRET, salt), frame));
+    }
+
+    @Test
+    public void tamperedFrameIsRejected() throws GeneralSecurityException {
+        AesGcmSession session = new AesGcmSession(SECRET, AesGcmSession.newSalt());
+        byte [] frame = frame(session, 3, pcm(1280, 2));
+        for (int i : new int[]{0, 1, 8, 15, AudioFrameProtocol.HEADER_SIZE, frame.length / 2, frame.length - 1}){
+            byte [] tampered = frame.clone();
+            tampered[i] ^= 1;
+            assertRejected(session, tampered);
+        }
+    }
+
+    @Test
+    public void eachSequenceNumberGetsItsOwnNonce() throws GeneralSecurityException {
+        byte [] salt = AesGcmSession.newSalt();
+        AesGcmSession session = new AesGcmSession(SECRET, salt);
+        byte [] first = frame(session, 3, pcm(1280, 3));
+        byte [] next = frame(session, 4, pcm(1280, 3));
+        assertFalse(Arrays.equals(Arrays.copyOfRange(first, AudioFrameProtocol.HEADER_SIZE, first.length), Arrays.copyOfRange(next, AudioFrameProtocol.HEADER_SIZE, next.length)));
+        //same sequence number after a reconnect, new salt so a new key
+        byte [] reconnected = frame(new AesGcmSession(SECRET, AesGcmSession.newSalt()), 3, pcm(1280, 3));
+        assertFalse(Arrays.equals(first, reconnected));
+        assertRejected(session, reconnected);
+    }
+}
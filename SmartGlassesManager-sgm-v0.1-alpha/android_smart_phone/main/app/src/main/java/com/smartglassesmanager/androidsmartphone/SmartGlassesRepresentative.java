@@ -28,8 +28,6 @@ import com.smartglassesmanager.androidsmartphone.smartglassescommunicators.Smart
 import com.smartglassesmanager.androidsmartphone.supportedglasses.SmartGlassesDevice;
 
 //rxjava
-import java.nio.ByteBuffer;
-
 import io.reactivex.rxjava3.subjects.PublishSubject;
 
 class SmartGlassesRepresentative {
@@ -43,6 +41,7 @@ class SmartGlassesRepresentative {
     SmartGlassesDevice smartGlassesDevice;
     SmartGlassesCommunicator smartGlassesCommunicator;
     MicrophoneLocalAndBluetooth bluetoothAudio;
+    private final AudioChunkNewEvent audioChunkNewEvent = new AudioChunkNewEvent();
 
     //timing settings
     long referenceCardDelayTime = 10000;
@@ -87,16 +86,15 @@ class SmartGlassesRepresentative {
         //start audio from bluetooth headset
         bluetoothAudio = new MicrophoneLocalAndBluetooth(context, new AudioChunkCallback(){
             @Override
-            public void onSuccess(ByteBuffer chunk){
-                receiveChunk(chunk);
+            public void onSuccess(short [] chunk, int length){
+                receiveChunk(chunk, length);
             }
         });
     }
 
-    private void receiveChunk(ByteBuffer chunk){
-        byte[] audio_bytes = chunk.array();
-        //throw off new audio chunk event
-        EventBus.getDefault().post(new AudioChunkNewEvent(audio_bytes));
+    private void receiveChunk(short [] chunk, int length){
+        //throw off new audio chunk event - subscribers copy the samples out before post returns, so we can reuse the event
+        EventBus.getDefault().post(audioChunkNewEvent.setSamples(chunk, length));
     }
 
     public void destroy(){
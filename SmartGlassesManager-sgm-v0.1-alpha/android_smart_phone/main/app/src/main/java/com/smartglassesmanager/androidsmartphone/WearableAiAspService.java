@@ -8,6 +8,7 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 
@@ -16,6 +17,7 @@ import androidx.lifecycle.LifecycleService;
 
 import com.smartglassesmanager.androidsmartphone.commands.CommandSystem;
 import com.smartglassesmanager.androidsmartphone.comms.MessageTypes;
+import com.smartglassesmanager.androidsmartphone.database.DatabaseMaintenance;
 import com.smartglassesmanager.androidsmartphone.database.WearableAiRoomDatabase;
 import com.smartglassesmanager.androidsmartphone.database.phrase.PhraseRepository;
 import com.smartglassesmanager.androidsmartphone.database.voicecommand.VoiceCommandRepository;
@@ -24,18 +26,25 @@ import com.smartglassesmanager.androidsmartphone.eventbusmessages.SmartGlassesCo
 import com.smartglassesmanager.androidsmartphone.eventbusmessages.StartLiveCaptionsEvent;
 import com.smartglassesmanager.androidsmartphone.eventbusmessages.StopLiveCaptionsEvent;
 import com.smartglassesmanager.androidsmartphone.nlp.NlpUtils;
+import com.smartglassesmanager.androidsmartphone.sensors.LocationSampler;
+import com.smartglassesmanager.androidsmartphone.speechrecognition.AudioHistoryRing;
 import com.smartglassesmanager.androidsmartphone.speechrecognition.NaturalLanguage;
 import com.smartglassesmanager.androidsmartphone.speechrecognition.SpeechRecVosk;
+import com.smartglassesmanager.androidsmartphone.speechrecognition.SpeechRecognizerHost;
+import com.smartglassesmanager.androidsmartphone.speechrecognition.VoskModelManager;
 import com.smartglassesmanager.androidsmartphone.supportedglasses.SmartGlassesDevice;
 
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Locale;
 
+import io.reactivex.rxjava3.disposables.Disposable;
 import io.reactivex.rxjava3.subjects.PublishSubject;
 
 /** Main service of Smart Glasses Manager, that starts connections to smart glasses and talks to third party apps (3PAs) */
@@ -63,16 +72,29 @@ public class WearableAiAspService extends LifecycleService {
     NlpUtils nlpUtils;
     public static Dictionary<String, NaturalLanguage> supportedLanguages = new Hashtable<String, NaturalLanguage>();
 
-    //speech recognition
+    //speech recognition - all recognizers share the audio decoded by the host
+    private SpeechRecognizerHost speechRecognizerHost;
     private SpeechRecVosk speechRecVosk;
     private SpeechRecVosk speechRecVoskForeignLanguage;
 
+    //rolling on-disk copy of the last half hour of audio
+    private AudioHistoryRing audioHistory;
+
+    //latest location in memory for tagging transcripts, plus filling in their addresses in the background
+    private LocationSampler locationSampler;
+    private static final long ADDRESS_BACKFILL_INTERVAL_MS = 60 * 1000;
+    private Runnable addressBackfill;
+
     //Text to Speech
     //private TextToSpeechSystem textToSpeechSystem;
 
     //observables to send data around app
     PublishSubject<JSONObject> dataObservable;
     PublishSubject<byte[]> audioObservable;
+    Disposable dataSub;
+
+    //recognizers have to be made and killed on the main thread
+    private Handler mainHandler;
 
     //database
     private PhraseRepository mPhraseRepository = null;
@@ -107,7 +129,30 @@ public class WearableAiAspService extends LifecycleService {
         //supportedLanguages.add(new NaturalLanguage("japanese", "ja", "model-jp-small", Locale.JAPANESE)); //japanese
 
         //start vosk
-        speechRecVosk = new SpeechRecVosk(supportedLanguages.get(baseLanguage).getModelLocation(), true, this, audioObservable, dataObservable, mPhraseRepository);
+        mainHandler = new Handler();
+        speechRecognizerHost = new SpeechRecognizerHost(dataObservable);
+        speechRecVosk = new SpeechRecVosk(supportedLanguages.get(baseLanguage).getModelLocation(), true, this, audioObservable, dataObservable, mPhraseRepository, speechRecognizerHost);
+        dataSub = dataObservable.subscribe(i -> handleDataStream(i));
+
+        //keep the audio the recognizers hear
+        audioHistory = new AudioHistoryRing(new File(getFilesDir(), "audio_history"));
+        if (audioHistory.open()) {
+            audioHistory.start(speechRecognizerHost);
+        }
+
+        //sample location for transcripts, and backfill the addresses the transcripts were saved without
+        locationSampler = LocationSampler.create(this);
+        locationSampler.start();
+        addressBackfill = new Runnable() {
+            public void run() {
+                mPhraseRepository.backfillAddresses(locationSampler.getAddressCache());
+                mainHandler.postDelayed(this, ADDRESS_BACKFILL_INTERVAL_MS);
+            }
+        };
+        mainHandler.postDelayed(addressBackfill, ADDRESS_BACKFILL_INTERVAL_MS);
+
+        //move old transcripts out of the database and compact it, while the phone is idle and charging
+        DatabaseMaintenance.schedule(this);
 
         //start text to speech
 //        textToSpeechSystem = new TextToSpeechSystem(this, dataObservable, supportedLanguages.get(baseLanguage).getLocale());
@@ -131,7 +176,47 @@ public class WearableAiAspService extends LifecycleService {
         sendUiUpdate();
     }
 
+    private void handleDataStream(JSONObject data){
+        try {
+            String dataType = data.getString(MessageTypes.MESSAGE_TYPE_LOCAL);
+            if (dataType.equals(MessageTypes.START_FOREIGN_LANGUAGE_ASR)){
+                String languageName = data.getString(MessageTypes.START_FOREIGN_LANGUAGE_SOURCE_LANGUAGE_NAME);
+                mainHandler.post(() -> startForeignLanguageAsr(languageName));
+            } else if (dataType.equals(MessageTypes.STOP_FOREIGN_LANGUAGE_ASR)){
+                mainHandler.post(() -> stopForeignLanguageAsr());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //run a second recognizer on the same audio as the base language one, for translation
+    public void startForeignLanguageAsr(String languageName){
+        NaturalLanguage language = supportedLanguages.get(languageName);
+        if (language == null){
+            Log.d(TAG, "Foreign language not supported: " + languageName);
+            return;
+        }
+        if (languageName.equals(baseLanguage)){
+            return;
+        }
+        stopForeignLanguageAsr();
+        Log.d(TAG, "Starting foreign language ASR: " + languageName);
+        speechRecVoskForeignLanguage = new SpeechRecVosk(language.getModelLocation(), false, this, audioObservable, dataObservable, mPhraseRepository, speechRecognizerHost);
+    }
+
+    public void stopForeignLanguageAsr(){
+        if (speechRecVoskForeignLanguage != null){
+            Log.d(TAG, "Stopping foreign language ASR");
+            speechRecVoskForeignLanguage.destroy();
+            speechRecVoskForeignLanguage = null;
+        }
+    }
+
     public void connectToSmartGlasses(SmartGlassesDevice device) {
+        //each device's mic has its own noise floor
+        speechRecVosk.setVoiceActivityDetectionSettings(device);
+
         //this represents the smart glasses - it handles the connection, sending data to them, etc
         smartGlassesRepresentative = new SmartGlassesRepresentative(this, device, dataObservable);
         smartGlassesRepresentative.connectToSmartGlasses();
@@ -227,6 +312,9 @@ public class WearableAiAspService extends LifecycleService {
         }
 
         //kill data transmitters
+        if (dataSub != null) {
+            dataSub.dispose();
+        }
         if (dataObservable != null) {
             dataObservable.onComplete();
         }
@@ -240,12 +328,28 @@ public class WearableAiAspService extends LifecycleService {
         //kill vosk
         if (speechRecVosk != null) {
             speechRecVosk.destroy();
-            if (speechRecVoskForeignLanguage != null) {
-                speechRecVoskForeignLanguage.destroy();
-            }
+        }
+        stopForeignLanguageAsr();
+        if (audioHistory != null) {
+            audioHistory.stop();
+        }
+        if (speechRecognizerHost != null) {
+            speechRecognizerHost.destroy();
+        }
+        VoskModelManager.getInstance(this).destroy();
+
+        //stop location sampling
+        if (addressBackfill != null) {
+            mainHandler.removeCallbacks(addressBackfill);
+        }
+        if (locationSampler != null) {
+            locationSampler.destroy();
         }
 
-        //close room database(s)
+        //write out transcripts still waiting in memory, then close room database(s)
+        if (mPhraseRepository != null) {
+            mPhraseRepository.closeWriteBehindStore();
+        }
         WearableAiRoomDatabase.destroy();
 
         //call parent destroy
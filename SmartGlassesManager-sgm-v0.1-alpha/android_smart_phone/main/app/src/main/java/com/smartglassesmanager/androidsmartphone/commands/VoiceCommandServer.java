@@ -24,9 +24,11 @@ import android.content.Context;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.Log;
-import android.util.Pair;
 
+import com.smartglassesmanager.androidsmartphone.eventbusmessages.CommandTranscriptEvent;
 import com.smartglassesmanager.androidsmartphone.eventbusmessages.SGMStealFocus;
+import com.smartglassesmanager.androidsmartphone.eventbusmessages.VoiceCommandGrammarEvent;
+import com.smartglassesmanager.androidsmartphone.eventbusmessages.VoiceCommandPhaseEvent;
 import com.teamopensmartglasses.sgmlib.SGMCommand;
 import com.teamopensmartglasses.sgmlib.events.CommandTriggeredEvent;
 import com.teamopensmartglasses.sgmlib.events.ReferenceCardSimpleViewRequestEvent;
@@ -37,6 +39,9 @@ import com.teamopensmartglasses.sgmlib.events.SpeechRecIntermediateOutputEvent;
 import com.smartglassesmanager.androidsmartphone.eventbusmessages.PromptViewRequestEvent;
 import com.smartglassesmanager.androidsmartphone.nlp.FuzzyMatch;
 import com.smartglassesmanager.androidsmartphone.nlp.NlpUtils;
+import com.smartglassesmanager.androidsmartphone.nlp.PhoneticMatcher;
+import com.smartglassesmanager.androidsmartphone.nlp.StreamingPhraseMatcher;
+import com.smartglassesmanager.androidsmartphone.nlp.TrigramIndex;
 
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
@@ -71,6 +76,19 @@ public class VoiceCommandServer {
     private ArrayList<String> wakeWords;
     private ArrayList<String> endWords;
 
+    //keep the wake word, end word, and command matches up to date as the transcript buffer streams in, so each new
+    //partial transcript only costs the text that changed, even when ASR takes back the last few words. They share a
+    //trigram index over all the phrases, so only the phrases that could be in the transcript get fuzzy matched. Command
+    //phrases are matched in (command, phrase) order, against what was said after the wake word. Rebuilt on the
+    //vcHandler thread whenever the commands change
+    private StreamingPhraseMatcher wakeWordMatcher;
+    private StreamingPhraseMatcher endWordMatcher;
+    private StreamingPhraseMatcher commandMatcher;
+    //what ASR heard by sound but spelled differently ("harkin", "a roar a"), for phrases the spelling didn't match
+    private PhoneticMatcher wakeWordSoundMatcher;
+    private PhoneticMatcher endWordSoundMatcher;
+    private PhoneticMatcher commandSoundMatcher;
+
     //timing of voice command system
     private long voiceCommandPauseTime = 6000; //milliseconds //amount of time user must pause speaking before we consider the command to be finished
     private long lastParseTime = 0; //milliseconds since last time we parse a command (executing or not)
@@ -90,10 +108,13 @@ public class VoiceCommandServer {
     private final double wakeWordThreshold = 0.88;
     private final double commandThreshold = 0.88;
     private final double endWordThreshold = 0.92;
+    //fuzzy threshold for phrases that already sound the same
+    private final double soundThreshold = 0.7;
 
     //flags to save the current state and info about the currently streaming in voice command
     boolean waked = false;
     String wakeWordGiven = "";
+    int wakeWordStartIdx = -1;
     int wakeWordEndIdx = -1;
     boolean commanded = false;
     SGMCommand commandGiven;
@@ -118,6 +139,7 @@ public class VoiceCommandServer {
         //setup wake and end words
         wakeWords = new ArrayList<>(Arrays.asList(new String [] {"hey computer", "a computer", "aurora", "harken", "vivify"}));
         endWords = new ArrayList<>(Arrays.asList(new String [] {"finish command"}));
+        buildPhraseIndex();
 
         //keeps checking to see if there is a command to be run
         startSittingCommandHitter();
@@ -127,7 +149,56 @@ public class VoiceCommandServer {
     }
 
     public void updateVoiceCommands(ArrayList<SGMCommand> inputVoiceCommands){
-        this.voiceCommands = inputVoiceCommands;
+        //on the parsing thread, so a parse never sees new commands with the old index
+        vcHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                voiceCommands = inputVoiceCommands;
+                buildPhraseIndex();
+            }
+        });
+    }
+
+    private void buildPhraseIndex(){
+        long start = System.nanoTime();
+        TrigramIndex index = new TrigramIndex();
+        int [] wakeWordIds = new int[wakeWords.size()];
+        for (int i = 0; i < wakeWords.size(); i++){
+            wakeWordIds[i] = index.add(wakeWords.get(i), wakeWordThreshold);
+        }
+        int [] endWordIds = new int[endWords.size()];
+        for (int i = 0; i < endWords.size(); i++){
+            endWordIds[i] = index.add(endWords.get(i), endWordThreshold);
+        }
+        ArrayList<Integer> commandPhraseIds = new ArrayList<>();
+        ArrayList<String> commandPhrases = new ArrayList<>();
+        ArrayList<String> argOptions = new ArrayList<>();
+        for (int i = 0; i < voiceCommands.size(); i++){
+            for (String phrase : voiceCommands.get(i).getPhrases()){
+                commandPhraseIds.add(index.add(phrase, commandThreshold));
+                commandPhrases.add(phrase);
+            }
+            if (voiceCommands.get(i).argOptions != null){
+                for (Object option : voiceCommands.get(i).argOptions){
+                    argOptions.add(option.toString());
+                }
+            }
+        }
+        index.build();
+        wakeWordMatcher = new StreamingPhraseMatcher(index, wakeWordIds);
+        endWordMatcher = new StreamingPhraseMatcher(index, endWordIds);
+        commandMatcher = new StreamingPhraseMatcher(index, commandPhraseIds.stream().mapToInt(Integer::intValue).toArray());
+        wakeWordSoundMatcher = new PhoneticMatcher(wakeWords.toArray(new String[0]), soundThreshold);
+        endWordSoundMatcher = new PhoneticMatcher(endWords.toArray(new String[0]), soundThreshold);
+        commandSoundMatcher = new PhoneticMatcher(commandPhrases.toArray(new String[0]), soundThreshold);
+        //the always candidates are scored on every parse, so they're what parse time grows with
+        Log.d(TAG, "Indexed " + index.size() + " phrases (" + index.getAlwaysCandidateCount() + " always scored) in " + ((System.nanoTime() - start) / 1000) + "us");
+
+        //what ASR should listen for while we wait for a command
+        ArrayList<String> grammar = new ArrayList<>(commandPhrases);
+        grammar.addAll(argOptions);
+        grammar.addAll(endWords);
+        EventBus.getDefault().postSticky(new VoiceCommandGrammarEvent(grammar));
     }
 
     private void startSittingCommandHitter(){
@@ -204,10 +275,8 @@ public class VoiceCommandServer {
             partialTranscriptBufferIdx = 0;
         }
 
-        //parse transcript - but don't run too often
-        if ((System.currentTimeMillis() - lastParseTime) > 400) {
-            parseVoiceCommandBuffer(transcriptToParse, false);
-        }
+        //parse transcript, only what's changed since the last one gets matched again so there's no need to hold off
+        parseVoiceCommandBuffer(transcriptToParse, false);
     }
 
     private void restartTranscriptBuffer(int partialIdx, Boolean useNext){
@@ -231,13 +300,15 @@ public class VoiceCommandServer {
 
         //loop through all voice commands to see if any of their wake words match
         if (!waked) { //only run this if we haven't already detected a wake word
+            wakeWordMatcher.update(transcript);
+            wakeWordSoundMatcher.update(transcript);
             //loop through all global wake words to see if any match
             for (int i = 0; i < wakeWords.size(); i++){
                 String currWakeWord = wakeWords.get(i);
-                FuzzyMatch wakeWordLocation = nlpUtils.findNearMatches(transcript, currWakeWord, wakeWordThreshold); //transcript.indexOf(currWakeWord);
+                FuzzyMatch wakeWordLocation = getMatch(wakeWordMatcher, wakeWordSoundMatcher, i, currWakeWord); //transcript.indexOf(currWakeWord);
                 if (wakeWordLocation != null && wakeWordLocation.getIndex() != -1){ //if the substring "wake word" is in the larger string "transcript"
                     //we found a command, now get its arguments and run it
-                    foundWakeWord(currWakeWord, wakeWordLocation.getIndex() + currWakeWord.length());
+                    foundWakeWord(currWakeWord, wakeWordLocation.getIndex(), wakeWordLocation.getIndex() + wakeWordLocation.getLength());
                     break;
                 }
             }
@@ -247,7 +318,7 @@ public class VoiceCommandServer {
         String preArgs;
         String rest;
         if (waked) { //only search for a command if we've already woken
-            preArgs = transcript.substring(0, wakeWordEndIdx - wakeWordGiven.length()); //get args before the wakeword
+            preArgs = transcript.substring(0, wakeWordStartIdx); //get args before the wakeword
             try {
                 rest = transcript.substring(wakeWordEndIdx);
             } catch (StringIndexOutOfBoundsException e){
@@ -265,13 +336,15 @@ public class VoiceCommandServer {
             //loop through all global endwords to see if any match
             int partialIdx = partialTranscriptBufferIdx;
             int endWordLocationIdx = -1;
+            endWordMatcher.update(transcript);
+            endWordSoundMatcher.update(transcript);
             for (int i = 0; i < endWords.size(); i++) {
                 String currEndWord = endWords.get(i);
-                FuzzyMatch endWordLocation = nlpUtils.findNearMatches(transcript, currEndWord, endWordThreshold); //transcript.indexOf(currEndWord);
+                FuzzyMatch endWordLocation = getMatch(endWordMatcher, endWordSoundMatcher, i, currEndWord); //transcript.indexOf(currEndWord);
                 if (endWordLocation != null && endWordLocation.getIndex() != -1) { //if the substring "end word" is in the larger string "transcript"
                     //we detected an end word, so act on it if we've been commanded, or cancel if not
                     Log.d(TAG, "Detected end word");
-                    partialIdx = partialTranscriptBufferIdx + endWordLocation.getIndex() + currEndWord.length();
+                    partialIdx = partialTranscriptBufferIdx + endWordLocation.getIndex() + endWordLocation.getLength();
                     if (!commanded) {
                         Log.d(TAG, "Wake word detected with no command input: " + rest);
                         cancelVoiceCommand();
@@ -343,14 +416,17 @@ public class VoiceCommandServer {
         FuzzyMatch bestMatch = new FuzzyMatch(-1,0);
         int bestMatchIdx = -1;
         int vcIdx = -1;
+        //same order as findBestMatch over each command's phrases, so the first best match still wins
+        commandMatcher.update(rest);
+        commandSoundMatcher.update(rest);
+        int k = 0;
         for (int i = 0; i < voiceCommands.size(); i++) {
-            Pair<FuzzyMatch, Integer> commandBestMatch = nlpUtils.findBestMatch(rest, voiceCommands.get(i).getPhrases(), commandThreshold);
-            if (commandBestMatch != null) {
-                FuzzyMatch commandMatch = commandBestMatch.first;
-                int commandMatchIdx = commandBestMatch.second;
-                if (commandMatch.getSimilarity() > bestMatch.getSimilarity()) {
+            ArrayList<String> phrases = voiceCommands.get(i).getPhrases();
+            for (int j = 0; j < phrases.size(); j++, k++) {
+                FuzzyMatch commandMatch = getMatch(commandMatcher, commandSoundMatcher, k, phrases.get(j));
+                if (commandMatch != null && commandMatch.getSimilarity() > bestMatch.getSimilarity()) {
                     bestMatch = commandMatch;
-                    bestMatchIdx = commandMatchIdx;
+                    bestMatchIdx = j;
                     vcIdx = i;
                 }
             }
@@ -362,13 +438,28 @@ public class VoiceCommandServer {
 
             Log.d(TAG, "FOUND MATCH: " + commandMatchString);
 
-            foundCommand(voiceCommands.get(vcIdx), partialTranscriptBufferIdx + wakeWordEndIdx + commandMatch.getIndex() + commandMatchString.length(), commandTime);
+            foundCommand(voiceCommands.get(vcIdx), partialTranscriptBufferIdx + wakeWordEndIdx + commandMatch.getIndex() + commandMatch.getLength(), commandTime);
 
             currentlyParsing = false;
             return;
         }
     }
 
+    //the k-th phrase's match in the last transcript the matchers saw, by spelling, else by sound, null if there isn't one
+    private FuzzyMatch getMatch(StreamingPhraseMatcher matcher, PhoneticMatcher soundMatcher, int k, String phrase){
+        FuzzyMatch match;
+        if (matcher.isMatch(k)){
+            match = new FuzzyMatch(matcher.getOffset(k), matcher.getScore(k));
+            match.setLength(phrase.length());
+        } else if (soundMatcher.isMatch(k)){
+            match = new FuzzyMatch(soundMatcher.getOffset(k), soundMatcher.getScore(k));
+            match.setLength(soundMatcher.getEnd(k) - soundMatcher.getOffset(k));
+        } else {
+            return null;
+        }
+        return match;
+    }
+
     private void needRequiredArg(String prompt, ArrayList<String> possibleArgs){
         haveRequestedArg = true;
         Log.d(TAG, "needRequiredArg called");
@@ -390,12 +481,14 @@ public class VoiceCommandServer {
         if (!askedForNaturalLanguage) {
             EventBus.getDefault().post(new NaturalLanguageArgsCommandViewRequestEvent(prompt, subSubString));
             askedForNaturalLanguage = true;
+            //natural language isn't in the command grammar
+            EventBus.getDefault().post(new VoiceCommandPhaseEvent(false));
         } else {
             EventBus.getDefault().post(new NaturalLanguageArgsCommandViewUpdateRequestEvent(subSubString));
         }
     }
 
-    private void foundWakeWord(String wakeWord, int wakeWordEndIdx){
+    private void foundWakeWord(String wakeWord, int wakeWordStartIdx, int wakeWordEndIdx){
         //don't run if a wake word has already been found in the current voice buffer
         if (waked){
             return;
@@ -408,6 +501,7 @@ public class VoiceCommandServer {
 
         waked = true;
         this.wakeWordGiven = wakeWord;
+        this.wakeWordStartIdx = wakeWordStartIdx;
         this.wakeWordEndIdx = wakeWordEndIdx;
 
         //generate list of each command's top level phrases
@@ -419,6 +513,9 @@ public class VoiceCommandServer {
         //tell ASG that we have found this wake word and to display the following command options
         String [] commandListSA = commandList.toArray(new String[0]);
         EventBus.getDefault().post(new PromptViewRequestEvent("Say a command:", commandListSA));
+
+        //ASR only has to listen for commands now
+        EventBus.getDefault().post(new VoiceCommandPhaseEvent(true));
     }
 
     private void foundCommand(SGMCommand command, int commandEndIdx, long commandTime){
@@ -460,6 +557,7 @@ public class VoiceCommandServer {
         gotArg = false;
         askedForNaturalLanguage = false;
         haveRequestedArg = false;
+        EventBus.getDefault().post(new VoiceCommandPhaseEvent(false));
     }
 
     public void sendResultToAsg(boolean success){
@@ -575,6 +673,12 @@ public class VoiceCommandServer {
         throwHandleNewTranscript(receivedEvent.text, receivedEvent.timestamp, false);
     }
 
+    //what the command grammar recognizer heard while we wait for a command, handled like any other transcript
+    @Subscribe
+    public void onCommandTranscriptEvent(CommandTranscriptEvent receivedEvent){
+        throwHandleNewTranscript(receivedEvent.text, receivedEvent.timestamp, receivedEvent.isFinal);
+    }
+
     private void throwHandleNewTranscript(String transcript, long timestamp, boolean isFinal){
         //run on new thread so we don't slow anything down
         vcHandler.post(new Runnable() {
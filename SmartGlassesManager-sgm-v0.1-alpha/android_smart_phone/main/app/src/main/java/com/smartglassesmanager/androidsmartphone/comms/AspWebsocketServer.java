@@ -9,11 +9,18 @@ import org.java_websocket.server.WebSocketServer;
 import java.util.Map;
 import java.util.UUID;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.util.concurrent.ConcurrentHashMap;
+import android.util.Base64;
 import android.util.Log;
+import org.greenrobot.eventbus.EventBus;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
 
+import com.smartglassesmanager.androidsmartphone.eventbusmessages.AudioChunkNewEvent;
+import com.smartglassesmanager.androidsmartphone.utils.AesGcmSession;
+
 import io.reactivex.rxjava3.disposables.Disposable;
 import io.reactivex.rxjava3.subjects.PublishSubject;
 
@@ -29,6 +36,15 @@ public class AspWebsocketServer extends WebSocketServer {
     private Map<String, WebSocket> clients = new ConcurrentHashMap<>();
     private WebSocket asgConn;
 
+    //binary audio frame tracking, see AudioFrameProtocol
+    private int lastAudioSequence = -1;
+    private long droppedAudioFrames = 0;
+    private final AudioChunkNewEvent audioChunkNewEvent = new AudioChunkNewEvent();
+
+    //audio encryption, a new session key is made every time the ASG offers codecs (i.e. every connection)
+    private String secretKey;
+    private volatile AesGcmSession audioCrypto;
+
     public AspWebsocketServer(int port)
     {
         super(new InetSocketAddress(port));
@@ -47,6 +63,10 @@ public class AspWebsocketServer extends WebSocketServer {
         Log.d(TAG, "Got new connection at address: " + conn.getRemoteSocketAddress());
         clients.put(uniqueID, conn);
         asgConn = conn;
+        //new connection, so forget the sequence we last saw. The ASG's counter keeps going across reconnects, this just
+        //stops whatever it sent while disconnected being counted as dropped frames
+        lastAudioSequence = -1;
+        audioCrypto = null; //the last connection's session key is gone, the ASG gets a new one when it offers codecs
     }
 
     @Override
@@ -63,6 +83,8 @@ public class AspWebsocketServer extends WebSocketServer {
         Log.d(TAG, "onClose set connected=1");
         clients.clear();
         connected = 1;
+        //only once nothing is connected, a reconnect that beat this close already has its own session key
+        audioCrypto = null;
     }
 
     @Override
@@ -70,6 +92,10 @@ public class AspWebsocketServer extends WebSocketServer {
         try {
 //            Log.d(TAG, message);
             JSONObject json_obj = new JSONObject(message);
+            if (json_obj.optString(MessageTypes.MESSAGE_TYPE_LOCAL).equals(MessageTypes.AUDIO_CODEC_OFFER)){
+                selectAudioCodec(json_obj);
+                return;
+            }
             dataObservable.onNext(json_obj);
         } catch (JSONException e){
             //if we send a string, this will get thrown, all messages should be JSON or byte []
@@ -77,9 +103,88 @@ public class AspWebsocketServer extends WebSocketServer {
         }
     }
 
+    //ASG tells us what it can encode, pick the first of our preferred codecs that it supports
+    private void selectAudioCodec(JSONObject offer) throws JSONException {
+        JSONArray offered = offer.getJSONArray(MessageTypes.AUDIO_CODECS);
+        byte selected = AudioFrameProtocol.SAMPLE_FORMAT_PCM_16BIT_LE_16KHZ;
+        search:
+        for (byte format : AudioCodec.SUPPORTED_SAMPLE_FORMATS){
+            for (int i = 0; i < offered.length(); i++){
+                if (offered.getInt(i) == format){
+                    selected = format;
+                    break search;
+                }
+            }
+        }
+
+        Log.d(TAG, "Selected audio codec: " + selected);
+        JSONObject select = new JSONObject();
+        select.put(MessageTypes.MESSAGE_TYPE_LOCAL, MessageTypes.AUDIO_CODEC_SELECT);
+        select.put(MessageTypes.AUDIO_CODEC, selected);
+        if (secretKey != null) {
+            try {
+                byte [] salt = AesGcmSession.newSalt();
+                audioCrypto = new AesGcmSession(secretKey, salt);
+                select.put(MessageTypes.AUDIO_CRYPTO_SALT, Base64.encodeToString(salt, Base64.NO_WRAP));
+            } catch (GeneralSecurityException e){
+                e.printStackTrace();
+                audioCrypto = null;
+            }
+        }
+        sendJson(select);
+    }
+
+    //binary messages are audio frames from the ASG - these skip JSON and go straight to the recognizer
     @Override
     public void onMessage(WebSocket conn, ByteBuffer message) {
-        Log.d(TAG, "GOT MESSAGE BYTES");
+        if (!AudioFrameProtocol.isValid(message)){
+            Log.d(TAG, "Dropping invalid audio frame");
+            return;
+        }
+
+        //once we've handed out a session key, only accept audio that authenticates with it
+        AesGcmSession crypto = audioCrypto;
+        if (AudioFrameProtocol.isEncrypted(message)){
+            if (crypto == null){
+                Log.d(TAG, "Dropping encrypted audio frame, no audio session key");
+                return;
+            }
+            try {
+                AudioFrameProtocol.decrypt(message, crypto);
+            } catch (GeneralSecurityException e){
+                Log.d(TAG, "Dropping audio frame that failed authentication");
+                return;
+            }
+        } else if (crypto != null){
+            Log.d(TAG, "Dropping unencrypted audio frame");
+            return;
+        }
+
+        byte sampleFormat = AudioFrameProtocol.getSampleFormat(message);
+        if (!AudioCodec.isSupported(sampleFormat)){
+            Log.d(TAG, "Dropping audio frame with unsupported sample format: " + sampleFormat);
+            return;
+        }
+
+        //keep track of frames lost between ASG and ASP
+        int sequence = AudioFrameProtocol.getSequenceNumber(message);
+        if (lastAudioSequence != -1 && sequence > lastAudioSequence + 1){
+            droppedAudioFrames += sequence - lastAudioSequence - 1;
+            Log.d(TAG, "Audio frames dropped: " + droppedAudioFrames);
+        }
+        lastAudioSequence = sequence;
+
+        //point at the samples after the header, subscribers decode them into the recognizer's ring before post returns
+        message.position(message.position() + AudioFrameProtocol.HEADER_SIZE);
+        EventBus.getDefault().post(audioChunkNewEvent.setBytes(message, sampleFormat));
+    }
+
+    public void setSecretKey(String secretKey){
+        this.secretKey = secretKey;
+    }
+
+    public long getDroppedAudioFrames(){
+        return droppedAudioFrames;
     }
 
     @Override
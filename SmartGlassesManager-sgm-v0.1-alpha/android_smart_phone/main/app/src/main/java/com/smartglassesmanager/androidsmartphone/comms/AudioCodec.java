@@ -0,0 +1,62 @@
+package com.smartglassesmanager.androidsmartphone.comms;
+
+import java.nio.ByteBuffer;
+
+//decodes audio frames from the ASG into 16 bit PCM. The codec is picked at connect time (AUDIO_CODEC_OFFER/AUDIO_CODEC_SELECT)
+//and every audio frame carries its sample format
+//must match comms/AudioCodec on the ASG
+//decoders are streaming so they can write straight into PcmRingBuffer frames: startDecode() with the frame payload, then decode() while hasRemaining()
+public abstract class AudioCodec {
+    //in order of preference, we pick the first one the ASG also supports
+    public static final byte [] SUPPORTED_SAMPLE_FORMATS = {
+            AudioFrameProtocol.SAMPLE_FORMAT_IMA_ADPCM_16KHZ,
+            AudioFrameProtocol.SAMPLE_FORMAT_MULAW_16KHZ,
+            AudioFrameProtocol.SAMPLE_FORMAT_PCM_16BIT_LE_16KHZ
+    };
+
+    protected ByteBuffer encoded;
+    protected int readPos;
+    protected int end;
+
+    public abstract byte getSampleFormat();
+
+    //decode from the position to the limit of encoded. Doesn't move encoded's position, and encoded must not change until decoding is done
+    public void startDecode(ByteBuffer encoded){
+        this.encoded = encoded;
+        this.readPos = encoded.position();
+        this.end = encoded.limit();
+    }
+
+    //number of samples left to decode in the current frame
+    public abstract int getRemainingSamples();
+
+    public boolean hasRemaining(){
+        return getRemainingSamples() > 0;
+    }
+
+    //decode up to maxSamples into dst, returns the number of samples written, 0 when the frame is done
+    public abstract int decode(short [] dst, int offset, int maxSamples);
+
+    //returns null if we don't support the format
+    public static AudioCodec create(byte sampleFormat){
+        switch (sampleFormat){
+            case AudioFrameProtocol.SAMPLE_FORMAT_PCM_16BIT_LE_16KHZ:
+                return new PcmAudioCodec();
+            case AudioFrameProtocol.SAMPLE_FORMAT_MULAW_16KHZ:
+                return new MuLawAudioCodec();
+            case AudioFrameProtocol.SAMPLE_FORMAT_IMA_ADPCM_16KHZ:
+                return new ImaAdpcmAudioCodec();
+            default:
+                return null;
+        }
+    }
+
+    public static boolean isSupported(byte sampleFormat){
+        for (byte format : SUPPORTED_SAMPLE_FORMATS){
+            if (format == sampleFormat){
+                return true;
+            }
+        }
+        return false;
+    }
+}
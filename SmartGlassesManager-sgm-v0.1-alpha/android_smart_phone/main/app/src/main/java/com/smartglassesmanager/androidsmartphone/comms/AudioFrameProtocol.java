@@ -0,0 +1,81 @@
+package com.smartglassesmanager.androidsmartphone.comms;
+
+import com.smartglassesmanager.androidsmartphone.utils.AesGcmSession;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+
+//binary audio frames sent over the ASG<->ASP websocket. JSON is only used for control messages, audio comes in as a websocket binary message with this fixed header in front of the samples, encoded with the AudioCodec for the sample format
+//must match comms/AudioFrameProtocol on the ASG
+//header layout (big endian):
+//  byte  version
+//  byte  sample format
+//  short stream id
+//  int   sequence number
+//  long  capture timestamp (ms since epoch)
+//if the sample format has SAMPLE_FORMAT_ENCRYPTED set, the payload is AES-GCM encrypted with the header as associated data, and ends with the tag
+public class AudioFrameProtocol {
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+
+    //sample formats
+    public static final byte SAMPLE_FORMAT_PCM_16BIT_LE_16KHZ = 1;
+    public static final byte SAMPLE_FORMAT_MULAW_16KHZ = 2;
+    public static final byte SAMPLE_FORMAT_IMA_ADPCM_16KHZ = 3;
+    public static final byte SAMPLE_FORMAT_ENCRYPTED = (byte) 0x80; //flag, or'd with the sample format
+
+    //stream ids
+    public static final short STREAM_ID_MIC = 1;
+
+    //all of the getters below use absolute reads, so they don't move the position of the frame and don't allocate
+    public static boolean isValid(ByteBuffer frame){
+        return frame.remaining() >= HEADER_SIZE && frame.get(frame.position()) == VERSION;
+    }
+
+    public static byte getSampleFormat(ByteBuffer frame){
+        return (byte) (frame.get(frame.position() + 1) & ~SAMPLE_FORMAT_ENCRYPTED);
+    }
+
+    public static boolean isEncrypted(ByteBuffer frame){
+        return (frame.get(frame.position() + 1) & SAMPLE_FORMAT_ENCRYPTED) != 0;
+    }
+
+    //decrypt and authenticate the payload in place, then shrink the frame's limit to drop the tag. Throws if the frame doesn't authenticate
+    public static void decrypt(ByteBuffer frame, AesGcmSession crypto) throws GeneralSecurityException {
+        int payloadStart = frame.position() + HEADER_SIZE;
+        ByteBuffer header = frame.duplicate();
+        header.limit(payloadStart);
+        ByteBuffer encrypted = frame.duplicate();
+        encrypted.position(payloadStart);
+        ByteBuffer plain = frame.duplicate();
+        plain.position(payloadStart);
+        int plainLength = crypto.decrypt(getStreamId(frame), getSequenceNumber(frame), header, encrypted, plain);
+        frame.limit(payloadStart + plainLength);
+    }
+
+    public static short getStreamId(ByteBuffer frame){
+        return frame.order(ByteOrder.BIG_ENDIAN).getShort(frame.position() + 2);
+    }
+
+    public static int getSequenceNumber(ByteBuffer frame){
+        return frame.order(ByteOrder.BIG_ENDIAN).getInt(frame.position() + 4);
+    }
+
+    public static long getCaptureTime(ByteBuffer frame){
+        return frame.order(ByteOrder.BIG_ENDIAN).getLong(frame.position() + 8);
+    }
+
+    public static int getPayloadLength(ByteBuffer frame){
+        return frame.remaining() - HEADER_SIZE;
+    }
+
+    //copy the samples after the header into dest, returns number of bytes copied
+    public static int readPayload(ByteBuffer frame, byte [] dest, int destOffset){
+        int len = Math.min(getPayloadLength(frame), dest.length - destOffset);
+        ByteBuffer payload = frame.duplicate();
+        payload.position(frame.position() + HEADER_SIZE);
+        payload.get(dest, destOffset, len);
+        return len;
+    }
+}
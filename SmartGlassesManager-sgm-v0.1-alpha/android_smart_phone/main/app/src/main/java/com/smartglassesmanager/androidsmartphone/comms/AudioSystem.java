@@ -28,8 +28,11 @@ import java.io.DataInputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 
+import com.smartglassesmanager.androidsmartphone.eventbusmessages.AudioChunkNewEvent;
 import com.smartglassesmanager.androidsmartphone.utils.AES;
 
+import org.greenrobot.eventbus.EventBus;
+
 import android.util.Log;
 
 import com.smartglassesmanager.androidsmartphone.R;
@@ -76,6 +79,7 @@ public class AudioSystem {
     //send audio to to other services in the app
     PublishSubject<JSONObject> dataObservable;
     Disposable dataSubscriber;
+    private final AudioChunkNewEvent audioChunkNewEvent = new AudioChunkNewEvent();
 
     Context context;
 
@@ -456,22 +460,18 @@ public class AudioSystem {
         }
     }
 
-    //here we decode, decrypt, the encode again. It's not pretty, but it allows us to use a JSON event bus, which makes things way more manageable and modular
+    //decrypt in place and hand the PCM straight to the recognizer's ring, instead of re-encoding it into another JSON message
     private void handleEncryptedData(JSONObject data){
         try{
             String encodedData = data.getString(MessageTypes.AUDIO_DATA);
-            byte [] decodedData = Base64.decode(encodedData, Base64.DEFAULT);
-            byte [] plainData = decryptBytes(decodedData);
-            String encodedPlainData = Base64.encodeToString(plainData, Base64.DEFAULT);
-
-            //make new object and send as decrypted data
-            JSONObject decryptedData = new JSONObject();
-            decryptedData.put(MessageTypes.MESSAGE_TYPE_LOCAL, MessageTypes.AUDIO_CHUNK_DECRYPTED);
-            decryptedData.put(MessageTypes.AUDIO_DATA, encodedPlainData);
-            dataObservable.onNext(decryptedData);
-
-            //throw new audio event
-//            EventBus.getDefault().post(new AudioChunkNewEvent(plainData));
+            byte [] audioData = Base64.decode(encodedData, Base64.DEFAULT);
+            int plainLength = AES.decrypt(audioData, 0, audioData.length, audioData, 0, secretKey);
+            if (plainLength < 0){
+                return;
+            }
+
+            //subscribers copy the samples out before post returns
+            EventBus.getDefault().post(audioChunkNewEvent.setBytes(ByteBuffer.wrap(audioData, 0, plainLength)));
         } catch (JSONException e){
             e.printStackTrace();
         }
@@ -0,0 +1,86 @@
+package com.smartglassesmanager.androidsmartphone.comms;
+
+import java.nio.ByteBuffer;
+
+//IMA ADPCM, 4:1. Every frame starts with a 4 byte header (predictor as 16 bit little endian, step index, flags) so frames
+//can be decoded on their own even if the one before was dropped. Nibbles are packed low nibble first
+public class ImaAdpcmAudioCodec extends AudioCodec {
+    public static final int HEADER_SIZE = 4;
+    public static final int FLAG_ODD_SAMPLES = 0x01; //last nibble is padding
+
+    static final int [] INDEX_TABLE = {
+            -1, -1, -1, -1, 2, 4, 6, 8,
+            -1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+    static final int [] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+            19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+            130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+            876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+            5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+            15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    private int predictor;
+    private int index;
+    private int samplesLeft;
+    private boolean highNibble;
+
+    @Override
+    public byte getSampleFormat(){
+        return AudioFrameProtocol.SAMPLE_FORMAT_IMA_ADPCM_16KHZ;
+    }
+
+    @Override
+    public void startDecode(ByteBuffer encoded){
+        super.startDecode(encoded);
+        highNibble = false;
+        if (end - readPos < HEADER_SIZE){
+            samplesLeft = 0;
+            return;
+        }
+        predictor = (short) ((encoded.get(readPos) & 0xff) | (encoded.get(readPos + 1) << 8));
+        index = Math.max(0, Math.min(88, encoded.get(readPos + 2) & 0xff));
+        int flags = encoded.get(readPos + 3);
+        readPos += HEADER_SIZE;
+        samplesLeft = (end - readPos) * 2 - (((flags & FLAG_ODD_SAMPLES) != 0) ? 1 : 0);
+    }
+
+    @Override
+    public int getRemainingSamples(){
+        return samplesLeft;
+    }
+
+    @Override
+    public int decode(short [] dst, int offset, int maxSamples){
+        int n = Math.min(maxSamples, samplesLeft);
+        for (int i = 0; i < n; i++){
+            int b = encoded.get(readPos);
+            int nibble;
+            if (highNibble){
+                nibble = (b >> 4) & 0x0f;
+                readPos++;
+            } else {
+                nibble = b & 0x0f;
+            }
+            highNibble = !highNibble;
+
+            int step = STEP_TABLE[index];
+            int delta = step >> 3;
+            if ((nibble & 4) != 0) delta += step;
+            if ((nibble & 2) != 0) delta += step >> 1;
+            if ((nibble & 1) != 0) delta += step >> 2;
+            predictor += ((nibble & 8) != 0) ? -delta : delta;
+            predictor = Math.max(-32768, Math.min(32767, predictor));
+            index = Math.max(0, Math.min(88, index + INDEX_TABLE[nibble]));
+
+            dst[offset + i] = (short) predictor;
+        }
+        samplesLeft -= n;
+        return n;
+    }
+}
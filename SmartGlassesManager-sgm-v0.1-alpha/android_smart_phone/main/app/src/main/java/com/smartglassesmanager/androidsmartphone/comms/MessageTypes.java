@@ -87,6 +87,13 @@ public class MessageTypes {
     public static final String AUDIO_CHUNK_ENCRYPTED = "AUDIO_CHUNK_ENCRYPTED";
     public static final String AUDIO_CHUNK_DECRYPTED = "AUDIO_CHUNK_DECRYPTED";
     public static final String AUDIO_DATA = "AUDIO_DATA";
+    //ASG offers the codecs it can encode with (AUDIO_CODECS, sample format ids from AudioFrameProtocol), ASP answers with the one to use (AUDIO_CODEC)
+    public static final String AUDIO_CODEC_OFFER = "AUDIO_CODEC_OFFER";
+    public static final String AUDIO_CODEC_SELECT = "AUDIO_CODEC_SELECT";
+    public static final String AUDIO_CODECS = "AUDIO_CODECS";
+    public static final String AUDIO_CODEC = "AUDIO_CODEC";
+    //Base64 salt for the AesGcmSession that encrypts audio frames on this connection, sent with AUDIO_CODEC_SELECT
+    public static final String AUDIO_CRYPTO_SALT = "AUDIO_CRYPTO_SALT";
 
     //AUTOCITER/WEARABLE-REFERENCER
     public static final String AUTOCITER_START = "AUTOCITER_START";
@@ -0,0 +1,35 @@
+package com.smartglassesmanager.androidsmartphone.comms;
+
+//G.711 mu-law, 2:1
+public class MuLawAudioCodec extends AudioCodec {
+    private static final short [] DECODE_TABLE = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++){
+            int u = ~i & 0xff;
+            int exponent = (u >> 4) & 0x07;
+            int mantissa = u & 0x0f;
+            int sample = (((mantissa << 3) + 0x84) << exponent) - 0x84;
+            DECODE_TABLE[i] = (short) ((u & 0x80) != 0 ? -sample : sample);
+        }
+    }
+
+    @Override
+    public byte getSampleFormat(){
+        return AudioFrameProtocol.SAMPLE_FORMAT_MULAW_16KHZ;
+    }
+
+    @Override
+    public int getRemainingSamples(){
+        return end - readPos;
+    }
+
+    @Override
+    public int decode(short [] dst, int offset, int maxSamples){
+        int n = Math.min(maxSamples, end - readPos);
+        for (int i = 0; i < n; i++){
+            dst[offset + i] = DECODE_TABLE[encoded.get(readPos++) & 0xff];
+        }
+        return n;
+    }
+}
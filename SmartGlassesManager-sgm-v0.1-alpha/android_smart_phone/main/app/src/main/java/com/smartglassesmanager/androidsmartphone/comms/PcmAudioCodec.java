@@ -0,0 +1,23 @@
+package com.smartglassesmanager.androidsmartphone.comms;
+
+//no compression, raw 16 bit little endian pcm
+public class PcmAudioCodec extends AudioCodec {
+    @Override
+    public byte getSampleFormat(){
+        return AudioFrameProtocol.SAMPLE_FORMAT_PCM_16BIT_LE_16KHZ;
+    }
+
+    @Override
+    public int getRemainingSamples(){
+        return (end - readPos) / 2;
+    }
+
+    @Override
+    public int decode(short [] dst, int offset, int maxSamples){
+        int n = Math.min(maxSamples, (end - readPos) / 2);
+        for (int i = 0; i < n; i++, readPos += 2){
+            dst[offset + i] = (short) ((encoded.get(readPos) & 0xff) | (encoded.get(readPos + 1) << 8));
+        }
+        return n;
+    }
+}
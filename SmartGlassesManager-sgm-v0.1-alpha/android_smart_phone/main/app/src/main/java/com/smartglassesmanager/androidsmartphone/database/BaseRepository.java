@@ -0,0 +1,203 @@
+package com.smartglassesmanager.androidsmartphone.database;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base for the Room repositories, so all database access runs on a fixed set of threads:
+ * - one small pool for reads (queries can run side by side, SQLite WAL lets reads run during a write)
+ * - one thread for writes, so writes never contend for the database lock and happen in the order they're queued
+ *
+ * Repositories wrap each DAO call in {@link #read} or {@link #write}, which give back a CompletableFuture. Callers that
+ * can't do anything until they have the result block on it with get(), everyone else chains on it or passes a callback.
+ *
+ * Every DAO call is timed under its name (e.g. "PhraseDao.getPhraseRangeSnapshot"), see {@link #getQueryStats()}.
+ */
+public abstract class BaseRepository {
+    private static final String TAG = "WearableAi_BaseRepository";
+
+    private static final int READ_THREADS = 2;
+    private static final int IDLE_THREAD_TIMEOUT_S = 30;
+
+    private static final ThreadPoolExecutor readExecutor;
+    private static final ScheduledThreadPoolExecutor writeExecutor;
+    static {
+        readExecutor = new ThreadPoolExecutor(READ_THREADS, READ_THREADS, IDLE_THREAD_TIMEOUT_S, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), namedThreads("WearableAi_RoomRead"));
+        readExecutor.allowCoreThreadTimeOut(true);
+        writeExecutor = new ScheduledThreadPoolExecutor(1, namedThreads("WearableAi_RoomWrite"));
+    }
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private static final Map<String, QueryStats> queryStats = new ConcurrentHashMap<>();
+
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    /** Timing for one DAO method, across all repositories. */
+    public static class QueryStats {
+        private final AtomicInteger queued = new AtomicInteger(0);
+        private volatile int maxQueued = 0;
+        private final AtomicLong calls = new AtomicLong(0);
+        private final AtomicLong errors = new AtomicLong(0);
+        private final AtomicLong totalWaitNs = new AtomicLong(0);
+        private final AtomicLong totalRunNs = new AtomicLong(0);
+        private volatile long maxRunNs = 0;
+
+        //calls waiting for or running on a database thread right now
+        public int getQueueDepth(){
+            return queued.get();
+        }
+
+        public int getMaxQueueDepth(){
+            return maxQueued;
+        }
+
+        public long getCallCount(){
+            return calls.get();
+        }
+
+        public long getErrorCount(){
+            return errors.get();
+        }
+
+        //time from being queued to starting to run
+        public double getAverageWaitMs(){
+            long n = calls.get();
+            return (n == 0) ? 0 : totalWaitNs.get() / 1e6 / n;
+        }
+
+        //time spent running the query itself
+        public double getAverageLatencyMs(){
+            long n = calls.get();
+            return (n == 0) ? 0 : totalRunNs.get() / 1e6 / n;
+        }
+
+        public double getMaxLatencyMs(){
+            return maxRunNs / 1e6;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("calls: %d, errors: %d, queued: %d (max %d), wait: %.1fms, latency: %.1fms (max %.1fms)",
+                    getCallCount(), getErrorCount(), getQueueDepth(), getMaxQueueDepth(), getAverageWaitMs(), getAverageLatencyMs(), getMaxLatencyMs());
+        }
+    }
+
+    private static ThreadFactory namedThreads(String name){
+        AtomicInteger count = new AtomicInteger(0);
+        return runnable -> new Thread(runnable, name + "-" + count.incrementAndGet());
+    }
+
+    /** Run a query on the read pool. */
+    protected static <T> CompletableFuture<T> read(String name, Callable<T> query){
+        return submit(readExecutor, name, query);
+    }
+
+    /** Run an insert/update/delete on the write thread, after every write queued before it. */
+    protected static <T> CompletableFuture<T> write(String name, Callable<T> query){
+        return submit(writeExecutor, name, query);
+    }
+
+    protected static CompletableFuture<Void> write(String name, Runnable query){
+        return submit(writeExecutor, name, () -> {
+            query.run();
+            return null;
+        });
+    }
+
+    /** Deliver a result on the main thread when it's ready. Errors are logged and the callback isn't called. */
+    protected static <T> void onMainThread(CompletableFuture<T> future, Callback<T> callback){
+        future.whenComplete((result, error) -> {
+            if (error != null){
+                error.printStackTrace();
+                return;
+            }
+            mainHandler.post(() -> callback.onResult(result));
+        });
+    }
+
+    /** Block on a result for the old synchronous APIs, null if the query failed. */
+    protected static <T> T getOrNull(CompletableFuture<T> future){
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e){
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static <T> CompletableFuture<T> submit(Executor executor, String name, Callable<T> query){
+        QueryStats stats = queryStats.computeIfAbsent(name, key -> new QueryStats());
+        int depth = stats.queued.incrementAndGet();
+        if (depth > stats.maxQueued){
+            stats.maxQueued = depth;
+        }
+        long queuedAt = System.nanoTime();
+        CompletableFuture<T> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            long start = System.nanoTime();
+            try {
+                future.complete(query.call());
+            } catch (Throwable e){
+                stats.errors.incrementAndGet();
+                future.completeExceptionally(e);
+            } finally {
+                long runNs = System.nanoTime() - start;
+                stats.queued.decrementAndGet();
+                stats.calls.incrementAndGet();
+                stats.totalWaitNs.addAndGet(start - queuedAt);
+                stats.totalRunNs.addAndGet(runNs);
+                if (runNs > stats.maxRunNs){
+                    stats.maxRunNs = runNs;
+                }
+            }
+        });
+        return future;
+    }
+
+    /** The write thread, for anything that has to be ordered with repository writes (e.g. batched writes). */
+    public static ScheduledExecutorService getWriteExecutor(){
+        return writeExecutor;
+    }
+
+    //METRICS
+
+    /** Stats per DAO method, sorted by name. */
+    public static Map<String, QueryStats> getQueryStats(){
+        return new TreeMap<>(queryStats);
+    }
+
+    public static int getReadQueueDepth(){
+        return readExecutor.getQueue().size();
+    }
+
+    public static int getWriteQueueDepth(){
+        return writeExecutor.getQueue().size();
+    }
+
+    public static void logQueryStats(){
+        Log.d(TAG, "Database read queue: " + getReadQueueDepth() + ", write queue: " + getWriteQueueDepth());
+        for (Map.Entry<String, QueryStats> entry : getQueryStats().entrySet()){
+            Log.d(TAG, entry.getKey() + " - " + entry.getValue());
+        }
+    }
+}
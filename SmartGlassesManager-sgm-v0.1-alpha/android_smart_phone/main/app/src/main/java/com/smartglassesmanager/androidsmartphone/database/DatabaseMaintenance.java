@@ -0,0 +1,208 @@
+package com.smartglassesmanager.androidsmartphone.database;
+
+import android.app.Application;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.util.Log;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import com.smartglassesmanager.androidsmartphone.database.phrase.PhraseRepository;
+import com.smartglassesmanager.androidsmartphone.database.phrase.PhraseSegmentStore;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the database small, run once a day by DatabaseMaintenanceJobService while the phone is idle and charging:
+ * - transcripts older than the retention period are moved out to compressed daily segments (see PhraseSegmentStore),
+ *   queries over old time ranges still see them
+ * - the space they leave is given back to the file system with an incremental vacuum, and the WAL is checkpointed
+ *   and truncated
+ *
+ * The first run switches the database to incremental auto vacuum, which takes one full VACUUM. Every run after that
+ * only frees up to INCREMENTAL_VACUUM_PAGES pages, so no run holds the write thread for long.
+ */
+public class DatabaseMaintenance extends BaseRepository {
+    private static final String TAG = "WearableAi_DatabaseMaintenance";
+
+    private static final int JOB_ID = 4201;
+    private static final String DATABASE_NAME = "wearableai_database";
+
+    public static final String RETENTION_DAYS_KEY = "phraseRetentionDays";
+    //0 keeps every transcript in the database
+    public static final int DEFAULT_RETENTION_DAYS = 90;
+    //most days one run archives, the rest wait for the next run
+    private static final int MAX_DAYS_PER_RUN = 60;
+    private static final int INCREMENTAL_VACUUM_PAGES = 2048;
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final Context mContext;
+    private final WearableAiRoomDatabase db;
+    private final PhraseRepository mPhraseRepository;
+    private volatile boolean cancelled = false;
+
+    //metrics, from the last run in this process
+    private static volatile long lastRunTime = 0;
+    private static volatile long lastRunDurationMs = 0;
+    private static volatile int lastRowsArchived = 0;
+    private static volatile int lastPagesFreed = 0;
+
+    public DatabaseMaintenance(Application application){
+        mContext = application;
+        db = WearableAiRoomDatabase.getDatabase(application);
+        mPhraseRepository = new PhraseRepository(application);
+    }
+
+    /** Have the job run once a day when the phone is idle and charging. Scheduling it again is a no-op. */
+    public static void schedule(Context context){
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        if (jobScheduler == null || jobScheduler.getPendingJob(JOB_ID) != null){
+            return;
+        }
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, DatabaseMaintenanceJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(TimeUnit.DAYS.toMillis(1))
+                .build();
+        jobScheduler.schedule(job);
+        Log.d(TAG, "Scheduled daily database maintenance");
+    }
+
+    public static int getRetentionDays(Context context){
+        SharedPreferences sharedPreferences = context.getSharedPreferences("SGMPrefs", Context.MODE_PRIVATE);
+        return sharedPreferences.getInt(RETENTION_DAYS_KEY, DEFAULT_RETENTION_DAYS);
+    }
+
+    public static void setRetentionDays(Context context, int days){
+        SharedPreferences sharedPreferences = context.getSharedPreferences("SGMPrefs", Context.MODE_PRIVATE);
+        sharedPreferences.edit().putInt(RETENTION_DAYS_KEY, days).apply();
+    }
+
+    /** Stop at the next step, from any thread. */
+    public void cancel(){
+        cancelled = true;
+    }
+
+    /**
+     * Run everything, blocking the calling thread (not the main thread) until it's done or cancelled. Returns false if a
+     * step failed, so the job can be retried.
+     */
+    public boolean run(){
+        long start = System.currentTimeMillis();
+        Log.d(TAG, "Starting database maintenance, database is " + getDatabaseSizeBytes() + " bytes, WAL " + getWalSizeBytes() + " bytes");
+        int rowsArchived = 0;
+        int pagesFreed = 0;
+        boolean failed = false;
+        try {
+            rowsArchived = archive();
+            if (!cancelled){
+                pagesFreed = vacuum().get();
+            }
+            if (!cancelled){
+                checkpoint().get();
+            }
+        } catch (InterruptedException | ExecutionException e){
+            e.printStackTrace();
+            failed = true;
+        }
+        lastRunTime = start;
+        lastRunDurationMs = System.currentTimeMillis() - start;
+        lastRowsArchived = rowsArchived;
+        lastPagesFreed = pagesFreed;
+        Log.d(TAG, "Database maintenance " + (failed ? "failed" : (cancelled ? "stopped" : "done")) + " in " + lastRunDurationMs + "ms: archived " + rowsArchived
+                + " phrases, freed " + pagesFreed + " pages, database is " + getDatabaseSizeBytes() + " bytes, " + getSegmentStore().getSizeBytes()
+                + " bytes in " + getSegmentStore().getSegmentCount() + " segments");
+        logQueryStats();
+        return !failed;
+    }
+
+    private int archive() throws InterruptedException, ExecutionException {
+        int retentionDays = getRetentionDays(mContext);
+        if (retentionDays <= 0){
+            return 0;
+        }
+        long cutoffTime = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionDays);
+        int rowsArchived = 0;
+        for (int days = 0; days < MAX_DAYS_PER_RUN && !cancelled; days++){
+            int rows = mPhraseRepository.archiveOldestDayAsync(cutoffTime).get();
+            if (rows == 0){
+                break;
+            }
+            rowsArchived += rows;
+        }
+        return rowsArchived;
+    }
+
+    //completes with the number of pages given back
+    private CompletableFuture<Integer> vacuum(){
+        return write("Database.vacuum", () -> {
+            SupportSQLiteDatabase database = db.getOpenHelper().getWritableDatabase();
+            int freePages = queryInt(database, "PRAGMA freelist_count");
+            if (queryInt(database, "PRAGMA auto_vacuum") != AUTO_VACUUM_INCREMENTAL){
+                //auto_vacuum only changes on a full VACUUM, this is the one time we do that
+                Log.d(TAG, "Switching to incremental auto vacuum");
+                database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                database.execSQL("VACUUM");
+                return freePages;
+            }
+            //each step frees one page, getCount runs it to the end
+            try (Cursor cursor = database.query("PRAGMA incremental_vacuum(" + INCREMENTAL_VACUUM_PAGES + ")")){
+                cursor.getCount();
+            }
+            return freePages - queryInt(database, "PRAGMA freelist_count");
+        });
+    }
+
+    private CompletableFuture<Void> checkpoint(){
+        return write("Database.checkpoint", () -> {
+            SupportSQLiteDatabase database = db.getOpenHelper().getWritableDatabase();
+            try (Cursor cursor = database.query("PRAGMA wal_checkpoint(TRUNCATE)")){
+                cursor.getCount();
+            }
+        });
+    }
+
+    private static int queryInt(SupportSQLiteDatabase database, String sql){
+        try (Cursor cursor = database.query(sql)){
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        }
+    }
+
+    public PhraseSegmentStore getSegmentStore(){
+        return mPhraseRepository.getSegmentStore();
+    }
+
+    //METRICS
+
+    public long getDatabaseSizeBytes(){
+        return mContext.getDatabasePath(DATABASE_NAME).length();
+    }
+
+    public long getWalSizeBytes(){
+        File database = mContext.getDatabasePath(DATABASE_NAME);
+        return new File(database.getPath() + "-wal").length();
+    }
+
+    public static long getLastRunTime(){
+        return lastRunTime;
+    }
+
+    public static long getLastRunDurationMs(){
+        return lastRunDurationMs;
+    }
+
+    public static int getLastRowsArchived(){
+        return lastRowsArchived;
+    }
+
+    public static int getLastPagesFreed(){
+        return lastPagesFreed;
+    }
+}
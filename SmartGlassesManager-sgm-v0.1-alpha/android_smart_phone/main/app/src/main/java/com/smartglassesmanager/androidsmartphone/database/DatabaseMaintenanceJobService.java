@@ -0,0 +1,42 @@
+package com.smartglassesmanager.androidsmartphone.database;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.util.Log;
+
+/** Runs DatabaseMaintenance off the main thread when the scheduler says the phone is idle and charging. */
+public class DatabaseMaintenanceJobService extends JobService {
+    private static final String TAG = "WearableAi_DatabaseMaintenanceJobService";
+
+    private DatabaseMaintenance maintenance;
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        Log.d(TAG, "onStartJob");
+        DatabaseMaintenance jobMaintenance = new DatabaseMaintenance(getApplication());
+        maintenance = jobMaintenance;
+        new Thread(() -> {
+            //always tell the scheduler we're done, or it holds the wakelock until it times the job out
+            boolean needsReschedule = true;
+            try {
+                needsReschedule = !jobMaintenance.run();
+            } finally {
+                if (needsReschedule) {
+                    Log.d(TAG, "Database maintenance failed, rescheduling");
+                }
+                jobFinished(params, needsReschedule);
+            }
+        }, "WearableAi_DatabaseMaintenance").start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        Log.d(TAG, "onStopJob");
+        //no longer idle or charging, stop after the current step and try again next time
+        if (maintenance != null) {
+            maintenance.cancel();
+        }
+        return true;
+    }
+}
@@ -1,12 +1,20 @@
 package com.smartglassesmanager.androidsmartphone.database;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
 import androidx.room.TypeConverters;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteStatement;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
 
 import com.smartglassesmanager.androidsmartphone.database.mediafile.MediaFileDao;
 import com.smartglassesmanager.androidsmartphone.database.mediafile.MediaFileEntity;
@@ -16,19 +24,22 @@ import com.smartglassesmanager.androidsmartphone.database.memorycache.MemoryCach
 import com.smartglassesmanager.androidsmartphone.database.memorycache.MemoryCacheTimesDao;
 import com.smartglassesmanager.androidsmartphone.database.phrase.Phrase;
 import com.smartglassesmanager.androidsmartphone.database.phrase.PhraseDao;
+import com.smartglassesmanager.androidsmartphone.database.phrase.PhraseFts;
 import com.smartglassesmanager.androidsmartphone.database.voicecommand.VoiceCommandDao;
 import com.smartglassesmanager.androidsmartphone.database.voicecommand.VoiceCommandEntity;
 
+import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
-@Database(entities = {Phrase.class, VoiceCommandEntity.class, MediaFileEntity.class, MemoryCache.class, MemoryCacheTimes.class}, version = 3, exportSchema = false)
+@Database(entities = {Phrase.class, PhraseFts.class, VoiceCommandEntity.class, MediaFileEntity.class, MemoryCache.class, MemoryCacheTimes.class}, version = 6, exportSchema = false)
 @TypeConverters({Converters.class})
 public abstract class WearableAiRoomDatabase extends RoomDatabase {
     private static final String TAG = "WearableAi_WearableAiRoomDatabase";
 
     private static volatile WearableAiRoomDatabase INSTANCE;
     private static final int NUMBER_OF_THREADS = 4;
+    //repositories go through BaseRepository's read pool and write thread, this is only for one off work outside them
     public static final ExecutorService databaseWriteExecutor = Executors.newFixedThreadPool(NUMBER_OF_THREADS);
 
     public abstract PhraseDao phraseDao();
@@ -37,11 +48,113 @@ public abstract class WearableAiRoomDatabase extends RoomDatabase {
     public abstract MemoryCacheDao memoryCacheDao();
     public abstract MemoryCacheTimesDao memoryCacheTimesDao();
 
+    //3 -> 4: full text index over the transcripts. Room only makes the sync triggers for new databases, so they're made here too
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `PhraseFts` USING FTS4(`phrase` TEXT, content=`PhraseTable`)");
+            createPhraseFtsTriggers(database);
+            //index everything said before the upgrade
+            database.execSQL("INSERT INTO `PhraseFts`(`PhraseFts`) VALUES ('rebuild')");
+        }
+    };
+
+    //4 -> 5: timestamp indices, so nearest-time and time range lookups are index probes instead of table scans
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_PhraseTable_timestamp` ON `PhraseTable` (`timestamp`)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_MemoryCacheTable_startTimestamp` ON `MemoryCacheTable` (`startTimestamp`)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_MediaFileTable_mediaType_startTimestamp` ON `MediaFileTable` (`mediaType`, `startTimestamp`)");
+        }
+    };
+
+    //5 -> 6: phrase locations as latitude/longitude/altitude/accuracy columns instead of a json blob, so they can be
+    //indexed and read without parsing. This SQLite can't drop a column, so the table is rebuilt. Ids (and so the fts
+    //rowids) are kept, the fts triggers go with the old table and are made again
+    static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `PhraseTable_new` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `phrase` TEXT NOT NULL, `timestamp` INTEGER NOT NULL, " +
+                    "`medium` TEXT NOT NULL, `latitude` REAL, `longitude` REAL, `altitude` REAL, `accuracy` REAL, `address` TEXT)");
+            database.execSQL("INSERT INTO `PhraseTable_new` (`id`, `phrase`, `timestamp`, `medium`, `address`) SELECT `id`, `phrase`, `timestamp`, `medium`, `address` FROM `PhraseTable`");
+            migratePhraseLocations(database);
+            //keep the autoincrement high water mark, so the ids of deleted phrases aren't handed out again
+            database.execSQL("UPDATE sqlite_sequence SET seq = MAX(seq, COALESCE((SELECT seq FROM sqlite_sequence WHERE name = 'PhraseTable'), 0)) WHERE name = 'PhraseTable_new'");
+            database.execSQL("DROP TABLE `PhraseTable`");
+            database.execSQL("ALTER TABLE `PhraseTable_new` RENAME TO `PhraseTable`");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_PhraseTable_timestamp` ON `PhraseTable` (`timestamp`)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_PhraseTable_latitude_longitude_timestamp` ON `PhraseTable` (`latitude`, `longitude`, `timestamp`)");
+            createPhraseFtsTriggers(database);
+        }
+    };
+
+    private static final int LOCATION_MIGRATION_BATCH = 1000;
+
+    //what Converters used to store, {"lat": .., "lon": .., "altitude": ..}
+    private static class StoredLocation {
+        Double lat;
+        Double lon;
+        Double altitude;
+    }
+
+    //parse the old location blobs into PhraseTable_new's columns, a batch of rows at a time so a big table isn't held
+    //in memory. Blobs that can't be read are left as no location
+    private static void migratePhraseLocations(SupportSQLiteDatabase database) {
+        Gson gson = new Gson();
+        long afterId = Long.MIN_VALUE;
+        int migrated = 0;
+        try (SupportSQLiteStatement update = database.compileStatement("UPDATE `PhraseTable_new` SET `latitude` = ?, `longitude` = ?, `altitude` = ? WHERE `id` = ?")) {
+            int batchSize;
+            do {
+                batchSize = 0;
+                try (Cursor cursor = database.query("SELECT `id`, `location` FROM `PhraseTable` WHERE `location` IS NOT NULL AND `id` > ? ORDER BY `id` LIMIT " + LOCATION_MIGRATION_BATCH, new Object[]{afterId})) {
+                    while (cursor.moveToNext()) {
+                        batchSize++;
+                        afterId = cursor.getLong(0);
+                        StoredLocation location;
+                        try {
+                            location = gson.fromJson(cursor.getString(1), StoredLocation.class);
+                        } catch (JsonSyntaxException e) {
+                            e.printStackTrace();
+                            continue;
+                        }
+                        if (location == null || location.lat == null || location.lon == null) {
+                            continue;
+                        }
+                        update.bindDouble(1, location.lat);
+                        update.bindDouble(2, location.lon);
+                        if (location.altitude == null) {
+                            update.bindNull(3);
+                        } else {
+                            update.bindDouble(3, location.altitude);
+                        }
+                        update.bindLong(4, afterId);
+                        update.executeUpdateDelete();
+                        migrated++;
+                    }
+                }
+            } while (batchSize == LOCATION_MIGRATION_BATCH);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Log.d(TAG, "Moved " + migrated + " phrase locations into columns");
+    }
+
+    //the triggers Room makes to keep PhraseFts in sync with PhraseTable. Room only makes them for new databases
+    private static void createPhraseFtsTriggers(SupportSQLiteDatabase database) {
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_PhraseFts_BEFORE_UPDATE BEFORE UPDATE ON `PhraseTable` BEGIN DELETE FROM `PhraseFts` WHERE `docid`=OLD.`rowid`; END");
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_PhraseFts_BEFORE_DELETE BEFORE DELETE ON `PhraseTable` BEGIN DELETE FROM `PhraseFts` WHERE `docid`=OLD.`rowid`; END");
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_PhraseFts_AFTER_UPDATE AFTER UPDATE ON `PhraseTable` BEGIN INSERT INTO `PhraseFts`(`docid`, `phrase`) VALUES (NEW.`rowid`, NEW.`phrase`); END");
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_PhraseFts_AFTER_INSERT AFTER INSERT ON `PhraseTable` BEGIN INSERT INTO `PhraseFts`(`docid`, `phrase`) VALUES (NEW.`rowid`, NEW.`phrase`); END");
+    }
+
     public static WearableAiRoomDatabase getDatabase(final Context context) {
         if (INSTANCE == null) {
             synchronized (WearableAiRoomDatabase.class) {
                 if (INSTANCE == null) {
                     INSTANCE = Room.databaseBuilder(context.getApplicationContext(), WearableAiRoomDatabase.class, "wearableai_database")
+                            .addMigrations(MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6)
                             .build();
                 }
             }
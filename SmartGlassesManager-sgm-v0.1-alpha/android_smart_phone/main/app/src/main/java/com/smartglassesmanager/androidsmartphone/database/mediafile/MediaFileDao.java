@@ -18,7 +18,12 @@ public interface MediaFileDao {
     @Query("DELETE FROM MediaFileTable")
     void deleteAll();
 
-    @Query("SELECT * from MediaFileTable WHERE mediaType=:mediaType ORDER BY abs(:timestamp - startTimestamp) LIMIT 1")
+    //two probes of the (mediaType, startTimestamp) index, the last file at or before the time and the first one at or after it
+    @Query("SELECT * FROM (" +
+            "SELECT * FROM (SELECT * FROM MediaFileTable WHERE mediaType = :mediaType AND startTimestamp <= :timestamp ORDER BY startTimestamp DESC LIMIT 1) " +
+            "UNION ALL " +
+            "SELECT * FROM (SELECT * FROM MediaFileTable WHERE mediaType = :mediaType AND startTimestamp >= :timestamp ORDER BY startTimestamp ASC LIMIT 1)" +
+            ") ORDER BY ABS(:timestamp - startTimestamp) LIMIT 1")
     MediaFileEntity getClosestMediaFileSnapshot(String mediaType, long timestamp);
 
 //    @Query("SELECT * from MediaFileTable ORDER BY timestamp DESC")
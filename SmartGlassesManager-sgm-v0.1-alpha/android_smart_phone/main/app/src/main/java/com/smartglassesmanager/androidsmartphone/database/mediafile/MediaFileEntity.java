@@ -7,9 +7,10 @@ package com.smartglassesmanager.androidsmartphone.database.mediafile;
 import androidx.annotation.NonNull;
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
-@Entity(tableName = "MediaFileTable")
+@Entity(tableName = "MediaFileTable", indices = {@Index(value = {"mediaType", "startTimestamp"})})
 public class MediaFileEntity {
 
     @PrimaryKey(autoGenerate = true)
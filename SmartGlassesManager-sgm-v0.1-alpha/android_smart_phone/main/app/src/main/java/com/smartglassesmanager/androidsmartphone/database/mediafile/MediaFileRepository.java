@@ -6,16 +6,14 @@ package com.smartglassesmanager.androidsmartphone.database.mediafile;
 
 import android.app.Application;
 
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.lang.InterruptedException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
+import com.smartglassesmanager.androidsmartphone.database.BaseRepository;
 import com.smartglassesmanager.androidsmartphone.database.WearableAiRoomDatabase;
 
-public class MediaFileRepository {
+public class MediaFileRepository extends BaseRepository {
 
     private MediaFileDao mMediaFileDao;
 
@@ -27,46 +25,29 @@ public class MediaFileRepository {
     public void destroy(){
     }
 
-    public MediaFileEntity getClosestMediaFileSnapshot(String mediaType, long timestamp) throws ExecutionException, InterruptedException {
-
-        Callable<MediaFileEntity> callable = new Callable<MediaFileEntity>() {
-            @Override
-            public MediaFileEntity call() throws Exception {
-                return mMediaFileDao.getClosestMediaFileSnapshot(mediaType, timestamp);
-            }
-        };
+    public CompletableFuture<MediaFileEntity> getClosestMediaFileAsync(String mediaType, long timestamp) {
+        return read("MediaFileDao.getClosestMediaFileSnapshot", () -> mMediaFileDao.getClosestMediaFileSnapshot(mediaType, timestamp));
+    }
 
-        Future<MediaFileEntity> future = Executors.newSingleThreadExecutor().submit(callable);
+    public MediaFileEntity getClosestMediaFileSnapshot(String mediaType, long timestamp) throws ExecutionException, InterruptedException {
+        return getClosestMediaFileAsync(mediaType, timestamp).get();
+    }
 
-        return future.get();
+    public CompletableFuture<Long> insertAsync(MediaFileEntity mediaFile) {
+        return write("MediaFileDao.insert", () -> mMediaFileDao.insert(mediaFile));
     }
 
     public long insert(MediaFileEntity mediaFile) {
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
-        Callable<Long> insertCallable = () -> mMediaFileDao.insert(mediaFile);
-        Future<Long> future = executorService.submit(insertCallable);
-        long rowId = 0;
-        try{
-            rowId = future.get();
-        }
-        catch (InterruptedException | ExecutionException e){
-            e.printStackTrace();
-        }
-        return rowId;
+        Long rowId = getOrNull(insertAsync(mediaFile));
+        return (rowId == null) ? 0 : rowId;
     }
 
-    public MediaFileEntity getMediaFilebyId(long id) throws ExecutionException, InterruptedException {
-
-        Callable<MediaFileEntity> callable = new Callable<MediaFileEntity>() {
-            @Override
-            public MediaFileEntity call() throws Exception {
-                return mMediaFileDao.getMediaFilebyId(id);
-            }
-        };
-
-        Future<MediaFileEntity> future = Executors.newSingleThreadExecutor().submit(callable);
+    public CompletableFuture<MediaFileEntity> getMediaFileByIdAsync(long id) {
+        return read("MediaFileDao.getMediaFilebyId", () -> mMediaFileDao.getMediaFilebyId(id));
+    }
 
-        return future.get();
+    public MediaFileEntity getMediaFilebyId(long id) throws ExecutionException, InterruptedException {
+        return getMediaFileByIdAsync(id).get();
     }
 
 
@@ -4,9 +4,10 @@ import androidx.annotation.NonNull;
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
 import androidx.room.Ignore;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
-@Entity(tableName = "MemoryCacheTable")
+@Entity(tableName = "MemoryCacheTable", indices = {@Index(value = {"startTimestamp"})})
 public class MemoryCache {
 
     @PrimaryKey(autoGenerate = true)
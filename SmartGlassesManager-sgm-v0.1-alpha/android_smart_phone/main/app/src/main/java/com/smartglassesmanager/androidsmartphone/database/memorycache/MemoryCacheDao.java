@@ -45,7 +45,12 @@ public interface MemoryCacheDao {
     @Query("SELECT * from MemoryCacheTable WHERE startTimestamp BETWEEN :startTime AND :endTime ORDER BY startTimestamp DESC")
     List<MemoryCache> getMemoryCacheRange(long startTime, long endTime);
 
-    @Query("SELECT * FROM MemoryCacheTable ORDER BY ABS(:timestamp - startTimestamp) LIMIT 1")
+    //two index probes, the last cache started at or before the time and the first one at or after it, then the closer of the two
+    @Query("SELECT * FROM (" +
+            "SELECT * FROM (SELECT * FROM MemoryCacheTable WHERE startTimestamp <= :timestamp ORDER BY startTimestamp DESC LIMIT 1) " +
+            "UNION ALL " +
+            "SELECT * FROM (SELECT * FROM MemoryCacheTable WHERE startTimestamp >= :timestamp ORDER BY startTimestamp ASC LIMIT 1)" +
+            ") ORDER BY ABS(:timestamp - startTimestamp) LIMIT 1")
     MemoryCache getByNearestTimestamp(long timestamp);
 
     @Query("SELECT * FROM MemoryCacheTable WHERE id IN (:ids)")
@@ -8,16 +8,13 @@ import android.app.Application;
 
 import androidx.lifecycle.LiveData;
 
+import com.smartglassesmanager.androidsmartphone.database.BaseRepository;
 import com.smartglassesmanager.androidsmartphone.database.WearableAiRoomDatabase;
 
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
 
-public class MemoryCacheRepository {
+public class MemoryCacheRepository extends BaseRepository {
     private final String TAG = "WearableAi_MemoryCacheRepository";
 
     private MemoryCacheDao mMemoryCacheDao;
@@ -34,63 +31,44 @@ public class MemoryCacheRepository {
     }
 
     public void updateCacheName(long id, String name) {
-        WearableAiRoomDatabase.databaseWriteExecutor.execute(() -> {
-            mMemoryCacheDao.updateCacheName(id, name);
-        });
+        write("MemoryCacheDao.updateCacheName", () -> mMemoryCacheDao.updateCacheName(id, name));
+    }
+
+    public CompletableFuture<Long> insertAsync(MemoryCache cache) {
+        return write("MemoryCacheDao.insert", () -> mMemoryCacheDao.insert(cache));
     }
 
     public long insert(MemoryCache cache) {
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
-        Callable<Long> insertCallable = () -> mMemoryCacheDao.insert(cache);
-        Future<Long> future = executorService.submit(insertCallable);
-        long rowId = 0;
-        try{
-            rowId = future.get();
-        }
-        catch (InterruptedException | ExecutionException e){
-            e.printStackTrace();
-        }
-        return rowId;
+        Long rowId = getOrNull(insertAsync(cache));
+        return (rowId == null) ? 0 : rowId;
+    }
+
+    public CompletableFuture<Long> addCacheTimeAsync(MemoryCacheTimes cacheTime) {
+        return write("MemoryCacheTimesDao.insert", () -> mMemoryCacheTimesDao.insert(cacheTime));
     }
 
     public long addCacheTime(MemoryCacheTimes cacheTime) {
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
-        Callable<Long> insertCallable = () -> mMemoryCacheTimesDao.insert(cacheTime);
-        Future<Long> future = executorService.submit(insertCallable);
-        long rowId = 0;
-        try{
-            rowId = future.get();
-        }
-        catch (InterruptedException | ExecutionException e){
-            e.printStackTrace();
-        }
-        return rowId;
+        Long rowId = getOrNull(addCacheTimeAsync(cacheTime));
+        return (rowId == null) ? 0 : rowId;
+    }
+
+    public CompletableFuture<Long> getActiveCacheAsync(){
+        return read("MemoryCacheDao.getActiveCache", () -> mMemoryCacheDao.getActiveCache());
     }
 
     public Long getActiveCache(){
-        return mMemoryCacheDao.getActiveCache();
+        return getOrNull(getActiveCacheAsync());
     }
 
-    public List<MemoryCache> getAllCachesSnapshot() {
+    public CompletableFuture<List<MemoryCache>> getAllCachesAsync() {
+        return read("MemoryCacheDao.getAllMemoryCachesSnapshot", () -> mMemoryCacheDao.getAllMemoryCachesSnapshot());
+    }
 
-        Callable<List<MemoryCache>> callable = new Callable<List<MemoryCache>>() {
-            @Override
-            public List<MemoryCache> call() throws Exception {
-                return mMemoryCacheDao.getAllMemoryCachesSnapshot();
-            }
-        };
-
-        Future<List<MemoryCache>> future = Executors.newSingleThreadExecutor().submit(callable);
-
-        try {
-            return future.get();
-        } catch (InterruptedException | ExecutionException e){
-            e.printStackTrace();
-            return null;
-        }
+    public List<MemoryCache> getAllCachesSnapshot() {
+        return getOrNull(getAllCachesAsync());
     }
 
     public void updateCacheStopTime(long id, long stopTimestamp){
-        mMemoryCacheDao.updateCacheStopTime(id, stopTimestamp);
+        write("MemoryCacheDao.updateCacheStopTime", () -> mMemoryCacheDao.updateCacheStopTime(id, stopTimestamp));
     }
 }
@@ -5,16 +5,19 @@ package com.smartglassesmanager.androidsmartphone.database.phrase;
 //https://github.com/stairs1/memory-expansion-tools
 
 import android.location.Location;
+import android.location.LocationManager;
 
 import androidx.annotation.NonNull;
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
 import androidx.room.Ignore;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 import java.io.Serializable;
 
 //this is serializable so we can pass it through a bundle or turn it into json. In the future, making is parecebable may make sense for program speed. Right now, serializable makes sense as it's faster to implement and we are nowhere near performance issues for the one or two phrases we must pass around
-@Entity(tableName = "PhraseTable")
+//the location index covers the timestamp too, so an area + time window query can check both without reading rows
+@Entity(tableName = "PhraseTable", indices = {@Index(value = {"timestamp"}), @Index(value = {"latitude", "longitude", "timestamp"})})
 public class Phrase implements Serializable {
 
     @PrimaryKey(autoGenerate = true)
@@ -33,21 +36,41 @@ public class Phrase implements Serializable {
     @ColumnInfo(name = "medium")
     private String medium;
 
-    @ColumnInfo(name = "location")
-    private Location location;
+    //where it was said, as plain columns so areas can be queried. All null if we didn't have a fix, accuracy can be
+    //null on its own (phrases from before it was saved)
+    @ColumnInfo(name = "latitude")
+    private Double latitude;
+
+    @ColumnInfo(name = "longitude")
+    private Double longitude;
+
+    @ColumnInfo(name = "altitude")
+    private Double altitude;
+
+    @ColumnInfo(name = "accuracy")
+    private Float accuracy;
 
     @ColumnInfo(name = "address")
     private String address;
 
-    public Phrase(@NonNull String phrase, @NonNull long timestamp, @NonNull String medium, Location location, String address) {
+    public Phrase(@NonNull String phrase, @NonNull long timestamp, @NonNull String medium, Double latitude, Double longitude, Double altitude, Float accuracy, String address) {
         super(); //serializable
         this.phrase = phrase;
         this.timestamp = timestamp;
         this.medium = medium;
-        this.location = location;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.altitude = altitude;
+        this.accuracy = accuracy;
         this.address = address;
     }
 
+    @Ignore
+    public Phrase(@NonNull String phrase, @NonNull long timestamp, @NonNull String medium, Location location, String address) {
+        this(phrase, timestamp, medium, null, null, null, null, address);
+        setLocation(location);
+    }
+
     @Ignore
      public Phrase(@NonNull String phrase, @NonNull long timestamp, @NonNull String medium){
         this.phrase = phrase;
@@ -58,8 +81,42 @@ public class Phrase implements Serializable {
     public String getPhrase(){return this.phrase;}
     public long getTimestamp(){return this.timestamp;}
     public String getMedium(){return this.medium;}
-    public Location getLocation(){return this.location;}
-    public void setLocation(Location location){this.location = location;}
+
+    //a new Location each call, null if there's no fix
+    public Location getLocation(){
+        if (latitude == null || longitude == null){
+            return null;
+        }
+        Location location = new Location(LocationManager.GPS_PROVIDER);
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        if (altitude != null){
+            location.setAltitude(altitude);
+        }
+        if (accuracy != null){
+            location.setAccuracy(accuracy);
+        }
+        return location;
+    }
+
+    public void setLocation(Location location){
+        if (location == null){
+            latitude = null;
+            longitude = null;
+            altitude = null;
+            accuracy = null;
+            return;
+        }
+        latitude = location.getLatitude();
+        longitude = location.getLongitude();
+        altitude = location.hasAltitude() ? location.getAltitude() : null;
+        accuracy = location.hasAccuracy() ? location.getAccuracy() : null;
+    }
+
+    public Double getLatitude(){return this.latitude;}
+    public Double getLongitude(){return this.longitude;}
+    public Double getAltitude(){return this.altitude;}
+    public Float getAccuracy(){return this.accuracy;}
     public String getAddress(){return this.address;}
     public void setAddress(String address){this.address = address;}
     public long getId(){return this.id;}
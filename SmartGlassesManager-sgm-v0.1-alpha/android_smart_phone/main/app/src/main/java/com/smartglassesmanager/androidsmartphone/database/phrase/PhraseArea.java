@@ -0,0 +1,64 @@
+package com.smartglassesmanager.androidsmartphone.database.phrase;
+
+import android.location.Location;
+
+/**
+ * A latitude/longitude box, for "phrases said in this area" queries.
+ *
+ * Boxes don't wrap around the antimeridian, a box made with {@link #around} near it is cut off at +/-180.
+ */
+public class PhraseArea {
+    private static final double METERS_PER_DEGREE_LATITUDE = 111320;
+
+    private final double minLatitude;
+    private final double maxLatitude;
+    private final double minLongitude;
+    private final double maxLongitude;
+
+    public PhraseArea(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude){
+        this.minLatitude = minLatitude;
+        this.maxLatitude = maxLatitude;
+        this.minLongitude = minLongitude;
+        this.maxLongitude = maxLongitude;
+    }
+
+    /** The smallest box holding the circle of radiusMeters around a point. */
+    public static PhraseArea around(double latitude, double longitude, double radiusMeters){
+        double latitudeDelta = radiusMeters / METERS_PER_DEGREE_LATITUDE;
+        //a degree of longitude gets shorter away from the equator, use the widest part of the box
+        double widestLatitude = Math.min(89.9, Math.abs(latitude) + latitudeDelta);
+        double longitudeDelta = radiusMeters / (METERS_PER_DEGREE_LATITUDE * Math.cos(Math.toRadians(widestLatitude)));
+        return new PhraseArea(
+                Math.max(-90, latitude - latitudeDelta), Math.min(90, latitude + latitudeDelta),
+                Math.max(-180, longitude - longitudeDelta), Math.min(180, longitude + longitudeDelta));
+    }
+
+    public static PhraseArea around(Location location, double radiusMeters){
+        return around(location.getLatitude(), location.getLongitude(), radiusMeters);
+    }
+
+    public boolean contains(double latitude, double longitude){
+        return latitude >= minLatitude && latitude <= maxLatitude && longitude >= minLongitude && longitude <= maxLongitude;
+    }
+
+    /** North to south size of the box. */
+    public double getHeightMeters(){
+        return (maxLatitude - minLatitude) * METERS_PER_DEGREE_LATITUDE;
+    }
+
+    public double getMinLatitude(){
+        return minLatitude;
+    }
+
+    public double getMaxLatitude(){
+        return maxLatitude;
+    }
+
+    public double getMinLongitude(){
+        return minLongitude;
+    }
+
+    public double getMaxLongitude(){
+        return maxLongitude;
+    }
+}
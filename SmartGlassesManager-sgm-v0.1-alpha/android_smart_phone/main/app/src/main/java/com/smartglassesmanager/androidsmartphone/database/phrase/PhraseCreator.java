@@ -5,14 +5,9 @@ package com.smartglassesmanager.androidsmartphone.database.phrase;
 //https://github.com/stairs1/memory-expansion-tools
 
 import android.content.Context;
-import android.location.Geocoder;
 import android.location.Location;
 
-import com.google.android.gms.location.FusedLocationProviderClient;
-import com.google.android.gms.location.LocationServices;
-import com.google.android.gms.tasks.Task;
-
-import java.util.Locale;
+import com.smartglassesmanager.androidsmartphone.sensors.LocationSampler;
 
 public class PhraseCreator {
     public static final String TAG = "WearableAi_PhraseCreator";
@@ -20,47 +15,27 @@ public class PhraseCreator {
     public static Phrase init(String medium, Context context, PhraseRepository repo) {
         long time = System.currentTimeMillis();
         Phrase phrase = new Phrase("", time, medium); //init empty phrase
-        long id = repo.insert(phrase);  // This insert blocks until database write has completed
+        long id = repo.insert(phrase);  // Doesn't wait for the database, the id is allocated in memory and the row is written behind
         phrase.setId(id);
         return phrase;
     }
 
     public static long create(Phrase phrase, String words, Context context, PhraseRepository repo) {
         /*
-        Location may return right away or in a minute, null or not
-        Because of this, insert each phrase without location synchronously, and after getting id back
-            get location and update the phrase with location results whenever they arrive.
+        Location comes from memory, the location sampler keeps the latest fix, so this never waits on play services.
+        The address is only there if someone already said something in the same area, otherwise it's backfilled later.
+        A transcript that comes in after the sampler is destroyed is saved without a location.
          */
-
-        Geocoder geocoder = new Geocoder(context, Locale.getDefault());
-
-        // Using getLastLocation is not always totally accurate. Good to update this at some point.
-        FusedLocationProviderClient fusedLocationClient = LocationServices.getFusedLocationProviderClient(context);
-        Task<Location> task = fusedLocationClient.getLastLocation();
-        task.addOnSuccessListener(location -> {
-            if(location != null) {
-                String address = null;
-                phrase.setLocation(location);
-
-                //geocoder failing without GMS
-//                List<Address> addresses = null;
-//                try {
-//                    addresses = geocoder.getFromLocation(location.getLatitude(), location.getLongitude(), 1);
-//                    if(addresses.size() > 0){
-//                        address = addresses.get(0).getAddressLine(0);
-//                        phrase.setAddress(address);
-//                    }
-//                    else {
-//                    }
-//                } catch (IOException e) {
-//                    e.printStackTrace();
-//                }
-                repo.update(phrase.getId(), words, location, address);
-            }
-            else{
-                repo.update(phrase.getId(), words, null, null);
-            }
-        });
+        LocationSampler locationSampler = LocationSampler.getInstance();
+        Location location = null;
+        String address = null;
+        if (locationSampler != null) {
+            location = locationSampler.getLatestLocation();
+            address = locationSampler.getAddressCache().getCachedAddress(location);
+        }
+        phrase.setLocation(location);
+        phrase.setAddress(address);
+        repo.update(phrase.getId(), words, location, address);
         return phrase.getId();
     }
 }
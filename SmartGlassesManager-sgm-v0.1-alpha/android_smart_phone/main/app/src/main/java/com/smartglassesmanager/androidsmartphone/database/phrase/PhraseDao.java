@@ -4,7 +4,7 @@ package com.smartglassesmanager.androidsmartphone.database.phrase;
 //Jeremy Stairs (stairs1) and Cayden Pierce
 //https://github.com/stairs1/memory-expansion-tools
 
-import android.location.Location;
+import android.database.Cursor;
 
 import androidx.lifecycle.LiveData;
 import androidx.room.Dao;
@@ -20,8 +20,23 @@ public interface PhraseDao {
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     long insert(Phrase phrase);
 
-    @Query("UPDATE PhraseTable SET phrase = :words, location = :location, address = :address WHERE id = :id")
-    void update(long id, String words, Location location, String address);
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertAll(List<Phrase> phrases);
+
+    //a null address keeps the one we have, it may have been backfilled since the phrase was started
+    @Query("UPDATE PhraseTable SET phrase = :words, latitude = :latitude, longitude = :longitude, altitude = :altitude, accuracy = :accuracy, " +
+            "address = COALESCE(:address, address) WHERE id = :id")
+    void update(long id, String words, Double latitude, Double longitude, Double altitude, Float accuracy, String address);
+
+    @Query("UPDATE PhraseTable SET address = :address WHERE id IN (:ids)")
+    void updateAddress(List<Long> ids, String address);
+
+    @Query("SELECT * FROM PhraseTable WHERE address IS NULL AND latitude IS NOT NULL AND id > :afterId ORDER BY id LIMIT :limit")
+    List<Phrase> getPhrasesMissingAddress(long afterId, int limit);
+
+    //highest id ever handed out, not just the highest one still here - archived phrases keep their ids
+    @Query("SELECT MAX(IFNULL((SELECT MAX(id) FROM PhraseTable), 0), IFNULL((SELECT seq FROM sqlite_sequence WHERE name = 'PhraseTable'), 0))")
+    Long getMaxId();
 
     @Query("DELETE FROM PhraseTable")
     void deleteAll();
@@ -44,9 +59,82 @@ public interface PhraseDao {
     @Query("SELECT * from PhraseTable WHERE timestamp BETWEEN :startTime AND :endTime ORDER BY timestamp DESC")
     List<Phrase> getPhraseRangeSnapshot(long startTime, long endTime);
 
-    @Query("SELECT * FROM PhraseTable ORDER BY ABS(:timestamp - timestamp) LIMIT 1")
+    //PAGING - keyset pages, newest first, ordered by (timestamp, id) so phrases with the same timestamp page in a fixed order.
+    //each page starts from the last phrase of the page before it, so it's one index range scan however deep it is
+
+    @Query("SELECT * FROM PhraseTable WHERE timestamp BETWEEN :startTime AND :endTime ORDER BY timestamp DESC, id DESC LIMIT :limit")
+    LiveData<List<Phrase>> getNewestPhrases(long startTime, long endTime, int limit);
+
+    //the page older than (beforeTimestamp, beforeId). The range starts at beforeTimestamp so the scan starts at the key
+    @Query("SELECT * FROM PhraseTable WHERE timestamp >= :startTime AND timestamp <= :beforeTimestamp " +
+            "AND (timestamp < :beforeTimestamp OR id < :beforeId) ORDER BY timestamp DESC, id DESC LIMIT :limit")
+    List<Phrase> getPhrasesBefore(long startTime, long beforeTimestamp, long beforeId, int limit);
+
+    //the page newer than (afterTimestamp, afterId), oldest first
+    @Query("SELECT * FROM PhraseTable WHERE timestamp >= :afterTimestamp AND timestamp <= :endTime " +
+            "AND (timestamp > :afterTimestamp OR id > :afterId) ORDER BY timestamp ASC, id ASC LIMIT :limit")
+    List<Phrase> getPhrasesAfter(long afterTimestamp, long endTime, long afterId, int limit);
+
+    //RETENTION - old days are moved out to PhraseSegmentStore, see PhraseRepository.archiveOldPhrases
+
+    @Query("SELECT MIN(timestamp) FROM PhraseTable")
+    Long getOldestTimestamp();
+
+    @Query("DELETE FROM PhraseTable WHERE timestamp BETWEEN :startTime AND :endTime")
+    int deletePhraseRange(long startTime, long endTime);
+
+    //EXPORT - oldest first, keyset chunks read straight off the cursor, see PhraseExporter
+
+    @Query("SELECT COUNT(*) FROM PhraseTable WHERE timestamp BETWEEN :startTime AND :endTime")
+    long countPhraseRange(long startTime, long endTime);
+
+    @Query("SELECT id, timestamp, latitude, longitude, address, phrase FROM PhraseTable WHERE timestamp >= :afterTimestamp AND timestamp <= :endTime " +
+            "AND (timestamp > :afterTimestamp OR id > :afterId) ORDER BY timestamp ASC, id ASC LIMIT :limit")
+    Cursor getPhrasesAfterCursor(long afterTimestamp, long endTime, long afterId, int limit);
+
+    //AREA - phrases in a latitude/longitude box and a time window, newest first. Which index is faster depends on the
+    //query: a short time window is best walked on the timestamp index, a small area over a long time on the location
+    //index. SQLite always picks the timestamp one (it gives the order for free), so PhraseRepository picks instead
+
+    @Query("SELECT * FROM PhraseTable INDEXED BY index_PhraseTable_timestamp " +
+            "WHERE timestamp BETWEEN :startTime AND :endTime AND latitude BETWEEN :minLatitude AND :maxLatitude AND longitude BETWEEN :minLongitude AND :maxLongitude " +
+            "ORDER BY timestamp DESC LIMIT :limit")
+    List<Phrase> getPhrasesInAreaByTime(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude, long startTime, long endTime, int limit);
+
+    @Query("SELECT * FROM PhraseTable INDEXED BY index_PhraseTable_latitude_longitude_timestamp " +
+            "WHERE latitude BETWEEN :minLatitude AND :maxLatitude AND longitude BETWEEN :minLongitude AND :maxLongitude AND timestamp BETWEEN :startTime AND :endTime " +
+            "ORDER BY timestamp DESC LIMIT :limit")
+    List<Phrase> getPhrasesInAreaByPlace(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude, long startTime, long endTime, int limit);
+
+    //how many phrases are in the range, counting no further than max. Only reads the index
+    @Query("SELECT COUNT(*) FROM (SELECT 1 FROM PhraseTable WHERE timestamp BETWEEN :startTime AND :endTime LIMIT :max)")
+    int countPhraseRangeUpTo(long startTime, long endTime, int max);
+
+    //two index probes, the last phrase at or before the time and the first one at or after it, then the closer of the two
+    @Query("SELECT * FROM (" +
+            "SELECT * FROM (SELECT * FROM PhraseTable WHERE timestamp <= :timestamp ORDER BY timestamp DESC LIMIT 1) " +
+            "UNION ALL " +
+            "SELECT * FROM (SELECT * FROM PhraseTable WHERE timestamp >= :timestamp ORDER BY timestamp ASC LIMIT 1)" +
+            ") ORDER BY ABS(:timestamp - timestamp) LIMIT 1")
     Phrase getByNearestTimestamp(long timestamp);
 
     @Query("SELECT * FROM PhraseTable WHERE id IN (:ids)")
     List<Phrase> getPhrases(List<Long> ids);
+
+    //full text search through PhraseFts, newest matches first. Ranking happens in PhraseSearch, using matchInfo.
+    //ids are handed out in time order, so this orders by the fts rowid - fts can walk that backwards and stop at the
+    //limit, ordering by timestamp would pull every match (all of them, for common words) through a sort first
+    @Query("SELECT PhraseTable.*, snippet(PhraseFts, '[', ']', '...', -1, 12) AS snippet, offsets(PhraseFts) AS offsets, matchinfo(PhraseFts, 'pcnalx') AS matchInfo " +
+            "FROM PhraseFts JOIN PhraseTable ON PhraseTable.id = PhraseFts.rowid " +
+            "WHERE PhraseFts MATCH :matchQuery AND PhraseTable.timestamp BETWEEN :startTime AND :endTime " +
+            "ORDER BY PhraseFts.rowid DESC LIMIT :maxCandidates")
+    List<PhraseSearchResult> search(String matchQuery, long startTime, long endTime, int maxCandidates);
+
+    //the same, only phrases said in the box
+    @Query("SELECT PhraseTable.*, snippet(PhraseFts, '[', ']', '...', -1, 12) AS snippet, offsets(PhraseFts) AS offsets, matchinfo(PhraseFts, 'pcnalx') AS matchInfo " +
+            "FROM PhraseFts JOIN PhraseTable ON PhraseTable.id = PhraseFts.rowid " +
+            "WHERE PhraseFts MATCH :matchQuery AND PhraseTable.timestamp BETWEEN :startTime AND :endTime " +
+            "AND PhraseTable.latitude BETWEEN :minLatitude AND :maxLatitude AND PhraseTable.longitude BETWEEN :minLongitude AND :maxLongitude " +
+            "ORDER BY PhraseFts.rowid DESC LIMIT :maxCandidates")
+    List<PhraseSearchResult> searchInArea(String matchQuery, long startTime, long endTime, double minLatitude, double maxLatitude, double minLongitude, double maxLongitude, int maxCandidates);
 }
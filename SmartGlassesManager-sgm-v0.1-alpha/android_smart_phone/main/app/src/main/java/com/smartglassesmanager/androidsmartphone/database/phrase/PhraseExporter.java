@@ -0,0 +1,349 @@
+package com.smartglassesmanager.androidsmartphone.database.phrase;
+
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports the transcripts in a time range to a file, as CSV or JSON Lines, optionally gzipped.
+ *
+ * The export streams: rows are read a chunk at a time (a keyset query, oldest first, read straight off the cursor
+ * into a reused set of column arrays on the repository's read pool) and written through a buffered writer on the
+ * export thread. Memory use is one chunk and the write buffers, however long the range is.
+ *
+ * Archived phrases (see PhraseSegmentStore) are older than anything in the database, so they're written first,
+ * straight from their segments a block at a time.
+ *
+ * Progress and the result come back on the main thread. An export can be cancelled at any time, it stops at the next
+ * chunk and deletes the partial file.
+ */
+public class PhraseExporter {
+    private static final String TAG = "WearableAi_PhraseExporter";
+
+    public static final int CHUNK_SIZE = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int PROGRESS_INTERVAL_MS = 100;
+
+    public enum Format {
+        CSV(".csv"),
+        JSON_LINES(".jsonl");
+
+        private final String extension;
+
+        Format(String extension){
+            this.extension = extension;
+        }
+
+        public String getExtension(){
+            return extension;
+        }
+    }
+
+    public interface Listener {
+        void onProgress(long rowsWritten, long totalRows);
+        void onDone(File file, long rowsWritten);
+        void onCancelled();
+        void onError(Exception e);
+    }
+
+    //one export at a time, on its own thread so a long one doesn't hold up the database threads between chunks
+    private static final ThreadPoolExecutor exportExecutor;
+    static {
+        exportExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> new Thread(runnable, "WearableAi_PhraseExport"));
+        exportExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final PhraseRepository mPhraseRepository;
+
+    public PhraseExporter(PhraseRepository phraseRepository){
+        mPhraseRepository = phraseRepository;
+    }
+
+    /** A running export. */
+    public static class Export {
+        private final File file;
+        private volatile boolean cancelled = false;
+
+        private Export(File file){
+            this.file = file;
+        }
+
+        public void cancel(){
+            cancelled = true;
+        }
+
+        public boolean isCancelled(){
+            return cancelled;
+        }
+
+        public File getFile(){
+            return file;
+        }
+    }
+
+    /** One chunk of rows, column by column. Reused for every chunk of an export. */
+    public static class Chunk {
+        private final long [] ids;
+        private final long [] timestamps;
+        //no location is NaN
+        private final double [] latitudes;
+        private final double [] longitudes;
+        private final String [] addresses;
+        private final String [] phrases;
+        private int size = 0;
+
+        Chunk(int capacity){
+            ids = new long[capacity];
+            timestamps = new long[capacity];
+            latitudes = new double[capacity];
+            longitudes = new double[capacity];
+            addresses = new String[capacity];
+            phrases = new String[capacity];
+        }
+
+        public int getCapacity(){
+            return ids.length;
+        }
+
+        void fill(Cursor cursor){
+            int idColumn = cursor.getColumnIndexOrThrow("id");
+            int timestampColumn = cursor.getColumnIndexOrThrow("timestamp");
+            int latitudeColumn = cursor.getColumnIndexOrThrow("latitude");
+            int longitudeColumn = cursor.getColumnIndexOrThrow("longitude");
+            int addressColumn = cursor.getColumnIndexOrThrow("address");
+            int phraseColumn = cursor.getColumnIndexOrThrow("phrase");
+            size = 0;
+            while (size < ids.length && cursor.moveToNext()){
+                ids[size] = cursor.getLong(idColumn);
+                timestamps[size] = cursor.getLong(timestampColumn);
+                boolean hasLocation = !cursor.isNull(latitudeColumn) && !cursor.isNull(longitudeColumn);
+                latitudes[size] = hasLocation ? cursor.getDouble(latitudeColumn) : Double.NaN;
+                longitudes[size] = hasLocation ? cursor.getDouble(longitudeColumn) : Double.NaN;
+                addresses[size] = cursor.getString(addressColumn);
+                phrases[size] = cursor.getString(phraseColumn);
+                size++;
+            }
+        }
+    }
+
+    /** Start exporting the phrases between the two times (inclusive) to the file. The listener is called on the main thread. */
+    public Export export(long startTime, long endTime, Format format, boolean gzip, File file, Listener listener){
+        Export export = new Export(file);
+        exportExecutor.execute(() -> runExport(export, startTime, endTime, format, gzip, listener));
+        return export;
+    }
+
+    //runs on the export thread
+    private void runExport(Export export, long startTime, long endTime, Format format, boolean gzip, Listener listener){
+        long start = System.currentTimeMillis();
+        long rows = 0;
+        try {
+            long totalRows = mPhraseRepository.countPhraseRangeAsync(startTime, endTime).get();
+            mainHandler.post(() -> listener.onProgress(0, totalRows));
+
+            OutputStream fileOut = new FileOutputStream(export.getFile());
+            if (gzip){
+                fileOut = new GZIPOutputStream(fileOut, BUFFER_SIZE);
+            }
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(fileOut, StandardCharsets.UTF_8), BUFFER_SIZE)){
+                if (format == Format.CSV){
+                    out.write("id,timestamp,latitude,longitude,phrase,address\r\n");
+                }
+
+                //{rows written, time of the last progress update}, the archive visitor updates them too
+                long [] progress = {0, start};
+                PhraseSegmentStore segmentStore = mPhraseRepository.getSegmentStore();
+                long coldEndTime = segmentStore.getColdEndTime();
+                if (startTime < coldEndTime){
+                    segmentStore.forEach(startTime, Math.min(endTime, coldEndTime - 1), phrase -> {
+                        boolean hasLocation = phrase.getLatitude() != null && phrase.getLongitude() != null;
+                        writeRow(out, format, phrase.getId(), phrase.getTimestamp(),
+                                hasLocation ? phrase.getLatitude() : Double.NaN, hasLocation ? phrase.getLongitude() : Double.NaN,
+                                phrase.getPhrase(), phrase.getAddress());
+                        progress[0]++;
+                        postProgress(progress, totalRows, listener);
+                        return !export.isCancelled();
+                    });
+                }
+
+                Chunk chunk = new Chunk(CHUNK_SIZE);
+                long afterTimestamp = startTime;
+                long afterId = -1;
+                while (!export.isCancelled()){
+                    mPhraseRepository.getExportChunkAsync(afterTimestamp, endTime, afterId, chunk).get();
+                    for (int i = 0; i < chunk.size; i++){
+                        writeRow(out, format, chunk.ids[i], chunk.timestamps[i], chunk.latitudes[i], chunk.longitudes[i], chunk.phrases[i], chunk.addresses[i]);
+                    }
+                    progress[0] += chunk.size;
+                    postProgress(progress, totalRows, listener);
+
+                    if (chunk.size < chunk.getCapacity()){
+                        break; //that was the last one
+                    }
+                    afterTimestamp = chunk.timestamps[chunk.size - 1];
+                    afterId = chunk.ids[chunk.size - 1];
+                }
+                rows = progress[0];
+            }
+        } catch (IOException | InterruptedException | ExecutionException e){
+            e.printStackTrace();
+            export.getFile().delete();
+            mainHandler.post(() -> listener.onError(e));
+            return;
+        }
+
+        if (export.isCancelled()){
+            Log.d(TAG, "Export cancelled after " + rows + " rows");
+            export.getFile().delete();
+            mainHandler.post(listener::onCancelled);
+            return;
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        Log.d(TAG, "Exported " + rows + " rows to " + export.getFile().getName() + " in " + elapsed + "ms (" + (rows * 1000 / elapsed) + " rows/s)");
+        long rowsWritten = rows;
+        mainHandler.post(() -> listener.onDone(export.getFile(), rowsWritten));
+    }
+
+    private static void postProgress(long [] progress, long totalRows, Listener listener){
+        long now = System.currentTimeMillis();
+        if (now - progress[1] >= PROGRESS_INTERVAL_MS){
+            progress[1] = now;
+            long rowsWritten = progress[0];
+            mainHandler.post(() -> listener.onProgress(rowsWritten, totalRows));
+        }
+    }
+
+    //no location is NaN
+    private static void writeRow(Writer out, Format format, long id, long timestamp, double latitude, double longitude, String phrase, String address) throws IOException {
+        if (format == Format.CSV){
+            writeCsvRow(out, id, timestamp, latitude, longitude, phrase, address);
+        } else {
+            writeJsonRow(out, id, timestamp, latitude, longitude, phrase, address);
+        }
+    }
+
+    //CSV
+
+    //RFC 4180 - a row is id,timestamp,latitude,longitude,phrase,address, a missing value is an empty field
+    private static void writeCsvRow(Writer out, long id, long timestamp, double latitude, double longitude, String phrase, String address) throws IOException {
+        boolean hasLocation = !Double.isNaN(latitude);
+        out.write(Long.toString(id));
+        out.write(',');
+        out.write(Long.toString(timestamp));
+        out.write(',');
+        if (hasLocation){
+            out.write(Double.toString(latitude));
+        }
+        out.write(',');
+        if (hasLocation){
+            out.write(Double.toString(longitude));
+        }
+        out.write(',');
+        writeCsvField(out, phrase);
+        out.write(',');
+        writeCsvField(out, address);
+        out.write("\r\n");
+    }
+
+    static void writeCsvField(Writer out, String value) throws IOException {
+        if (value == null){
+            return;
+        }
+        boolean needsQuotes = false;
+        for (int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r'){
+                needsQuotes = true;
+                break;
+            }
+        }
+        if (!needsQuotes){
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        int from = 0;
+        for (int i = 0; i < value.length(); i++){
+            if (value.charAt(i) == '"'){
+                //a quote inside a quoted field is written twice
+                out.write(value, from, i + 1 - from);
+                out.write('"');
+                from = i + 1;
+            }
+        }
+        out.write(value, from, value.length() - from);
+        out.write('"');
+    }
+
+    //JSON LINES
+
+    //one object per line, a missing value is null
+    private static void writeJsonRow(Writer out, long id, long timestamp, double latitude, double longitude, String phrase, String address) throws IOException {
+        boolean hasLocation = !Double.isNaN(latitude);
+        out.write("{\"id\":");
+        out.write(Long.toString(id));
+        out.write(",\"timestamp\":");
+        out.write(Long.toString(timestamp));
+        out.write(",\"latitude\":");
+        out.write(hasLocation ? Double.toString(latitude) : "null");
+        out.write(",\"longitude\":");
+        out.write(hasLocation ? Double.toString(longitude) : "null");
+        out.write(",\"phrase\":");
+        writeJsonString(out, phrase);
+        out.write(",\"address\":");
+        writeJsonString(out, address);
+        out.write("}\n");
+    }
+
+    static void writeJsonString(Writer out, String value) throws IOException {
+        if (value == null){
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        int from = 0;
+        for (int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            String escape;
+            if (c == '"'){
+                escape = "\\\"";
+            } else if (c == '\\'){
+                escape = "\\\\";
+            } else if (c == '\n'){
+                escape = "\\n";
+            } else if (c == '\r'){
+                escape = "\\r";
+            } else if (c == '\t'){
+                escape = "\\t";
+            //control characters, and the two line separators javascript can't have in a string
+            } else if (c < 0x20 || c == '\u2028' || c == '\u2029'){
+                escape = String.format("\\u%04x", (int) c);
+            } else {
+                continue;
+            }
+            out.write(value, from, i - from);
+            out.write(escape);
+            from = i + 1;
+        }
+        out.write(value, from, value.length() - from);
+        out.write('"');
+    }
+}
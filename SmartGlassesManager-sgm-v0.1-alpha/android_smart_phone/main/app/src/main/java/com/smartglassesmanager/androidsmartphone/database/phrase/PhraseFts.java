@@ -0,0 +1,20 @@
+package com.smartglassesmanager.androidsmartphone.database.phrase;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Fts4;
+import androidx.room.PrimaryKey;
+
+//full text index over PhraseTable's text. It's an external content table, it stores only the index and Room's
+//triggers keep it in sync with PhraseTable, so its rowid is always the phrase's id
+@Fts4(contentEntity = Phrase.class)
+@Entity(tableName = "PhraseFts")
+public class PhraseFts {
+
+    @PrimaryKey
+    @ColumnInfo(name = "rowid")
+    public long rowid;
+
+    @ColumnInfo(name = "phrase")
+    public String phrase;
+}
@@ -0,0 +1,190 @@
+package com.smartglassesmanager.androidsmartphone.database.phrase;
+
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MediatorLiveData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pages through the transcripts in a time range, newest first, so the transcript list never holds (or re-queries) the
+ * whole table.
+ *
+ * Pages are keyset pages: each one is "the next PAGE_SIZE phrases older (or newer) than this phrase", ordered by
+ * (timestamp, id), which is one range scan on the timestamp index however far back the page is. The pager holds a
+ * window of at most MAX_LOADED phrases around where the user is - scrolling back loads older pages and drops the newest
+ * ones past the limit, scrolling forward again loads them back.
+ *
+ * Only the newest page is live. While the window reaches the newest phrase, new and updated transcripts come in
+ * through a LiveData query of that one page, and the rest of the window is left alone. Phrases further back aren't
+ * refreshed until they're paged in again.
+ *
+ * Older pages go on into the archived phrases (see PhraseSegmentStore) when they run out of database rows, so a short
+ * newest page doesn't mean there's nothing older - the pager asks for an older page straight away to find out.
+ *
+ * All methods are main thread only.
+ */
+public class PhrasePager {
+    private static final String TAG = "WearableAi_PhrasePager";
+
+    public static final int PAGE_SIZE = 50;
+    public static final int MAX_LOADED = 8 * PAGE_SIZE;
+
+    private final PhraseRepository mRepository;
+    private final long startTime;
+    private final long endTime;
+
+    private final MediatorLiveData<List<Phrase>> window = new MediatorLiveData<>();
+
+    //the phrases in the window, newest first
+    private final ArrayList<Phrase> loaded = new ArrayList<>();
+    private List<Phrase> latestNewestPage;
+    //true while the window starts at the newest phrase, so it follows the live newest page
+    private boolean atNewest = true;
+    private boolean atOldest = false;
+    private boolean loadingOlder = false;
+    private boolean loadingNewer = false;
+
+    public PhrasePager(PhraseRepository repository, long startTime, long endTime){
+        mRepository = repository;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        LiveData<List<Phrase>> newestPage = mRepository.getNewestPhrases(startTime, endTime, PAGE_SIZE);
+        window.addSource(newestPage, this::onNewestPage);
+    }
+
+    /** The loaded phrases, newest first. Changes when pages are loaded or dropped, and when the newest page changes. */
+    public LiveData<List<Phrase>> getPhrases(){
+        return window;
+    }
+
+    private void onNewestPage(List<Phrase> page){
+        latestNewestPage = page;
+        if (!atNewest || page == null){
+            return;
+        }
+        //swap in the new newest page, keep the loaded phrases older than it
+        int keepFrom = 0;
+        if (!page.isEmpty()){
+            Phrase oldestInPage = page.get(page.size() - 1);
+            if (page.size() == PAGE_SIZE && !loaded.isEmpty() && isOlder(loaded.get(0), oldestInPage)){
+                //more than a page came in since the last one (e.g. while nothing was observing), the page doesn't reach
+                //the loaded phrases and there'd be a gap between them. Start again from the page, older pages load as
+                //usual
+                Log.d(TAG, "Newest page doesn't overlap the loaded phrases, dropping " + loaded.size() + " of them");
+                keepFrom = loaded.size();
+                atOldest = false;
+            }
+            while (keepFrom < loaded.size() && !isOlder(loaded.get(keepFrom), oldestInPage)){
+                keepFrom++;
+            }
+        }
+        List<Phrase> older = new ArrayList<>(loaded.subList(keepFrom, loaded.size()));
+        loaded.clear();
+        loaded.addAll(page);
+        loaded.addAll(older);
+        trimOldest();
+        publish();
+        if (page.size() < PAGE_SIZE && older.isEmpty()){
+            //the database has nothing older in the range, the archive might
+            loadOlder();
+        }
+    }
+
+    /** Load the page before the oldest loaded phrase, if there is one and it isn't already loading. */
+    public void loadOlder(){
+        if (loadingOlder || atOldest){
+            return;
+        }
+        loadingOlder = true;
+        //nothing loaded yet pages back from the end of the range
+        final Phrase key = loaded.isEmpty() ? null : loaded.get(loaded.size() - 1);
+        long beforeTimestamp = (key == null) ? endTime : key.getTimestamp();
+        long beforeId = (key == null) ? Long.MAX_VALUE : key.getId();
+        mRepository.getPhrasesBefore(startTime, beforeTimestamp, beforeId, PAGE_SIZE, page -> {
+            loadingOlder = false;
+            Phrase oldest = loaded.isEmpty() ? null : loaded.get(loaded.size() - 1);
+            if ((key == null) ? oldest != null : (oldest == null || oldest.getId() != key.getId())){
+                return; //the window moved while this was loading
+            }
+            loaded.addAll(page);
+            if (page.size() < PAGE_SIZE){
+                atOldest = true;
+            }
+            //drop the newest phrases past the limit, the window stops following the newest page until they're back
+            int excess = loaded.size() - MAX_LOADED;
+            if (excess > 0){
+                loaded.subList(0, excess).clear();
+                atNewest = false;
+            }
+            publish();
+        });
+    }
+
+    /** Load the page after the newest loaded phrase, if pages were dropped from that end. */
+    public void loadNewer(){
+        if (loadingNewer || atNewest || loaded.isEmpty()){
+            return;
+        }
+        loadingNewer = true;
+        final Phrase key = loaded.get(0);
+        mRepository.getPhrasesAfter(key.getTimestamp(), endTime, key.getId(), PAGE_SIZE, page -> {
+            loadingNewer = false;
+            if (loaded.isEmpty() || loaded.get(0).getId() != key.getId()){
+                return;
+            }
+            //the page comes oldest first
+            Collections.reverse(page);
+            loaded.addAll(0, page);
+            trimOldest();
+            if (page.size() < PAGE_SIZE){
+                //caught up, follow the live page again and pick up anything that changed in it meanwhile
+                atNewest = true;
+                onNewestPage(latestNewestPage);
+            }
+            publish();
+        });
+    }
+
+    //drop the oldest phrases past the limit
+    private void trimOldest(){
+        int excess = loaded.size() - MAX_LOADED;
+        if (excess > 0){
+            loaded.subList(loaded.size() - excess, loaded.size()).clear();
+            atOldest = false;
+        }
+    }
+
+    public long getStartTime(){
+        return startTime;
+    }
+
+    public long getEndTime(){
+        return endTime;
+    }
+
+    public boolean isAtNewest(){
+        return atNewest;
+    }
+
+    public boolean isAtOldest(){
+        return atOldest;
+    }
+
+    private void publish(){
+        //a copy, the window keeps changing but what's been handed out must not
+        window.setValue(new ArrayList<>(loaded));
+        Log.d(TAG, "Holding " + loaded.size() + " phrases" + (atNewest ? ", following the newest" : "") + (atOldest ? ", back to the oldest" : ""));
+    }
+
+    //ordered by (timestamp, id), the same as the pages
+    private static boolean isOlder(Phrase a, Phrase b){
+        if (a.getTimestamp() != b.getTimestamp()){
+            return a.getTimestamp() < b.getTimestamp();
+        }
+        return a.getId() < b.getId();
+    }
+}
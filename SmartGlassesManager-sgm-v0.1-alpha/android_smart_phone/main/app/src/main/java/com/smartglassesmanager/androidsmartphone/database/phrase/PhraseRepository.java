@@ -5,135 +5,347 @@ package com.smartglassesmanager.androidsmartphone.database.phrase;
 //https://github.com/stairs1/memory-expansion-tools
 
 import android.app.Application;
+import android.database.Cursor;
 import android.location.Location;
+import android.util.Log;
 
 import androidx.lifecycle.LiveData;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.lang.InterruptedException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.io.IOException;
 
+import com.smartglassesmanager.androidsmartphone.database.BaseRepository;
 import com.smartglassesmanager.androidsmartphone.database.WearableAiRoomDatabase;
+import com.smartglassesmanager.androidsmartphone.sensors.ReverseGeocodeCache;
 
-public class PhraseRepository {
+public class PhraseRepository extends BaseRepository {
+    private static final String TAG = "WearableAi_PhraseRepository";
+
+    private static final int ADDRESS_BACKFILL_BATCH = 100;
+
+    //area queries walk the time window on the timestamp index if it's at most this many phrases, or if the area is
+    //bigger than SMALL_AREA_METERS. Otherwise they walk the area on the location index. See PhraseDao
+    private static final int AREA_TIME_SCAN_LIMIT = 20000;
+    private static final double SMALL_AREA_METERS = 2000;
 
     private PhraseDao mPhraseDao;
     private LiveData<List<Phrase>> mAllPhrases;
+    private WearableAiRoomDatabase db;
+    //phrases older than the retention period, moved out of the database by archiveOldestDay
+    private PhraseSegmentStore mSegmentStore;
+
+    //every phrase up to this id has had its address filled in, the next backfill carries on after it
+    private volatile long addressBackfillCursor = 0;
 
     public PhraseRepository(Application application) {
-        WearableAiRoomDatabase db = WearableAiRoomDatabase.getDatabase(application);
+        db = WearableAiRoomDatabase.getDatabase(application);
         mPhraseDao = db.phraseDao();
         mAllPhrases = mPhraseDao.getAllPhrases();
+        mSegmentStore = PhraseSegmentStore.getInstance(application);
     }
 
     public void destroy(){
     }
 
+    //transcripts are written behind, in batches, so saving never blocks the recognizer result thread
+    public PhraseWriteBehindStore getWriteBehindStore(){
+        return PhraseWriteBehindStore.getInstance(db);
+    }
+
+    //write out any pending phrases, call before the database is closed
+    public void closeWriteBehindStore(){
+        getWriteBehindStore().close();
+    }
+
     public LiveData<List<Phrase>> getAllPhrases() {
         return mAllPhrases;
     }
 
-//    public List<Phrase> getAllPhrasesSnapshot() {
-//        return mPhraseDao.getAllPhrasesSnapshot();
-//    }
+    public CompletableFuture<List<Phrase>> getAllPhrasesAsync() {
+        return read("PhraseDao.getAllPhrasesSnapshot", () -> mPhraseDao.getAllPhrasesSnapshot());
+    }
 
     public List<Phrase> getAllPhrasesSnapshot() throws ExecutionException, InterruptedException {
-
-        Callable<List<Phrase>> callable = new Callable<List<Phrase>>() {
-            @Override
-            public List<Phrase> call() throws Exception {
-                return mPhraseDao.getAllPhrasesSnapshot();
-            }
-        };
-
-        Future<List<Phrase>> future = Executors.newSingleThreadExecutor().submit(callable);
-
-        return future.get();
+        return getAllPhrasesAsync().get();
     }
 
+    //returns the new phrase's id right away, the row itself is written on the next flush
     public long insert(Phrase phrase) {
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
-        Callable<Long> insertCallable = () -> mPhraseDao.insert(phrase);
-        Future<Long> future = executorService.submit(insertCallable);
-        long rowId = 0;
-        try{
-            rowId = future.get();
-        }
-        catch (InterruptedException | ExecutionException e){
-            e.printStackTrace();
-        }
-        return rowId;
+        return getWriteBehindStore().insert(phrase);
     }
 
     public void update(long id, String words, Location location, String address) {
-        WearableAiRoomDatabase.databaseWriteExecutor.execute(() -> {
-            mPhraseDao.update(id, words, location, address);
-        });
+        getWriteBehindStore().update(id, words, location, address);
+    }
+
+    /**
+     * Fill in the address of phrases that have a location but no address yet, one batch at a time. Phrases in the
+     * same geohash cell share one geocoder lookup and one update. Completes with the number of phrases updated.
+     *
+     * A batch stops at the first phrase whose lookup fails (offline, geocoder down), and the next run starts again from
+     * that phrase, so nothing is skipped. The cursor only moves once the updates are written.
+     */
+    public CompletableFuture<Integer> backfillAddresses(ReverseGeocodeCache addressCache) {
+        if (!addressCache.isAvailable()) {
+            return CompletableFuture.completedFuture(0);
+        }
+        long afterId = addressBackfillCursor;
+        return read("PhraseDao.getPhrasesMissingAddress", () -> mPhraseDao.getPhrasesMissingAddress(afterId, ADDRESS_BACKFILL_BATCH))
+                .thenApplyAsync(phrases -> {
+                    //address -> the phrases in its cell
+                    Map<String, List<Long>> updates = new HashMap<>();
+                    for (Phrase phrase : phrases) {
+                        String address = addressCache.resolve(phrase.getLatitude(), phrase.getLongitude());
+                        if (address == null) {
+                            Log.d(TAG, "Couldn't get the address of phrase " + phrase.getId() + ", backfill will try again from it next time");
+                            break;
+                        }
+                        updates.computeIfAbsent(address, key -> new ArrayList<>()).add(phrase.getId());
+                    }
+                    return updates;
+                }, addressCache.getExecutor())
+                .thenCompose(updates -> write("PhraseDao.updateAddress", () -> {
+                    long lastId = afterId;
+                    int updated = db.runInTransaction(() -> {
+                        int count = 0;
+                        for (Map.Entry<String, List<Long>> update : updates.entrySet()) {
+                            mPhraseDao.updateAddress(update.getValue(), update.getKey());
+                            count += update.getValue().size();
+                        }
+                        return count;
+                    });
+                    for (List<Long> ids : updates.values()) {
+                        for (long id : ids) {
+                            lastId = Math.max(lastId, id);
+                        }
+                    }
+                    addressBackfillCursor = Math.max(addressBackfillCursor, lastId);
+                    if (updated > 0) {
+                        Log.d(TAG, "Backfilled the address of " + updated + " phrases");
+                    }
+                    return updated;
+                }));
     }
 
     public LiveData<List<Phrase>> getPhraseRange(long startTime, long endTime) {
         return mPhraseDao.getPhraseRange(startTime, endTime);
     }
 
+    //range, paging and export reads below go on into the archived phrases once they run out of database rows, they're
+    //all older than anything still in the database
+
+    public CompletableFuture<List<Phrase>> getPhraseRangeAsync(long startTime, long endTime) {
+        return read("PhraseDao.getPhraseRangeSnapshot", () -> {
+            List<Phrase> phrases = mPhraseDao.getPhraseRangeSnapshot(startTime, endTime);
+            if (startTime < mSegmentStore.getColdEndTime()) {
+                phrases.addAll(mSegmentStore.getPhraseRange(startTime, endTime));
+            }
+            return phrases;
+        });
+    }
+
+    public void getPhraseRange(long startTime, long endTime, Callback<List<Phrase>> callback) {
+        onMainThread(getPhraseRangeAsync(startTime, endTime), callback);
+    }
+
     public List<Phrase> getPhraseRangeSnapshot(long startTime, long endTime) {
+        return getOrNull(getPhraseRangeAsync(startTime, endTime));
+    }
+
+    public LiveData<List<Phrase>> getNewestPhrases(long startTime, long endTime, int limit) {
+        return mPhraseDao.getNewestPhrases(startTime, endTime, limit);
+    }
 
-        Callable<List<Phrase>> callable = new Callable<List<Phrase>>() {
-            @Override
-            public List<Phrase> call() throws Exception {
-                return mPhraseDao.getPhraseRangeSnapshot(startTime, endTime);
+    public CompletableFuture<List<Phrase>> getPhrasesBeforeAsync(long startTime, long beforeTimestamp, long beforeId, int limit) {
+        return read("PhraseDao.getPhrasesBefore", () -> {
+            List<Phrase> phrases = mPhraseDao.getPhrasesBefore(startTime, beforeTimestamp, beforeId, limit);
+            if (phrases.size() < limit && startTime < mSegmentStore.getColdEndTime()) {
+                Phrase key = phrases.isEmpty() ? null : phrases.get(phrases.size() - 1);
+                phrases.addAll(mSegmentStore.getPhrasesBefore(startTime,
+                        (key == null) ? beforeTimestamp : key.getTimestamp(), (key == null) ? beforeId : key.getId(), limit - phrases.size()));
             }
-        };
+            return phrases;
+        });
+    }
 
-        Future<List<Phrase>> future = Executors.newSingleThreadExecutor().submit(callable);
+    public void getPhrasesBefore(long startTime, long beforeTimestamp, long beforeId, int limit, Callback<List<Phrase>> callback) {
+        onMainThread(getPhrasesBeforeAsync(startTime, beforeTimestamp, beforeId, limit), callback);
+    }
 
-        try {
-            return future.get();
-        } catch (InterruptedException | ExecutionException e){
-            e.printStackTrace();
-        }
-        return null;
+    public CompletableFuture<List<Phrase>> getPhrasesAfterAsync(long afterTimestamp, long endTime, long afterId, int limit) {
+        return read("PhraseDao.getPhrasesAfter", () -> {
+            List<Phrase> phrases = new ArrayList<>();
+            long coldEndTime = mSegmentStore.getColdEndTime();
+            if (afterTimestamp < coldEndTime) {
+                phrases.addAll(mSegmentStore.getPhrasesAfter(afterTimestamp, Math.min(endTime, coldEndTime - 1), afterId, limit));
+            }
+            if (phrases.size() < limit) {
+                Phrase key = phrases.isEmpty() ? null : phrases.get(phrases.size() - 1);
+                phrases.addAll(mPhraseDao.getPhrasesAfter((key == null) ? afterTimestamp : key.getTimestamp(), endTime,
+                        (key == null) ? afterId : key.getId(), limit - phrases.size()));
+            }
+            return phrases;
+        });
     }
 
-    public List<Phrase> getPhrases(List<Long> ids) throws ExecutionException, InterruptedException {
+    public void getPhrasesAfter(long afterTimestamp, long endTime, long afterId, int limit, Callback<List<Phrase>> callback) {
+        onMainThread(getPhrasesAfterAsync(afterTimestamp, endTime, afterId, limit), callback);
+    }
 
-        Callable<List<Phrase>> callable = new Callable<List<Phrase>>() {
-            @Override
-            public List<Phrase> call() throws Exception {
-                return mPhraseDao.getPhrases(ids);
+    public CompletableFuture<Long> countPhraseRangeAsync(long startTime, long endTime) {
+        return read("PhraseDao.countPhraseRange", () -> {
+            long count = mPhraseDao.countPhraseRange(startTime, endTime);
+            if (startTime < mSegmentStore.getColdEndTime()) {
+                count += mSegmentStore.countPhraseRange(startTime, endTime);
             }
-        };
+            return count;
+        });
+    }
 
-        Future<List<Phrase>> future = Executors.newSingleThreadExecutor().submit(callable);
+    public PhraseSegmentStore getSegmentStore() {
+        return mSegmentStore;
+    }
 
-        return future.get();
+    /**
+     * Move the oldest day of phrases out of the database into its segment, if that day is before the day cutoffTime is
+     * in. Completes with the number of phrases moved, 0 once there's nothing left that old.
+     *
+     * One day per call, on the write thread, so transcripts being saved only ever wait for one day's worth. The segment
+     * is on disk before the rows are deleted, a crash in between leaves them in both, and the next run merges them in
+     * again.
+     */
+    public CompletableFuture<Integer> archiveOldestDayAsync(long cutoffTime) {
+        return write("PhraseDao.archiveOldestDay", () -> {
+            Long oldest = mPhraseDao.getOldestTimestamp();
+            if (oldest == null || PhraseSegmentStore.dayOf(oldest) >= PhraseSegmentStore.dayOf(cutoffTime)) {
+                return 0;
+            }
+            long day = PhraseSegmentStore.dayOf(oldest);
+            long dayStart = day * PhraseSegmentStore.DAY_MS;
+            long dayEnd = dayStart + PhraseSegmentStore.DAY_MS - 1;
+            List<Phrase> phrases = mPhraseDao.getPhraseRangeSnapshot(dayStart, dayEnd);
+            try {
+                mSegmentStore.writeDay(day, phrases);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            int deleted = db.runInTransaction(() -> mPhraseDao.deletePhraseRange(dayStart, dayEnd));
+            Log.d(TAG, "Archived " + deleted + " phrases from day " + day);
+            return deleted;
+        });
     }
 
+    //reads the next chunk of an export into the chunk's arrays, so the cursor is only open on the read thread
+    public CompletableFuture<PhraseExporter.Chunk> getExportChunkAsync(long afterTimestamp, long endTime, long afterId, PhraseExporter.Chunk chunk) {
+        return read("PhraseDao.getPhrasesAfterCursor", () -> {
+            try (Cursor cursor = mPhraseDao.getPhrasesAfterCursor(afterTimestamp, endTime, afterId, chunk.getCapacity())) {
+                chunk.fill(cursor);
+            }
+            return chunk;
+        });
+    }
 
+    /** Phrases said in the area between startTime and endTime, newest first. */
+    public CompletableFuture<List<Phrase>> getPhrasesInAreaAsync(PhraseArea area, long startTime, long endTime, int limit) {
+        return read("PhraseDao.getPhrasesInArea", () -> {
+            boolean shortWindow = mPhraseDao.countPhraseRangeUpTo(startTime, endTime, AREA_TIME_SCAN_LIMIT) < AREA_TIME_SCAN_LIMIT;
+            if (shortWindow || area.getHeightMeters() > SMALL_AREA_METERS) {
+                return mPhraseDao.getPhrasesInAreaByTime(area.getMinLatitude(), area.getMaxLatitude(), area.getMinLongitude(), area.getMaxLongitude(), startTime, endTime, limit);
+            }
+            return mPhraseDao.getPhrasesInAreaByPlace(area.getMinLatitude(), area.getMaxLatitude(), area.getMinLongitude(), area.getMaxLongitude(), startTime, endTime, limit);
+        });
+    }
+
+    public void getPhrasesInArea(PhraseArea area, long startTime, long endTime, int limit, Callback<List<Phrase>> callback) {
+        onMainThread(getPhrasesInAreaAsync(area, startTime, endTime, limit), callback);
+    }
+
+    //like the range reads, ids that aren't in the database anymore are looked for in the archived phrases
+    public CompletableFuture<List<Phrase>> getPhrasesAsync(List<Long> ids) {
+        return read("PhraseDao.getPhrases", () -> {
+            List<Phrase> phrases = mPhraseDao.getPhrases(ids);
+            if (phrases.size() < ids.size() && mSegmentStore.getColdEndTime() > 0) {
+                Set<Long> missing = new HashSet<>(ids);
+                for (Phrase phrase : phrases) {
+                    missing.remove(phrase.getId());
+                }
+                phrases.addAll(mSegmentStore.getPhrases(missing));
+            }
+            return phrases;
+        });
+    }
+
+    public List<Phrase> getPhrases(List<Long> ids) throws ExecutionException, InterruptedException {
+        return getPhrasesAsync(ids).get();
+    }
+
+    /**
+     * Full text search over the transcripts said between startTime and endTime, best matches first. Pass a location
+     * to only get phrases said within radiusMeters of it. The text is what the user typed, not fts syntax.
+     */
+    public CompletableFuture<List<PhraseSearchResult>> searchAsync(String text, long startTime, long endTime, Location near, float radiusMeters, int limit) {
+        String matchQuery = PhraseSearch.toMatchQuery(text);
+        if (matchQuery == null) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        if (near == null) {
+            return read("PhraseDao.search", () -> PhraseSearch.rank(mPhraseDao.search(matchQuery, startTime, endTime, PhraseSearch.MAX_CANDIDATES), null, 0, limit));
+        }
+        //only the box around the circle comes back from the database, rank drops the corners
+        PhraseArea area = PhraseArea.around(near, radiusMeters);
+        return read("PhraseDao.searchInArea", () -> PhraseSearch.rank(mPhraseDao.searchInArea(matchQuery, startTime, endTime,
+                area.getMinLatitude(), area.getMaxLatitude(), area.getMinLongitude(), area.getMaxLongitude(), PhraseSearch.MAX_CANDIDATES), near, radiusMeters, limit));
+    }
+
+    public void search(String text, long startTime, long endTime, int limit, Callback<List<PhraseSearchResult>> callback) {
+        onMainThread(searchAsync(text, startTime, endTime, null, 0, limit), callback);
+    }
 
     public LiveData<Phrase> getPhrase(long id) {
         return mPhraseDao.get_by_id(id);
     }
 
-    public Phrase getPhraseSnapshot(long id) {
-        return mPhraseDao.getByIdSnapshot(id);
+    public CompletableFuture<Phrase> getPhraseAsync(long id) {
+        return read("PhraseDao.getByIdSnapshot", () -> {
+            Phrase phrase = mPhraseDao.getByIdSnapshot(id);
+            if (phrase == null && id <= mSegmentStore.getMaxId()) {
+                List<Phrase> cold = mSegmentStore.getPhrases(Collections.singletonList(id));
+                phrase = cold.isEmpty() ? null : cold.get(0);
+            }
+            return phrase;
+        });
     }
 
-    public Phrase getByNearestTimestamp(long timestamp) throws ExecutionException, InterruptedException {
+    public Phrase getPhraseSnapshot(long id) {
+        return getOrNull(getPhraseAsync(id));
+    }
 
-        Callable<Phrase> callable = new Callable<Phrase>() {
-            @Override
-            public Phrase call() throws Exception {
-                return mPhraseDao.getByNearestTimestamp(timestamp);
+    public CompletableFuture<Phrase> getByNearestTimestampAsync(long timestamp) {
+        return read("PhraseDao.getByNearestTimestamp", () -> {
+            Phrase phrase = mPhraseDao.getByNearestTimestamp(timestamp);
+            //archived phrases are all older than the database ones, so they can only be closer if nothing in the
+            //database is at or before timestamp
+            if ((phrase == null || phrase.getTimestamp() > timestamp) && mSegmentStore.getColdEndTime() > 0) {
+                Phrase cold = mSegmentStore.getByNearestTimestamp(timestamp);
+                if (cold != null && (phrase == null || Math.abs(timestamp - cold.getTimestamp()) < phrase.getTimestamp() - timestamp)) {
+                    phrase = cold;
+                }
             }
-        };
-
-        Future<Phrase> future = Executors.newSingleThreadExecutor().submit(callable);
+            return phrase;
+        });
+    }
 
-        return future.get();
+    public Phrase getByNearestTimestamp(long timestamp) throws ExecutionException, InterruptedException {
+        return getByNearestTimestampAsync(timestamp).get();
     }
 
 }
@@ -0,0 +1,118 @@
+package com.smartglassesmanager.androidsmartphone.database.phrase;
+
+import android.location.Location;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Helpers for full text search over transcripts: turning what the user typed into an fts MATCH expression, and ranking.
+ *
+ * FTS4 has no ranking function and we can't register one on the framework sqlite before api 30, so the DAO returns
+ * matchinfo() for each hit and we score it here with BM25 (the same formula FTS5 uses).
+ */
+public class PhraseSearch {
+    public static final String HIGHLIGHT_START = "[";
+    public static final String HIGHLIGHT_END = "]";
+
+    //how many of the newest matches we rank, bounds the work for very common words
+    public static final int MAX_CANDIDATES = 1000;
+
+    //standard bm25 tuning
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    /**
+     * Make a MATCH expression out of free text: every word must match, the last one as a prefix so results show up
+     * while typing. Null if there's nothing searchable in the text.
+     */
+    public static String toMatchQuery(String text){
+        if (text == null){
+            return null;
+        }
+        //the simple tokenizer splits on anything that isn't a letter or digit, do the same so fts syntax can't leak in
+        String [] words = text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+");
+        StringBuilder query = new StringBuilder();
+        String last = null;
+        for (String word : words){
+            if (word.isEmpty()){
+                continue;
+            }
+            if (last != null){
+                query.append('"').append(last).append("\" ");
+            }
+            last = word;
+        }
+        if (last == null){
+            return null;
+        }
+        query.append('"').append(last).append("\"*");
+        return query.toString();
+    }
+
+    /** BM25 score from matchinfo(..., 'pcnalx'), higher is more relevant. */
+    public static double bm25(byte [] matchInfo){
+        if (matchInfo == null || matchInfo.length < 12){
+            return 0;
+        }
+        //matchinfo is an array of unsigned 32 bit ints in the machine's byte order
+        IntBuffer info = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phraseCount = info.get(0);
+        int columnCount = info.get(1);
+        long rowCount = info.get(2) & 0xffffffffL;
+        int avgLengthOffset = 3;
+        int lengthOffset = avgLengthOffset + columnCount;
+        int hitsOffset = lengthOffset + columnCount;
+
+        double score = 0;
+        for (int p = 0; p < phraseCount; p++){
+            for (int c = 0; c < columnCount; c++){
+                int x = hitsOffset + 3 * (c + p * columnCount);
+                if (x + 2 >= info.limit()){
+                    return score;
+                }
+                long hitsInRow = info.get(x) & 0xffffffffL;
+                long rowsWithHit = info.get(x + 2) & 0xffffffffL;
+                if (hitsInRow == 0){
+                    continue;
+                }
+                double idf = Math.log(1 + (rowCount - rowsWithHit + 0.5) / (rowsWithHit + 0.5));
+                double length = info.get(lengthOffset + c);
+                double avgLength = Math.max(1, info.get(avgLengthOffset + c));
+                score += idf * (hitsInRow * (K1 + 1)) / (hitsInRow + K1 * (1 - B + B * length / avgLength));
+            }
+        }
+        return score;
+    }
+
+    /** Rank candidates, drop the ones outside the radius (if one is given) and keep the best ones. */
+    public static List<PhraseSearchResult> rank(List<PhraseSearchResult> candidates, Location near, float radiusMeters, int limit){
+        List<PhraseSearchResult> results = new ArrayList<>(candidates.size());
+        float [] distance = new float[1];
+        for (PhraseSearchResult candidate : candidates){
+            if (near != null){
+                Phrase phrase = candidate.phrase;
+                if (phrase.getLatitude() == null || phrase.getLongitude() == null){
+                    continue;
+                }
+                Location.distanceBetween(near.getLatitude(), near.getLongitude(), phrase.getLatitude(), phrase.getLongitude(), distance);
+                if (distance[0] > radiusMeters){
+                    continue;
+                }
+            }
+            candidate.rank = bm25(candidate.matchInfo);
+            results.add(candidate);
+        }
+        //best first, newest first on ties
+        Collections.sort(results, (a, b) -> {
+            int byRank = Double.compare(b.rank, a.rank);
+            return (byRank != 0) ? byRank : Long.compare(b.phrase.getTimestamp(), a.phrase.getTimestamp());
+        });
+        return (results.size() > limit) ? new ArrayList<>(results.subList(0, limit)) : results;
+    }
+}
@@ -0,0 +1,66 @@
+package com.smartglassesmanager.androidsmartphone.database.phrase;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Embedded;
+import androidx.room.Ignore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+//one full text search hit, with what sqlite told us about where the words matched
+public class PhraseSearchResult {
+
+    @Embedded
+    public Phrase phrase;
+
+    //the matching part of the phrase, matched words wrapped in the highlight markers
+    @ColumnInfo(name = "snippet")
+    public String snippet;
+
+    //fts4 offsets(): "column term byteOffset byteLength" for every matched word
+    @ColumnInfo(name = "offsets")
+    public String offsets;
+
+    //fts4 matchinfo(..., 'pcnalx'), used for ranking
+    @ColumnInfo(name = "matchInfo")
+    public byte [] matchInfo;
+
+    //bm25, higher is better
+    @Ignore
+    public double rank;
+
+    public Phrase getPhrase(){
+        return phrase;
+    }
+
+    public String getSnippet(){
+        return snippet;
+    }
+
+    public double getRank(){
+        return rank;
+    }
+
+    /** {start, end} character ranges of the matched words in the phrase text, for highlighting. */
+    public List<int []> getHighlights(){
+        List<int []> highlights = new ArrayList<>();
+        if (offsets == null || phrase == null || phrase.getPhrase() == null){
+            return highlights;
+        }
+        //sqlite gives utf-8 byte offsets, map them back to string indices
+        byte [] utf8 = phrase.getPhrase().getBytes(StandardCharsets.UTF_8);
+        String [] parts = offsets.trim().split(" ");
+        for (int i = 0; i + 3 < parts.length; i += 4){
+            int byteStart = Integer.parseInt(parts[i + 2]);
+            int byteEnd = byteStart + Integer.parseInt(parts[i + 3]);
+            if (byteEnd > utf8.length){
+                continue;
+            }
+            int start = new String(utf8, 0, byteStart, StandardCharsets.UTF_8).length();
+            int end = start + new String(utf8, byteStart, byteEnd - byteStart, StandardCharsets.UTF_8).length();
+            highlights.add(new int [] {start, end});
+        }
+        return highlights;
+    }
+}
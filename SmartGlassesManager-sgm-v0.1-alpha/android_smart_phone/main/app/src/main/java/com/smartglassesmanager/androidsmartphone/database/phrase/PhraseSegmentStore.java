@@ -0,0 +1,603 @@
+package com.smartglassesmanager.androidsmartphone.database.phrase;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Cold storage for old transcripts: one immutable, compressed file per (UTC) day, see PhraseRepository.archiveOldPhrases.
+ *
+ * A segment is a list of blocks of up to BLOCK_ROWS phrases, sorted by (timestamp, id) and deflated one block at a
+ * time, followed by an index of the blocks (time range, id range, offset). Reads only inflate the blocks that overlap
+ * the time range they want. The index of every segment is kept in memory, it's a few dozen bytes per block.
+ *
+ * Segments are only ever replaced whole: a new version is written next to the old one, synced, and renamed over it,
+ * so a reader sees either version and a crash leaves either version.
+ *
+ * Every phrase in a segment is older than every phrase still in the database, so a query can read the database first
+ * and only come here for what's older than that.
+ */
+public class PhraseSegmentStore {
+    private static final String TAG = "WearableAi_PhraseSegmentStore";
+
+    public static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+    private static final String SEGMENTS_DIR = "phrase_segments";
+    private static final String SEGMENT_EXTENSION = ".seg";
+    private static final int MAGIC = 0x57534731; //"WSG1"
+    private static final int VERSION = 1;
+    private static final int BLOCK_ROWS = 512;
+    //header is magic and version, footer is the index offset and magic
+    private static final int FOOTER_BYTES = 12;
+
+    private static final int FLAG_LOCATION = 1;
+    private static final int FLAG_ALTITUDE = 2;
+    private static final int FLAG_ACCURACY = 4;
+    private static final int FLAG_ADDRESS = 8;
+
+    private static PhraseSegmentStore myself;
+
+    private final File dir;
+    //day -> segment index, guarded by itself. Null until first used
+    private NavigableMap<Long, Segment> segments;
+
+    //metrics
+    private final AtomicLong blocksRead = new AtomicLong(0);
+    private final AtomicLong blockReadNs = new AtomicLong(0);
+    private final AtomicLong rowsRead = new AtomicLong(0);
+
+    /** Something that's given phrases one at a time, returns false to stop. */
+    public interface PhraseVisitor {
+        boolean visit(Phrase phrase) throws IOException;
+    }
+
+    private static class Block {
+        long firstTimestamp;
+        long lastTimestamp;
+        long maxId;
+        int rows;
+        long offset;
+        int compressedLength;
+        int rawLength;
+    }
+
+    private static class Segment {
+        long day;
+        File file;
+        long bytes;
+        List<Block> blocks = new ArrayList<>();
+
+        int getRowCount(){
+            int rows = 0;
+            for (Block block : blocks){
+                rows += block.rows;
+            }
+            return rows;
+        }
+
+        long getMaxId(){
+            long maxId = 0;
+            for (Block block : blocks){
+                maxId = Math.max(maxId, block.maxId);
+            }
+            return maxId;
+        }
+    }
+
+    private static final Comparator<Phrase> OLDEST_FIRST = (a, b) -> {
+        if (a.getTimestamp() != b.getTimestamp()){
+            return Long.compare(a.getTimestamp(), b.getTimestamp());
+        }
+        return Long.compare(a.getId(), b.getId());
+    };
+
+    private PhraseSegmentStore(Context context){
+        dir = new File(context.getFilesDir(), SEGMENTS_DIR);
+    }
+
+    public static synchronized PhraseSegmentStore getInstance(Context context){
+        if (myself == null){
+            myself = new PhraseSegmentStore(context.getApplicationContext());
+        }
+        return myself;
+    }
+
+    public static long dayOf(long timestamp){
+        return Math.floorDiv(timestamp, DAY_MS);
+    }
+
+    //INDEX
+
+    private NavigableMap<Long, Segment> getSegments(){
+        synchronized (this) {
+            if (segments == null){
+                segments = loadSegments();
+            }
+            return segments;
+        }
+    }
+
+    private NavigableMap<Long, Segment> loadSegments(){
+        NavigableMap<Long, Segment> loaded = new TreeMap<>();
+        File [] files = dir.listFiles();
+        if (files == null){
+            return loaded;
+        }
+        for (File file : files){
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_EXTENSION)){
+                if (name.endsWith(".tmp")){
+                    file.delete(); //left over from a write that didn't finish
+                }
+                continue;
+            }
+            try {
+                long day = LocalDate.parse(name.substring(0, name.length() - SEGMENT_EXTENSION.length())).toEpochDay();
+                loaded.put(day, readIndex(day, file));
+            } catch (DateTimeParseException | IOException e){
+                e.printStackTrace();
+                Log.d(TAG, "Skipping unreadable segment " + name);
+            }
+        }
+        Log.d(TAG, "Loaded " + loaded.size() + " segments");
+        return loaded;
+    }
+
+    private static Segment readIndex(long day, File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")){
+            Segment segment = new Segment();
+            segment.day = day;
+            segment.file = file;
+            segment.bytes = in.length();
+            if (in.readInt() != MAGIC || in.readInt() != VERSION){
+                throw new IOException("Not a segment: " + file.getName());
+            }
+            in.seek(segment.bytes - FOOTER_BYTES);
+            long indexOffset = in.readLong();
+            if (in.readInt() != MAGIC){
+                throw new IOException("Segment has no index, not finished writing? " + file.getName());
+            }
+            in.seek(indexOffset);
+            int blockCount = in.readInt();
+            for (int i = 0; i < blockCount; i++){
+                Block block = new Block();
+                block.firstTimestamp = in.readLong();
+                block.lastTimestamp = in.readLong();
+                block.maxId = in.readLong();
+                block.rows = in.readInt();
+                block.offset = in.readLong();
+                block.compressedLength = in.readInt();
+                block.rawLength = in.readInt();
+                segment.blocks.add(block);
+            }
+            return segment;
+        }
+    }
+
+    //the segments with days in [firstDay, lastDay], oldest first
+    private List<Segment> segmentsBetween(long firstDay, long lastDay){
+        NavigableMap<Long, Segment> all = getSegments();
+        synchronized (this) {
+            if (firstDay > lastDay){
+                return new ArrayList<>();
+            }
+            return new ArrayList<>(all.subMap(firstDay, true, lastDay, true).values());
+        }
+    }
+
+    /** The end of the newest day in cold storage (everything before it may be here), 0 if there's nothing here. */
+    public long getColdEndTime(){
+        NavigableMap<Long, Segment> all = getSegments();
+        synchronized (this) {
+            return all.isEmpty() ? 0 : (all.lastKey() + 1) * DAY_MS;
+        }
+    }
+
+    /** Highest phrase id in cold storage, 0 if there's nothing here. */
+    public long getMaxId(){
+        long maxId = 0;
+        for (Segment segment : segmentsBetween(Long.MIN_VALUE, Long.MAX_VALUE)){
+            maxId = Math.max(maxId, segment.getMaxId());
+        }
+        return maxId;
+    }
+
+    //WRITE
+
+    /**
+     * Add the day's phrases to its segment. If the day already has a segment, the new segment has both, with these
+     * phrases replacing ones with the same id. Blocks until the new segment is on disk.
+     */
+    public void writeDay(long day, List<Phrase> phrases) throws IOException {
+        Segment existing;
+        synchronized (this) {
+            existing = getSegments().get(day);
+        }
+        Map<Long, Phrase> byId = new LinkedHashMap<>();
+        if (existing != null){
+            forEachInSegment(existing, Long.MIN_VALUE, Long.MAX_VALUE, phrase -> {
+                byId.put(phrase.getId(), phrase);
+                return true;
+            });
+        }
+        for (Phrase phrase : phrases){
+            byId.put(phrase.getId(), phrase);
+        }
+        List<Phrase> rows = new ArrayList<>(byId.values());
+        Collections.sort(rows, OLDEST_FIRST);
+
+        if (!dir.exists() && !dir.mkdirs()){
+            throw new IOException("Can't make dir " + dir.getPath());
+        }
+        String name = LocalDate.ofEpochDay(day).toString() + SEGMENT_EXTENSION;
+        File file = new File(dir, name);
+        File tmpFile = new File(dir, name + ".tmp");
+        writeSegment(tmpFile, rows);
+        if (!tmpFile.renameTo(file)){
+            tmpFile.delete();
+            throw new IOException("Can't move segment into " + file.getPath());
+        }
+        Segment segment = readIndex(day, file);
+        synchronized (this) {
+            getSegments().put(day, segment);
+        }
+    }
+
+    private static void writeSegment(File file, List<Phrase> rows) throws IOException {
+        List<Block> blocks = new ArrayList<>();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (FileOutputStream fileOut = new FileOutputStream(file)){
+            DataOutputStream out = new DataOutputStream(fileOut);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            long offset = 8;
+
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            byte [] compressBuffer = new byte[64 * 1024];
+            for (int start = 0; start < rows.size(); start += BLOCK_ROWS){
+                int end = Math.min(rows.size(), start + BLOCK_ROWS);
+                raw.reset();
+                DataOutputStream rawOut = new DataOutputStream(raw);
+                Block block = new Block();
+                block.firstTimestamp = rows.get(start).getTimestamp();
+                block.lastTimestamp = rows.get(end - 1).getTimestamp();
+                block.rows = end - start;
+                for (int i = start; i < end; i++){
+                    writePhrase(rawOut, rows.get(i));
+                    block.maxId = Math.max(block.maxId, rows.get(i).getId());
+                }
+                rawOut.flush();
+                byte [] rawBytes = raw.toByteArray();
+
+                deflater.reset();
+                deflater.setInput(rawBytes);
+                deflater.finish();
+                int compressedLength = 0;
+                while (!deflater.finished()){
+                    int n = deflater.deflate(compressBuffer);
+                    out.write(compressBuffer, 0, n);
+                    compressedLength += n;
+                }
+                block.offset = offset;
+                block.compressedLength = compressedLength;
+                block.rawLength = rawBytes.length;
+                offset += compressedLength;
+                blocks.add(block);
+            }
+
+            long indexOffset = offset;
+            out.writeInt(blocks.size());
+            for (Block block : blocks){
+                out.writeLong(block.firstTimestamp);
+                out.writeLong(block.lastTimestamp);
+                out.writeLong(block.maxId);
+                out.writeInt(block.rows);
+                out.writeLong(block.offset);
+                out.writeInt(block.compressedLength);
+                out.writeInt(block.rawLength);
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writePhrase(DataOutputStream out, Phrase phrase) throws IOException {
+        out.writeLong(phrase.getId());
+        out.writeLong(phrase.getTimestamp());
+        boolean hasLocation = phrase.getLatitude() != null && phrase.getLongitude() != null;
+        int flags = (hasLocation ? FLAG_LOCATION : 0)
+                | (phrase.getAltitude() != null ? FLAG_ALTITUDE : 0)
+                | (phrase.getAccuracy() != null ? FLAG_ACCURACY : 0)
+                | (phrase.getAddress() != null ? FLAG_ADDRESS : 0);
+        out.writeByte(flags);
+        if (hasLocation){
+            out.writeDouble(phrase.getLatitude());
+            out.writeDouble(phrase.getLongitude());
+        }
+        if (phrase.getAltitude() != null){
+            out.writeDouble(phrase.getAltitude());
+        }
+        if (phrase.getAccuracy() != null){
+            out.writeFloat(phrase.getAccuracy());
+        }
+        writeString(out, phrase.getMedium());
+        writeString(out, phrase.getPhrase());
+        if (phrase.getAddress() != null){
+            writeString(out, phrase.getAddress());
+        }
+    }
+
+    //writeUTF can't do more than 64KB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte [] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    //READ
+
+    private static Phrase readPhrase(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        long timestamp = in.readLong();
+        int flags = in.readByte();
+        Double latitude = null;
+        Double longitude = null;
+        if ((flags & FLAG_LOCATION) != 0){
+            latitude = in.readDouble();
+            longitude = in.readDouble();
+        }
+        Double altitude = ((flags & FLAG_ALTITUDE) != 0) ? in.readDouble() : null;
+        Float accuracy = ((flags & FLAG_ACCURACY) != 0) ? in.readFloat() : null;
+        String medium = readString(in);
+        String words = readString(in);
+        String address = ((flags & FLAG_ADDRESS) != 0) ? readString(in) : null;
+        Phrase phrase = new Phrase(words, timestamp, medium, latitude, longitude, altitude, accuracy, address);
+        phrase.setId(id);
+        return phrase;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte [] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //the phrases in one block, oldest first
+    private List<Phrase> readBlock(RandomAccessFile file, Block block) throws IOException {
+        long start = System.nanoTime();
+        byte [] compressed = new byte[block.compressedLength];
+        file.seek(block.offset);
+        file.readFully(compressed);
+        byte [] raw = new byte[block.rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int n = 0;
+            while (n < raw.length && !inflater.finished()){
+                n += inflater.inflate(raw, n, raw.length - n);
+            }
+        } catch (DataFormatException e){
+            throw new IOException("Corrupt segment block", e);
+        } finally {
+            inflater.end();
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+        List<Phrase> phrases = new ArrayList<>(block.rows);
+        for (int i = 0; i < block.rows; i++){
+            phrases.add(readPhrase(in));
+        }
+        blocksRead.incrementAndGet();
+        rowsRead.addAndGet(block.rows);
+        blockReadNs.addAndGet(System.nanoTime() - start);
+        return phrases;
+    }
+
+    //oldest first
+    private boolean forEachInSegment(Segment segment, long startTime, long endTime, PhraseVisitor visitor) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment.file, "r")){
+            for (Block block : segment.blocks){
+                if (block.lastTimestamp < startTime || block.firstTimestamp > endTime){
+                    continue;
+                }
+                for (Phrase phrase : readBlock(file, block)){
+                    if (phrase.getTimestamp() >= startTime && phrase.getTimestamp() <= endTime && !visitor.visit(phrase)){
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Go through the cold phrases between the two times (inclusive), oldest first, a block at a time. */
+    public void forEach(long startTime, long endTime, PhraseVisitor visitor) throws IOException {
+        for (Segment segment : segmentsBetween(dayOf(startTime), dayOf(endTime))){
+            if (!forEachInSegment(segment, startTime, endTime, visitor)){
+                return;
+            }
+        }
+    }
+
+    /** How many cold phrases are between the two times (inclusive). Only blocks cut by the range are read. */
+    public long countPhraseRange(long startTime, long endTime) throws IOException {
+        long count = 0;
+        for (Segment segment : segmentsBetween(dayOf(startTime), dayOf(endTime))){
+            try (RandomAccessFile file = new RandomAccessFile(segment.file, "r")){
+                for (Block block : segment.blocks){
+                    if (block.lastTimestamp < startTime || block.firstTimestamp > endTime){
+                        continue;
+                    }
+                    if (block.firstTimestamp >= startTime && block.lastTimestamp <= endTime){
+                        count += block.rows;
+                        continue;
+                    }
+                    for (Phrase phrase : readBlock(file, block)){
+                        if (phrase.getTimestamp() >= startTime && phrase.getTimestamp() <= endTime){
+                            count++;
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /** The cold phrases between the two times (inclusive), newest first, like PhraseDao.getPhraseRangeSnapshot. */
+    public List<Phrase> getPhraseRange(long startTime, long endTime) throws IOException {
+        List<Phrase> phrases = new ArrayList<>();
+        forEach(startTime, endTime, phrase -> phrases.add(phrase));
+        Collections.reverse(phrases);
+        return phrases;
+    }
+
+    /** Like PhraseDao.getPhrasesBefore: the newest limit phrases older than (beforeTimestamp, beforeId), newest first. */
+    public List<Phrase> getPhrasesBefore(long startTime, long beforeTimestamp, long beforeId, int limit) throws IOException {
+        List<Phrase> phrases = new ArrayList<>();
+        List<Segment> days = segmentsBetween(dayOf(startTime), dayOf(beforeTimestamp));
+        for (int d = days.size() - 1; d >= 0 && phrases.size() < limit; d--){
+            Segment segment = days.get(d);
+            try (RandomAccessFile file = new RandomAccessFile(segment.file, "r")){
+                for (int b = segment.blocks.size() - 1; b >= 0 && phrases.size() < limit; b--){
+                    Block block = segment.blocks.get(b);
+                    if (block.firstTimestamp > beforeTimestamp || block.lastTimestamp < startTime){
+                        continue;
+                    }
+                    List<Phrase> rows = readBlock(file, block);
+                    for (int i = rows.size() - 1; i >= 0 && phrases.size() < limit; i--){
+                        Phrase phrase = rows.get(i);
+                        boolean before = phrase.getTimestamp() < beforeTimestamp || (phrase.getTimestamp() == beforeTimestamp && phrase.getId() < beforeId);
+                        if (before && phrase.getTimestamp() >= startTime){
+                            phrases.add(phrase);
+                        }
+                    }
+                }
+            }
+        }
+        return phrases;
+    }
+
+    /** Like PhraseDao.getPhrasesAfter: the oldest limit phrases newer than (afterTimestamp, afterId), oldest first. */
+    public List<Phrase> getPhrasesAfter(long afterTimestamp, long endTime, long afterId, int limit) throws IOException {
+        List<Phrase> phrases = new ArrayList<>();
+        forEach(afterTimestamp, endTime, phrase -> {
+            if (phrase.getTimestamp() > afterTimestamp || phrase.getId() > afterId){
+                phrases.add(phrase);
+            }
+            return phrases.size() < limit;
+        });
+        return phrases;
+    }
+
+    /**
+     * The cold phrases with these ids, in no particular order, like PhraseDao.getPhrases. Blocks that only hold smaller
+     * ids than the ones asked for aren't read, and it stops once every id is found.
+     */
+    public List<Phrase> getPhrases(Collection<Long> ids) throws IOException {
+        List<Phrase> phrases = new ArrayList<>();
+        Set<Long> wanted = new HashSet<>(ids);
+        if (wanted.isEmpty()){
+            return phrases;
+        }
+        long minWanted = Collections.min(wanted);
+        List<Segment> days = segmentsBetween(Long.MIN_VALUE, Long.MAX_VALUE);
+        //ids go up with time, so the newest days are the likeliest to have them
+        for (int d = days.size() - 1; d >= 0 && !wanted.isEmpty(); d--){
+            Segment segment = days.get(d);
+            if (segment.getMaxId() < minWanted){
+                continue;
+            }
+            try (RandomAccessFile file = new RandomAccessFile(segment.file, "r")){
+                for (int b = segment.blocks.size() - 1; b >= 0 && !wanted.isEmpty(); b--){
+                    Block block = segment.blocks.get(b);
+                    if (block.maxId < minWanted){
+                        continue;
+                    }
+                    for (Phrase phrase : readBlock(file, block)){
+                        if (wanted.remove(phrase.getId())){
+                            phrases.add(phrase);
+                        }
+                    }
+                }
+            }
+        }
+        return phrases;
+    }
+
+    /** Like PhraseDao.getByNearestTimestamp: the cold phrase said closest to timestamp, null if there's nothing here. */
+    public Phrase getByNearestTimestamp(long timestamp) throws IOException {
+        List<Phrase> before = getPhrasesBefore(Long.MIN_VALUE, timestamp, Long.MAX_VALUE, 1);
+        List<Phrase> after = (timestamp < getColdEndTime()) ? getPhrasesAfter(timestamp, Long.MAX_VALUE, Long.MIN_VALUE, 1) : Collections.emptyList();
+        if (before.isEmpty()){
+            return after.isEmpty() ? null : after.get(0);
+        }
+        if (after.isEmpty()){
+            return before.get(0);
+        }
+        return (timestamp - before.get(0).getTimestamp() <= after.get(0).getTimestamp() - timestamp) ? before.get(0) : after.get(0);
+    }
+
+    //METRICS
+
+    public int getSegmentCount(){
+        return segmentsBetween(Long.MIN_VALUE, Long.MAX_VALUE).size();
+    }
+
+    public long getSizeBytes(){
+        long bytes = 0;
+        for (Segment segment : segmentsBetween(Long.MIN_VALUE, Long.MAX_VALUE)){
+            bytes += segment.bytes;
+        }
+        return bytes;
+    }
+
+    public long getRowCount(){
+        long rows = 0;
+        for (Segment segment : segmentsBetween(Long.MIN_VALUE, Long.MAX_VALUE)){
+            rows += segment.getRowCount();
+        }
+        return rows;
+    }
+
+    public long getBlocksRead(){
+        return blocksRead.get();
+    }
+
+    public long getRowsRead(){
+        return rowsRead.get();
+    }
+
+    public double getAverageBlockReadMs(){
+        long n = blocksRead.get();
+        return (n == 0) ? 0 : blockReadNs.get() / 1e6 / n;
+    }
+}
@@ -8,6 +8,8 @@ import android.app.Application;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
 
+import com.smartglassesmanager.androidsmartphone.database.BaseRepository;
+
 import java.util.List;
 
 public class PhraseViewModel extends AndroidViewModel {
@@ -15,6 +17,8 @@ public class PhraseViewModel extends AndroidViewModel {
     private PhraseRepository mRepository;
     private LiveData<List<Phrase>> mAllPhrases;
     private LiveData<Phrase> mSelectedPhrase;
+    //kept here so the loaded pages survive the fragment being recreated
+    private PhrasePager mPager;
 
     public PhraseViewModel (Application application) {
         super(application);
@@ -27,6 +31,18 @@ public class PhraseViewModel extends AndroidViewModel {
         return mRepository.getPhraseRange(startTime, stopTime);
     }
 
+    //pages through the phrases in the range, newest first. Same range, same pager
+    public PhrasePager getPager(long startTime, long stopTime) {
+        if (mPager == null || mPager.getStartTime() != startTime || mPager.getEndTime() != stopTime) {
+            mPager = new PhrasePager(mRepository, startTime, stopTime);
+        }
+        return mPager;
+    }
+
+    public void search(String text, long startTime, long stopTime, int limit, BaseRepository.Callback<List<PhraseSearchResult>> callback) {
+        mRepository.search(text, startTime, stopTime, limit, callback);
+    }
+
     public LiveData<Phrase> getPhrase(long id) {return mRepository.getPhrase(id);}
     public Phrase getPhraseSnapshot(long id) {return mRepository.getPhraseSnapshot(id);}
     //public List<Phrase> getPhrases(List<Long> ids) {return mRepository.getPhrases(ids);}
@@ -0,0 +1,306 @@
+package com.smartglassesmanager.androidsmartphone.database.phrase;
+
+import android.location.Location;
+import android.util.Log;
+
+import com.smartglassesmanager.androidsmartphone.database.BaseRepository;
+import com.smartglassesmanager.androidsmartphone.database.WearableAiRoomDatabase;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind store for transcripts, so saving a phrase never blocks the thread that delivers recognizer results.
+ *
+ * Phrase ids are handed out from memory (seeded once from the table's max id when the store starts), so a new
+ * phrase doesn't wait for an insert to find out its id. Writes are kept in memory per phrase and only the latest
+ * version is written - a phrase that gets 20 partial updates before a flush is one row write. Pending writes go
+ * out in one Room transaction when there are enough of them, when the oldest has waited long enough, and on close.
+ * If a transaction fails, its writes go back into pending, ahead of anything queued since, and are retried
+ * with backoff, the callers already have their ids so the writes can't just be dropped.
+ *
+ * There's one store per database, since it hands out the ids.
+ */
+public class PhraseWriteBehindStore {
+    private static final String TAG = "WearableAi_PhraseWriteBehindStore";
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 32;
+    public static final int DEFAULT_MAX_FLUSH_DELAY_MS = 1000;
+    //retries after a failed flush start at the flush delay and double up to this
+    public static final int MAX_RETRY_DELAY_MS = 30000;
+
+    private static PhraseWriteBehindStore myself;
+
+    private final WearableAiRoomDatabase db;
+    private final PhraseDao mPhraseDao;
+
+    //the repositories' write thread, so batches are written in order with every other database write
+    private final ScheduledExecutorService writeExecutor = BaseRepository.getWriteExecutor();
+    private volatile boolean closed = false;
+
+    //next free id, seeded from the database on the write thread when the store starts
+    private final CompletableFuture<AtomicLong> nextId;
+
+    //latest pending version of each phrase, in the order they were first touched. Guarded by itself
+    private final Map<Long, PendingPhrase> pending = new LinkedHashMap<>();
+    private boolean flushScheduled = false;
+    //0 unless the last flush failed, only touched on the write thread
+    private long retryDelayMs = 0;
+
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private volatile int maxFlushDelayMs = DEFAULT_MAX_FLUSH_DELAY_MS;
+
+    //metrics
+    private final AtomicLong writes = new AtomicLong(0);
+    private final AtomicLong coalescedWrites = new AtomicLong(0);
+    private volatile long flushCount = 0;
+    private volatile long lastFlushLatencyMs = 0;
+    private volatile long maxFlushLatencyMs = 0;
+    private volatile int lastBatchSize = 0;
+    private volatile int maxBatchSizeSeen = 0;
+    private volatile long flushFailures = 0;
+
+    private static final class PendingPhrase {
+        final Phrase phrase;
+        //not in the database yet, must be inserted rather than updated
+        final boolean isNew;
+
+        PendingPhrase(Phrase phrase, boolean isNew){
+            this.phrase = phrase;
+            this.isNew = isNew;
+        }
+    }
+
+    private PhraseWriteBehindStore(WearableAiRoomDatabase db){
+        this.db = db;
+        this.mPhraseDao = db.phraseDao();
+        nextId = CompletableFuture.supplyAsync(() -> {
+            Long maxId = mPhraseDao.getMaxId();
+            return new AtomicLong((maxId == null) ? 1 : maxId + 1);
+        }, writeExecutor);
+    }
+
+    public static synchronized PhraseWriteBehindStore getInstance(WearableAiRoomDatabase db){
+        if (myself == null || myself.db != db){
+            myself = new PhraseWriteBehindStore(db);
+        }
+        return myself;
+    }
+
+    /**
+     * Give a new phrase an id and queue it to be inserted. Doesn't touch the database, unless it's called before the
+     * one time id seed query (run when the store starts) has finished, in which case it waits for that query.
+     */
+    public long insert(Phrase phrase){
+        long id = nextId.join().getAndIncrement();
+        phrase.setId(id);
+        queue(id, copy(phrase, phrase.getPhrase(), phrase.getLocation(), phrase.getAddress()), true);
+        return id;
+    }
+
+    /** Queue an update of a phrase's text and location. Replaces any update of the same phrase that hasn't been written yet. */
+    public void update(long id, String words, Location location, String address){
+        if (closed){
+            Log.d(TAG, "Store is closed, dropping update of phrase " + id);
+            return;
+        }
+        synchronized (pending) {
+            PendingPhrase existing = pending.get(id);
+            if (existing != null){
+                //same row, just newer text - keep the insert/update kind and the fields that don't change
+                pending.put(id, new PendingPhrase(copy(existing.phrase, words, location, address), existing.isNew));
+                coalescedWrites.incrementAndGet();
+                writes.incrementAndGet();
+                return;
+            }
+        }
+        Phrase phrase = new Phrase(words, 0, "", location, address);
+        phrase.setId(id);
+        queue(id, phrase, false);
+    }
+
+    private void queue(long id, Phrase phrase, boolean isNew){
+        if (closed){
+            //e.g. a location result that came back after the service was destroyed
+            Log.d(TAG, "Store is closed, dropping write of phrase " + id);
+            return;
+        }
+        boolean flushNow;
+        boolean scheduleFlush = false;
+        synchronized (pending) {
+            pending.put(id, new PendingPhrase(phrase, isNew));
+            writes.incrementAndGet();
+            flushNow = pending.size() >= maxBatchSize;
+            if (!flushNow && !flushScheduled){
+                flushScheduled = true;
+                scheduleFlush = true;
+            }
+        }
+        if (flushNow){
+            writeExecutor.execute(this::flushPending);
+        } else if (scheduleFlush){
+            writeExecutor.schedule(this::flushPending, maxFlushDelayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static Phrase copy(Phrase phrase, String words, Location location, String address){
+        Phrase copy = new Phrase(words, phrase.getTimestamp(), phrase.getMedium(), location, address);
+        copy.setId(phrase.getId());
+        return copy;
+    }
+
+    //runs on the write thread
+    private void flushPending(){
+        List<PendingPhrase> batch;
+        synchronized (pending) {
+            flushScheduled = false;
+            if (pending.isEmpty()){
+                return;
+            }
+            batch = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+
+        long start = System.currentTimeMillis();
+        List<Phrase> inserts = new ArrayList<>();
+        for (PendingPhrase write : batch){
+            if (write.isNew){
+                inserts.add(write.phrase);
+            }
+        }
+        try {
+            db.runInTransaction(() -> {
+                if (!inserts.isEmpty()){
+                    mPhraseDao.insertAll(inserts);
+                }
+                for (PendingPhrase write : batch){
+                    if (!write.isNew){
+                        Phrase phrase = write.phrase;
+                        mPhraseDao.update(phrase.getId(), phrase.getPhrase(), phrase.getLatitude(), phrase.getLongitude(), phrase.getAltitude(), phrase.getAccuracy(), phrase.getAddress());
+                    }
+                }
+            });
+        } catch (Exception e){
+            e.printStackTrace();
+            flushFailed(batch);
+            return;
+        }
+        retryDelayMs = 0;
+
+        long latency = System.currentTimeMillis() - start;
+        flushCount++;
+        lastFlushLatencyMs = latency;
+        maxFlushLatencyMs = Math.max(maxFlushLatencyMs, latency);
+        lastBatchSize = batch.size();
+        maxBatchSizeSeen = Math.max(maxBatchSizeSeen, batch.size());
+    }
+
+    //put a batch that didn't get written back in front of whatever was queued since, and try again later
+    private void flushFailed(List<PendingPhrase> batch){
+        flushFailures++;
+        retryDelayMs = (retryDelayMs == 0) ? maxFlushDelayMs : Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+        boolean scheduleRetry = false;
+        int pendingCount;
+        synchronized (pending) {
+            Map<Long, PendingPhrase> newer = new LinkedHashMap<>(pending);
+            pending.clear();
+            for (PendingPhrase write : batch){
+                long id = write.phrase.getId();
+                PendingPhrase newerWrite = newer.remove(id);
+                if (newerWrite == null){
+                    pending.put(id, write);
+                } else if (write.isNew && !newerWrite.isNew){
+                    //still an insert, an update only has the new text and location so the rest comes from the failed insert
+                    Phrase newerPhrase = newerWrite.phrase;
+                    pending.put(id, new PendingPhrase(copy(write.phrase, newerPhrase.getPhrase(), newerPhrase.getLocation(), newerPhrase.getAddress()), true));
+                } else {
+                    pending.put(id, newerWrite);
+                }
+            }
+            pending.putAll(newer);
+            pendingCount = pending.size();
+            if (!closed && !flushScheduled){
+                flushScheduled = true;
+                scheduleRetry = true;
+            }
+        }
+        if (closed){
+            Log.d(TAG, "Flush failed after close, " + pendingCount + " phrase writes not saved");
+        } else if (scheduleRetry){
+            Log.d(TAG, "Flush of " + batch.size() + " phrase writes failed (" + flushFailures + " failures), retrying in " + retryDelayMs + "ms");
+            writeExecutor.schedule(this::flushPending, retryDelayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Write everything pending now, without waiting for it. */
+    public void flush(){
+        writeExecutor.execute(this::flushPending);
+    }
+
+    /** Write everything pending and stop. Blocks until the writes are done, so call it on shutdown only. */
+    public void close(){
+        synchronized (PhraseWriteBehindStore.class) {
+            if (myself == this){
+                myself = null;
+            }
+        }
+        closed = true;
+        try {
+            writeExecutor.submit(this::flushPending).get(5, TimeUnit.SECONDS);
+        } catch (TimeoutException e){
+            Log.d(TAG, "Timed out writing pending phrases on close");
+        } catch (InterruptedException | ExecutionException e){
+            e.printStackTrace();
+        }
+        Log.d(TAG, "Closed. " + writes.get() + " phrase writes, " + coalescedWrites.get() + " coalesced, " + flushCount + " flushes, " + flushFailures + " failed flushes, max flush latency " + maxFlushLatencyMs + "ms, max batch " + maxBatchSizeSeen);
+    }
+
+    public void setFlushSettings(int maxBatchSize, int maxFlushDelayMs){
+        this.maxBatchSize = maxBatchSize;
+        this.maxFlushDelayMs = maxFlushDelayMs;
+    }
+
+    //METRICS
+
+    public long getWriteCount(){
+        return writes.get();
+    }
+
+    /** Writes that replaced a pending write of the same phrase, so never hit the database. */
+    public long getCoalescedWriteCount(){
+        return coalescedWrites.get();
+    }
+
+    public long getFlushCount(){
+        return flushCount;
+    }
+
+    public long getLastFlushLatencyMs(){
+        return lastFlushLatencyMs;
+    }
+
+    public long getMaxFlushLatencyMs(){
+        return maxFlushLatencyMs;
+    }
+
+    public int getLastBatchSize(){
+        return lastBatchSize;
+    }
+
+    public int getMaxBatchSize(){
+        return maxBatchSizeSeen;
+    }
+
+    /** Flushes whose transaction failed, their writes were put back and retried. */
+    public long getFlushFailureCount(){
+        return flushFailures;
+    }
+}
@@ -13,8 +13,6 @@ import java.util.Date;
 
 import java.util.List;
 
-import com.smartglassesmanager.androidsmartphone.database.phrase.Phrase;
-
 @Dao
 public interface VoiceCommandDao {
 
@@ -48,19 +46,15 @@ public interface VoiceCommandDao {
     @Query("SELECT * from VoiceCommandTable WHERE commandName=:commandName AND isMaster=:isMaster AND argKey = :argKey AND argValue = :argValue ORDER BY timestamp DESC")
     LiveData<List<VoiceCommandEntity>> getVoiceCommands(String commandName, boolean isMaster, String argKey, String argValue);
 
-    @Query("SELECT * FROM PhraseTable WHERE id IN (" +
-        "SELECT transcriptId from VoiceCommandTable WHERE commandName=:commandName AND isMaster=:isMaster" +
-    ") ORDER BY timestamp DESC")
-    LiveData<List<Phrase>> getVoiceCommandPhrases(String commandName, boolean isMaster);
+    //the transcripts themselves are looked up through PhraseRepository, they may have been archived out of PhraseTable
+
+    @Query("SELECT transcriptId from VoiceCommandTable WHERE commandName=:commandName AND isMaster=:isMaster ORDER BY timestamp DESC")
+    LiveData<List<Long>> getVoiceCommandTranscriptIds(String commandName, boolean isMaster);
 
-    @Query("SELECT * FROM PhraseTable WHERE id IN (" +
-            "SELECT transcriptId from VoiceCommandTable WHERE commandName=:commandName AND isMaster=:isMaster" +
-            ") ORDER BY timestamp DESC")
-    List<Phrase> getVoiceCommandPhrasesSnapshot(String commandName, boolean isMaster);
+    @Query("SELECT transcriptId from VoiceCommandTable WHERE commandName=:commandName AND isMaster=:isMaster ORDER BY timestamp DESC")
+    List<Long> getVoiceCommandTranscriptIdsSnapshot(String commandName, boolean isMaster);
 
-    @Query("SELECT * FROM PhraseTable WHERE id IN (" +
-        "SELECT transcriptId from VoiceCommandTable WHERE commandName=:commandName AND isMaster=:isMaster AND argKey=:argKey AND argValue=:argValue" +
-    ") ORDER BY timestamp DESC")
-    LiveData<List<Phrase>> getVoiceCommandPhrases(String commandName, boolean isMaster, String argKey, String argValue);
+    @Query("SELECT transcriptId from VoiceCommandTable WHERE commandName=:commandName AND isMaster=:isMaster AND argKey=:argKey AND argValue=:argValue ORDER BY timestamp DESC")
+    LiveData<List<Long>> getVoiceCommandTranscriptIds(String commandName, boolean isMaster, String argKey, String argValue);
 
 }
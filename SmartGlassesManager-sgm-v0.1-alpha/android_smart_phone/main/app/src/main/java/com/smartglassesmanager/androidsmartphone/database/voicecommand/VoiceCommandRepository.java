@@ -7,28 +7,31 @@ package com.smartglassesmanager.androidsmartphone.database.voicecommand;
 import android.app.Application;
 
 import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.Transformations;
 
 import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.lang.InterruptedException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import com.smartglassesmanager.androidsmartphone.database.phrase.Phrase;
+import com.smartglassesmanager.androidsmartphone.database.phrase.PhraseRepository;
 
+import com.smartglassesmanager.androidsmartphone.database.BaseRepository;
 import com.smartglassesmanager.androidsmartphone.database.WearableAiRoomDatabase;
 
-public class VoiceCommandRepository {
+public class VoiceCommandRepository extends BaseRepository {
 
     private VoiceCommandDao mVoiceCommandDao;
     private LiveData<List<VoiceCommandEntity>> mAllVoiceCommands;
+    private PhraseRepository mPhraseRepository;
 
     public VoiceCommandRepository(Application application) {
         WearableAiRoomDatabase db = WearableAiRoomDatabase.getDatabase(application);
         mVoiceCommandDao = db.voiceCommandDao();
         mAllVoiceCommands = mVoiceCommandDao.getAllVoiceCommands();
+        mPhraseRepository = new PhraseRepository(application);
     }
 
     public void destroy(){
@@ -43,32 +46,21 @@ public class VoiceCommandRepository {
 //        return mVoiceCommandDao.getAllVoiceCommandsSnapshot();
 //    }
 
-    public List<VoiceCommandEntity> getAllVoiceCommandsSnapshot() throws ExecutionException, InterruptedException {
-
-        Callable<List<VoiceCommandEntity>> callable = new Callable<List<VoiceCommandEntity>>() {
-            @Override
-            public List<VoiceCommandEntity> call() throws Exception {
-                return mVoiceCommandDao.getAllVoiceCommandsSnapshot();
-            }
-        };
+    public CompletableFuture<List<VoiceCommandEntity>> getAllVoiceCommandsAsync() {
+        return read("VoiceCommandDao.getAllVoiceCommandsSnapshot", () -> mVoiceCommandDao.getAllVoiceCommandsSnapshot());
+    }
 
-        Future<List<VoiceCommandEntity>> future = Executors.newSingleThreadExecutor().submit(callable);
+    public List<VoiceCommandEntity> getAllVoiceCommandsSnapshot() throws ExecutionException, InterruptedException {
+        return getAllVoiceCommandsAsync().get();
+    }
 
-        return future.get();
+    public CompletableFuture<Long> insertAsync(VoiceCommandEntity voiceCommand) {
+        return write("VoiceCommandDao.insert", () -> mVoiceCommandDao.insert(voiceCommand));
     }
 
     public long insert(VoiceCommandEntity voiceCommand) {
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
-        Callable<Long> insertCallable = () -> mVoiceCommandDao.insert(voiceCommand);
-        Future<Long> future = executorService.submit(insertCallable);
-        long rowId = 0;
-        try{
-            rowId = future.get();
-        }
-        catch (InterruptedException | ExecutionException e){
-            e.printStackTrace();
-        }
-        return rowId;
+        Long rowId = getOrNull(insertAsync(voiceCommand));
+        return (rowId == null) ? 0 : rowId;
     }
 
     public LiveData<VoiceCommandEntity> getVoiceCommand(int id) {
@@ -80,31 +72,40 @@ public class VoiceCommandRepository {
 //    }
 
     public LiveData<List<Phrase>> getVoiceCommandPhrases(String commandName, boolean isMaster) {
-        return mVoiceCommandDao.getVoiceCommandPhrases(commandName, isMaster);
+        return Transformations.switchMap(mVoiceCommandDao.getVoiceCommandTranscriptIds(commandName, isMaster), this::getTranscripts);
     }
 
-    public List<Phrase> getVoiceCommandPhrasesSnapshot(String commandName, boolean isMaster) {
-
-        Callable<List<Phrase>> callable = new Callable<List<Phrase>>() {
-            @Override
-            public List<Phrase> call() throws Exception {
-                return mVoiceCommandDao.getVoiceCommandPhrasesSnapshot(commandName, isMaster);
-            }
-        };
+    public CompletableFuture<List<Phrase>> getVoiceCommandPhrasesAsync(String commandName, boolean isMaster) {
+        return read("VoiceCommandDao.getVoiceCommandTranscriptIdsSnapshot", () -> mVoiceCommandDao.getVoiceCommandTranscriptIdsSnapshot(commandName, isMaster))
+                .thenCompose(this::getTranscriptsAsync);
+    }
 
-        Future<List<Phrase>> future = Executors.newSingleThreadExecutor().submit(callable);
+    public List<Phrase> getVoiceCommandPhrasesSnapshot(String commandName, boolean isMaster) {
+        return getOrNull(getVoiceCommandPhrasesAsync(commandName, isMaster));
+    }
 
-        try {
-            return future.get();
-        } catch (InterruptedException | ExecutionException e){
-            e.printStackTrace();
-        }
+    public LiveData<List<Phrase>> getVoiceCommandPhrases(String commandName, boolean isMaster, String argKey, String argValue) {
+        return Transformations.switchMap(mVoiceCommandDao.getVoiceCommandTranscriptIds(commandName, isMaster, argKey, argValue), this::getTranscripts);
+    }
 
-        return null;
+    //the transcripts go through PhraseRepository, not a join on PhraseTable, so ones that were archived are still found
+    private CompletableFuture<List<Phrase>> getTranscriptsAsync(List<Long> transcriptIds) {
+        return mPhraseRepository.getPhrasesAsync(transcriptIds).thenApply(phrases -> {
+            phrases.sort((a, b) -> Long.compare(b.getTimestamp(), a.getTimestamp()));
+            return phrases;
+        });
     }
 
-    public LiveData<List<Phrase>> getVoiceCommandPhrases(String commandName, boolean isMaster, String argKey, String argValue) {
-        return mVoiceCommandDao.getVoiceCommandPhrases(commandName, isMaster, argKey, argValue);
+    private LiveData<List<Phrase>> getTranscripts(List<Long> transcriptIds) {
+        MutableLiveData<List<Phrase>> transcripts = new MutableLiveData<>();
+        getTranscriptsAsync(transcriptIds).whenComplete((phrases, error) -> {
+            if (error != null) {
+                error.printStackTrace();
+                return;
+            }
+            transcripts.postValue(phrases);
+        });
+        return transcripts;
     }
 
     public LiveData<List<VoiceCommandEntity>> getVoiceCommands(String commandName, boolean isMaster) {
@@ -115,18 +116,12 @@ public class VoiceCommandRepository {
         return mVoiceCommandDao.getVoiceCommands(commandName, isMaster, argKey, argValue);
     }
 
-    public VoiceCommandEntity getLatestCommand(String command) throws ExecutionException, InterruptedException {
-
-        Callable<VoiceCommandEntity> callable = new Callable<VoiceCommandEntity>() {
-            @Override
-            public VoiceCommandEntity call() throws Exception {
-                return mVoiceCommandDao.getLatestCommand(command);
-            }
-        };
-
-        Future<VoiceCommandEntity> future = Executors.newSingleThreadExecutor().submit(callable);
+    public CompletableFuture<VoiceCommandEntity> getLatestCommandAsync(String command) {
+        return read("VoiceCommandDao.getLatestCommand", () -> mVoiceCommandDao.getLatestCommand(command));
+    }
 
-        return future.get();
+    public VoiceCommandEntity getLatestCommand(String command) throws ExecutionException, InterruptedException {
+        return getLatestCommandAsync(command).get();
     }
 
 }
@@ -1,9 +1,52 @@
 package com.smartglassesmanager.androidsmartphone.eventbusmessages;
 
+import com.smartglassesmanager.androidsmartphone.comms.AudioFrameProtocol;
+
+import java.nio.ByteBuffer;
+
+//the audio in this event still belongs to whoever posted it and gets reused as soon as post() returns,
+//so subscribers must run on the posting thread and copy what they need (e.g. into a PcmRingBuffer) before returning
 public class AudioChunkNewEvent {
-    public byte [] thisChunk;
+    //16 bit PCM samples, set by the local microphone
+    public short [] thisChunkSamples;
+    public int thisChunkLength;
+
+    //encoded bytes from the ASG binary audio stream, thisChunkSampleFormat says which AudioCodec decodes them
+    public ByteBuffer thisChunkBytes;
+    public byte thisChunkSampleFormat;
+
+    public AudioChunkNewEvent(){
+    }
+
+    public AudioChunkNewEvent(short [] thisChunkSamples, int thisChunkLength){
+        setSamples(thisChunkSamples, thisChunkLength);
+    }
+
+    public AudioChunkNewEvent(ByteBuffer thisChunkBytes){
+        setBytes(thisChunkBytes);
+    }
+
+    public AudioChunkNewEvent(ByteBuffer thisChunkBytes, byte thisChunkSampleFormat){
+        setBytes(thisChunkBytes, thisChunkSampleFormat);
+    }
+
+    //producers reuse a single event so the audio path doesn't allocate per chunk
+    public AudioChunkNewEvent setSamples(short [] thisChunkSamples, int thisChunkLength){
+        this.thisChunkSamples = thisChunkSamples;
+        this.thisChunkLength = thisChunkLength;
+        this.thisChunkBytes = null;
+        return this;
+    }
+
+    public AudioChunkNewEvent setBytes(ByteBuffer thisChunkBytes){
+        return setBytes(thisChunkBytes, AudioFrameProtocol.SAMPLE_FORMAT_PCM_16BIT_LE_16KHZ);
+    }
 
-    public AudioChunkNewEvent(byte [] thisChunk){
-        this.thisChunk = thisChunk;
+    public AudioChunkNewEvent setBytes(ByteBuffer thisChunkBytes, byte thisChunkSampleFormat){
+        this.thisChunkBytes = thisChunkBytes;
+        this.thisChunkSampleFormat = thisChunkSampleFormat;
+        this.thisChunkSamples = null;
+        this.thisChunkLength = 0;
+        return this;
     }
 }
@@ -0,0 +1,15 @@
+package com.smartglassesmanager.androidsmartphone.eventbusmessages;
+
+//a transcript from the command grammar recognizer, only for the voice command server - it's what the grammar made of
+//what was said, so it isn't saved or shown as a transcript
+public class CommandTranscriptEvent {
+    public String text;
+    public long timestamp;
+    public boolean isFinal;
+
+    public CommandTranscriptEvent(String text, long timestamp, boolean isFinal){
+        this.text = text;
+        this.timestamp = timestamp;
+        this.isFinal = isFinal;
+    }
+}
@@ -0,0 +1,12 @@
+package com.smartglassesmanager.androidsmartphone.eventbusmessages;
+
+import java.util.ArrayList;
+
+//everything that can be said while we're waiting for a voice command: command phrases, arg options and end words. Posted sticky whenever the commands change
+public class VoiceCommandGrammarEvent {
+    public ArrayList<String> phrases;
+
+    public VoiceCommandGrammarEvent(ArrayList<String> phrases){
+        this.phrases = phrases;
+    }
+}
@@ -0,0 +1,9 @@
+package com.smartglassesmanager.androidsmartphone.eventbusmessages;
+
+public class VoiceCommandPhaseEvent {
+    public boolean waitingForCommand; //true once a wake word is heard, false when the command is run, cancelled, or wants natural language
+
+    public VoiceCommandPhaseEvent(boolean waitingForCommand){
+        this.waitingForCommand = waitingForCommand;
+    }
+}
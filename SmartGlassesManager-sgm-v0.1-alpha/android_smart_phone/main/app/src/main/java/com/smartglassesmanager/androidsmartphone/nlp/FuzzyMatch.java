@@ -3,6 +3,7 @@ package com.smartglassesmanager.androidsmartphone.nlp;
 public class FuzzyMatch {
     private int index;
     private double similarity;
+    private int length; //how much of the incoming string matched
     private String incomingString;
     private String toFindString;
 
@@ -28,6 +29,14 @@ public class FuzzyMatch {
     }
 
 
+    public int getLength() {
+        return length;
+    }
+
+    public void setLength(int length) {
+        this.length = length;
+    }
+
     public String getToFindString() {
         return toFindString;
     }
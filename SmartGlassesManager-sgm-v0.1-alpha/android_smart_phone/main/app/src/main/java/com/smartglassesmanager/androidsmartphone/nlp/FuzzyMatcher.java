@@ -0,0 +1,269 @@
+package com.smartglassesmanager.androidsmartphone.nlp;
+
+import java.util.Arrays;
+
+/**
+ * Finds where a short phrase (wake word, command, end word) best matches inside a transcript: the Jaro-Winkler
+ * similarity of the phrase against every window of the transcript the same length as the phrase, best (first) one wins.
+ *
+ * Scores are the same as info.debatty JaroWinkler.similarity(window, phrase), down to its float rounding, so this is a
+ * drop in for the substring loop NlpUtils.findNearMatches used to run. What's different is the cost:
+ * - windows are views into one reused char[] of the transcript, and the match flags are reused scratch arrays, so once
+ *   they've grown to the longest transcript/phrase nothing is allocated per window or per call
+ * - a window can't have more Jaro matches than characters it shares with the phrase, and that count is kept up to date
+ *   as the window slides one character. Windows whose best possible score can't beat the best so far (or the threshold)
+ *   are skipped without being scored
+ * - the result is kept in primitive fields (offset, length, score) instead of a result object
+ *
+ * Not thread safe, use one per thread.
+ */
+public class FuzzyMatcher {
+    //the character counts are kept per bucket (char mod BUCKETS), collisions only make the bound looser
+    private static final int BUCKETS = 128;
+    //float rounding in the real score vs the bound
+    private static final double BOUND_SLACK = 1e-6;
+    //from JaroWinkler: the Winkler prefix bonus is only given above this Jaro score
+    private static final double WINKLER_THRESHOLD = 0.7;
+    private static final double WINKLER_COEFFICIENT = 0.1;
+
+    /** A phrase to find, compiled once. Trailing whitespace is dropped, like findNearMatches always did. */
+    public static class Pattern {
+        private final String text;
+        private final char [] chars;
+        private final int [] counts = new int[BUCKETS];
+
+        private Pattern(String text){
+            this.text = text;
+            this.chars = text.toCharArray();
+            for (char c : chars){
+                counts[c % BUCKETS]++;
+            }
+        }
+
+        public String getText(){
+            return text;
+        }
+
+        public int length(){
+            return chars.length;
+        }
+    }
+
+    //scratch, grown as needed
+    private char [] text = new char[256];
+    private boolean [] windowFlags = new boolean[32];
+    private boolean [] patternFlags = new boolean[32];
+    private final int [] windowCounts = new int[BUCKETS];
+
+    //last result
+    private int offset = -1;
+    private int length = 0;
+    private double score = -1;
+
+    //metrics
+    private long windowsScored = 0;
+    private long windowsSkipped = 0;
+
+    public static Pattern compile(String toFind){
+        int end = toFind.length();
+        while (end > 0 && isRegexSpace(toFind.charAt(end - 1))){
+            end--;
+        }
+        return new Pattern(toFind.substring(0, end));
+    }
+
+    //what \s matches
+    private static boolean isRegexSpace(char c){
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Find the phrase in the transcript. A space is added to the end of the transcript first, like findNearMatches
+     * always did. True if the best match scores above the threshold, see getOffset/getLength/getScore.
+     */
+    public boolean find(String incoming, Pattern pattern, double threshold){
+        int textLength = incoming.length() + 1;
+        if (text.length < textLength){
+            text = new char[Math.max(textLength, text.length * 2)];
+        }
+        incoming.getChars(0, incoming.length(), text, 0);
+        text[textLength - 1] = ' ';
+        return find(text, textLength, pattern, threshold);
+    }
+
+    /** Find the phrase in the first textLength chars of text, as is. */
+    public boolean find(char [] text, int textLength, Pattern pattern, double threshold){
+        return find(text, 0, textLength, pattern, threshold, -1);
+    }
+
+    /**
+     * Find the phrase in the windows of the first textLength chars of text that start at from or later, only counting
+     * windows that score above toBeat. Lets a caller carry on a search from where it left off, with the best score it
+     * had so far, and get the same first best match as searching the whole text at once.
+     */
+    public boolean find(char [] text, int from, int textLength, Pattern pattern, double threshold, double toBeat){
+        char [] chars = pattern.chars;
+        int n = chars.length;
+        offset = -1;
+        length = n;
+        score = toBeat;
+        int windows = textLength - from - n + 1;
+        if (windows > 0 && n == 0){
+            //an empty phrase is equal to the first (empty) window
+            if (1 > toBeat){
+                offset = from;
+                score = 1;
+            }
+        } else if (windows > 0){
+            if (windowFlags.length < n){
+                windowFlags = new boolean[n * 2];
+                patternFlags = new boolean[n * 2];
+            }
+            int [] patternCounts = pattern.counts;
+            Arrays.fill(windowCounts, 0);
+            //how many chars the window shares with the phrase
+            int shared = 0;
+            for (int k = from; k < from + n; k++){
+                int bucket = text[k] % BUCKETS;
+                if (windowCounts[bucket] < patternCounts[bucket]){
+                    shared++;
+                }
+                windowCounts[bucket]++;
+            }
+            double winklerCoefficient = Math.min(WINKLER_COEFFICIENT, 1.0 / n);
+
+            for (int i = from; i < from + windows; i++){
+                if (i > from){
+                    int out = text[i - 1] % BUCKETS;
+                    windowCounts[out]--;
+                    if (windowCounts[out] < patternCounts[out]){
+                        shared--;
+                    }
+                    int in = text[i + n - 1] % BUCKETS;
+                    if (windowCounts[in] < patternCounts[in]){
+                        shared++;
+                    }
+                    windowCounts[in]++;
+                }
+
+                //a window has to beat the best so far to replace it, and the threshold to matter at all
+                double bar = Math.max(score, threshold);
+                if (upperBound(text, i, chars, shared, winklerCoefficient) + BOUND_SLACK < bar){
+                    windowsSkipped++;
+                    continue;
+                }
+                windowsScored++;
+                double windowScore = similarity(text, i, chars);
+                if (windowScore > score){
+                    offset = i;
+                    score = windowScore;
+                    if (score >= 1){
+                        break; //nothing scores higher
+                    }
+                }
+            }
+        }
+        if (offset != -1){
+            //a match in the added space at the end is at the end of the transcript
+            offset = Math.min(offset, textLength - 1);
+        }
+        return offset != -1 && score > threshold;
+    }
+
+    //the most the window at start could score if all the chars it shares with the phrase were Jaro matches, with no
+    //transpositions. The Winkler step only goes up with the Jaro score, so it's a bound on that too
+    private static double upperBound(char [] text, int start, char [] chars, int shared, double winklerCoefficient){
+        if (shared == 0){
+            return 0;
+        }
+        int n = chars.length;
+        double jaro = (2.0 * shared / n + 1) / 3 + BOUND_SLACK;
+        if (jaro > WINKLER_THRESHOLD){
+            int prefix = 0;
+            while (prefix < n && text[start + prefix] == chars[prefix]){
+                prefix++;
+            }
+            jaro = jaro + winklerCoefficient * prefix * (1 - jaro);
+        }
+        return jaro;
+    }
+
+    //JaroWinkler.similarity(window, phrase) for the window at start, both n chars long. Same arithmetic, in the same
+    //order and precision, as the library (which does the Jaro part in floats)
+    private double similarity(char [] text, int start, char [] chars){
+        int n = chars.length;
+        int range = Math.max(n / 2 - 1, 0);
+        for (int x = 0; x < n; x++){
+            patternFlags[x] = false;
+        }
+        int matches = 0;
+        for (int mi = 0; mi < n; mi++){
+            char c = text[start + mi];
+            windowFlags[mi] = false;
+            for (int xi = Math.max(mi - range, 0), xn = Math.min(mi + range + 1, n); xi < xn; xi++){
+                if (!patternFlags[xi] && c == chars[xi]){
+                    windowFlags[mi] = true;
+                    patternFlags[xi] = true;
+                    matches++;
+                    break;
+                }
+            }
+        }
+        if (matches == 0){
+            return 0;
+        }
+        int prefix = 0;
+        while (prefix < n && text[start + prefix] == chars[prefix]){
+            prefix++;
+        }
+        if (prefix == n){
+            return 1; //equal
+        }
+        //matched chars in window order vs matched chars in phrase order
+        int transpositions = 0;
+        for (int mi = 0, xi = 0; mi < n; mi++){
+            if (windowFlags[mi]){
+                while (!patternFlags[xi]){
+                    xi++;
+                }
+                if (text[start + mi] != chars[xi]){
+                    transpositions++;
+                }
+                xi++;
+            }
+        }
+
+        float m = matches;
+        double jaro = ((m / n + m / n + (m - transpositions / 2) / m)) / 3;
+        double jaroWinkler = jaro;
+        if (jaro > WINKLER_THRESHOLD){
+            jaroWinkler = jaro + Math.min(WINKLER_COEFFICIENT, 1.0 / n) * prefix * (1 - jaro);
+        }
+        return jaroWinkler;
+    }
+
+    /** Where the best match starts in the transcript, -1 if the phrase is longer than the transcript. */
+    public int getOffset(){
+        return offset;
+    }
+
+    /** Length of the best match, which is the length of the phrase. */
+    public int getLength(){
+        return length;
+    }
+
+    /** Similarity of the best match, 0 to 1. */
+    public double getScore(){
+        return score;
+    }
+
+    //METRICS
+
+    public long getWindowsScored(){
+        return windowsScored;
+    }
+
+    public long getWindowsSkipped(){
+        return windowsSkipped;
+    }
+}
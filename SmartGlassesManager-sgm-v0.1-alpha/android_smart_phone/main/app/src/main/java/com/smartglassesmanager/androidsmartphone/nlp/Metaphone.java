@@ -0,0 +1,214 @@
+package com.smartglassesmanager.androidsmartphone.nlp;
+
+/**
+ * Metaphone (Lawrence Philips' original rules, close to what Apache Commons Codec does) phonetic keys, so words that
+ * sound the same but are spelled differently ("harken", "harkin", "hearken") get the same key.
+ *
+ * A few changes for matching what ASR heard:
+ * - every letter in the range is encoded as one word, spaces and anything else that isn't a letter are skipped, so a
+ *   word ASR split up ("a roar a" for "aurora") gets the same key as the word
+ * - a vowel at the start is always coded as A, the way Double Metaphone does it
+ * - the key is packed into a long (up to MAX_CODES codes, 5 bits each) instead of a String, so nothing is allocated
+ *
+ * Not thread safe, use one per thread.
+ */
+public class Metaphone {
+    public static final int MAX_CODES = 12;
+    //codes, each one's index + 1 is what's packed into the key. 0 is theta (TH)
+    private static final String CODES = "ABFHJKLMNPRSTWXY0";
+
+    //scratch, the letters being encoded, uppercase
+    private char [] word = new char[32];
+    private int length;
+
+    private long key;
+    private int codes;
+
+    /** Key for all the letters in the string. */
+    public long encode(String text){
+        return encode(text.toCharArray(), 0, text.length());
+    }
+
+    /** Key for all the letters in text[from, to), 0 if there aren't any. */
+    public long encode(char [] text, int from, int to){
+        length = 0;
+        for (int i = from; i < to; i++){
+            char c = Character.toUpperCase(text[i]);
+            if (c >= 'A' && c <= 'Z'){
+                if (length == word.length){
+                    char [] grown = new char[length * 2];
+                    System.arraycopy(word, 0, grown, 0, length);
+                    word = grown;
+                }
+                word[length++] = c;
+            }
+        }
+        key = 0;
+        codes = 0;
+        if (length == 0){
+            return 0;
+        }
+
+        //the start of the word
+        int n = 0;
+        int vowelAt = 0; //a vowel is only coded if it's the first letter
+        if (length > 1){
+            char first = word[0];
+            char second = word[1];
+            if ((first == 'A' && second == 'E') || ((first == 'G' || first == 'K' || first == 'P') && second == 'N') || (first == 'W' && second == 'R')){
+                //AE, GN, KN, PN, WR: the first letter is silent
+                n = 1;
+                vowelAt = 1;
+            } else if (first == 'W' && second == 'H'){
+                code('W');
+                n = 2;
+                vowelAt = -1;
+            }
+        }
+        if (n == 0 && word[0] == 'X'){
+            code('S');
+            n = 1;
+            vowelAt = -1;
+        }
+
+        for (; n < length && codes < MAX_CODES; n++){
+            char c = word[n];
+            //double letters sound like one, except C (ACCENT)
+            if (c != 'C' && n > 0 && word[n - 1] == c){
+                continue;
+            }
+            switch (c){
+                case 'A':
+                case 'E':
+                case 'I':
+                case 'O':
+                case 'U':
+                    if (n == vowelAt){
+                        code('A');
+                    }
+                    break;
+                case 'B':
+                    //silent in -MB at the end (DUMB)
+                    if (!(n == length - 1 && n > 0 && word[n - 1] == 'M')){
+                        code('B');
+                    }
+                    break;
+                case 'C':
+                    if (at(n + 1, 'I') && at(n + 2, 'A')){
+                        code('X'); //CIA
+                    } else if (at(n - 1, 'S') && isFrontVowel(n + 1)){
+                        //silent in SCI, SCE, SCY
+                    } else if (isFrontVowel(n + 1)){
+                        code('S');
+                    } else if (at(n - 1, 'S') && at(n + 1, 'H')){
+                        code('K'); //SCH
+                    } else if (at(n + 1, 'H')){
+                        //CH, but K at the start before a consonant (CHRIST)
+                        code((n == 0 && n + 2 < length && !isVowel(n + 2)) ? 'K' : 'X');
+                    } else {
+                        code('K');
+                    }
+                    break;
+                case 'D':
+                    if (at(n + 1, 'G') && isFrontVowel(n + 2)){
+                        code('J'); //DGE, DGI, DGY
+                        n += 2;
+                    } else {
+                        code('T');
+                    }
+                    break;
+                case 'G':
+                    if (at(n + 1, 'H') && (n + 2 >= length || !isVowel(n + 2))){
+                        break; //silent GH at the end or before a consonant (NIGHT)
+                    }
+                    if (n > 0 && at(n + 1, 'N')){
+                        break; //silent in GN (SIGN, ASSIGNMENT)
+                    }
+                    code((isFrontVowel(n + 1) && !at(n - 1, 'G')) ? 'J' : 'K');
+                    break;
+                case 'H':
+                    //silent at the end, after a letter it changes the sound of, or when no vowel follows
+                    if (n < length - 1 && !(n > 0 && "CSPTG".indexOf(word[n - 1]) >= 0) && isVowel(n + 1)){
+                        code('H');
+                    }
+                    break;
+                case 'K':
+                    if (!at(n - 1, 'C')){
+                        code('K');
+                    }
+                    break;
+                case 'P':
+                    code(at(n + 1, 'H') ? 'F' : 'P');
+                    break;
+                case 'Q':
+                    code('K');
+                    break;
+                case 'S':
+                    if (at(n + 1, 'H') || (at(n + 1, 'I') && (at(n + 2, 'O') || at(n + 2, 'A')))){
+                        code('X'); //SH, SIO, SIA
+                    } else {
+                        code('S');
+                    }
+                    break;
+                case 'T':
+                    if (at(n + 1, 'I') && (at(n + 2, 'O') || at(n + 2, 'A'))){
+                        code('X'); //TIO, TIA
+                    } else if (at(n + 1, 'H')){
+                        code('0');
+                    } else if (!(at(n + 1, 'C') && at(n + 2, 'H'))){
+                        code('T'); //silent in TCH
+                    }
+                    break;
+                case 'V':
+                    code('F');
+                    break;
+                case 'W':
+                case 'Y':
+                    if (n + 1 < length && isVowel(n + 1)){
+                        code(c);
+                    }
+                    break;
+                case 'X':
+                    code('K');
+                    code('S');
+                    break;
+                case 'Z':
+                    code('S');
+                    break;
+                default:
+                    //F, J, L, M, N, R
+                    code(c);
+                    break;
+            }
+        }
+        return key;
+    }
+
+    private void code(char c){
+        if (codes < MAX_CODES){
+            key = (key << 5) | (CODES.indexOf(c) + 1);
+            codes++;
+        }
+    }
+
+    private boolean at(int i, char c){
+        return i >= 0 && i < length && word[i] == c;
+    }
+
+    private boolean isVowel(int i){
+        return i >= 0 && i < length && "AEIOU".indexOf(word[i]) >= 0;
+    }
+
+    private boolean isFrontVowel(int i){
+        return i >= 0 && i < length && "EIY".indexOf(word[i]) >= 0;
+    }
+
+    /** A key as its codes, for logging. */
+    public static String toString(long key){
+        StringBuilder codes = new StringBuilder();
+        for (; key != 0; key >>>= 5){
+            codes.insert(0, CODES.charAt((int) (key & 31) - 1));
+        }
+        return codes.toString();
+    }
+}
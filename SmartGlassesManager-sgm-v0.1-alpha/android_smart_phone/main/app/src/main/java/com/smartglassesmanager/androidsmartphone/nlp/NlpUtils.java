@@ -1,6 +1,8 @@
 package com.smartglassesmanager.androidsmartphone.nlp;
 
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.content.Context;
 import android.util.Pair;
@@ -9,14 +11,16 @@ import android.util.Pair;
 import io.reactivex.rxjava3.subjects.PublishSubject;
 import org.json.JSONObject;
 
-//fuzzy string matching
-import info.debatty.java.stringsimilarity.*;
-
 public class NlpUtils {
     private static final String TAG = "WearableIntelligenceSystem_NlpUtils";
 
-    private static JaroWinkler jw ;
+    //wake words, commands and end words are compiled once, anything past this many isn't cached
+    private static final int MAX_CACHED_PATTERNS = 512;
+
     private static Context context;
+    private final Map<String, FuzzyMatcher.Pattern> patterns = new ConcurrentHashMap<>();
+    //fuzzy matching, Jaro-Winkler over every window of the transcript. Its scratch buffers are reused, so one per thread
+    private final ThreadLocal<FuzzyMatcher> matchers = ThreadLocal.withInitial(FuzzyMatcher::new);
     
     private static NlpUtils myself;
 
@@ -25,30 +29,27 @@ public class NlpUtils {
 
     public NlpUtils(Context context){
         this.context = context;
-        jw = new JaroWinkler();//probably should change this to somethings else. A failure, for example, is that the strings {effective memory : affective memory} have similiarity of 0.85, but strings {fective memory : affective memory} have similirity of 0.96 ... not great
+        //probably should change Jaro-Winkler to somethings else. A failure, for example, is that the strings {effective memory : affective memory} have similiarity of 0.85, but strings {fective memory : affective memory} have similirity of 0.96 ... not great
     }
 
-    public FuzzyMatch findNearMatches(String incomingString, String toFindString, double threshold){
-        //int extraChars = 2; //some small number of chars before and after string in case the fuzzy match and what appears in trancript aren't exactly the same length
-        //for (int i = 0; i < (incomingString.length() - toFindString.length() - extraChars); i++) {
-        int highestIndex = -1;
-        double lowestSimilarity = -1d;
-        toFindString = toFindString.replaceAll("\\s+$", ""); //replace any leading/trailing spaces
-        incomingString = incomingString + " "; //add a couple spaces to the end for comparison
-        for (int i = 0; i <= (incomingString.length() - toFindString.length()); i++) {
-            //String substring = incomingString.substring(i, i + toFindString.length() + extraChars);
-            String substring = incomingString.substring(i, i + toFindString.length());
-            double similarity = jw.similarity(substring, toFindString);
-            if (similarity > lowestSimilarity){
-                highestIndex = i;
-                lowestSimilarity = similarity;
+    private FuzzyMatcher.Pattern getPattern(String toFindString){
+        FuzzyMatcher.Pattern pattern = patterns.get(toFindString);
+        if (pattern == null){
+            pattern = FuzzyMatcher.compile(toFindString);
+            if (patterns.size() < MAX_CACHED_PATTERNS){
+                patterns.put(toFindString, pattern);
             }
         }
+        return pattern;
+    }
 
-        //return highest match
-        if (lowestSimilarity > threshold){
-            FuzzyMatch match = new FuzzyMatch(Math.min(highestIndex, incomingString.length()-1), lowestSimilarity);
-            match.setToFindString(toFindString);
+    public FuzzyMatch findNearMatches(String incomingString, String toFindString, double threshold){
+        //the best window of the transcript (plus a space at the end) the length of toFindString, see FuzzyMatcher
+        FuzzyMatcher matcher = matchers.get();
+        FuzzyMatcher.Pattern pattern = getPattern(toFindString);
+        if (matcher.find(incomingString, pattern, threshold)){
+            FuzzyMatch match = new FuzzyMatch(matcher.getOffset(), matcher.getScore());
+            match.setToFindString(pattern.getText());
             return match; //if the match was found in the spaces at the end, only return the last index of the input string
         } else{
             return null;
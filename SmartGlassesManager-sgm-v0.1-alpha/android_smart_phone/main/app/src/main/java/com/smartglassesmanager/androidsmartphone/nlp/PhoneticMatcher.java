@@ -0,0 +1,284 @@
+package com.smartglassesmanager.androidsmartphone.nlp;
+
+import java.util.Arrays;
+
+/**
+ * Finds phrases (wake words, commands) that ASR heard by sound but spelled differently ("harkin", "a roar a"), which
+ * the spelling based fuzzy match can miss. Use it as a fallback for phrases StreamingPhraseMatcher didn't find.
+ *
+ * Each phrase gets a Metaphone key of all its letters run together, and there's a hash table from key to phrases. For
+ * each token in the transcript, the key of that token and the next few (ASR splits words up) is looked up in the table,
+ * which is a handful of lookups per token however many phrases there are. A hit is only a match if the phrase also
+ * fuzzy matches somewhere in the hit's text at the threshold, a lower bar than spelling alone because the sounds already
+ * agree.
+ *
+ * Like StreamingPhraseMatcher, each update only looks at the tokens after where the transcript changed, so ASR going
+ * back and changing the last few words only costs those words.
+ *
+ * Not thread safe.
+ */
+public class PhoneticMatcher {
+    //most extra tokens ASR splits a phrase into ("a roar a" for "aurora")
+    private static final int MAX_EXTRA_TOKENS = 2;
+
+    private final Metaphone metaphone = new Metaphone();
+    private final FuzzyMatcher matcher = new FuzzyMatcher();
+    private final double threshold;
+
+    //per phrase
+    private final FuzzyMatcher.Pattern [] patterns;
+    //longest phrase, in tokens and chars
+    private final int maxTokens;
+    private final int maxLength;
+
+    //phonetic key -> phrases with it, open addressing, a key of 0 is an empty slot
+    private final long [] keys;
+    private final int [][] postings;
+    private final int mask;
+
+    //the transcript so far, with room for the space findNearMatches adds to the end, and its tokens
+    private char [] text = new char[256];
+    private int length = 0;
+    private int [] tokenStarts = new int[64];
+    private int [] tokenEnds = new int[64];
+    private int tokenCount = 0;
+
+    //every hit that's a match, in token order
+    private int [] hitTokens = new int[8];
+    private int [] hitPhrases = new int[8];
+    private int [] hitOffsets = new int[8];
+    private int [] hitEnds = new int[8];
+    private double [] hitScores = new double[8];
+    private int hitCount = 0;
+
+    //per phrase, for the transcript as of the last update
+    private final int [] offsets;
+    private final int [] ends;
+    private final double [] scores;
+
+    //metrics
+    private long updates = 0;
+    private long lookups = 0;
+    private long keyHits = 0;
+    private long matches = 0;
+
+    public PhoneticMatcher(String [] phrases, double threshold){
+        this.threshold = threshold;
+        int n = phrases.length;
+        patterns = new FuzzyMatcher.Pattern[n];
+        offsets = new int[n];
+        ends = new int[n];
+        scores = new double[n];
+        long [] phraseKeys = new long[n];
+        int tokens = 1;
+        int longest = 0;
+        for (int k = 0; k < n; k++){
+            patterns[k] = FuzzyMatcher.compile(phrases[k]);
+            phraseKeys[k] = metaphone.encode(phrases[k]);
+            tokens = Math.max(tokens, phrases[k].trim().split("\\s+").length);
+            longest = Math.max(longest, patterns[k].length());
+            offsets[k] = -1;
+            ends[k] = -1;
+            scores[k] = -1;
+        }
+        maxTokens = tokens + MAX_EXTRA_TOKENS;
+        maxLength = longest;
+
+        int capacity = Integer.highestOneBit(Math.max(16, n * 2) - 1) << 1;
+        keys = new long[capacity];
+        postings = new int[capacity][];
+        mask = capacity - 1;
+        for (int k = 0; k < n; k++){
+            if (phraseKeys[k] == 0){
+                continue; //no letters, nothing to sound like
+            }
+            int slot = hash(phraseKeys[k]) & mask;
+            while (keys[slot] != 0 && keys[slot] != phraseKeys[k]){
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = phraseKeys[k];
+            postings[slot] = (postings[slot] == null) ? new int[] {k} : append(postings[slot], k);
+        }
+    }
+
+    /** Match the phrases against the transcript, only looking at the tokens after where it changed since the last one. */
+    public void update(String transcript){
+        int newLength = transcript.length();
+        int stable = 0;
+        int sameLength = Math.min(length, newLength);
+        while (stable < sameLength && text[stable] == transcript.charAt(stable)){
+            stable++;
+        }
+
+        //tokens that are the same, and so is the char after them
+        int keptTokens = 0;
+        while (keptTokens < tokenCount && tokenEnds[keptTokens] < stable){
+            keptTokens++;
+        }
+        //hits starting from a token before this only looked at text that's the same: all their tokens are kept, and
+        //the fuzzy match didn't go past them by more than a phrase
+        int firstChangedHit = Math.max(0, keptTokens - maxTokens + 1);
+        while (firstChangedHit > 0 && tokenStarts[firstChangedHit - 1] + maxLength > stable){
+            firstChangedHit--;
+        }
+        while (hitCount > 0 && hitTokens[hitCount - 1] >= firstChangedHit){
+            hitCount--;
+        }
+
+        if (text.length < newLength + 1){
+            text = Arrays.copyOf(text, Math.max(newLength + 1, text.length * 2));
+        }
+        transcript.getChars(stable, newLength, text, stable);
+        length = newLength;
+        text[length] = ' ';
+        tokenCount = keptTokens;
+        tokenize((tokenCount == 0) ? 0 : tokenEnds[tokenCount - 1]);
+
+        for (int t = firstChangedHit; t < tokenCount; t++){
+            findHits(t);
+        }
+
+        Arrays.fill(offsets, -1);
+        Arrays.fill(ends, -1);
+        Arrays.fill(scores, -1);
+        for (int h = 0; h < hitCount; h++){
+            int k = hitPhrases[h];
+            if (hitScores[h] > scores[k]){
+                offsets[k] = hitOffsets[h];
+                ends[k] = hitEnds[h];
+                scores[k] = hitScores[h];
+            }
+        }
+        updates++;
+    }
+
+    private void tokenize(int from){
+        int i = from;
+        while (i < length){
+            while (i < length && Character.isWhitespace(text[i])){
+                i++;
+            }
+            if (i == length){
+                break;
+            }
+            int start = i;
+            while (i < length && !Character.isWhitespace(text[i])){
+                i++;
+            }
+            if (tokenCount == tokenStarts.length){
+                tokenStarts = Arrays.copyOf(tokenStarts, tokenCount * 2);
+                tokenEnds = Arrays.copyOf(tokenEnds, tokenCount * 2);
+            }
+            tokenStarts[tokenCount] = start;
+            tokenEnds[tokenCount] = i;
+            tokenCount++;
+        }
+    }
+
+    //look up the sound of the tokens from t on, one token, then two, ...
+    private void findHits(int t){
+        int start = tokenStarts[t];
+        for (int last = t; last < tokenCount && last < t + maxTokens; last++){
+            int end = tokenEnds[last];
+            lookups++;
+            int [] phrases = lookup(metaphone.encode(text, start, end));
+            if (phrases == null){
+                continue;
+            }
+            keyHits++;
+            for (int k : phrases){
+                //fuzzy match the phrase in the hit's text, plus the space after it, and if the hit is shorter than the
+                //phrase, enough of what comes after it to fit
+                int regionEnd = Math.min(length + 1, Math.max(end + 1, start + patterns[k].length()));
+                if (matcher.find(text, start, regionEnd, patterns[k], threshold, -1)){
+                    addHit(t, k, matcher.getOffset(), end, matcher.getScore());
+                }
+            }
+        }
+    }
+
+    private int [] lookup(long key){
+        if (key == 0){
+            return null;
+        }
+        int slot = hash(key) & mask;
+        while (keys[slot] != 0){
+            if (keys[slot] == key){
+                return postings[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    private void addHit(int token, int k, int offset, int end, double score){
+        if (hitCount == hitTokens.length){
+            int size = hitCount * 2;
+            hitTokens = Arrays.copyOf(hitTokens, size);
+            hitPhrases = Arrays.copyOf(hitPhrases, size);
+            hitOffsets = Arrays.copyOf(hitOffsets, size);
+            hitEnds = Arrays.copyOf(hitEnds, size);
+            hitScores = Arrays.copyOf(hitScores, size);
+        }
+        hitTokens[hitCount] = token;
+        hitPhrases[hitCount] = k;
+        hitOffsets[hitCount] = offset;
+        hitEnds[hitCount] = end;
+        hitScores[hitCount] = score;
+        hitCount++;
+        matches++;
+    }
+
+    private static int hash(long key){
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int [] append(int [] ids, int id){
+        int [] appended = Arrays.copyOf(ids, ids.length + 1);
+        appended[ids.length] = id;
+        return appended;
+    }
+
+    /** If the k-th phrase sounded like something in the last transcript. */
+    public boolean isMatch(int k){
+        return offsets[k] != -1;
+    }
+
+    /** Where the k-th phrase's match starts in the transcript, -1 if it didn't match. */
+    public int getOffset(int k){
+        return offsets[k];
+    }
+
+    /** Where the k-th phrase's match ends, the end of the last token that sounded like it. */
+    public int getEnd(int k){
+        return ends[k];
+    }
+
+    public double getScore(int k){
+        return scores[k];
+    }
+
+    public int size(){
+        return patterns.length;
+    }
+
+    //METRICS
+
+    public long getUpdateCount(){
+        return updates;
+    }
+
+    public long getLookups(){
+        return lookups;
+    }
+
+    /** Lookups that found a phrase that sounds the same, whether or not it then fuzzy matched. */
+    public long getKeyHits(){
+        return keyHits;
+    }
+
+    public long getMatchCount(){
+        return matches;
+    }
+}
@@ -0,0 +1,207 @@
+package com.smartglassesmanager.androidsmartphone.nlp;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the fuzzy matches of some of a TrigramIndex's phrases up to date over a transcript that streams in, so each new
+ * partial transcript only costs the text that changed, not the whole buffer again.
+ *
+ * Each update gets the whole transcript, and only the part after where it stops agreeing with the last one (new words,
+ * or ASR changing its mind about the last few) is looked at:
+ * - the trigram Counter takes the changed trigrams out and puts the new ones in
+ * - each phrase keeps the running best matches it has found, in the order it found them, each one better than the one
+ *   before. Matches in windows that changed are dropped, which rolls the phrase back to its best match in the text
+ *   that's still the same, and it carries on searching from the last search it can't trust any more
+ * - phrases that aren't candidates aren't scored, they catch up on the windows they missed when they become one
+ *
+ * After an update, getOffset and getScore are what NlpUtils.findNearMatches would give for the phrases that are
+ * TrigramIndex candidates for the transcript, and no match for the rest.
+ *
+ * An update costs the changed text times the candidates, and the index's always candidates are candidates for every
+ * transcript, so it still grows with the number of phrases (about 11us a partial for 10 commands, 45us for 100, 325us
+ * for 1000, against 15us, 64us and 514us matching the whole transcript every time).
+ *
+ * Not thread safe.
+ */
+public class StreamingPhraseMatcher {
+    private final TrigramIndex.Counter trigrams;
+    private final FuzzyMatcher matcher = new FuzzyMatcher();
+
+    //per phrase
+    private final int [] ids;
+    private final FuzzyMatcher.Pattern [] patterns;
+    private final double [] thresholds;
+
+    //the transcript so far, with room for the space findNearMatches adds to the end
+    private char [] text = new char[256];
+    private int length = 0;
+
+    //per phrase: every window that starts before next, and is all inside the transcript, has been looked at. These are
+    //the best matches found in them, in order, each scoring higher than the one before, and where the search that
+    //found each one started (it only keeps the best of its windows, so dropping it means searching them again)
+    private final int [] next;
+    private final int [][] bestOffsets;
+    private final double [][] bestScores;
+    private final int [][] bestFroms;
+    private final int [] bestCounts;
+
+    //per phrase, for the transcript as of the last update
+    private final int [] offsets;
+    private final double [] scores;
+
+    //metrics
+    private long updates = 0;
+    private long charsKept = 0;
+    private long charsChanged = 0;
+
+    /** Match these phrases (ids from the index, which has to be built) as a transcript comes in. */
+    public StreamingPhraseMatcher(TrigramIndex index, int [] phraseIds){
+        trigrams = index.newCounter();
+        int n = phraseIds.length;
+        ids = phraseIds.clone();
+        patterns = new FuzzyMatcher.Pattern[n];
+        thresholds = new double[n];
+        next = new int[n];
+        bestOffsets = new int[n][2];
+        bestScores = new double[n][2];
+        bestFroms = new int[n][2];
+        bestCounts = new int[n];
+        offsets = new int[n];
+        scores = new double[n];
+        for (int k = 0; k < n; k++){
+            patterns[k] = FuzzyMatcher.compile(index.getPhrase(ids[k]));
+            thresholds[k] = index.getThreshold(ids[k]);
+            offsets[k] = -1;
+            scores[k] = -1;
+        }
+    }
+
+    /** Match the phrases against the transcript, only looking at the text after where it changed since the last one. */
+    public void update(String transcript){
+        int newLength = transcript.length();
+        int stable = 0;
+        int sameLength = Math.min(length, newLength);
+        while (stable < sameLength && text[stable] == transcript.charAt(stable)){
+            stable++;
+        }
+        rollBack(stable);
+
+        if (text.length < newLength + 1){
+            char [] grown = new char[Math.max(newLength + 1, text.length * 2)];
+            System.arraycopy(text, 0, grown, 0, stable);
+            text = grown;
+        }
+        transcript.getChars(stable, newLength, text, stable);
+        length = newLength;
+        text[length] = ' ';
+        for (int i = Math.max(0, stable - 2); i + 3 <= length; i++){
+            trigrams.add(text, i);
+        }
+
+        for (int k = 0; k < ids.length; k++){
+            match(k);
+        }
+        updates++;
+        charsKept += stable;
+        charsChanged += newLength - stable;
+    }
+
+    //forget everything from the first char that changed on
+    private void rollBack(int stable){
+        for (int i = Math.max(0, stable - 2); i + 3 <= length; i++){
+            trigrams.remove(text, i);
+        }
+        for (int k = 0; k < ids.length; k++){
+            //windows from here on had a char change
+            int firstChanged = Math.max(0, stable - patterns[k].length() + 1);
+            next[k] = Math.min(next[k], firstChanged);
+            while (bestCounts[k] > 0 && bestOffsets[k][bestCounts[k] - 1] >= firstChanged){
+                bestCounts[k]--;
+                next[k] = Math.min(next[k], bestFroms[k][bestCounts[k]]);
+            }
+        }
+    }
+
+    private void match(int k){
+        offsets[k] = -1;
+        scores[k] = -1;
+        if (!trigrams.isCandidate(ids[k])){
+            return;
+        }
+        FuzzyMatcher.Pattern pattern = patterns[k];
+        double threshold = thresholds[k];
+        int count = bestCounts[k];
+        double best = (count == 0) ? -1 : bestScores[k][count - 1];
+
+        //catch up on the windows that are all inside the transcript
+        int lastWindow = length - pattern.length();
+        if (next[k] <= lastWindow){
+            if (matcher.find(text, next[k], length, pattern, threshold, best)){
+                push(k, next[k], matcher.getOffset(), matcher.getScore());
+                best = matcher.getScore();
+            }
+            next[k] = lastWindow + 1;
+        }
+        if (bestCounts[k] > 0){
+            offsets[k] = bestOffsets[k][bestCounts[k] - 1];
+            scores[k] = best;
+        }
+
+        //the last window takes in the space at the end, it's a different window once more text comes in so it's
+        //never kept
+        if (lastWindow + 1 >= 0 && matcher.find(text, lastWindow + 1, length + 1, pattern, threshold, best)){
+            offsets[k] = matcher.getOffset();
+            scores[k] = matcher.getScore();
+        }
+    }
+
+    private void push(int k, int from, int offset, double score){
+        int count = bestCounts[k];
+        if (count == bestOffsets[k].length){
+            bestOffsets[k] = Arrays.copyOf(bestOffsets[k], count * 2);
+            bestScores[k] = Arrays.copyOf(bestScores[k], count * 2);
+            bestFroms[k] = Arrays.copyOf(bestFroms[k], count * 2);
+        }
+        bestOffsets[k][count] = offset;
+        bestScores[k][count] = score;
+        bestFroms[k][count] = from;
+        bestCounts[k]++;
+    }
+
+    /** If the k-th phrase (in the order the ids were given) matched the last transcript. */
+    public boolean isMatch(int k){
+        return offsets[k] != -1;
+    }
+
+    /** Where the k-th phrase's best match starts in the transcript, -1 if it didn't match. */
+    public int getOffset(int k){
+        return offsets[k];
+    }
+
+    public double getScore(int k){
+        return scores[k];
+    }
+
+    public int size(){
+        return ids.length;
+    }
+
+    //METRICS
+
+    public long getUpdateCount(){
+        return updates;
+    }
+
+    /** Chars of each transcript that were the same as the last one, so weren't looked at again. */
+    public long getCharsKept(){
+        return charsKept;
+    }
+
+    public long getCharsChanged(){
+        return charsChanged;
+    }
+
+    public long getWindowsScored(){
+        return matcher.getWindowsScored();
+    }
+}
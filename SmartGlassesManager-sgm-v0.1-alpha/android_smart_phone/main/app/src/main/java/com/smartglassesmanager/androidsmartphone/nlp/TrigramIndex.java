@@ -0,0 +1,308 @@
+package com.smartglassesmanager.androidsmartphone.nlp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A character trigram inverted index over a set of phrases (wake words, command phrases), to pick the few phrases
+ * worth fuzzy matching against a transcript before FuzzyMatcher scores them.
+ *
+ * Phrases and transcripts are lowercased for the index. A phrase is a candidate for a transcript if the transcript has
+ * at least getRequiredTrigrams of the phrase's distinct trigrams. That's a q-gram bound: a misheard, dropped, extra or
+ * swapped char breaks at most 4 of the phrase's trigrams, so a window that's maxMisses chars off the phrase still has
+ * (trigrams - 4 * maxMisses) of them, and maxMisses is the most Jaro-Winkler allows at the phrase's threshold. Phrases
+ * too short for that to leave any trigrams (wake words, most two word commands) are always candidates.
+ *
+ * Jaro counts chars that are close by as matches even when they're out of order, so it's not a proof, a window with
+ * a lot of its chars shuffled around can still score above the threshold with fewer trigrams. On typo heavy
+ * transcripts (misheard, dropped, extra and swapped chars) it hasn't changed a single match.
+ *
+ * Build it once per set of phrases with add/build, then query each new transcript and check isCandidate. Querying
+ * looks up each of the transcript's trigrams once, so its cost depends on the transcript and on how many phrases
+ * share its trigrams, not on how many phrases there are. Nothing is allocated per query. For a transcript that keeps
+ * growing, a Counter keeps the same candidates up to date as trigrams are added and taken away.
+ *
+ * That doesn't make matching flat in the number of phrases: the always candidates still get scored every time, and
+ * with short commands they're about half of them (856 of 1663 phrases for 1000 two to four word commands), so
+ * scoring still grows linearly with the command set, it's only cut by about a third. Tighter bounds (order
+ * insensitive trigrams, bigrams for short phrases, the phrase's first trigram for windows with a common prefix) got
+ * it down to a few hundred candidates, but every one of them lost real matches, so they aren't used.
+ *
+ * Not thread safe.
+ */
+public class TrigramIndex {
+    private final ArrayList<String> phrases = new ArrayList<>();
+    private final ArrayList<Double> thresholds = new ArrayList<>();
+    private boolean built = false;
+
+    //per phrase
+    private int [] required;
+    private boolean [] alwaysCandidate;
+
+    //trigram -> phrases with it, open addressing, a key of 0 is an empty slot
+    private long [] keys;
+    private int [][] postings;
+    private int mask;
+
+    //query scratch: a slot is only counted once per query, a phrase's count is only valid if its stamp is this query's
+    private int [] slotStamps;
+    private int [] counts;
+    private int [] countStamps;
+    private int stamp = 0;
+
+    //metrics
+    private int alwaysCandidates = 0;
+    private long queries = 0;
+    private long candidatesFound = 0;
+
+    /** Add a phrase that's matched at this similarity threshold. Returns its id, ids count up from 0. */
+    public int add(String phrase, double threshold){
+        if (built){
+            throw new IllegalStateException("TrigramIndex is already built");
+        }
+        phrases.add(phrase);
+        thresholds.add(threshold);
+        return phrases.size() - 1;
+    }
+
+    public void build(){
+        int n = phrases.size();
+        required = new int[n];
+        alwaysCandidate = new boolean[n];
+        counts = new int[n];
+        countStamps = new int[n];
+
+        //distinct trigrams per phrase
+        ArrayList<long []> phraseTrigrams = new ArrayList<>(n);
+        int totalTrigrams = 0;
+        for (int id = 0; id < n; id++){
+            String phrase = normalize(phrases.get(id));
+            long [] trigrams = distinctTrigrams(phrase);
+            phraseTrigrams.add(trigrams);
+            totalTrigrams += trigrams.length;
+            required[id] = trigrams.length - 4 * maxMisses(phrase.length(), thresholds.get(id));
+            alwaysCandidate[id] = required[id] <= 0;
+            if (alwaysCandidate[id]){
+                alwaysCandidates++;
+            }
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(16, totalTrigrams * 2) - 1) << 1;
+        keys = new long[capacity];
+        postings = new int[capacity][];
+        slotStamps = new int[capacity];
+        mask = capacity - 1;
+        //phrases that are always candidates never need counting, so they aren't in the postings
+        int [] postingSizes = new int[capacity];
+        for (int id = 0; id < n; id++){
+            if (alwaysCandidate[id]){
+                continue;
+            }
+            for (long key : phraseTrigrams.get(id)){
+                postingSizes[insertSlot(key)]++;
+            }
+        }
+        for (int slot = 0; slot < capacity; slot++){
+            if (keys[slot] != 0){
+                postings[slot] = new int[postingSizes[slot]];
+                postingSizes[slot] = 0;
+            }
+        }
+        for (int id = 0; id < n; id++){
+            if (alwaysCandidate[id]){
+                continue;
+            }
+            for (long key : phraseTrigrams.get(id)){
+                int slot = findSlot(key);
+                postings[slot][postingSizes[slot]++] = id;
+            }
+        }
+        built = true;
+    }
+
+    /**
+     * Most chars of a phrase this long a window can miss and still score above the threshold. Each miss takes 2/3n off
+     * the Jaro score, and a common prefix of up to 4 chars gives back up to 4 * min(0.1, 1/n) of what's lost.
+     */
+    static int maxMisses(int length, double threshold){
+        double prefixBonus = 4 * Math.min(0.1, 1.0 / length);
+        if (prefixBonus >= 1){
+            return length;
+        }
+        return (int) (1.5 * (1 - threshold) * length / (1 - prefixBonus));
+    }
+
+    /** Work out the candidates for this transcript, see isCandidate. */
+    public void query(String text){
+        if (!built){
+            throw new IllegalStateException("TrigramIndex isn't built");
+        }
+        stamp++;
+        queries++;
+        for (int i = 0; i + 3 <= text.length(); i++){
+            int slot = findSlot(key(Character.toLowerCase(text.charAt(i)), Character.toLowerCase(text.charAt(i + 1)), Character.toLowerCase(text.charAt(i + 2))));
+            if (slot < 0 || slotStamps[slot] == stamp){
+                continue;
+            }
+            slotStamps[slot] = stamp;
+            for (int id : postings[slot]){
+                if (countStamps[id] != stamp){
+                    countStamps[id] = stamp;
+                    counts[id] = 0;
+                }
+                counts[id]++;
+                if (counts[id] == required[id]){
+                    candidatesFound++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Candidates for a text that changes a bit at a time, the same ones query would give for the whole text. Add each
+     * trigram as it comes in and remove it when it's taken back out. Not thread safe, and only for the index it came
+     * from (build the index again, make new Counters).
+     */
+    public class Counter {
+        //how many times each trigram is in the text, and how many distinct trigrams each phrase has in it
+        private final int [] slotCounts = new int[keys.length];
+        private final int [] phraseCounts = new int[required.length];
+
+        /** Add the trigram at text[start], if it's in any phrase. */
+        public void add(char [] text, int start){
+            int slot = findSlot(text, start);
+            if (slot >= 0 && slotCounts[slot]++ == 0){
+                for (int id : postings[slot]){
+                    phraseCounts[id]++;
+                }
+            }
+        }
+
+        /** Take out the trigram at text[start], which has to have been added. */
+        public void remove(char [] text, int start){
+            int slot = findSlot(text, start);
+            if (slot >= 0 && --slotCounts[slot] == 0){
+                for (int id : postings[slot]){
+                    phraseCounts[id]--;
+                }
+            }
+        }
+
+        public void clear(){
+            Arrays.fill(slotCounts, 0);
+            Arrays.fill(phraseCounts, 0);
+        }
+
+        public boolean isCandidate(int id){
+            return alwaysCandidate[id] || phraseCounts[id] >= required[id];
+        }
+    }
+
+    public Counter newCounter(){
+        if (!built){
+            throw new IllegalStateException("TrigramIndex isn't built");
+        }
+        return new Counter();
+    }
+
+    /** If the phrase could match the last transcript queried, so it's worth scoring. */
+    public boolean isCandidate(int id){
+        return alwaysCandidate[id] || (countStamps[id] == stamp && counts[id] >= required[id]);
+    }
+
+    public int size(){
+        return phrases.size();
+    }
+
+    public String getPhrase(int id){
+        return phrases.get(id);
+    }
+
+    public double getThreshold(int id){
+        return thresholds.get(id);
+    }
+
+    public int getRequiredTrigrams(int id){
+        return required[id];
+    }
+
+    public boolean isAlwaysCandidate(int id){
+        return alwaysCandidate[id];
+    }
+
+    //METRICS
+
+    /** Phrases that are scored against every transcript, matching cost grows with these. */
+    public int getAlwaysCandidateCount(){
+        return alwaysCandidates;
+    }
+
+    public long getQueryCount(){
+        return queries;
+    }
+
+    /** Average candidates per query, not counting the phrases that are always candidates. */
+    public double getAverageCandidates(){
+        return (queries == 0) ? 0 : (double) candidatesFound / queries;
+    }
+
+    //HELPERS
+
+    //what FuzzyMatcher matches: lowercase, without the trailing whitespace
+    private static String normalize(String phrase){
+        return FuzzyMatcher.compile(phrase).getText().toLowerCase();
+    }
+
+    private static long [] distinctTrigrams(String phrase){
+        long [] trigrams = new long[Math.max(0, phrase.length() - 2)];
+        int count = 0;
+        for (int i = 0; i + 3 <= phrase.length(); i++){
+            long key = key(phrase.charAt(i), phrase.charAt(i + 1), phrase.charAt(i + 2));
+            boolean seen = false;
+            for (int k = 0; k < count && !seen; k++){
+                seen = trigrams[k] == key;
+            }
+            if (!seen){
+                trigrams[count++] = key;
+            }
+        }
+        long [] distinct = new long[count];
+        System.arraycopy(trigrams, 0, distinct, 0, count);
+        return distinct;
+    }
+
+    //never 0, that's an empty slot
+    private static long key(char a, char b, char c){
+        return (1L << 48) | ((long) a << 32) | ((long) b << 16) | c;
+    }
+
+    private static int hash(long key){
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int insertSlot(long key){
+        int slot = hash(key) & mask;
+        while (keys[slot] != 0 && keys[slot] != key){
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        return slot;
+    }
+
+    private int findSlot(char [] text, int start){
+        return findSlot(key(Character.toLowerCase(text[start]), Character.toLowerCase(text[start + 1]), Character.toLowerCase(text[start + 2])));
+    }
+
+    //-1 if the trigram isn't in any phrase
+    private int findSlot(long key){
+        int slot = hash(key) & mask;
+        while (keys[slot] != 0){
+            if (keys[slot] == key){
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+}
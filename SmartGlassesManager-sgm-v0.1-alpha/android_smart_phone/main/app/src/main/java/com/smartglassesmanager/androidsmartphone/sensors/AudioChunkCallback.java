@@ -1,7 +1,6 @@
 package com.smartglassesmanager.androidsmartphone.sensors;
 
-import java.nio.ByteBuffer;
-
 public interface AudioChunkCallback{
-    void onSuccess(ByteBuffer chunk);
-}
\ No newline at end of file
+    //chunk is reused by the recorder as soon as this returns
+    void onSuccess(short [] chunk, int length);
+}
@@ -0,0 +1,155 @@
+package com.smartglassesmanager.androidsmartphone.sensors;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
+import com.google.android.gms.location.LocationServices;
+
+/**
+ * Samples the phone's location on its own schedule and keeps the latest fix in memory, so the transcript pipeline
+ * can tag every utterance with a location without asking play services each time.
+ *
+ * The schedule adapts: while we're not moving, the time between fixes doubles (up to a few minutes), and as soon as a
+ * fix shows we moved, it drops back to the fastest rate. Each new fix also warms the reverse geocode cache, so the
+ * address is usually ready before anyone says anything there.
+ */
+public class LocationSampler {
+    private static final String TAG = "WearableAi_LocationSampler";
+
+    public static final long MIN_INTERVAL_MS = 15 * 1000;
+    public static final long MAX_INTERVAL_MS = 5 * 60 * 1000;
+    //moving less than this between fixes counts as standing still
+    private static final float STATIONARY_DISTANCE_M = 30;
+
+    private static LocationSampler myself;
+
+    private final FusedLocationProviderClient fusedLocationClient;
+    private final ReverseGeocodeCache addressCache;
+
+    private volatile Location latestLocation;
+    //where we were when we last moved, main thread only
+    private Location anchorLocation;
+    private long intervalMs = MIN_INTERVAL_MS;
+    private boolean started = false;
+
+    //metrics
+    private volatile long fixCount = 0;
+
+    private final LocationCallback locationCallback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult locationResult) {
+            Location location = locationResult.getLastLocation();
+            if (location != null) {
+                onNewLocation(location);
+            }
+        }
+    };
+
+    private LocationSampler(Context context){
+        Context appContext = context.getApplicationContext();
+        fusedLocationClient = LocationServices.getFusedLocationProviderClient(appContext);
+        addressCache = new ReverseGeocodeCache(appContext);
+    }
+
+    /** Make the sampler, called by the service that owns it. Until it's destroyed, getInstance gives back this one. */
+    public static synchronized LocationSampler create(Context context){
+        if (myself == null){
+            myself = new LocationSampler(context);
+        }
+        return myself;
+    }
+
+    /** The sampler the service made, null before it's made or after it's destroyed, so callers never revive one. */
+    public static synchronized LocationSampler getInstance(){
+        return myself;
+    }
+
+    /** Start sampling. Call on the main thread, fixes are delivered on it. */
+    public void start(){
+        if (started){
+            return;
+        }
+        started = true;
+        try {
+            //start from whatever play services already has, so the first utterances aren't missing a location
+            fusedLocationClient.getLastLocation().addOnSuccessListener(location -> {
+                if (location != null && latestLocation == null) {
+                    onNewLocation(location);
+                }
+            });
+        } catch (SecurityException e){
+            Log.d(TAG, "No location permission, not sampling location");
+            started = false;
+            return;
+        }
+        requestUpdates();
+    }
+
+    private void requestUpdates(){
+        LocationRequest request = LocationRequest.create()
+                .setPriority(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY)
+                .setInterval(intervalMs)
+                .setFastestInterval(MIN_INTERVAL_MS);
+        try {
+            fusedLocationClient.removeLocationUpdates(locationCallback);
+            fusedLocationClient.requestLocationUpdates(request, locationCallback, Looper.getMainLooper());
+        } catch (SecurityException e){
+            Log.d(TAG, "No location permission, not sampling location");
+        }
+    }
+
+    private void onNewLocation(Location location){
+        latestLocation = location;
+        fixCount++;
+        addressCache.prefetch(location.getLatitude(), location.getLongitude());
+
+        long newIntervalMs;
+        if (anchorLocation == null || anchorLocation.distanceTo(location) > STATIONARY_DISTANCE_M){
+            anchorLocation = location;
+            newIntervalMs = MIN_INTERVAL_MS;
+        } else {
+            newIntervalMs = Math.min(intervalMs * 2, MAX_INTERVAL_MS);
+        }
+        if (newIntervalMs != intervalMs){
+            Log.d(TAG, "Location sample interval " + intervalMs + "ms -> " + newIntervalMs + "ms");
+            intervalMs = newIntervalMs;
+            if (started){
+                requestUpdates();
+            }
+        }
+    }
+
+    /** The latest fix, from memory. Null if we don't have one yet. */
+    public Location getLatestLocation(){
+        return latestLocation;
+    }
+
+    public ReverseGeocodeCache getAddressCache(){
+        return addressCache;
+    }
+
+    public long getIntervalMs(){
+        return intervalMs;
+    }
+
+    public long getFixCount(){
+        return fixCount;
+    }
+
+    public void destroy(){
+        started = false;
+        fusedLocationClient.removeLocationUpdates(locationCallback);
+        addressCache.destroy();
+        synchronized (LocationSampler.class){
+            if (myself == this){
+                myself = null;
+            }
+        }
+    }
+}
@@ -14,8 +14,6 @@ import android.os.CountDownTimer;
 import android.os.Handler;
 import android.util.Log;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -254,21 +252,17 @@ public class MicrophoneLocalAndBluetooth {
         public void run() {
 //            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
             short[] short_buffer = new short[bufferSize];
-            ByteBuffer b_buffer = ByteBuffer.allocate(short_buffer.length * 2);
 
             while (recordingInProgress.get()) {
 //                    int result = recorder.read(buffer, BUFFER_SIZE);
                 // read the data into the buffer
                 int result = recorder.read(short_buffer, 0, short_buffer.length);
                 if (result < 0) {
-                    Log.d(TAG, "ERROR");
+                    Log.d(TAG, "ERROR: " + getBufferReadFailureReason(result));
+                    continue;
                 }
-                //convert short array to byte array
-                b_buffer.order(ByteOrder.LITTLE_ENDIAN);
-                b_buffer.asShortBuffer().put(short_buffer);
-                //send to audio system
-                mChunkCallback.onSuccess(b_buffer);
-                b_buffer.clear();
+                //send samples as is, the recognizer takes short [] so no byte conversion needed
+                mChunkCallback.onSuccess(short_buffer, result);
             }
         }
 
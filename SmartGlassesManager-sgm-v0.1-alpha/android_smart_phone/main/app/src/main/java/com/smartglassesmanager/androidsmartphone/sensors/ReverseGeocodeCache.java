@@ -0,0 +1,231 @@
+package com.smartglassesmanager.androidsmartphone.sensors;
+
+import android.content.Context;
+import android.location.Address;
+import android.location.Geocoder;
+import android.location.Location;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reverse geocodes locations to addresses, with an LRU cache keyed by geohash cell (~150m x 150m), so all the
+ * utterances said around the same place share one geocoder lookup.
+ *
+ * Lookups are slow (a network round trip) and can fail (no GMS, offline), so they only ever run on this class's
+ * background thread. The transcript pipeline only reads what's already cached with {@link #getCachedAddress}, and
+ * anything it misses is filled in later by the address backfill.
+ */
+public class ReverseGeocodeCache {
+    private static final String TAG = "WearableAi_ReverseGeocodeCache";
+
+    //7 characters is a ~153m x 153m cell, about a block
+    public static final int GEOHASH_PRECISION = 7;
+    private static final int MAX_CACHED_CELLS = 256;
+    private static final String GEOHASH_BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+    private final Geocoder geocoder;
+    private final boolean geocoderPresent;
+    private final ExecutorService geocodeExecutor = Executors.newSingleThreadExecutor();
+
+    //geohash -> address, least recently used first. Guarded by itself
+    private final Map<String, String> addresses = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_CELLS;
+        }
+    };
+    //cells with a lookup queued, so a burst of misses in one cell is one lookup
+    private final Set<String> lookupsQueued = ConcurrentHashMap.newKeySet();
+
+    //metrics
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong lookups = new AtomicLong(0);
+    private final AtomicLong failedLookups = new AtomicLong(0);
+
+    public ReverseGeocodeCache(Context context){
+        geocoder = new Geocoder(context, Locale.getDefault());
+        geocoderPresent = Geocoder.isPresent();
+        if (!geocoderPresent){
+            Log.d(TAG, "No geocoder on this device, addresses won't be filled in");
+        }
+    }
+
+    public boolean isAvailable(){
+        return geocoderPresent;
+    }
+
+    /** The address of the location's cell if we already have it, otherwise null and a lookup is queued. Never blocks. */
+    public String getCachedAddress(Location location){
+        if (location == null){
+            return null;
+        }
+        String cell = geohash(location.getLatitude(), location.getLongitude(), GEOHASH_PRECISION);
+        String address;
+        synchronized (addresses) {
+            address = addresses.get(cell);
+        }
+        if (address != null){
+            hits.incrementAndGet();
+            return address;
+        }
+        misses.incrementAndGet();
+        prefetch(location.getLatitude(), location.getLongitude());
+        return null;
+    }
+
+    /** Look up the address of a location's cell in the background, if it isn't cached. */
+    public void prefetch(double latitude, double longitude){
+        if (!geocoderPresent){
+            return;
+        }
+        String cell = geohash(latitude, longitude, GEOHASH_PRECISION);
+        synchronized (addresses) {
+            if (addresses.containsKey(cell)){
+                return;
+            }
+        }
+        if (lookupsQueued.add(cell)){
+            geocodeExecutor.execute(() -> {
+                resolve(latitude, longitude);
+                lookupsQueued.remove(cell);
+            });
+        }
+    }
+
+    /**
+     * The address of a location's cell, from the cache or the geocoder. Blocks on the geocoder, so only call it from
+     * a background thread, see {@link #getExecutor()}. Null if the lookup failed.
+     */
+    public String resolve(double latitude, double longitude){
+        String cell = geohash(latitude, longitude, GEOHASH_PRECISION);
+        synchronized (addresses) {
+            String address = addresses.get(cell);
+            if (address != null){
+                return address;
+            }
+        }
+        if (!geocoderPresent){
+            return null;
+        }
+
+        lookups.incrementAndGet();
+        try {
+            //look up the cell's center, so the cached address is the same whichever utterance asked first
+            double [] center = geohashCenter(cell);
+            List<Address> results = geocoder.getFromLocation(center[0], center[1], 1);
+            if (results == null || results.isEmpty() || results.get(0).getAddressLine(0) == null){
+                failedLookups.incrementAndGet();
+                return null;
+            }
+            String address = results.get(0).getAddressLine(0);
+            synchronized (addresses) {
+                addresses.put(cell, address);
+            }
+            return address;
+        } catch (IOException | IllegalArgumentException e){
+            e.printStackTrace();
+            failedLookups.incrementAndGet();
+            return null;
+        }
+    }
+
+    /** The thread lookups run on, for batch work that calls {@link #resolve}. */
+    public ExecutorService getExecutor(){
+        return geocodeExecutor;
+    }
+
+    public void destroy(){
+        geocodeExecutor.shutdownNow();
+    }
+
+    //GEOHASH
+
+    public static String geohash(double latitude, double longitude, int precision){
+        double minLat = -90, maxLat = 90;
+        double minLon = -180, maxLon = 180;
+        StringBuilder hash = new StringBuilder(precision);
+        boolean evenBit = true;
+        int bit = 0;
+        int ch = 0;
+        while (hash.length() < precision){
+            //bits alternate longitude, latitude, starting with longitude
+            if (evenBit){
+                double mid = (minLon + maxLon) / 2;
+                if (longitude >= mid){
+                    ch = (ch << 1) | 1;
+                    minLon = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLon = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (latitude >= mid){
+                    ch = (ch << 1) | 1;
+                    minLat = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLat = mid;
+                }
+            }
+            evenBit = !evenBit;
+            if (++bit == 5){
+                hash.append(GEOHASH_BASE32.charAt(ch));
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return hash.toString();
+    }
+
+    //{latitude, longitude} of the middle of a geohash cell
+    public static double [] geohashCenter(String hash){
+        double minLat = -90, maxLat = 90;
+        double minLon = -180, maxLon = 180;
+        boolean evenBit = true;
+        for (int i = 0; i < hash.length(); i++){
+            int ch = GEOHASH_BASE32.indexOf(hash.charAt(i));
+            for (int b = 4; b >= 0; b--){
+                boolean set = ((ch >> b) & 1) == 1;
+                if (evenBit){
+                    double mid = (minLon + maxLon) / 2;
+                    if (set) minLon = mid; else maxLon = mid;
+                } else {
+                    double mid = (minLat + maxLat) / 2;
+                    if (set) minLat = mid; else maxLat = mid;
+                }
+                evenBit = !evenBit;
+            }
+        }
+        return new double[] {(minLat + maxLat) / 2, (minLon + maxLon) / 2};
+    }
+
+    //METRICS
+
+    public long getHitCount(){
+        return hits.get();
+    }
+
+    public long getMissCount(){
+        return misses.get();
+    }
+
+    public long getLookupCount(){
+        return lookups.get();
+    }
+
+    public long getFailedLookupCount(){
+        return failedLookups.get();
+    }
+}
@@ -6,6 +6,7 @@ import android.os.HandlerThread;
 import android.os.StrictMode;
 import android.util.Log;
 
+import com.smartglassesmanager.androidsmartphone.R;
 import com.smartglassesmanager.androidsmartphone.comms.AspWebsocketServer;
 import com.smartglassesmanager.androidsmartphone.comms.AudioSystem;
 import com.smartglassesmanager.androidsmartphone.comms.MessageTypes;
@@ -152,6 +153,7 @@ public class AndroidSGC extends SmartGlassesCommunicator {
         //InetSocketAddress inetSockAddress = new InetSocketAddress(address);
         int port = 8887;
         asgWebSocket = new AspWebsocketServer(port);
+        asgWebSocket.setSecretKey(context.getResources().getString(R.string.key));
         asgWebSocket.setObservable(dataObservable);
         asgWebSocket.start();
         Log.d(TAG, "WebSocket Server STARTED");
@@ -0,0 +1,467 @@
+package com.smartglassesmanager.androidsmartphone.speechrecognition;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rolling on-disk history of the last N minutes of 16kHz 16 bit PCM, so "what was just said" can be read back
+ * after it was heard.
+ *
+ * The history is a fixed number of fixed size segment files, each memory mapped once. Segments are filled in order
+ * and the oldest is overwritten when we wrap. Each segment has a small header with a sparse timestamp index
+ * (sample offset -> capture time, about one entry a second plus one at every gap in the audio), so wall clock
+ * ranges can be found without scanning the audio.
+ *
+ * Writes are append only and batched on our own writer thread, which reads the shared decoded audio stream
+ * through a {@link PcmRingBuffer.Reader} - nothing is written on the recognizer threads or the audio producer.
+ * Reads can happen on any thread, see {@link #openRange(long, long)}.
+ */
+public class AudioHistoryRing {
+    private static final String TAG = "WearableAi_AudioHistoryRing";
+
+    public static final int SAMPLE_RATE = 16000;
+    public static final int DEFAULT_NUM_SEGMENTS = 30;
+    public static final int DEFAULT_SEGMENT_SECONDS = 60; //30 minutes of history, ~58MB on disk
+
+    //segment header layout (little endian, same as the samples)
+    //  int  magic
+    //  int  version
+    //  long generation - increases every time a segment is (re)started, 0 if never written
+    //  int  sample count
+    //  int  index entry count
+    //  index entries from INDEX_OFFSET: int sample offset, long capture time
+    private static final int MAGIC = 0x41485231; //"AHR1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4096;
+    private static final int GENERATION_OFFSET = 8;
+    private static final int SAMPLE_COUNT_OFFSET = 16;
+    private static final int INDEX_COUNT_OFFSET = 20;
+    private static final int INDEX_OFFSET = 64;
+    private static final int INDEX_ENTRY_SIZE = 12;
+    private static final int MAX_INDEX_ENTRIES = (HEADER_SIZE - INDEX_OFFSET) / INDEX_ENTRY_SIZE;
+
+    //sparse index - one entry a second, or whenever the capture time jumps away from where the samples say we are
+    private static final int INDEX_INTERVAL_SAMPLES = SAMPLE_RATE;
+    private static final long INDEX_GAP_MS = 250;
+
+    //how long the writer waits for audio before checking if it should stop
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    private final File dir;
+    private final int segmentSamples;
+    private final Segment [] segments;
+
+    //only touched by the writer thread, after open()
+    private int currentSegment = -1;
+    private long nextGeneration = 1;
+
+    private SpeechRecognizerHost host;
+    private PcmRingBuffer.Reader audioReader;
+    private WriterThread writerThread;
+
+    //metrics
+    private volatile long writtenSamples = 0;
+    private volatile long writeBatches = 0;
+
+    /** One segment file, mapped once. The header is mirrored in memory so readers never parse it. */
+    private static final class Segment {
+        final MappedByteBuffer map;
+        final ShortBuffer samples;
+        final int [] indexOffsets = new int[MAX_INDEX_ENTRIES];
+        final long [] indexTimes = new long[MAX_INDEX_ENTRIES];
+
+        //written by the writer thread only, the volatile writes publish the index entries/samples before them
+        volatile long generation;
+        volatile int sampleCount;
+        volatile int indexCount;
+
+        Segment(MappedByteBuffer map){
+            this.map = map;
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer data = map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            data.position(HEADER_SIZE);
+            this.samples = data.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        }
+
+        long getStartTime(){
+            return indexTimes[0];
+        }
+
+        //capture time of the sample just after the last one written
+        long getEndTime(){
+            int n = indexCount;
+            if (n == 0){
+                return 0;
+            }
+            return indexTimes[n - 1] + (long) (sampleCount - indexOffsets[n - 1]) * 1000 / SAMPLE_RATE;
+        }
+
+        //index of the sample captured at time, clamped to this segment
+        int timeToSample(long time){
+            int n = indexCount;
+            int count = sampleCount;
+            if (n == 0 || time <= indexTimes[0]){
+                return 0;
+            }
+            //last index entry at or before time
+            int lo = 0;
+            int hi = n - 1;
+            while (lo < hi){
+                int mid = (lo + hi + 1) >>> 1;
+                if (indexTimes[mid] <= time){
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            long sample = indexOffsets[lo] + (time - indexTimes[lo]) * SAMPLE_RATE / 1000;
+            int limit = (lo + 1 < n) ? indexOffsets[lo + 1] : count;
+            return (int) Math.min(sample, limit);
+        }
+    }
+
+    public AudioHistoryRing(File dir){
+        this(dir, DEFAULT_NUM_SEGMENTS, DEFAULT_SEGMENT_SECONDS);
+    }
+
+    public AudioHistoryRing(File dir, int numSegments, int segmentSeconds){
+        this.dir = dir;
+        this.segmentSamples = segmentSeconds * SAMPLE_RATE;
+        this.segments = new Segment[numSegments];
+    }
+
+    /** Map the segment files, creating them if needed, and load what's left from last time. */
+    public synchronized boolean open(){
+        if (!dir.exists() && !dir.mkdirs()){
+            Log.d(TAG, "Can't make audio history dir: " + dir.getPath());
+            return false;
+        }
+        long size = HEADER_SIZE + (long) segmentSamples * 2;
+        try {
+            for (int i = 0; i < segments.length; i++){
+                RandomAccessFile file = new RandomAccessFile(new File(dir, "segment_" + i + ".pcm"), "rw");
+                //the mapping stays valid after the channel is closed
+                FileChannel channel = file.getChannel();
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                channel.close();
+                file.close();
+                segments[i] = new Segment(map);
+                loadHeader(segments[i]);
+                if (segments[i].generation >= nextGeneration){
+                    nextGeneration = segments[i].generation + 1;
+                    currentSegment = i;
+                }
+            }
+        } catch (IOException e){
+            e.printStackTrace();
+            return false;
+        }
+        Log.d(TAG, "Opened audio history, " + segments.length + " segments of " + (segmentSamples / SAMPLE_RATE) + "s");
+        return true;
+    }
+
+    private void loadHeader(Segment segment){
+        MappedByteBuffer map = segment.map;
+        if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION){
+            segment.generation = 0;
+            return;
+        }
+        int indexCount = Math.min(map.getInt(INDEX_COUNT_OFFSET), MAX_INDEX_ENTRIES);
+        for (int i = 0; i < indexCount; i++){
+            segment.indexOffsets[i] = map.getInt(INDEX_OFFSET + i * INDEX_ENTRY_SIZE);
+            segment.indexTimes[i] = map.getLong(INDEX_OFFSET + i * INDEX_ENTRY_SIZE + 4);
+        }
+        segment.sampleCount = Math.min(map.getInt(SAMPLE_COUNT_OFFSET), segmentSamples);
+        segment.indexCount = indexCount;
+        segment.generation = map.getLong(GENERATION_OFFSET);
+    }
+
+    /** Start recording the host's decoded audio, {@link #open()} must have succeeded. */
+    public synchronized void start(SpeechRecognizerHost host){
+        if (writerThread != null || segments[0] == null){
+            return;
+        }
+        this.host = host;
+        audioReader = host.addAudioReader();
+        writerThread = new WriterThread();
+        writerThread.start();
+    }
+
+    /** Stop recording, everything already received is written out first. */
+    public synchronized void stop(){
+        if (writerThread == null){
+            return;
+        }
+        writerThread.shouldDie = true;
+        writerThread.interrupt();
+        try {
+            writerThread.join();
+        } catch (InterruptedException e){
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+        host.removeAudioReader(audioReader);
+        audioReader = null;
+
+        for (Segment segment : segments){
+            if (segment != null){
+                segment.map.force();
+            }
+        }
+    }
+
+    //WRITER
+
+    private final class WriterThread extends Thread {
+        volatile boolean shouldDie = false;
+
+        //expected capture time of the next sample, to spot gaps in the audio
+        private long expectedTime = 0;
+
+        WriterThread(){
+            super("AudioHistoryWriter");
+        }
+
+        @Override
+        public void run(){
+            PcmRingBuffer.Reader reader = audioReader;
+            while (!shouldDie){
+                try {
+                    //we're not a recognizer, never hold the shared audio back
+                    reader.shed();
+                    short [] frame = reader.acquire(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    if (frame == null){
+                        continue;
+                    }
+                    //batch - everything that's already waiting goes out with one header update
+                    Segment segment = null;
+                    do {
+                        segment = append(frame, reader.getAcquiredLength(), reader.getAcquiredCaptureTime(), segment);
+                        reader.release();
+                        frame = (reader.size() > 0) ? reader.acquire(0, TimeUnit.MILLISECONDS) : null;
+                    } while (frame != null);
+                    commitHeader(segment);
+                    writeBatches++;
+                } catch (InterruptedException e){
+                    if (!shouldDie){
+                        e.printStackTrace();
+                    }
+                    break;
+                }
+            }
+
+            //the interrupt may have cut a batch short
+            Segment segment = null;
+            try {
+                while (reader.size() > 0){
+                    short [] frame = reader.acquire(0, TimeUnit.MILLISECONDS);
+                    if (frame == null){
+                        break;
+                    }
+                    segment = append(frame, reader.getAcquiredLength(), reader.getAcquiredCaptureTime(), segment);
+                    reader.release();
+                }
+            } catch (InterruptedException e){
+                e.printStackTrace();
+            }
+            commitHeader(segment);
+        }
+
+        //copy a frame into the current segment, moving to the next segment when full. Returns the segment written to last
+        private Segment append(short [] frame, int length, long captureTime, Segment lastSegment){
+            //the frame's capture time is when the chunk arrived, so it starts length samples earlier
+            long frameStartTime = captureTime - (long) length * 1000 / SAMPLE_RATE;
+            int written = 0;
+            while (written < length){
+                Segment segment = (currentSegment >= 0) ? segments[currentSegment] : null;
+                if (segment == null || segment.generation == 0 || segment.sampleCount >= segmentSamples || segment.indexCount >= MAX_INDEX_ENTRIES){
+                    commitHeader(segment);
+                    segment = startNextSegment();
+                }
+                lastSegment = segment;
+
+                long sampleTime = frameStartTime + (long) written * 1000 / SAMPLE_RATE;
+                int count = segment.sampleCount;
+                int n = segment.indexCount;
+                boolean gap = Math.abs(sampleTime - expectedTime) > INDEX_GAP_MS;
+                if (n == 0 || gap || count - segment.indexOffsets[n - 1] >= INDEX_INTERVAL_SAMPLES){
+                    segment.indexOffsets[n] = count;
+                    segment.indexTimes[n] = sampleTime;
+                    segment.indexCount = n + 1;
+                }
+
+                int toWrite = Math.min(length - written, segmentSamples - count);
+                ShortBuffer out = segment.samples.duplicate();
+                out.position(count);
+                out.put(frame, written, toWrite);
+                segment.sampleCount = count + toWrite;
+                written += toWrite;
+                writtenSamples += toWrite;
+                expectedTime = sampleTime + (long) toWrite * 1000 / SAMPLE_RATE;
+            }
+            return lastSegment;
+        }
+
+        //reuse the oldest segment, bumping its generation so readers still on the old audio notice
+        private Segment startNextSegment(){
+            currentSegment = (currentSegment + 1) % segments.length;
+            Segment segment = segments[currentSegment];
+            segment.indexCount = 0;
+            segment.sampleCount = 0;
+            segment.generation = nextGeneration++;
+            MappedByteBuffer map = segment.map;
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putLong(GENERATION_OFFSET, segment.generation);
+            map.putInt(SAMPLE_COUNT_OFFSET, 0);
+            map.putInt(INDEX_COUNT_OFFSET, 0);
+            return segment;
+        }
+
+        //write the in memory header back to the file. The OS flushes the mapping, so this is just memory writes
+        private void commitHeader(Segment segment){
+            if (segment == null){
+                return;
+            }
+            MappedByteBuffer map = segment.map;
+            int n = segment.indexCount;
+            for (int i = map.getInt(INDEX_COUNT_OFFSET); i < n; i++){
+                map.putInt(INDEX_OFFSET + i * INDEX_ENTRY_SIZE, segment.indexOffsets[i]);
+                map.putLong(INDEX_OFFSET + i * INDEX_ENTRY_SIZE + 4, segment.indexTimes[i]);
+            }
+            map.putInt(SAMPLE_COUNT_OFFSET, segment.sampleCount);
+            map.putInt(INDEX_COUNT_OFFSET, n);
+        }
+    }
+
+    //READERS
+
+    /**
+     * Read back the audio captured between startTime and endTime (ms since epoch), oldest first. Gaps where no
+     * audio was captured are skipped. Audio that gets overwritten while we're reading it ends the range early.
+     */
+    public RangeReader openRange(long startTime, long endTime){
+        List<Segment> overlapping = new ArrayList<>();
+        for (Segment segment : segments){
+            if (segment == null || segment.generation == 0 || segment.indexCount == 0){
+                continue;
+            }
+            if (segment.getStartTime() < endTime && segment.getEndTime() > startTime){
+                overlapping.add(segment);
+            }
+        }
+        Collections.sort(overlapping, (a, b) -> Long.compare(a.generation, b.generation));
+        return new RangeReader(overlapping, startTime, endTime);
+    }
+
+    /** Streams a time range out of the history. Only one thread may use a range reader. */
+    public static class RangeReader {
+        private final List<Segment> segments;
+        private final long [] generations;
+        private final long startTime;
+        private final long endTime;
+        private int segmentIdx = -1;
+        private int position;
+        private int end;
+        private boolean overwritten = false;
+
+        private RangeReader(List<Segment> segments, long startTime, long endTime){
+            this.segments = segments;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            generations = new long[segments.size()];
+            for (int i = 0; i < generations.length; i++){
+                generations[i] = segments.get(i).generation;
+            }
+        }
+
+        /** Copy up to length samples into dst. Returns the number of samples copied, or -1 at the end of the range. */
+        public int read(short [] dst, int offset, int length){
+            while (segmentIdx < 0 || position >= end){
+                if (!nextSegment()){
+                    return -1;
+                }
+            }
+            Segment segment = segments.get(segmentIdx);
+            int n = Math.min(length, end - position);
+            ShortBuffer in = segment.samples.duplicate();
+            in.position(position);
+            in.get(dst, offset, n);
+            //seqlock style - if the writer took the segment over while we were copying, what we copied is garbage
+            if (segment.generation != generations[segmentIdx]){
+                overwritten = true;
+                segmentIdx = segments.size();
+                return -1;
+            }
+            position += n;
+            return n;
+        }
+
+        private boolean nextSegment(){
+            segmentIdx++;
+            if (segmentIdx >= segments.size()){
+                return false;
+            }
+            Segment segment = segments.get(segmentIdx);
+            if (segment.generation != generations[segmentIdx]){
+                overwritten = true;
+                segmentIdx = segments.size();
+                return false;
+            }
+            position = segment.timeToSample(startTime);
+            end = segment.timeToSample(endTime);
+            //the segment we're reading might still be being written, only read what was there when we got to it
+            end = Math.min(end, segment.sampleCount);
+            return true;
+        }
+
+        /** True if the range was cut short because the history wrapped around onto it. */
+        public boolean wasOverwritten(){
+            return overwritten;
+        }
+
+        public long getStartTime(){
+            return startTime;
+        }
+
+        public long getEndTime(){
+            return endTime;
+        }
+    }
+
+    //STATS
+
+    /** Capture time of the oldest audio still in the history, or 0 if it's empty. */
+    public long getOldestTime(){
+        long oldest = 0;
+        long oldestGeneration = Long.MAX_VALUE;
+        for (Segment segment : segments){
+            if (segment != null && segment.generation != 0 && segment.indexCount > 0 && segment.generation < oldestGeneration){
+                oldestGeneration = segment.generation;
+                oldest = segment.getStartTime();
+            }
+        }
+        return oldest;
+    }
+
+    public long getWrittenMs(){
+        return writtenSamples * 1000 / SAMPLE_RATE;
+    }
+
+    public long getWriteBatchCount(){
+        return writeBatches;
+    }
+}
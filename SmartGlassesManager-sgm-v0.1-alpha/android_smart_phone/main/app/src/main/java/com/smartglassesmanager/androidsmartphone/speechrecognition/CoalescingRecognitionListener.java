@@ -0,0 +1,168 @@
+package com.smartglassesmanager.androidsmartphone.speechrecognition;
+
+import android.os.Handler;
+
+import org.vosk.android.RecognitionListener;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sits between a recognizer thread and the listener on the main thread, so redundant partial results don't eat the
+ * main thread (each one is JSON parsing, a database update and two broadcasts downstream).
+ *
+ * - a partial identical to the last one is dropped
+ * - partials go through a latest-wins mailbox, if the main thread hasn't picked up the last one yet it's replaced, not queued
+ * - partials are delivered at most once per delivery interval
+ * - results, final results, errors and timeouts are always delivered, in order, and throw away any stale partial still waiting
+ * - a partial is never delivered ahead of the result before it, even if the main thread still has an older delivery queued
+ *
+ * The on* methods are called on the recognizer thread, the wrapped listener is called on the handler's thread.
+ */
+public class CoalescingRecognitionListener implements RecognitionListener {
+    public static final int DEFAULT_PARTIAL_DELIVERY_INTERVAL_MS = 250;
+
+    private final RecognitionListener listener;
+    private final Handler handler;
+    private volatile int partialDeliveryIntervalMs = DEFAULT_PARTIAL_DELIVERY_INTERVAL_MS;
+
+    //latest partial waiting for the main thread, null if none. Whoever swaps it in from null schedules the delivery
+    private final AtomicReference<PendingPartial> pendingPartial = new AtomicReference<>();
+    //recognizer thread only, utterances count up with each result (or error/timeout) sent to the main thread
+    private String lastOfferedPartial;
+    private long utterance = 0;
+    //handler's thread only, results delivered so far
+    private long deliveredUtterance = 0;
+    //written on the handler's thread
+    private volatile long lastDeliveryTime = 0;
+
+    //metrics
+    private final AtomicLong duplicatePartials = new AtomicLong(0);
+    private final AtomicLong supersededPartials = new AtomicLong(0);
+    private final AtomicLong deliveredPartials = new AtomicLong(0);
+
+    private static final class PendingPartial {
+        final String hypothesis;
+        final long utterance;
+
+        PendingPartial(String hypothesis, long utterance){
+            this.hypothesis = hypothesis;
+            this.utterance = utterance;
+        }
+    }
+
+    private final Runnable deliverPartial = new Runnable() {
+        @Override
+        public void run() {
+            PendingPartial partial = pendingPartial.getAndSet(null);
+            if (partial == null){
+                return; //a result came in after us and made it stale
+            }
+            if (partial.utterance < deliveredUtterance){
+                supersededPartials.incrementAndGet();
+                return; //its result has already gone out
+            }
+            if (partial.utterance > deliveredUtterance){
+                //the next utterance's partial, but we were posted before the last result, so go again behind it.
+                //If a newer partial came in meanwhile it scheduled its own delivery
+                if (pendingPartial.compareAndSet(null, partial)){
+                    handler.post(this);
+                }
+                return;
+            }
+            lastDeliveryTime = System.currentTimeMillis();
+            deliveredPartials.incrementAndGet();
+            listener.onPartialResult(partial.hypothesis);
+        }
+    };
+
+    public CoalescingRecognitionListener(RecognitionListener listener, Handler handler){
+        this.listener = listener;
+        this.handler = handler;
+    }
+
+    public void setPartialDeliveryIntervalMs(int partialDeliveryIntervalMs){
+        this.partialDeliveryIntervalMs = partialDeliveryIntervalMs;
+    }
+
+    @Override
+    public void onPartialResult(String hypothesis) {
+        if (hypothesis.equals(lastOfferedPartial)){
+            duplicatePartials.incrementAndGet();
+            return;
+        }
+        lastOfferedPartial = hypothesis;
+
+        if (pendingPartial.getAndSet(new PendingPartial(hypothesis, utterance)) != null){
+            //the main thread is behind, the delivery that's already scheduled will pick this one up instead
+            supersededPartials.incrementAndGet();
+            return;
+        }
+        long wait = lastDeliveryTime + partialDeliveryIntervalMs - System.currentTimeMillis();
+        if (wait > 0){
+            handler.postDelayed(deliverPartial, wait);
+        } else {
+            handler.post(deliverPartial);
+        }
+    }
+
+    @Override
+    public void onResult(String hypothesis) {
+        dropPendingPartial();
+        handler.post(() -> {
+            deliveredUtterance++;
+            listener.onResult(hypothesis);
+        });
+    }
+
+    @Override
+    public void onFinalResult(String hypothesis) {
+        dropPendingPartial();
+        handler.post(() -> {
+            deliveredUtterance++;
+            listener.onFinalResult(hypothesis);
+        });
+    }
+
+    @Override
+    public void onError(Exception exception) {
+        dropPendingPartial();
+        handler.post(() -> {
+            deliveredUtterance++;
+            listener.onError(exception);
+        });
+    }
+
+    @Override
+    public void onTimeout() {
+        dropPendingPartial();
+        handler.post(() -> {
+            deliveredUtterance++;
+            listener.onTimeout();
+        });
+    }
+
+    //a result covers everything the partial said, so the partial would only make the display flicker backwards
+    private void dropPendingPartial(){
+        lastOfferedPartial = null;
+        utterance++;
+        handler.removeCallbacks(deliverPartial);
+        if (pendingPartial.getAndSet(null) != null){
+            supersededPartials.incrementAndGet();
+        }
+    }
+
+    //METRICS
+
+    public long getDuplicatePartialCount(){
+        return duplicatePartials.get();
+    }
+
+    public long getSupersededPartialCount(){
+        return supersededPartials.get();
+    }
+
+    public long getDeliveredPartialCount(){
+        return deliveredPartials.get();
+    }
+}
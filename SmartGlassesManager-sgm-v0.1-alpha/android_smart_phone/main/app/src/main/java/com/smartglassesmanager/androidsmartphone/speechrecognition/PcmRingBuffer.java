@@ -0,0 +1,341 @@
+package com.smartglassesmanager.androidsmartphone.speechrecognition;
+
+import com.smartglassesmanager.androidsmartphone.comms.AudioCodec;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single producer/multi consumer lock-free ring of preallocated 16 bit PCM frames, used to pass
+ * audio from the microphone/ASG to the recognizer threads without allocating per chunk.
+ *
+ * Every consumer gets its own {@link Reader}, which sees every frame, so audio is decoded once and shared
+ * by all recognizers without copying. Ownership is explicit: the producer owns a frame between {@link #claim()}
+ * and {@link #publish(int, long)}, readers only read a frame between {@link Reader#acquire(long, TimeUnit)} and
+ * {@link Reader#release()}, and a frame isn't reused until every reader has released it.
+ *
+ * The producer never blocks. What happens when a consumer falls behind is set by the {@link OverflowPolicy}.
+ *
+ * There must only be one producer at a time: claim/publish and the writes aren't safe to call from two threads at
+ * once. If audio comes in on more than one thread, the caller serializes the writes (see SpeechRecognizerHost).
+ */
+public class PcmRingBuffer {
+    public enum OverflowPolicy {
+        //the producer drops new audio while the ring is full
+        DROP_NEWEST,
+        //the consumer throws away the oldest backlog once it's more than the max lag behind, so it always decodes recent audio
+        DROP_OLDEST,
+        //nothing is dropped until the ring is full, the consumer merges the backlog into larger frames to catch up
+        COALESCE
+    }
+
+
+    private final short [][] frames;
+    private final int [] frameLengths;
+    private final long [] frameTimes;
+    private final int capacity;
+    private final int mask;
+    private final int frameSamples;
+
+    //total frames published by the producer, only the producer writes this
+    private final AtomicLong writeIndex = new AtomicLong(0);
+
+    //copy on write, so the producer can look at it without locking
+    private volatile Reader [] readers = new Reader[0];
+
+    //overrun - producer had audio but no free frame, so it was dropped
+    private final AtomicLong overruns = new AtomicLong(0);
+    //samples thrown away by the producer (ring full) and by the consumers (DROP_OLDEST)
+    private final AtomicLong droppedNewestSamples = new AtomicLong(0);
+    private final AtomicLong droppedOldestSamples = new AtomicLong(0);
+
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+    private volatile int maxLagFrames;
+
+    /**
+     * @param numFrames number of frames in the ring, rounded up to a power of two
+     * @param frameSamples max number of samples held by each frame
+     */
+    public PcmRingBuffer(int numFrames, int frameSamples){
+        int cap = Integer.highestOneBit(Math.max(numFrames, 2) - 1) << 1;
+        this.capacity = cap;
+        this.mask = cap - 1;
+        this.frameSamples = frameSamples;
+        frames = new short[cap][frameSamples];
+        frameLengths = new int[cap];
+        frameTimes = new long[cap];
+        maxLagFrames = cap - 1;
+    }
+
+    /**
+     * @param policy what to do when a consumer is behind
+     * @param maxLagFrames how many frames can be waiting before DROP_OLDEST starts dropping
+     */
+    public void setOverflowPolicy(OverflowPolicy policy, int maxLagFrames){
+        this.overflowPolicy = policy;
+        this.maxLagFrames = Math.max(1, Math.min(capacity, maxLagFrames));
+    }
+
+    public OverflowPolicy getOverflowPolicy(){
+        return overflowPolicy;
+    }
+
+    //READERS
+
+    /** Add a consumer, it starts at live audio. */
+    public synchronized Reader addReader(){
+        Reader reader = new Reader(writeIndex.get());
+        Reader [] newReaders = Arrays.copyOf(readers, readers.length + 1);
+        newReaders[readers.length] = reader;
+        readers = newReaders;
+        return reader;
+    }
+
+    /** Remove a consumer, so it no longer holds frames back. Its thread must have stopped using it. */
+    public synchronized void removeReader(Reader reader){
+        Reader [] current = readers;
+        for (int i = 0; i < current.length; i++){
+            if (current[i] == reader){
+                Reader [] newReaders = new Reader[current.length - 1];
+                System.arraycopy(current, 0, newReaders, 0, i);
+                System.arraycopy(current, i + 1, newReaders, i, current.length - i - 1);
+                readers = newReaders;
+                return;
+            }
+        }
+    }
+
+    public int getReaderCount(){
+        return readers.length;
+    }
+
+    //PRODUCER SIDE
+
+    /**
+     * Get the next free frame to write into, or null (and count an overrun) if the slowest reader is a full ring behind.
+     * Must be followed by {@link #publish(int, long)} before the next claim.
+     */
+    public short [] claim(){
+        long w = writeIndex.get();
+        for (Reader reader : readers){
+            if (w - reader.readIndex.get() >= capacity){
+                overruns.incrementAndGet();
+                return null;
+            }
+        }
+        return frames[(int) (w & mask)];
+    }
+
+    /** Hand the claimed frame to the consumers. */
+    public void publish(int length, long captureTime){
+        long w = writeIndex.get();
+        int slot = (int) (w & mask);
+        frameLengths[slot] = length;
+        frameTimes[slot] = captureTime;
+        //full volatile write, so it can't be reordered with the reads of waitingConsumer below (no missed wakeups)
+        writeIndex.set(w + 1);
+
+        for (Reader reader : readers){
+            Thread consumer = reader.waitingConsumer;
+            if (consumer != null){
+                LockSupport.unpark(consumer);
+            }
+        }
+    }
+
+    /** Copy samples into the ring, split over as many frames as needed. Returns number of samples written. */
+    public int write(short [] samples, int offset, int length, long captureTime){
+        int written = 0;
+        while (written < length){
+            short [] frame = claim();
+            if (frame == null){
+                droppedNewestSamples.addAndGet(length - written);
+                break;
+            }
+            int n = Math.min(frameSamples, length - written);
+            System.arraycopy(samples, offset + written, frame, 0, n);
+            publish(n, captureTime);
+            written += n;
+        }
+        return written;
+    }
+
+    /** Copy 16 bit little endian PCM bytes into the ring, converting straight into the frames. Doesn't move the buffer's position. */
+    public int write(ByteBuffer pcmBytes, long captureTime){
+        int start = pcmBytes.position();
+        int length = pcmBytes.remaining() / 2;
+        int written = 0;
+        while (written < length){
+            short [] frame = claim();
+            if (frame == null){
+                droppedNewestSamples.addAndGet(length - written);
+                break;
+            }
+            int n = Math.min(frameSamples, length - written);
+            int idx = start + written * 2;
+            for (int i = 0; i < n; i++, idx += 2){
+                frame[i] = (short) ((pcmBytes.get(idx) & 0xff) | (pcmBytes.get(idx + 1) << 8));
+            }
+            publish(n, captureTime);
+            written += n;
+        }
+        return written;
+    }
+
+    /**
+     * Decode straight into the ring, the decoder must already have had {@link AudioCodec#startDecode(ByteBuffer)} called.
+     * Returns number of samples written, anything that didn't fit is dropped.
+     */
+    public int write(AudioCodec decoder, long captureTime){
+        int written = 0;
+        while (decoder.hasRemaining()){
+            short [] frame = claim();
+            if (frame == null){
+                droppedNewestSamples.addAndGet(decoder.getRemainingSamples());
+                break;
+            }
+            int n = decoder.decode(frame, 0, frameSamples);
+            publish(n, captureTime);
+            written += n;
+        }
+        return written;
+    }
+
+    //CONSUMER SIDE
+
+    /** One consumer's view of the ring. Only a single thread may use a reader. */
+    public class Reader {
+        //total frames released by this reader, only the reader's thread writes this
+        private final AtomicLong readIndex;
+
+        //consumer thread parked waiting for audio, if any
+        private volatile Thread waitingConsumer;
+
+        //underrun - consumer wanted audio but the ring stayed empty
+        private final AtomicLong underruns = new AtomicLong(0);
+        private final AtomicLong shedSamples = new AtomicLong(0);
+
+        private Reader(long startIndex){
+            readIndex = new AtomicLong(startIndex);
+        }
+
+        /**
+         * Wait up to timeout for the next frame. Returns the frame, or null (and counts an underrun) if none arrived.
+         * The frame must not be written to, and may only be read until {@link #release()}.
+         */
+        public short [] acquire(long timeout, TimeUnit unit) throws InterruptedException {
+            long r = readIndex.get();
+            if (writeIndex.get() > r){
+                return frames[(int) (r & mask)];
+            }
+
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            waitingConsumer = Thread.currentThread();
+            try {
+                while (writeIndex.get() <= r){
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0){
+                        underruns.incrementAndGet();
+                        return null;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                    if (Thread.interrupted()){
+                        throw new InterruptedException();
+                    }
+                }
+            } finally {
+                waitingConsumer = null;
+            }
+            return frames[(int) (r & mask)];
+        }
+
+        /** Number of valid samples in the currently acquired frame. */
+        public int getAcquiredLength(){
+            return frameLengths[(int) (readIndex.get() & mask)];
+        }
+
+        /** Capture time (ms since epoch) of the currently acquired frame. */
+        public long getAcquiredCaptureTime(){
+            return frameTimes[(int) (readIndex.get() & mask)];
+        }
+
+        /** Done with the acquired frame, once every reader is done with it the producer can reuse it. */
+        public void release(){
+            readIndex.lazySet(readIndex.get() + 1);
+        }
+
+        /**
+         * With DROP_OLDEST, skip the oldest waiting frames so no more than the max lag is queued.
+         * Not while holding a frame. Returns the number of samples dropped.
+         */
+        public int shed(){
+            if (overflowPolicy != OverflowPolicy.DROP_OLDEST){
+                return 0;
+            }
+            long r = readIndex.get();
+            long excess = writeIndex.get() - r - maxLagFrames;
+            if (excess <= 0){
+                return 0;
+            }
+            int dropped = 0;
+            for (long i = r; i < r + excess; i++){
+                dropped += frameLengths[(int) (i & mask)];
+            }
+            readIndex.lazySet(r + excess);
+            droppedOldestSamples.addAndGet(dropped);
+            shedSamples.addAndGet(dropped);
+            return dropped;
+        }
+
+        /** Frames waiting for this reader. */
+        public int size(){
+            return (int) (writeIndex.get() - readIndex.get());
+        }
+
+        public int getFrameSamples(){
+            return frameSamples;
+        }
+
+        public OverflowPolicy getOverflowPolicy(){
+            return overflowPolicy;
+        }
+
+        public long getUnderrunCount(){
+            return underruns.get();
+        }
+
+        public long getShedSamples(){
+            return shedSamples.get();
+        }
+    }
+
+    //STATS
+
+    public int getCapacity(){
+        return capacity;
+    }
+
+    public int getFrameSamples(){
+        return frameSamples;
+    }
+
+    public long getOverrunCount(){
+        return overruns.get();
+    }
+
+    /** Total audio thrown away because a consumer was behind, in samples. */
+    public long getDroppedSamples(){
+        return droppedNewestSamples.get() + droppedOldestSamples.get();
+    }
+
+    public long getDroppedNewestSamples(){
+        return droppedNewestSamples.get();
+    }
+
+    public long getDroppedOldestSamples(){
+        return droppedOldestSamples.get();
+    }
+}
@@ -8,19 +8,20 @@ import org.vosk.LogLevel;
 import org.vosk.Model;
 import org.vosk.Recognizer;
 import org.vosk.android.RecognitionListener;
-import org.vosk.android.StorageService;
 
 //vosk needs
 
 //android
-import android.util.Base64;
 import android.content.Context;
 import android.util.Log;
 import android.os.Handler;
 
 import java.lang.InterruptedException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -30,12 +31,10 @@ import com.smartglassesmanager.androidsmartphone.database.phrase.Phrase;
 import com.smartglassesmanager.androidsmartphone.database.phrase.PhraseRepository;
 import com.smartglassesmanager.androidsmartphone.database.phrase.PhraseCreator;
 import com.smartglassesmanager.androidsmartphone.comms.MessageTypes;
-import com.smartglassesmanager.androidsmartphone.eventbusmessages.AudioChunkNewEvent;
-
-//queue
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ArrayBlockingQueue;
-
+import com.smartglassesmanager.androidsmartphone.eventbusmessages.CommandTranscriptEvent;
+import com.smartglassesmanager.androidsmartphone.eventbusmessages.VoiceCommandGrammarEvent;
+import com.smartglassesmanager.androidsmartphone.eventbusmessages.VoiceCommandPhaseEvent;
+import com.smartglassesmanager.androidsmartphone.supportedglasses.SmartGlassesDevice;
 
 //rxjava
 import io.reactivex.rxjava3.disposables.Disposable;
@@ -55,6 +54,11 @@ public class SpeechRecVosk implements RecognitionListener {
     private boolean newPhrase = true;
 
     private Model model;
+
+    //startup metrics
+    private final long startupTime;
+    private long modelReadyMs = -1;
+    private long timeToFirstPartialMs = -1;
     //private SpeechService speechService;
     //private SpeechStreamService speechStreamService;
     private SpeechStreamQueueServiceVosk speechStreamService;
@@ -63,18 +67,53 @@ public class SpeechRecVosk implements RecognitionListener {
     private VoskAudioBytesStream voskAudioBytesStream;
     //private PipedOutputStream audioAdderStreamVosk;
     //private InputStream audioSenderStreamVosk;
-    private int audioSenderStreamVoskSize;
-    private BlockingQueue<byte []> audioSenderStreamVosk;
+    //decoded audio is shared with the other recognizers, we read it through our own reader
+    private SpeechRecognizerHost recognizerHost;
+    private PcmRingBuffer.Reader audioSenderStreamVosk;
+    private volatile boolean shed = false;
+    private int catchUpLagMs = SpeechStreamQueueServiceVosk.DEFAULT_CATCH_UP_LAG_MS;
+    private int catchUpBatchMs = SpeechStreamQueueServiceVosk.DEFAULT_CATCH_UP_BATCH_MS;
+    //recognizer frame size range and partial result cadence
+    private int minFrameMs = SpeechStreamQueueServiceVosk.DEFAULT_MIN_FRAME_MS;
+    private int maxFrameMs = SpeechStreamQueueServiceVosk.DEFAULT_MAX_FRAME_MS;
+    private int partialResultIntervalMs = SpeechStreamQueueServiceVosk.DEFAULT_PARTIAL_RESULT_INTERVAL_MS;
+    private int partialDeliveryIntervalMs = CoalescingRecognitionListener.DEFAULT_PARTIAL_DELIVERY_INTERVAL_MS;
+    //skip decoding silence
+    private VoiceActivityDetector voiceActivityDetector;
     final Handler main_handler;
 
+    //command mode - while the voice command server waits for a command, decode with a recognizer that only knows what
+    //can be said (Vosk grammar), which is cheaper and more accurate than the full vocabulary. Base language only
+    public static final int COMMAND_MODE_TIMEOUT_MS = 6000; //back to free text if no command comes in this long
+    private Recognizer freeTextRecognizer;
+    private Recognizer grammarRecognizer;
+    private String grammar; //JSON list of phrases, null if there's nothing to say
+    private boolean grammarChanged = false;
+    private boolean commandMode = false;
+    //true while the results coming in are from the grammar recognizer, set when the recognizer thread says it switched
+    private boolean commandResults = false;
+    //grammar recognizers we replaced, closed once the recognizer thread isn't using them
+    private final ArrayList<Recognizer> retiredRecognizers = new ArrayList<>();
+    private long commandModeCount = 0;
+    private long commandModeTimeouts = 0;
+    private long grammarBuildMs = -1;
+    private final Runnable commandModeTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "No command in " + COMMAND_MODE_TIMEOUT_MS + "ms, back to free text recognition");
+            commandModeTimeouts++;
+            setCommandMode(false);
+        }
+    };
+
     //receive/send data stream
     PublishSubject<JSONObject> dataObservable;
-    Disposable dataSub;
     //receive audio stream
     PublishSubject<byte []> audioObservable;
     Disposable audioSub;
 
-    public SpeechRecVosk(String languageModelPath, boolean isBaseLanguage, Context context, PublishSubject<byte []> audioObservable, PublishSubject<JSONObject> dataObservable, PhraseRepository mPhraseRepository){
+    public SpeechRecVosk(String languageModelPath, boolean isBaseLanguage, Context context, PublishSubject<byte []> audioObservable, PublishSubject<JSONObject> dataObservable, PhraseRepository mPhraseRepository, SpeechRecognizerHost recognizerHost){
+        startupTime = System.currentTimeMillis();
         mContext = context;
         this.languageModelPath = languageModelPath;
         this.isBaseLanguage = isBaseLanguage;
@@ -82,49 +121,44 @@ public class SpeechRecVosk implements RecognitionListener {
         //to save trancript
         this.mPhraseRepository = mPhraseRepository;
 
-        //receive/send data
+        //send data
         this.dataObservable = dataObservable;
-        dataSub = this.dataObservable.subscribe(i -> handleDataStream(i));
-        setupEventBusSubscribers();
 
         //receive audio
         //this.audioObservable = audioObservable;
         //audioSub = this.audioObservable.subscribe(i -> handleDataStream(i));
 
-        //setup the object which will pass audio bytes to vosk
-        audioSenderStreamVoskSize = (int) (16000 * 2 * 0.2);
-        audioSenderStreamVosk = new ArrayBlockingQueue(audioSenderStreamVoskSize);
+        //the host passes audio to vosk, we only start reading once the model is loaded so we don't hold its frames back
+        this.recognizerHost = recognizerHost;
+        voiceActivityDetector = new VoiceActivityDetector(16000);
 
         //start vosk ASR
         LibVosk.setLogLevel(LogLevel.INFO);
-        initModel();
-
-        //start recognizing audio after delay, must first wait for model to load
         main_handler = new Handler();
-        final int delay = 500;
-        main_handler.postDelayed(new Runnable() {
-            public void run() {
-                if (model != null){
-                    recognizeSpeech();
-                } else {
-                    main_handler.postDelayed(this, delay);
-                }
-            }
-        }, delay);
-    }
+        initModel();
 
-    private void setupEventBusSubscribers(){
+        //the voice command server tells us when it's waiting for a command
+        if (isBaseLanguage) {
             EventBus.getDefault().register(this);
+        }
     }
 
-        private void initModel() {
+    //start recognizing as soon as the model manager has the model ready
+    private void initModel() {
         Log.d(TAG, "Initing ASR model...");
-        StorageService.unpack(mContext, languageModelPath, "model",
-                (model) -> {
-                    this.model = model;
-                },
-                (exception) -> setErrorState("Failed to unpack the model: " + exception.getMessage()));
-        Log.d(TAG, "ASR Model loaded.");
+        VoskModelManager.getInstance(mContext).getModel(languageModelPath).whenComplete((loadedModel, exception) -> main_handler.post(() -> {
+            if (exception != null){
+                setErrorState("Failed to load the model: " + exception.getMessage());
+                return;
+            }
+            if (shed){
+                return;
+            }
+            modelReadyMs = System.currentTimeMillis() - startupTime;
+            Log.d(TAG, "ASR Model loaded, " + modelReadyMs + "ms after start.");
+            this.model = loadedModel;
+            recognizeSpeech();
+        }));
     }
 
     private void setErrorState(String message) {
@@ -138,10 +172,18 @@ public class SpeechRecVosk implements RecognitionListener {
         } else {
             Log.d(TAG, "VOSK MAKE RECOGNIZER");
             Recognizer rec = new Recognizer(model, 16000.0f);
+            freeTextRecognizer = rec;
             Log.d(TAG, "VOSK MAKE SPEECH SERVICE");
             //speechService = new SpeechService(rec, 16000.0f);
+            audioSenderStreamVosk = recognizerHost.addRecognizer(this);
             //6416 is hard coded - same as chunk_len - size of buffer used on ASG
-            speechStreamService = new SpeechStreamQueueServiceVosk(rec, audioSenderStreamVosk, 16000.0f, 6416);
+            speechStreamService = new SpeechStreamQueueServiceVosk(rec, audioSenderStreamVosk, 16000.0f, 6416, voiceActivityDetector);
+            speechStreamService.setCatchUpSettings(catchUpLagMs, catchUpBatchMs);
+            speechStreamService.setFrameSettings(minFrameMs, maxFrameMs);
+            speechStreamService.setPartialResultIntervalMs(partialResultIntervalMs);
+            speechStreamService.setPartialDeliveryIntervalMs(partialDeliveryIntervalMs);
+            speechStreamService.setThreadName("VoskRecognizer-" + languageModelPath);
+            speechStreamService.setRecognizerSwitchListener(this::onRecognizerSwitched);
             Log.d(TAG, "VOSK START LISTENING");
             //speechService.startListening(rec);
             speechStreamService.start(this);
@@ -156,27 +198,191 @@ public class SpeechRecVosk implements RecognitionListener {
 
     public void destroy() {
         Log.d(TAG, "Destroying VOSK");
-        EventBus.getDefault().unregister(this);
+        if (isBaseLanguage) {
+            EventBus.getDefault().unregister(this);
+        }
+        stopRecognizing();
+    }
+
+    //stop decoding and give our place in the audio stream back to the host, called on the main thread
+    private void stopRecognizing() {
+        shed = true;
+        main_handler.removeCallbacks(commandModeTimeout);
+        commandMode = false;
         if (speechStreamService != null) {
             speechStreamService.stop();
+            speechStreamService = null;
+        }
+        recognizerHost.removeRecognizer(this, audioSenderStreamVosk);
+        audioSenderStreamVosk = null;
+
+        //the recognizer thread is done with all of them
+        commandResults = false;
+        if (grammarRecognizer != null) {
+            retiredRecognizers.add(grammarRecognizer);
+            grammarRecognizer = null;
+        }
+        for (Recognizer rec : retiredRecognizers) {
+            rec.close();
+        }
+        retiredRecognizers.clear();
+        if (freeTextRecognizer != null) {
+            freeTextRecognizer.close();
+            freeTextRecognizer = null;
         }
     }
 
+    //COMMAND MODE
 
-    //receive audio and send to vosk
-    private void handleDataStream(JSONObject data){
-        try {
-            String dataType = data.getString(MessageTypes.MESSAGE_TYPE_LOCAL);
-            if (dataType.equals(MessageTypes.AUDIO_CHUNK_DECRYPTED)){
-                String encodedPlainData = data.getString(MessageTypes.AUDIO_DATA);
-                byte [] decodedPlainData = Base64.decode(encodedPlainData, Base64.DEFAULT);
-                audioSenderStreamVosk.put(decodedPlainData);
+    //sticky, so we get the commands there already are when we register
+    @Subscribe(sticky = true)
+    public void onVoiceCommandGrammarEvent(VoiceCommandGrammarEvent receivedEvent){
+        String newGrammar = buildGrammar(receivedEvent.phrases);
+        main_handler.post(() -> {
+            if (newGrammar == null ? grammar != null : !newGrammar.equals(grammar)) {
+                grammar = newGrammar;
+                grammarChanged = true; //the recognizer is rebuilt the next time we go into command mode
             }
-        } catch (InterruptedException | JSONException e) {
-            setErrorState(e.getMessage());
+        });
+    }
+
+    @Subscribe
+    public void onVoiceCommandPhaseEvent(VoiceCommandPhaseEvent receivedEvent){
+        main_handler.post(() -> setCommandMode(receivedEvent.waitingForCommand));
+    }
+
+    //switch the recognizer thread between the grammar and free text recognizers, called on the main thread
+    private void setCommandMode(boolean on) {
+        main_handler.removeCallbacks(commandModeTimeout);
+        if (speechStreamService == null || shed) {
+            commandMode = false;
+            return;
+        }
+
+        if (on) {
+            Recognizer rec = getGrammarRecognizer();
+            if (rec == null) {
+                return; //nothing to listen for, stay on free text
+            }
+            if (!commandMode) {
+                commandMode = true;
+                commandModeCount++;
+                Log.d(TAG, "Command mode, listening for commands only");
+            }
+            speechStreamService.setRecognizer(rec);
+            main_handler.postDelayed(commandModeTimeout, COMMAND_MODE_TIMEOUT_MS);
+        } else if (commandMode) {
+            commandMode = false;
+            Log.d(TAG, "Free text recognition");
+            speechStreamService.setRecognizer(freeTextRecognizer);
+        }
+    }
+
+    //on the main thread, after every result from the recognizer it switched from
+    private void onRecognizerSwitched(Recognizer recognizer) {
+        commandResults = recognizer != freeTextRecognizer;
+        closeRetiredRecognizers();
+    }
+
+    private void closeRetiredRecognizers() {
+        for (int i = retiredRecognizers.size() - 1; i >= 0; i--) {
+            Recognizer rec = retiredRecognizers.get(i);
+            if (speechStreamService == null || !speechStreamService.isUsing(rec)) {
+                rec.close();
+                retiredRecognizers.remove(i);
+            }
+        }
+    }
+
+    //the grammar recognizer, built again only if the commands changed since the last one. Null if there's no grammar
+    private Recognizer getGrammarRecognizer() {
+        if (grammarChanged || (grammarRecognizer == null && grammar != null)) {
+            grammarChanged = false;
+            if (grammarRecognizer != null) {
+                retiredRecognizers.add(grammarRecognizer);
+                grammarRecognizer = null;
+                closeRetiredRecognizers();
+            }
+            if (grammar != null) {
+                long start = System.currentTimeMillis();
+                try {
+                    grammarRecognizer = new Recognizer(model, 16000.0f, grammar);
+                    grammarBuildMs = System.currentTimeMillis() - start;
+                    Log.d(TAG, "Built command grammar recognizer in " + grammarBuildMs + "ms: " + grammar);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return grammarRecognizer;
+    }
+
+    //a Vosk grammar: a JSON list of the phrases, lowercase words only, and [unk] so speech that isn't a phrase doesn't get forced into one
+    static String buildGrammar(ArrayList<String> phrases) {
+        LinkedHashSet<String> words = new LinkedHashSet<>();
+        if (phrases != null) {
+            for (String phrase : phrases) {
+                String cleaned = phrase.toLowerCase().replaceAll("[^a-z0-9' ]", " ").trim().replaceAll("\\s+", " ");
+                if (!cleaned.isEmpty()) {
+                    words.add(cleaned);
+                }
+            }
+        }
+        if (words.isEmpty()) {
+            return null;
+        }
+        JSONArray grammar = new JSONArray();
+        for (String phrase : words) {
+            grammar.put(phrase);
+        }
+        grammar.put("[unk]");
+        return grammar.toString();
+    }
+
+    public boolean isCommandMode() {
+        return commandMode;
+    }
+
+    public long getCommandModeCount() {
+        return commandModeCount;
+    }
+
+    //times command mode ended because no command came in
+    public long getCommandModeTimeoutCount() {
+        return commandModeTimeouts;
+    }
+
+    //ms it took to build the last grammar recognizer, -1 if we haven't
+    public long getGrammarBuildMs() {
+        return grammarBuildMs;
+    }
+
+    //the host drops us when we can't keep up, so we don't cost the other recognizers audio
+    public void shed() {
+        if (!shed) {
+            Log.d(TAG, "Shedding VOSK recognizer for " + languageModelPath + ", lag: " + getRecognitionLagMs() + "ms");
+            stopRecognizing();
         }
     }
 
+    public boolean isShed() {
+        return shed;
+    }
+
+    public boolean isBaseLanguage() {
+        return isBaseLanguage;
+    }
+
+    //ms from creation until the model was loaded, -1 if it isn't yet
+    public long getModelReadyMs() {
+        return modelReadyMs;
+    }
+
+    //ms from creation until the first partial transcript, -1 if there hasn't been one yet
+    public long getTimeToFirstPartialMs() {
+        return timeToFirstPartialMs;
+    }
+
     //make our own InputStream class we can fill with audio to pass to vosk
     class VoskAudioBytesStream extends InputStream {
         public byte [] data;
@@ -194,12 +400,8 @@ public class SpeechRecVosk implements RecognitionListener {
     //vosk listener implementation
     @Override
     public void onResult(String hypothesis) {
-        //start recognizing audio after delay, must first wait for model to load
-        main_handler.post(new Runnable() {
-            public void run() {
-                handleResult(hypothesis);
-            }
-        });
+        //already on the main thread, the speech service delivers results through a CoalescingRecognitionListener
+        handleResult(hypothesis);
     }
 
     public void handleResult(String hypothesis){
@@ -239,6 +441,11 @@ public class SpeechRecVosk implements RecognitionListener {
                 return;
             }
 
+            //the command grammar gives [unk] for anything that isn't a command
+            if (transcript != null && transcript.contains("[unk]")){
+                transcript = transcript.replace("[unk]", " ").trim().replaceAll("\\s+", " ");
+            }
+
             //don't save null or empty transcripts
             if (transcript == null || transcript.trim().isEmpty()){
                 return;
@@ -252,6 +459,13 @@ public class SpeechRecVosk implements RecognitionListener {
                 }
             }
 
+            //the grammar forces what was said into a command, that's only for the voice command server, it's not a
+            //transcript to save or show
+            if (commandResults) {
+                EventBus.getDefault().post(new CommandTranscriptEvent(transcript, transcriptTime, transcriptType.equals(MessageTypes.FINAL_TRANSCRIPT)));
+                return;
+            }
+
             if (isBaseLanguage) {
                 if (newPhrase) {
                     currPhrase = PhraseCreator.init("transcript_ASG", mContext, mPhraseRepository);
@@ -296,6 +510,10 @@ public class SpeechRecVosk implements RecognitionListener {
     @Override
     public void onPartialResult(String hypothesis) {
         long transcriptTime = System.currentTimeMillis();
+        if (timeToFirstPartialMs < 0){
+            timeToFirstPartialMs = transcriptTime - startupTime;
+            Log.d(TAG, "Startup: model ready after " + modelReadyMs + "ms, first partial transcript after " + timeToFirstPartialMs + "ms");
+        }
         handleTranscript(hypothesis, MessageTypes.INTERMEDIATE_TRANSCRIPT, transcriptTime);
     }
 
@@ -309,13 +527,80 @@ public class SpeechRecVosk implements RecognitionListener {
         Log.d(TAG, "VOSK: timeout");
     }
 
-    @Subscribe
-    public void onAudioChunkNewEvent(AudioChunkNewEvent receivedEvent){
-        try {
-            audioSenderStreamVosk.put(receivedEvent.thisChunk);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    //tune the VAD for the mic we're getting audio from
+    public void setVoiceActivityDetectionSettings(SmartGlassesDevice device){
+        voiceActivityDetector.setSettings(device.getVadEnergyThresholdDb(), device.getVadZeroCrossingThreshold(), device.getVadHangoverMs(), device.getVadPreRollMs());
+    }
+
+    public VoiceActivityDetector getVoiceActivityDetector(){
+        return voiceActivityDetector;
+    }
+
+    public void setCatchUpSettings(int catchUpLagMs, int catchUpBatchMs){
+        this.catchUpLagMs = catchUpLagMs;
+        this.catchUpBatchMs = catchUpBatchMs;
+        if (speechStreamService != null){
+            speechStreamService.setCatchUpSettings(catchUpLagMs, catchUpBatchMs);
+        }
+    }
+
+    public void setRecognizerFrameSettings(int minFrameMs, int maxFrameMs, int partialResultIntervalMs){
+        this.minFrameMs = minFrameMs;
+        this.maxFrameMs = maxFrameMs;
+        this.partialResultIntervalMs = partialResultIntervalMs;
+        if (speechStreamService != null){
+            speechStreamService.setFrameSettings(minFrameMs, maxFrameMs);
+            speechStreamService.setPartialResultIntervalMs(partialResultIntervalMs);
+        }
+    }
+
+    //max rate partial transcripts are handed to the rest of the app, identical partials are never handed on
+    public void setPartialDeliveryIntervalMs(int partialDeliveryIntervalMs){
+        this.partialDeliveryIntervalMs = partialDeliveryIntervalMs;
+        if (speechStreamService != null){
+            speechStreamService.setPartialDeliveryIntervalMs(partialDeliveryIntervalMs);
+        }
+    }
+
+    public long getDroppedPartialResultCount(){
+        if (speechStreamService == null){
+            return 0;
+        }
+        return speechStreamService.getDroppedPartialResultCount();
+    }
+
+    //how far behind live audio the recognizer is, ms
+    public long getRecognitionLagMs(){
+        if (speechStreamService == null){
+            return 0;
+        }
+        return speechStreamService.getRecognitionLagMs();
+    }
+
+    //audio waiting for us in the shared ring, ms
+    public long getAudioBacklogMs(){
+        PcmRingBuffer.Reader reader = audioSenderStreamVosk;
+        if (reader == null){
+            return 0;
+        }
+        return (long) reader.size() * reader.getFrameSamples() * 1000 / SpeechRecognizerHost.SAMPLE_RATE;
+    }
+
+    //audio we skipped to get back to live audio, ms
+    public long getShedAudioMs(){
+        PcmRingBuffer.Reader reader = audioSenderStreamVosk;
+        if (reader == null){
+            return 0;
+        }
+        return reader.getShedSamples() * 1000 / SpeechRecognizerHost.SAMPLE_RATE;
+    }
+
+    public long getAudioUnderrunCount(){
+        PcmRingBuffer.Reader reader = audioSenderStreamVosk;
+        if (reader == null){
+            return 0;
         }
+        return reader.getUnderrunCount();
     }
 
 }
@@ -0,0 +1,238 @@
+package com.smartglassesmanager.androidsmartphone.speechrecognition;
+
+import android.os.Handler;
+import android.util.Base64;
+import android.util.Log;
+
+import com.smartglassesmanager.androidsmartphone.comms.AudioCodec;
+import com.smartglassesmanager.androidsmartphone.comms.AudioFrameProtocol;
+import com.smartglassesmanager.androidsmartphone.comms.MessageTypes;
+import com.smartglassesmanager.androidsmartphone.eventbusmessages.AudioChunkNewEvent;
+
+import org.greenrobot.eventbus.EventBus;
+import org.greenrobot.eventbus.Subscribe;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+//rxjava
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.subjects.PublishSubject;
+
+/**
+ * Owns the audio going into speech recognition. Every chunk from the glasses/mic is decoded once into a shared
+ * {@link PcmRingBuffer}, and every running recognizer (base language, foreign language, ...) reads the same frames
+ * through its own {@link PcmRingBuffer.Reader} on its own thread, so adding a language doesn't add a copy of the audio.
+ *
+ * Lag is checked per recognizer. If a foreign language recognizer can't keep up (CPU pressure), it's shed so it stops
+ * holding ring frames back from the base language recognizer. The base language recognizer is never shed.
+ */
+public class SpeechRecognizerHost {
+    private static final String TAG = "WearableAi_SpeechRecognizerHost";
+
+    //preallocated ring of pcm frames that feeds the recognizer threads
+    public static final int SAMPLE_RATE = 16000;
+    private static final int AUDIO_RING_FRAMES = 32; //~6.4 seconds of 200ms frames
+    private static final int AUDIO_FRAME_SAMPLES = (int) (SAMPLE_RATE * 0.2);
+    //if a recognizer falls more than this far behind, skip ahead to live audio
+    private static final int AUDIO_MAX_LAG_FRAMES = 15; //3 seconds
+
+    //a foreign language recognizer this far behind is shed, must be under the ring length or it starts costing the base recognizer audio
+    public static final int DEFAULT_SHED_LAG_MS = 5000;
+    private static final int SHED_CHECK_INTERVAL_MS = 1000;
+
+    private final PcmRingBuffer audioRing;
+    //audio comes in on whichever thread posts AudioChunkNewEvent (mic, ASG socket) and on the data stream's thread, but
+    //the ring takes one producer at a time, so every write (and the decoders) is guarded by this
+    private final Object producerLock = new Object();
+    //one decoder per codec, guarded by producerLock
+    private final Map<Byte, AudioCodec> audioDecoders = new HashMap<>();
+
+    private final CopyOnWriteArrayList<SpeechRecVosk> recognizers = new CopyOnWriteArrayList<>();
+    private volatile int shedLagMs = DEFAULT_SHED_LAG_MS;
+    private long shedCount = 0;
+
+    private final Handler shedHandler;
+    private final Runnable shedCheck;
+
+    //receive the legacy json audio stream
+    PublishSubject<JSONObject> dataObservable;
+    Disposable dataSub;
+
+    public SpeechRecognizerHost(PublishSubject<JSONObject> dataObservable){
+        audioRing = new PcmRingBuffer(AUDIO_RING_FRAMES, AUDIO_FRAME_SAMPLES);
+        audioRing.setOverflowPolicy(PcmRingBuffer.OverflowPolicy.DROP_OLDEST, AUDIO_MAX_LAG_FRAMES);
+
+        this.dataObservable = dataObservable;
+        dataSub = this.dataObservable.subscribe(i -> handleDataStream(i));
+        EventBus.getDefault().register(this);
+
+        shedHandler = new Handler();
+        shedCheck = new Runnable() {
+            public void run() {
+                shedLaggingRecognizers();
+                shedHandler.postDelayed(this, SHED_CHECK_INTERVAL_MS);
+            }
+        };
+        shedHandler.postDelayed(shedCheck, SHED_CHECK_INTERVAL_MS);
+    }
+
+    //RECOGNIZERS
+
+    /** Start feeding a recognizer, it gets audio from now on. Call when its recognizer thread is about to start. */
+    public PcmRingBuffer.Reader addRecognizer(SpeechRecVosk recognizer){
+        PcmRingBuffer.Reader reader = audioRing.addReader();
+        recognizers.add(recognizer);
+        Log.d(TAG, "Added recognizer, " + audioRing.getReaderCount() + " sharing the audio stream");
+        return reader;
+    }
+
+    /** Stop feeding a recognizer. Its recognizer thread must already be stopped. */
+    public void removeRecognizer(SpeechRecVosk recognizer, PcmRingBuffer.Reader reader){
+        recognizers.remove(recognizer);
+        if (reader != null){
+            audioRing.removeReader(reader);
+        }
+        Log.d(TAG, "Removed recognizer, " + audioRing.getReaderCount() + " sharing the audio stream");
+    }
+
+    /** Get a reader for something that isn't a recognizer (e.g. the audio history), it gets audio from now on. */
+    public PcmRingBuffer.Reader addAudioReader(){
+        return audioRing.addReader();
+    }
+
+    /** The reader's thread must already be stopped. */
+    public void removeAudioReader(PcmRingBuffer.Reader reader){
+        audioRing.removeReader(reader);
+    }
+
+    public int getRecognizerCount(){
+        return recognizers.size();
+    }
+
+    //runs on the main thread
+    private void shedLaggingRecognizers(){
+        int maxLag = shedLagMs;
+        for (SpeechRecVosk recognizer : recognizers){
+            if (recognizer.isBaseLanguage()){
+                continue;
+            }
+            long lag = Math.max(recognizer.getRecognitionLagMs(), recognizer.getAudioBacklogMs());
+            if (lag > maxLag){
+                Log.d(TAG, "Recognizer is " + lag + "ms behind, shedding it to keep up with live audio");
+                shedCount++;
+                recognizer.shed();
+            }
+        }
+    }
+
+    public void setShedLagMs(int shedLagMs){
+        this.shedLagMs = shedLagMs;
+    }
+
+    public long getShedCount(){
+        return shedCount;
+    }
+
+    //AUDIO IN
+
+    //the chunk is only valid until we return, so it's copied into the ring here
+    @Subscribe
+    public void onAudioChunkNewEvent(AudioChunkNewEvent receivedEvent){
+        if (receivedEvent.thisChunkSamples != null) {
+            int written;
+            synchronized (producerLock) {
+                written = audioRing.write(receivedEvent.thisChunkSamples, 0, receivedEvent.thisChunkLength, System.currentTimeMillis());
+            }
+            if (written < receivedEvent.thisChunkLength) {
+                logOverrun();
+            }
+        } else if (receivedEvent.thisChunkBytes != null) {
+            if (receivedEvent.thisChunkSampleFormat == AudioFrameProtocol.SAMPLE_FORMAT_PCM_16BIT_LE_16KHZ) {
+                writeAudio(receivedEvent.thisChunkBytes);
+            } else {
+                writeEncodedAudio(receivedEvent.thisChunkBytes, receivedEvent.thisChunkSampleFormat);
+            }
+        }
+    }
+
+    //receive audio over the data stream
+    private void handleDataStream(JSONObject data){
+        try {
+            String dataType = data.getString(MessageTypes.MESSAGE_TYPE_LOCAL);
+            if (dataType.equals(MessageTypes.AUDIO_CHUNK_DECRYPTED)){
+                String encodedPlainData = data.getString(MessageTypes.AUDIO_DATA);
+                byte [] decodedPlainData = Base64.decode(encodedPlainData, Base64.DEFAULT);
+                writeAudio(ByteBuffer.wrap(decodedPlainData));
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //compressed audio from the ASG is decoded right into the ring's frames, once for all recognizers
+    private void writeEncodedAudio(ByteBuffer encoded, byte sampleFormat){
+        boolean overrun;
+        synchronized (producerLock) {
+            AudioCodec decoder = audioDecoders.get(sampleFormat);
+            if (decoder == null){
+                decoder = AudioCodec.create(sampleFormat);
+                if (decoder == null){
+                    Log.d(TAG, "No decoder for audio sample format: " + sampleFormat);
+                    return;
+                }
+                audioDecoders.put(sampleFormat, decoder);
+            }
+            long overruns = audioRing.getOverrunCount();
+            decoder.startDecode(encoded);
+            audioRing.write(decoder, System.currentTimeMillis());
+            overrun = audioRing.getOverrunCount() > overruns;
+        }
+        if (overrun) {
+            logOverrun();
+        }
+    }
+
+    private void writeAudio(ByteBuffer pcmBytes){
+        int samples = pcmBytes.remaining() / 2;
+        int written;
+        synchronized (producerLock) {
+            written = audioRing.write(pcmBytes, System.currentTimeMillis());
+        }
+        if (written < samples) {
+            logOverrun();
+        }
+    }
+
+    private void logOverrun(){
+        Log.d(TAG, "Audio ring overrun, a recognizer is behind. Dropped audio: " + getDroppedAudioMs() + "ms");
+    }
+
+    //SETTINGS + STATS
+
+    //what to do with audio when a recognizer can't keep up, the audio producers never block either way
+    public void setOverflowPolicy(PcmRingBuffer.OverflowPolicy policy, int maxLagMs){
+        audioRing.setOverflowPolicy(policy, Math.max(1, (int) ((long) maxLagMs * SAMPLE_RATE / 1000 / AUDIO_FRAME_SAMPLES)));
+    }
+
+    public long getDroppedAudioMs(){
+        return audioRing.getDroppedSamples() * 1000 / SAMPLE_RATE;
+    }
+
+    public long getAudioOverrunCount(){
+        return audioRing.getOverrunCount();
+    }
+
+    public void destroy(){
+        Log.d(TAG, "Destroying speech recognizer host");
+        shedHandler.removeCallbacks(shedCheck);
+        EventBus.getDefault().unregister(this);
+        if (dataSub != null){
+            dataSub.dispose();
+        }
+    }
+}
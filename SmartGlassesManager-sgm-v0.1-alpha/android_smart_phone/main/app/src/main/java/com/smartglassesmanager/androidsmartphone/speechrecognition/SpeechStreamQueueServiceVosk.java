@@ -20,6 +20,7 @@ import org.vosk.android.RecognitionListener;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.util.Log;
 
 import org.vosk.Recognizer;
 
@@ -27,8 +28,6 @@ import java.lang.InterruptedException;
 
 import java.util.concurrent.TimeUnit;
 
-import java.util.concurrent.BlockingQueue;
-
 /**
  * Service that recognizes stream audio in a  thread, passes it to a recognizer and emits
  * recognition results. Recognition events are passed to a client using
@@ -39,25 +38,82 @@ public class SpeechStreamQueueServiceVosk {
 
     private boolean shouldDie = false;
 
-    private final Recognizer recognizer;
-    private final BlockingQueue<byte []> inputStream;
+    //so each language's recognizer thread can be told apart in traces
+    private String threadName = "VoskRecognizerThread";
+
+    //the recognizer decoding now, and the one to switch to. Only the recognizer thread switches, between frames. Both
+    //are written under recognizerLock, so isUsing can't miss a recognizer the thread is about to switch to
+    private final Object recognizerLock = new Object();
+    private volatile Recognizer recognizer;
+    private volatile Recognizer nextRecognizer;
+    private volatile long recognizerSwitches = 0;
+    private volatile RecognizerSwitchListener recognizerSwitchListener;
+
+    /** Told on the main thread after each switch, once every result from the old recognizer has been delivered. */
+    public interface RecognizerSwitchListener {
+        void onRecognizerSwitched(Recognizer recognizer);
+    }
+    private final PcmRingBuffer.Reader inputStream;
     private final int sampleRate;
     private final static float BUFFER_SIZE_SECONDS = 0.2f;
-    private final int bufferSize;
+    //how long to wait for audio before checking if we should stop
+    private final static int POLL_TIMEOUT_MS = 100;
+
+    //audio is re-framed into recognizer frames, whose size adapts between min and max based on how long each decode takes.
+    //Bigger frames mean fewer recognizer calls, smaller frames mean lower partial result latency
+    public static final int DEFAULT_MIN_FRAME_MS = 100;
+    public static final int DEFAULT_MAX_FRAME_MS = 400;
+    public static final int DEFAULT_PARTIAL_RESULT_INTERVAL_MS = 250;
+    //grow frames when decoding takes more than this fraction of the audio's duration, shrink them when it's under the low mark
+    private static final double GROW_REAL_TIME_FACTOR = 0.5;
+    private static final double SHRINK_REAL_TIME_FACTOR = 0.2;
+    private volatile int minFrameMs = DEFAULT_MIN_FRAME_MS;
+    private volatile int maxFrameMs = DEFAULT_MAX_FRAME_MS;
+    private volatile int partialResultIntervalMs = DEFAULT_PARTIAL_RESULT_INTERVAL_MS;
+
+    //decode metrics
+    private volatile int recognizerFrameMs = (int) (BUFFER_SIZE_SECONDS * 1000);
+    private volatile double decodeRealTimeFactor = 0;
+    private volatile long decodeCalls = 0;
+    private volatile long partialResults = 0;
+
+    //gates silence out of the recognizer, null to decode everything
+    private final VoiceActivityDetector voiceActivityDetector;
+
+    //catch-up mode - when we're this far behind, decode batches of frames at once (fewer, bigger recognizer calls) until we're back under half of it
+    public static final int DEFAULT_CATCH_UP_LAG_MS = 1000;
+    public static final int DEFAULT_CATCH_UP_BATCH_MS = 1000;
+    private volatile int catchUpLagMs = DEFAULT_CATCH_UP_LAG_MS;
+    private volatile int catchUpBatchMs = DEFAULT_CATCH_UP_BATCH_MS;
+
+    //recognition lag - how long ago the audio being decoded was received
+    private volatile long recognitionLagMs = 0;
+    private volatile long maxRecognitionLagMs = 0;
+    private volatile boolean catchingUp = false;
 
     private Thread recognizerThread;
 
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    //results go to the listener on the main thread through here, which throws away redundant partials
+    private volatile CoalescingRecognitionListener resultListener;
+    private volatile int partialDeliveryIntervalMs = CoalescingRecognitionListener.DEFAULT_PARTIAL_DELIVERY_INTERVAL_MS;
 
     /**
      * Creates speech service.
      **/
-    public SpeechStreamQueueServiceVosk(Recognizer recognizer, BlockingQueue inputStream, float sampleRate, int bufferSize) {
+    public SpeechStreamQueueServiceVosk(Recognizer recognizer, PcmRingBuffer.Reader inputStream, float sampleRate, int bufferSize) {
+        this(recognizer, inputStream, sampleRate, bufferSize, null);
+    }
+
+    /**
+     * Creates speech service that only decodes audio the voice activity detector thinks is speech.
+     **/
+    public SpeechStreamQueueServiceVosk(Recognizer recognizer, PcmRingBuffer.Reader inputStream, float sampleRate, int bufferSize, VoiceActivityDetector voiceActivityDetector) {
         this.recognizer = recognizer;
+        this.nextRecognizer = recognizer;
         this.sampleRate = (int) sampleRate;
         this.inputStream = inputStream;
-//        this.bufferSize = bufferSize; //Math.round(this.sampleRate * BUFFER_SIZE_SECONDS * 2);
-        this.bufferSize = Math.round(this.sampleRate * BUFFER_SIZE_SECONDS * 2);
+        this.voiceActivityDetector = voiceActivityDetector;
     }
 
     /**
@@ -69,7 +125,8 @@ public class SpeechStreamQueueServiceVosk {
         if (null != recognizerThread)
             return false;
 
-        recognizerThread = new RecognizerThread(listener);
+        recognizerThread = new RecognizerThread(coalesce(listener));
+        recognizerThread.setName(threadName);
         recognizerThread.start();
         return true;
     }
@@ -86,7 +143,8 @@ public class SpeechStreamQueueServiceVosk {
         if (null != recognizerThread)
             return false;
 
-        recognizerThread = new RecognizerThread(listener, timeout);
+        recognizerThread = new RecognizerThread(coalesce(listener), timeout);
+        recognizerThread.setName(threadName);
         recognizerThread.start();
         return true;
     }
@@ -115,6 +173,121 @@ public class SpeechStreamQueueServiceVosk {
         return true;
     }
 
+    private RecognitionListener coalesce(RecognitionListener listener){
+        CoalescingRecognitionListener coalescer = new CoalescingRecognitionListener(listener, mainHandler);
+        coalescer.setPartialDeliveryIntervalMs(partialDeliveryIntervalMs);
+        resultListener = coalescer;
+        return coalescer;
+    }
+
+    /**
+     * Decode with another recognizer (for the same model and sample rate) from the next frame on. The audio the current
+     * one has is flushed first, and its final result goes to the listener, so nothing said before the switch is lost.
+     * The old recognizer isn't closed, it belongs to whoever made it, see isUsing.
+     */
+    public void setRecognizer(Recognizer recognizer){
+        synchronized (recognizerLock) {
+            this.nextRecognizer = recognizer;
+        }
+    }
+
+    public Recognizer getRecognizer(){
+        return recognizer;
+    }
+
+    /** If the recognizer thread is decoding with this recognizer or will switch to it. If not, it's safe to close. */
+    public boolean isUsing(Recognizer recognizer){
+        synchronized (recognizerLock) {
+            return recognizer == this.recognizer || recognizer == nextRecognizer;
+        }
+    }
+
+    public void setRecognizerSwitchListener(RecognizerSwitchListener recognizerSwitchListener){
+        this.recognizerSwitchListener = recognizerSwitchListener;
+    }
+
+    public long getRecognizerSwitchCount(){
+        return recognizerSwitches;
+    }
+
+    public void setThreadName(String threadName){
+        this.threadName = threadName;
+    }
+
+    public void setCatchUpSettings(int catchUpLagMs, int catchUpBatchMs){
+        this.catchUpLagMs = catchUpLagMs;
+        this.catchUpBatchMs = catchUpBatchMs;
+    }
+
+    /**
+     * @param minFrameMs smallest recognizer frame, the frame size shrinks towards this while decoding is cheap
+     * @param maxFrameMs biggest recognizer frame, also the longest audio waits before being decoded
+     */
+    public void setFrameSettings(int minFrameMs, int maxFrameMs){
+        this.minFrameMs = minFrameMs;
+        this.maxFrameMs = Math.max(minFrameMs, maxFrameMs);
+    }
+
+    //how often to ask the recognizer for a partial result, final results are never delayed
+    public void setPartialResultIntervalMs(int partialResultIntervalMs){
+        this.partialResultIntervalMs = partialResultIntervalMs;
+    }
+
+    //how often partials are handed to the listener at most, on top of how often the recognizer is asked for them
+    public void setPartialDeliveryIntervalMs(int partialDeliveryIntervalMs){
+        this.partialDeliveryIntervalMs = partialDeliveryIntervalMs;
+        CoalescingRecognitionListener coalescer = resultListener;
+        if (coalescer != null){
+            coalescer.setPartialDeliveryIntervalMs(partialDeliveryIntervalMs);
+        }
+    }
+
+    //partials that never reached the listener because they repeated the last one or were replaced by a newer one
+    public long getDroppedPartialResultCount(){
+        CoalescingRecognitionListener coalescer = resultListener;
+        if (coalescer == null){
+            return 0;
+        }
+        return coalescer.getDuplicatePartialCount() + coalescer.getSupersededPartialCount();
+    }
+
+    public long getDeliveredPartialResultCount(){
+        CoalescingRecognitionListener coalescer = resultListener;
+        if (coalescer == null){
+            return 0;
+        }
+        return coalescer.getDeliveredPartialCount();
+    }
+
+    public int getRecognizerFrameMs(){
+        return recognizerFrameMs;
+    }
+
+    //decode time / audio duration, averaged
+    public double getDecodeRealTimeFactor(){
+        return decodeRealTimeFactor;
+    }
+
+    public long getDecodeCallCount(){
+        return decodeCalls;
+    }
+
+    public long getPartialResultCount(){
+        return partialResults;
+    }
+
+    public long getRecognitionLagMs(){
+        return recognitionLagMs;
+    }
+
+    public long getMaxRecognitionLagMs(){
+        return maxRecognitionLagMs;
+    }
+
+    public boolean isCatchingUp(){
+        return catchingUp;
+    }
+
     private final class RecognizerThread extends Thread {
 
         private int remainingSamples;
@@ -122,6 +295,19 @@ public class SpeechStreamQueueServiceVosk {
         private final static int NO_TIMEOUT = -1;
         RecognitionListener listener;
 
+        //audio from just before speech onset, replayed into the recognizer when the VAD opens
+        private short [] preRollBuffer = new short[0];
+
+        //several ring frames merged together, for catch-up mode and COALESCE
+        private short [] batchBuffer = new short[0];
+
+        //audio waiting to fill the next recognizer frame
+        private short [] pending = new short[0];
+        private int pendingLength = 0;
+        private long pendingSince = 0;
+        private int frameSamples = recognizerFrameMs * sampleRate / 1000;
+        private long lastPartialTime = 0;
+
         public RecognizerThread(RecognitionListener listener, int timeout) {
             this.listener = listener;
             if (timeout != NO_TIMEOUT)
@@ -138,27 +324,74 @@ public class SpeechStreamQueueServiceVosk {
         @Override
         public void run() {
 
-            byte[] buffer;// = new byte[bufferSize];
+            short[] buffer;// = new short[bufferSize];
 
             while (!shouldDie && !interrupted()
                     && ((timeoutSamples == NO_TIMEOUT) || (remainingSamples > 0))) {
                 try {
+                    switchRecognizerIfAsked();
+
+                    //DROP_OLDEST - skip backlog we'll never catch up on
+                    int shedSamples = inputStream.shed();
+                    if (shedSamples > 0) {
+                        Log.d(TAG, "Recognizer behind, dropped " + (shedSamples * 1000L / sampleRate) + "ms of old audio");
+                    }
+
                     //int nread = inputStream.read(buffer, 0, buffer.length);
-                    buffer = inputStream.poll(bufferSize, TimeUnit.MILLISECONDS); //we poll so that, if we need to kill this thread with an interrupt, we don't block forever on take() and never leave the loop
+                    buffer = inputStream.acquire(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS); //we wait with a timeout so that, if we need to kill this thread with an interrupt, we don't block forever and never leave the loop
                     if (buffer == null){ //if null, we want to loop again
+                        flushPendingIfStale();
                         continue;
                     }
-                    int nread = buffer.length;
+                    int nread = inputStream.getAcquiredLength();
                     if (nread < 0) {
+                        inputStream.release();
                         break;
+                    }
+                    updateLag(inputStream.getAcquiredCaptureTime());
+
+                    //when behind, merge the backlog into one bigger frame. The ring frames are given back right away
+                    boolean released = false;
+                    if (shouldBatch()) {
+                        nread = fillBatch(buffer, nread);
+                        buffer = batchBuffer;
+                        released = true;
+                    }
+
+                    int vadState = VoiceActivityDetector.SPEECH;
+                    if (voiceActivityDetector != null) {
+                        vadState = voiceActivityDetector.process(buffer, nread);
+                    }
+
+                    if (vadState == VoiceActivityDetector.SILENCE) {
+                        //VAD kept a copy for pre-roll, nothing to decode
+                        if (!released) {
+                            inputStream.release();
+                        }
                     } else {
-                        boolean isSilence = recognizer.acceptWaveForm(buffer, nread);
-                        if (isSilence) {
-                            final String result = recognizer.getResult();
-                            mainHandler.post(() -> listener.onResult(result));
-                        } else {
-                            final String partialResult = recognizer.getPartialResult();
-                            mainHandler.post(() -> listener.onPartialResult(partialResult));
+                        if (vadState == VoiceActivityDetector.SPEECH_START) {
+                            if (preRollBuffer.length < voiceActivityDetector.getPreRollCapacity()) {
+                                preRollBuffer = new short[voiceActivityDetector.getPreRollCapacity()];
+                            }
+                            int preRollLength = voiceActivityDetector.drainPreRoll(preRollBuffer);
+                            if (preRollLength > 0) {
+                                aggregate(preRollBuffer, preRollLength);
+                            }
+                        }
+
+                        //big enough frames are decoded straight out of the ring, smaller ones are copied into the next recognizer frame. Then we hand the frame back to the producer
+                        aggregate(buffer, nread);
+                        if (!released) {
+                            inputStream.release();
+                        }
+                        flushPendingIfStale();
+
+                        //speech is over, flush whatever the recognizer is holding before we stop feeding it
+                        if (vadState == VoiceActivityDetector.SPEECH_END) {
+                            flushPending();
+                            final String result = recognizer.getFinalResult();
+                            listener.onResult(result);
+                            Log.d(TAG, "VAD speech duty cycle: " + Math.round(voiceActivityDetector.getSpeechDutyCycle() * 100) + "% (speech " + voiceActivityDetector.getSpeechMs() + "ms, silence " + voiceActivityDetector.getSilenceMs() + "ms)");
                         }
                     }
 
@@ -167,17 +400,168 @@ public class SpeechStreamQueueServiceVosk {
                     }
 
                 } catch (InterruptedException e) {
-                    mainHandler.post(() -> listener.onError(e));
+                    listener.onError(e);
                 }
             }
 
+            flushPending();
+
             // If we met timeout signal that speech ended
             if (timeoutSamples != NO_TIMEOUT && remainingSamples <= 0) {
-                mainHandler.post(() -> listener.onTimeout());
+                listener.onTimeout();
             } else {
                 final String finalResult = recognizer.getFinalResult();
-                mainHandler.post(() -> listener.onFinalResult(finalResult));
+                listener.onFinalResult(finalResult);
+            }
+        }
+
+        private void switchRecognizerIfAsked() {
+            Recognizer next = nextRecognizer;
+            if (next == recognizer) {
+                return;
+            }
+            flushPending();
+            final String result = recognizer.getFinalResult();
+            listener.onResult(result);
+            final Recognizer switchedTo;
+            synchronized (recognizerLock) {
+                //whatever was asked for last, it might have changed while we flushed
+                recognizer = nextRecognizer;
+                switchedTo = recognizer;
+            }
+            recognizerSwitches++;
+
+            //after the old recognizer's result on the same handler, so it's delivered after every result it gave
+            RecognizerSwitchListener switchListener = recognizerSwitchListener;
+            if (switchListener != null) {
+                mainHandler.post(() -> switchListener.onRecognizerSwitched(switchedTo));
+            }
+        }
+
+        private void updateLag(long captureTime) {
+            long lag = Math.max(0, System.currentTimeMillis() - captureTime);
+            recognitionLagMs = lag;
+            if (lag > maxRecognitionLagMs) {
+                maxRecognitionLagMs = lag;
+            }
+
+            int threshold = catchUpLagMs;
+            if (!catchingUp && lag > threshold) {
+                catchingUp = true;
+                Log.d(TAG, "Recognizer " + lag + "ms behind, entering catch-up mode");
+            } else if (catchingUp && lag < threshold / 2) {
+                catchingUp = false;
+                Log.d(TAG, "Recognizer caught up, lag " + lag + "ms");
+            }
+        }
+
+        private boolean shouldBatch() {
+            if (inputStream.size() <= 1) {
+                return false; //nothing waiting behind the frame we hold
+            }
+            return catchingUp || inputStream.getOverflowPolicy() == PcmRingBuffer.OverflowPolicy.COALESCE;
+        }
+
+        //copy the acquired frame and as many waiting frames as fit into the batch buffer, releasing each. Returns the batch length
+        private int fillBatch(short [] first, int firstLength) throws InterruptedException {
+            int batchSamples = Math.max(catchUpBatchMs * sampleRate / 1000, inputStream.getFrameSamples());
+            if (batchBuffer.length != batchSamples) {
+                batchBuffer = new short[batchSamples];
+            }
+
+            System.arraycopy(first, 0, batchBuffer, 0, firstLength);
+            inputStream.release();
+            int length = firstLength;
+            while (inputStream.size() > 0) {
+                short [] next = inputStream.acquire(0, TimeUnit.MILLISECONDS);
+                int n = inputStream.getAcquiredLength();
+                if (length + n > batchBuffer.length) {
+                    break; //frame stays acquired, the main loop picks it up next
+                }
+                System.arraycopy(next, 0, batchBuffer, length, n);
+                inputStream.release();
+                length += n;
+            }
+            return length;
+        }
+
+        //re-frame audio into recognizer frames of frameSamples
+        private void aggregate(short [] samples, int length) {
+            int maxFrameSamples = maxFrameMs * sampleRate / 1000;
+            if (pending.length != maxFrameSamples) {
+                flushPending();
+                pending = new short[maxFrameSamples];
+            }
+            frameSamples = Math.max(minFrameMs * sampleRate / 1000, Math.min(maxFrameSamples, frameSamples));
+
+            //nothing waiting and the input is already a full frame, no need to copy
+            if (pendingLength == 0 && length >= frameSamples) {
+                decode(samples, length);
+                return;
+            }
+
+            int offset = 0;
+            while (offset < length) {
+                if (pendingLength == 0) {
+                    pendingSince = System.currentTimeMillis();
+                }
+                int n = Math.min(length - offset, frameSamples - pendingLength);
+                System.arraycopy(samples, offset, pending, pendingLength, n);
+                pendingLength += n;
+                offset += n;
+                if (pendingLength >= frameSamples) {
+                    flushPending();
+                }
+            }
+        }
+
+        private void flushPending() {
+            if (pendingLength > 0) {
+                decode(pending, pendingLength);
+                pendingLength = 0;
+            }
+        }
+
+        //don't let audio sit in a half full frame for longer than the max frame length
+        private void flushPendingIfStale() {
+            if (pendingLength > 0 && System.currentTimeMillis() - pendingSince >= maxFrameMs) {
+                flushPending();
+            }
+        }
+
+        private void decode(short [] samples, int length) {
+            long start = System.nanoTime();
+            boolean isSilence = recognizer.acceptWaveForm(samples, length);
+            adaptFrameSize(System.nanoTime() - start, length);
+
+            long now = System.currentTimeMillis();
+            if (isSilence) {
+                final String result = recognizer.getResult();
+                listener.onResult(result);
+                lastPartialTime = now;
+            } else if (now - lastPartialTime >= partialResultIntervalMs) {
+                //partials are only asked for at the set cadence, each one is a JSON string across JNI and a main thread post
+                final String partialResult = recognizer.getPartialResult();
+                listener.onPartialResult(partialResult);
+                lastPartialTime = now;
+                partialResults++;
+            }
+        }
+
+        private void adaptFrameSize(long decodeNanos, int length) {
+            decodeCalls++;
+            double audioNanos = length * 1e9 / sampleRate;
+            double rtf = decodeRealTimeFactor * 0.8 + (decodeNanos / audioNanos) * 0.2;
+            decodeRealTimeFactor = rtf;
+
+            int minFrameSamples = minFrameMs * sampleRate / 1000;
+            int maxFrameSamples = maxFrameMs * sampleRate / 1000;
+            if (rtf > GROW_REAL_TIME_FACTOR && frameSamples < maxFrameSamples) {
+                frameSamples = Math.min(maxFrameSamples, frameSamples * 5 / 4);
+            } else if (rtf < SHRINK_REAL_TIME_FACTOR && frameSamples > minFrameSamples) {
+                frameSamples = Math.max(minFrameSamples, frameSamples * 4 / 5);
             }
+            recognizerFrameMs = frameSamples * 1000 / sampleRate;
         }
     }
 }
@@ -0,0 +1,217 @@
+package com.smartglassesmanager.androidsmartphone.speechrecognition;
+
+/**
+ * Streaming energy + zero crossing voice activity detector that gates audio going into the recognizer,
+ * so we don't burn CPU decoding silence all day.
+ *
+ * Each frame is split into short analysis windows. A window is speech if it's loud enough, or if it's
+ * a bit quieter but has a high zero crossing rate (unvoiced sounds like "s" and "f"). After speech stops
+ * we keep decoding for a hangover period so word endings aren't cut, and while silent we keep a short
+ * pre-roll of audio so the recognizer also gets the word onset that triggered the detector.
+ *
+ * Not thread safe except for the settings, only the recognizer thread should call {@link #process(short[], int)}.
+ */
+public class VoiceActivityDetector {
+    //process() results
+    public static final int SILENCE = 0;
+    public static final int SPEECH_START = 1;
+    public static final int SPEECH = 2;
+    public static final int SPEECH_END = 3;
+
+    //defaults, can be overridden per smart glasses device
+    public static final double DEFAULT_ENERGY_THRESHOLD_DB = -45.0;
+    public static final double DEFAULT_ZERO_CROSSING_THRESHOLD = 0.25;
+    public static final int DEFAULT_HANGOVER_MS = 800;
+    public static final int DEFAULT_PRE_ROLL_MS = 400;
+
+    //unvoiced windows can be this much quieter than the energy threshold if their zero crossing rate is high
+    private static final double UNVOICED_ENERGY_MARGIN_DB = 6.0;
+    private static final int WINDOW_MS = 20;
+
+    private final int sampleRate;
+    private final int windowSamples;
+
+    //settings
+    private volatile boolean enabled = true;
+    private volatile double energyThresholdDb = DEFAULT_ENERGY_THRESHOLD_DB;
+    private volatile double zeroCrossingThreshold = DEFAULT_ZERO_CROSSING_THRESHOLD;
+    private volatile int hangoverSamples;
+    private volatile int preRollSamples;
+
+    //state
+    private boolean inSpeech = false;
+    private int samplesSinceSpeech = 0;
+
+    //pre-roll, circular buffer of the most recent silent samples
+    private short [] preRoll;
+    private int preRollStart = 0;
+    private int preRollCount = 0;
+
+    //metrics
+    private long speechSamples = 0;
+    private long silenceSamples = 0;
+    private long speechSegments = 0;
+
+    public VoiceActivityDetector(int sampleRate){
+        this.sampleRate = sampleRate;
+        this.windowSamples = sampleRate * WINDOW_MS / 1000;
+        setSettings(DEFAULT_ENERGY_THRESHOLD_DB, DEFAULT_ZERO_CROSSING_THRESHOLD, DEFAULT_HANGOVER_MS, DEFAULT_PRE_ROLL_MS);
+    }
+
+    /**
+     * @param energyThresholdDb window RMS level in dBFS above which it's considered speech
+     * @param zeroCrossingThreshold zero crossings per sample above which a slightly quieter window is considered (unvoiced) speech
+     * @param hangoverMs how long to keep decoding after the last speech window
+     * @param preRollMs how much audio from before the speech onset to hand the recognizer
+     */
+    public synchronized void setSettings(double energyThresholdDb, double zeroCrossingThreshold, int hangoverMs, int preRollMs){
+        this.energyThresholdDb = energyThresholdDb;
+        this.zeroCrossingThreshold = zeroCrossingThreshold;
+        this.hangoverSamples = hangoverMs * sampleRate / 1000;
+        this.preRollSamples = preRollMs * sampleRate / 1000;
+    }
+
+    public void setEnabled(boolean enabled){
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * Classify the next frame of audio. Silent frames are kept in the pre-roll. On SPEECH_START the caller
+     * should drain the pre-roll into the recognizer before the frame itself. SPEECH and SPEECH_END frames
+     * should be decoded, and SPEECH_END means the utterance is over.
+     */
+    public int process(short [] frame, int length){
+        if (!enabled){
+            speechSamples += length;
+            return SPEECH;
+        }
+
+        boolean anySpeech = false;
+        double energyThreshold = energyThresholdDb;
+        double unvoicedThreshold = energyThreshold - UNVOICED_ENERGY_MARGIN_DB;
+        double zcrThreshold = zeroCrossingThreshold;
+        for (int start = 0; start < length && !anySpeech; start += windowSamples){
+            int end = Math.min(length, start + windowSamples);
+            double sumSquares = 0;
+            int crossings = 0;
+            short prev = frame[start];
+            for (int i = start; i < end; i++){
+                short s = frame[i];
+                sumSquares += s * s;
+                if ((s >= 0) != (prev >= 0)){
+                    crossings++;
+                }
+                prev = s;
+            }
+            int n = end - start;
+            double rms = Math.sqrt(sumSquares / n);
+            double levelDb = 20 * Math.log10(Math.max(rms, 1.0) / 32768.0);
+            double zcr = (double) crossings / n;
+            if (levelDb >= energyThreshold || (levelDb >= unvoicedThreshold && zcr >= zcrThreshold)){
+                anySpeech = true;
+            }
+        }
+
+        int result;
+        if (anySpeech){
+            samplesSinceSpeech = 0;
+            if (inSpeech){
+                result = SPEECH;
+            } else {
+                inSpeech = true;
+                speechSegments++;
+                result = SPEECH_START;
+            }
+        } else if (inSpeech){
+            samplesSinceSpeech += length;
+            if (samplesSinceSpeech >= hangoverSamples){
+                inSpeech = false;
+                result = SPEECH_END;
+            } else {
+                result = SPEECH;
+            }
+        } else {
+            addPreRoll(frame, length);
+            result = SILENCE;
+        }
+
+        if (result == SILENCE){
+            silenceSamples += length;
+        } else {
+            speechSamples += length;
+        }
+        return result;
+    }
+
+    private void addPreRoll(short [] frame, int length){
+        int capacity = preRollSamples;
+        if (capacity <= 0){
+            return;
+        }
+        if (preRoll == null || preRoll.length != capacity){
+            preRoll = new short[capacity];
+            preRollStart = 0;
+            preRollCount = 0;
+        }
+
+        //only the tail of the frame can fit
+        int offset = Math.max(0, length - capacity);
+        for (int i = offset; i < length; i++){
+            int idx = (preRollStart + preRollCount) % capacity;
+            preRoll[idx] = frame[i];
+            if (preRollCount < capacity){
+                preRollCount++;
+            } else {
+                preRollStart = (preRollStart + 1) % capacity;
+            }
+        }
+    }
+
+    /** Max number of samples {@link #drainPreRoll(short[])} can return, use it to size the output buffer. */
+    public int getPreRollCapacity(){
+        return preRollSamples;
+    }
+
+    /** Copy the pre-roll into out in chronological order and clear it. Returns the number of samples copied. */
+    public int drainPreRoll(short [] out){
+        int n = Math.min(preRollCount, out.length);
+        int skip = preRollCount - n; //if out is too small, keep the most recent audio
+        for (int i = 0; i < n; i++){
+            out[i] = preRoll[(preRollStart + skip + i) % preRoll.length];
+        }
+        preRollStart = 0;
+        preRollCount = 0;
+        return n;
+    }
+
+    public boolean isInSpeech(){
+        return inSpeech;
+    }
+
+    //METRICS
+
+    public long getSpeechMs(){
+        return speechSamples * 1000 / sampleRate;
+    }
+
+    public long getSilenceMs(){
+        return silenceSamples * 1000 / sampleRate;
+    }
+
+    public long getSpeechSegmentCount(){
+        return speechSegments;
+    }
+
+    /** Fraction of audio that was sent to the recognizer, 0 to 1. */
+    public double getSpeechDutyCycle(){
+        long total = speechSamples + silenceSamples;
+        if (total == 0){
+            return 0;
+        }
+        return (double) speechSamples / total;
+    }
+}
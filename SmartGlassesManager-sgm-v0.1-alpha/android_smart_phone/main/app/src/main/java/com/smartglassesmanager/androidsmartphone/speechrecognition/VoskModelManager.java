@@ -0,0 +1,308 @@
+package com.smartglassesmanager.androidsmartphone.speechrecognition;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import org.vosk.Model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Unpacks and loads Vosk models, once per app run and (for unpacking) once per model version.
+ *
+ * Each model asset folder carries a "uuid" file with a hash of the model's content, generated at build time.
+ * A model is copied out of the apk into app storage only if the unpacked copy's hash doesn't match, so normal
+ * starts skip straight to loading. The hash is written last, after everything else is copied, so a crash halfway
+ * through an unpack is caught next start. Next to it is a manifest of every unpacked file and its size, and a matching
+ * hash only counts if every file is still there at that size, so a copy that was cleaned up or truncated since (low
+ * storage, backup restore) is unpacked again instead of failing to load.
+ *
+ * Unpacking and loading happen on a background thread, callers get a future that completes with the model.
+ * Loaded models are shared by everyone asking for the same model, until {@link #destroy()}.
+ */
+public class VoskModelManager {
+    private static final String TAG = "WearableAi_VoskModelManager";
+
+    private static final String HASH_FILE = "uuid";
+    //size and path of every file we unpacked, written before the hash
+    private static final String MANIFEST_FILE = "unpacked_files";
+    private static final String MODELS_DIR = "vosk_models";
+
+    private static VoskModelManager myself;
+
+    private final Context context;
+    //one thread - models are big, loading two at once only makes the first one (usually the base language) slower
+    private final ExecutorService modelExecutor = Executors.newSingleThreadExecutor();
+    private final Map<String, CompletableFuture<Model>> models = new ConcurrentHashMap<>();
+
+    //startup metrics, per model
+    private final Map<String, Long> unpackMs = new ConcurrentHashMap<>();
+    private final Map<String, Long> loadMs = new ConcurrentHashMap<>();
+
+    private VoskModelManager(Context context){
+        this.context = context.getApplicationContext();
+    }
+
+    public static synchronized VoskModelManager getInstance(Context context){
+        if (myself == null){
+            myself = new VoskModelManager(context);
+        }
+        return myself;
+    }
+
+    /**
+     * Get the model in the given asset folder, unpacking and loading it in the background if it isn't loaded yet.
+     * A failed load isn't kept, the next call tries again.
+     */
+    public CompletableFuture<Model> getModel(String modelLocation){
+        CompletableFuture<Model> future = new CompletableFuture<>();
+        CompletableFuture<Model> existing = models.putIfAbsent(modelLocation, future);
+        if (existing != null){
+            return existing;
+        }
+        modelExecutor.execute(() -> {
+            try {
+                future.complete(loadModel(modelLocation));
+            } catch (IOException | RuntimeException e){
+                e.printStackTrace();
+                //out of the map before anyone sees the failure, so whoever retries gets a new load
+                models.remove(modelLocation, future);
+                future.completeExceptionally(new RuntimeException("Failed to load the model " + modelLocation + ": " + e.getMessage(), e));
+            }
+        });
+        return future;
+    }
+
+    private Model loadModel(String modelLocation) throws IOException {
+        long start = System.currentTimeMillis();
+        File modelDir = unpack(modelLocation);
+        long unpacked = System.currentTimeMillis();
+        Model model;
+        try {
+            model = new Model(modelDir.getAbsolutePath());
+        } catch (Exception e){
+            //the files are all there but vosk can't load them, so don't trust this copy on the next try
+            new File(modelDir, HASH_FILE).delete();
+            throw e;
+        }
+        long loaded = System.currentTimeMillis();
+
+        unpackMs.put(modelLocation, unpacked - start);
+        loadMs.put(modelLocation, loaded - unpacked);
+        Log.d(TAG, "Model " + modelLocation + " ready, unpack: " + (unpacked - start) + "ms, load: " + (loaded - unpacked) + "ms");
+        return model;
+    }
+
+    //copy the model out of the apk, unless the copy we already have is the same version
+    private File unpack(String modelLocation) throws IOException {
+        AssetManager assets = context.getAssets();
+        File modelDir = new File(new File(context.getFilesDir(), MODELS_DIR), modelLocation);
+
+        String assetHash = readAssetHash(assets, modelLocation);
+        if (assetHash != null && assetHash.equals(readHash(new File(modelDir, HASH_FILE))) && isUnpacked(modelDir)){
+            Log.d(TAG, "Model " + modelLocation + " already unpacked, hash " + assetHash);
+            return modelDir;
+        }
+
+        Log.d(TAG, "Unpacking model " + modelLocation);
+        //vosk's StorageService used to unpack models into external storage, those copies are dead weight now
+        File externalDir = context.getExternalFilesDir(null);
+        if (externalDir != null){
+            deleteRecursive(new File(externalDir, "model"));
+            deleteRecursive(new File(externalDir, modelLocation));
+        }
+        //unpack next to the real folder and swap it in, so a half unpacked model is never used
+        File tmpDir = new File(modelDir.getParentFile(), modelLocation + ".tmp");
+        deleteRecursive(tmpDir);
+        copyAssets(assets, modelLocation, tmpDir);
+        new File(tmpDir, HASH_FILE).delete();
+        writeManifest(tmpDir);
+        deleteRecursive(modelDir);
+        if (!tmpDir.renameTo(modelDir)){
+            throw new IOException("Can't move unpacked model into " + modelDir.getPath());
+        }
+        //the hash goes in last, it's what marks the unpack as complete
+        if (assetHash != null){
+            writeHash(new File(modelDir, HASH_FILE), assetHash);
+        }
+        return modelDir;
+    }
+
+    private static String readAssetHash(AssetManager assets, String modelLocation){
+        try (InputStream in = assets.open(modelLocation + "/" + HASH_FILE)){
+            return readAll(in).trim();
+        } catch (IOException e){
+            Log.d(TAG, "No hash for model " + modelLocation + ", it will be unpacked every start");
+            return null;
+        }
+    }
+
+    private static String readHash(File file){
+        if (!file.exists()){
+            return null;
+        }
+        try (InputStream in = new FileInputStream(file)){
+            return readAll(in).trim();
+        } catch (IOException e){
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static void writeHash(File file, String hash) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)){
+            out.write(hash.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+    }
+
+    private static void writeManifest(File modelDir) throws IOException {
+        List<String> paths = new ArrayList<>();
+        listFiles(modelDir, "", paths);
+        StringBuilder manifest = new StringBuilder();
+        for (String path : paths){
+            manifest.append(new File(modelDir, path).length()).append(' ').append(path).append('\n');
+        }
+        try (OutputStream out = new FileOutputStream(new File(modelDir, MANIFEST_FILE))){
+            out.write(manifest.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+    }
+
+    private static void listFiles(File dir, String prefix, List<String> paths){
+        File [] children = dir.listFiles();
+        if (children == null){
+            return;
+        }
+        for (File child : children){
+            String path = prefix + child.getName();
+            if (child.isDirectory()){
+                listFiles(child, path + "/", paths);
+            } else if (!path.equals(HASH_FILE) && !path.equals(MANIFEST_FILE)){
+                paths.add(path);
+            }
+        }
+    }
+
+    //every file in the manifest is there, at the size it was unpacked with
+    private static boolean isUnpacked(File modelDir){
+        File manifestFile = new File(modelDir, MANIFEST_FILE);
+        if (!manifestFile.exists()){
+            Log.d(TAG, "No manifest in " + modelDir.getPath() + ", unpacking again");
+            return false;
+        }
+        String manifest;
+        try (InputStream in = new FileInputStream(manifestFile)){
+            manifest = readAll(in);
+        } catch (IOException e){
+            e.printStackTrace();
+            return false;
+        }
+        int files = 0;
+        for (String line : manifest.split("\n")){
+            if (line.isEmpty()){
+                continue;
+            }
+            int space = line.indexOf(' ');
+            if (space <= 0){
+                Log.d(TAG, "Bad manifest line in " + modelDir.getPath() + ": " + line);
+                return false;
+            }
+            File file = new File(modelDir, line.substring(space + 1));
+            long size;
+            try {
+                size = Long.parseLong(line.substring(0, space));
+            } catch (NumberFormatException e){
+                Log.d(TAG, "Bad manifest line in " + modelDir.getPath() + ": " + line);
+                return false;
+            }
+            if (!file.isFile() || file.length() != size){
+                Log.d(TAG, "Unpacked model file " + file.getPath() + " is missing or the wrong size, unpacking again");
+                return false;
+            }
+            files++;
+        }
+        return files > 0;
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        byte [] buffer = new byte[256];
+        int n;
+        while ((n = in.read(buffer)) > 0){
+            sb.append(new String(buffer, 0, n, StandardCharsets.UTF_8));
+        }
+        return sb.toString();
+    }
+
+    //assets have no directory flag, a path that lists children is a folder
+    private static void copyAssets(AssetManager assets, String assetPath, File target) throws IOException {
+        String [] children = assets.list(assetPath);
+        if (children != null && children.length > 0){
+            if (!target.exists() && !target.mkdirs()){
+                throw new IOException("Can't make dir " + target.getPath());
+            }
+            for (String child : children){
+                copyAssets(assets, assetPath + "/" + child, new File(target, child));
+            }
+            return;
+        }
+
+        byte [] buffer = new byte[64 * 1024];
+        try (InputStream in = assets.open(assetPath); OutputStream out = new FileOutputStream(target)){
+            int n;
+            while ((n = in.read(buffer)) > 0){
+                out.write(buffer, 0, n);
+            }
+        }
+    }
+
+    private static void deleteRecursive(File file){
+        File [] children = file.listFiles();
+        if (children != null){
+            for (File child : children){
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+
+    //METRICS
+
+    /** Time spent unpacking the model this run, 0 if the unpacked copy was reused, -1 if it isn't loaded. */
+    public long getUnpackMs(String modelLocation){
+        Long ms = unpackMs.get(modelLocation);
+        return (ms == null) ? -1 : ms;
+    }
+
+    public long getLoadMs(String modelLocation){
+        Long ms = loadMs.get(modelLocation);
+        return (ms == null) ? -1 : ms;
+    }
+
+    /** Free all loaded models. Recognizers using them must already be stopped. */
+    public synchronized void destroy(){
+        modelExecutor.shutdownNow();
+        for (CompletableFuture<Model> future : models.values()){
+            if (future.isDone() && !future.isCompletedExceptionally()){
+                future.join().close();
+            }
+        }
+        models.clear();
+        myself = null;
+    }
+}
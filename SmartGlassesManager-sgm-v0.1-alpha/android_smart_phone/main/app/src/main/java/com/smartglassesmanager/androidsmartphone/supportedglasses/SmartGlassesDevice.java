@@ -1,5 +1,7 @@
 package com.smartglassesmanager.androidsmartphone.supportedglasses;
 
+import com.smartglassesmanager.androidsmartphone.speechrecognition.VoiceActivityDetector;
+
 public class SmartGlassesDevice {
     public String deviceModelName;
     public String deviceIconName;
@@ -13,6 +15,12 @@ public class SmartGlassesDevice {
     public boolean hasOutMic;
     public double weight;
 
+    //voice activity detection settings, mics have different noise floors so devices can override these
+    public double vadEnergyThresholdDb = VoiceActivityDetector.DEFAULT_ENERGY_THRESHOLD_DB;
+    public double vadZeroCrossingThreshold = VoiceActivityDetector.DEFAULT_ZERO_CROSSING_THRESHOLD;
+    public int vadHangoverMs = VoiceActivityDetector.DEFAULT_HANGOVER_MS;
+    public int vadPreRollMs = VoiceActivityDetector.DEFAULT_PRE_ROLL_MS;
+
     public int connectionState = -1; //0 is not connected, 1 is trying to connect, 2 is connected
 
     public String getDeviceModelName() {
@@ -103,6 +111,38 @@ public class SmartGlassesDevice {
         this.weight = weight;
     }
 
+    public double getVadEnergyThresholdDb() {
+        return vadEnergyThresholdDb;
+    }
+
+    public void setVadEnergyThresholdDb(double vadEnergyThresholdDb) {
+        this.vadEnergyThresholdDb = vadEnergyThresholdDb;
+    }
+
+    public double getVadZeroCrossingThreshold() {
+        return vadZeroCrossingThreshold;
+    }
+
+    public void setVadZeroCrossingThreshold(double vadZeroCrossingThreshold) {
+        this.vadZeroCrossingThreshold = vadZeroCrossingThreshold;
+    }
+
+    public int getVadHangoverMs() {
+        return vadHangoverMs;
+    }
+
+    public void setVadHangoverMs(int vadHangoverMs) {
+        this.vadHangoverMs = vadHangoverMs;
+    }
+
+    public int getVadPreRollMs() {
+        return vadPreRollMs;
+    }
+
+    public void setVadPreRollMs(int vadPreRollMs) {
+        this.vadPreRollMs = vadPreRollMs;
+    }
+
     public int getConnectionState() {
         return connectionState;
     }
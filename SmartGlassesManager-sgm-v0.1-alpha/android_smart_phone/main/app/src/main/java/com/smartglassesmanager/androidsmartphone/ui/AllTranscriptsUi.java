@@ -3,6 +3,9 @@ package com.smartglassesmanager.androidsmartphone.ui;
 //this has a few different modes of being. in general, it shows a list of transcripts, but it may exhibit different behaviour depending no what is passed in the fragment args bundle
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
 
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
@@ -18,14 +21,18 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.EditText;
 
 import androidx.navigation.NavController;
 import androidx.navigation.Navigation;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import com.smartglassesmanager.androidsmartphone.database.memorycache.MemoryCacheViewModel;
 import com.smartglassesmanager.androidsmartphone.database.phrase.Phrase;
+import com.smartglassesmanager.androidsmartphone.database.phrase.PhrasePager;
+import com.smartglassesmanager.androidsmartphone.database.phrase.PhraseSearchResult;
 import com.smartglassesmanager.androidsmartphone.database.phrase.PhraseViewModel;
 
 import com.smartglassesmanager.androidsmartphone.R;
@@ -48,10 +55,22 @@ public class AllTranscriptsUi extends Fragment implements ItemClickListenerPhras
     private long stopTime;
 
     private PhraseViewModel mPhraseViewModel;
+    private PhrasePager mPhrasePager;
+    //start loading the next page when we're this many rows from the end of what's loaded
+    private static final int PAGE_PREFETCH_DISTANCE = PhrasePager.PAGE_SIZE / 2;
     private MemoryCacheViewModel mMemoryCacheViewModel;
 
     private NavController navController;
 
+    //search - wait for a pause in typing before searching, and show the full list again when the box is cleared
+    private static final int SEARCH_DELAY_MS = 250;
+    private static final int SEARCH_RESULT_LIMIT = 200;
+    private final Handler searchHandler = new Handler();
+    private Runnable pendingSearch;
+    private String searchText = "";
+    private int searchCount = 0;
+    private List<Phrase> livePhrases;
+
     @Override
     public void onClick(View view, Phrase phrase){
         Log.d(TAG, "Click on transcript");
@@ -134,24 +153,96 @@ public class AllTranscriptsUi extends Fragment implements ItemClickListenerPhras
         mPhraseViewModel = new ViewModelProvider(this).get(PhraseViewModel.class);
         mMemoryCacheViewModel = new ViewModelProvider(this).get(MemoryCacheViewModel.class);
 
-        if (startTimeFlag) {
-            mPhraseViewModel.getPhraseRange(startTime, stopTime).observe(this, new Observer<List<Phrase>>() {
-                @Override
-                public void onChanged(@Nullable final List<Phrase> phrases) {
-                    // Update the cached copy of the words in the adapter.
-                    adapter.setPhrases(phrases);
+        //the list is paged, newest first, only the newest page is live
+        final long listStartTime = startTimeFlag ? startTime : 0;
+        final long listStopTime = startTimeFlag ? stopTime : Long.MAX_VALUE;
+        mPhrasePager = mPhraseViewModel.getPager(listStartTime, listStopTime);
+
+        Observer<List<Phrase>> phrasesObserver = new Observer<List<Phrase>>() {
+            @Override
+            public void onChanged(@Nullable final List<Phrase> phrases) {
+                // Update the cached copy of the words in the adapter, unless we're showing search results
+                livePhrases = phrases;
+                if (searchText.isEmpty()) {
+                    //if we're looking at the newest transcript, keep it in view as new ones come in
+                    boolean followNewest = linearLayoutManager.findFirstVisibleItemPosition() <= 0;
+                    adapter.setPhrases(phrases, () -> {
+                        if (followNewest && mPhrasePager.isAtNewest()) {
+                            recyclerView.scrollToPosition(0);
+                        }
+                    });
                 }
-            });
-        } else {
-            mPhraseViewModel.getAllPhrases().observe(this, new Observer<List<Phrase>>() {
-                @Override
-                public void onChanged(@Nullable final List<Phrase> phrases) {
-                    // Update the cached copy of the words in the adapter.
-                    adapter.setPhrases(phrases);
+            }
+        };
+        mPhrasePager.getPhrases().observe(getViewLifecycleOwner(), phrasesObserver);
+
+        //load pages as we get near either end of what's loaded. The layout is reversed, higher positions are older
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (!searchText.isEmpty() || adapter.getItemCount() == 0) {
+                    return;
                 }
-            });
-        }
+                if (linearLayoutManager.findLastVisibleItemPosition() >= adapter.getItemCount() - 1 - PAGE_PREFETCH_DISTANCE) {
+                    mPhrasePager.loadOlder();
+                }
+                if (linearLayoutManager.findFirstVisibleItemPosition() <= PAGE_PREFETCH_DISTANCE) {
+                    mPhrasePager.loadNewer();
+                }
+            }
+        });
+
+        //search box, searches the same time range as the list
+        final long searchStartTime = listStartTime;
+        final long searchStopTime = listStopTime;
+        EditText searchBox = view.findViewById(R.id.transcript_search);
+        searchBox.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
 
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                searchText = s.toString().trim();
+                if (pendingSearch != null) {
+                    searchHandler.removeCallbacks(pendingSearch);
+                }
+                if (searchText.isEmpty()) {
+                    searchCount++; //drop any search still running
+                    adapter.setPhrases(livePhrases);
+                    return;
+                }
+                pendingSearch = () -> search(adapter, searchText, searchStartTime, searchStopTime);
+                searchHandler.postDelayed(pendingSearch, SEARCH_DELAY_MS);
+            }
+        });
+    }
+
+    private void search(PhraseListAdapter adapter, String text, long startTime, long stopTime){
+        final int thisSearch = ++searchCount;
+        mPhraseViewModel.search(text, startTime, stopTime, SEARCH_RESULT_LIMIT, results -> {
+            if (thisSearch != searchCount || !isAdded()) {
+                return; //the text changed since, a newer search is coming
+            }
+            List<Phrase> phrases = new ArrayList<>(results.size());
+            for (PhraseSearchResult result : results) {
+                phrases.add(result.getPhrase());
+            }
+            Log.d(TAG, "Search for '" + text + "' found " + phrases.size() + " transcripts");
+            adapter.setPhrases(phrases);
+        });
+    }
+
+    @Override
+    public void onDestroyView() {
+        if (pendingSearch != null) {
+            searchHandler.removeCallbacks(pendingSearch);
+        }
+        super.onDestroyView();
     }
 
 //    private void nameCache(){
@@ -10,6 +10,9 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.ProgressBar;
+import android.widget.RadioGroup;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
@@ -22,16 +25,12 @@ import androidx.navigation.Navigation;
 
 import com.google.android.material.datepicker.MaterialDatePicker;
 import com.google.android.material.datepicker.MaterialPickerOnPositiveButtonClickListener;
-import com.opencsv.CSVWriter;
 import com.smartglassesmanager.androidsmartphone.R;
-import com.smartglassesmanager.androidsmartphone.database.phrase.Phrase;
+import com.smartglassesmanager.androidsmartphone.database.phrase.PhraseExporter;
 import com.smartglassesmanager.androidsmartphone.database.phrase.PhraseRepository;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.util.Calendar;
-import java.util.List;
 
 public class ExportDataUi extends Fragment {
     private  final String TAG = "WearableAi_ExportDataUiFragment";
@@ -40,6 +39,14 @@ public class ExportDataUi extends Fragment {
 
     private NavController navController;
     private PhraseRepository mPhraseRepository;
+    private PhraseExporter mPhraseExporter;
+    private PhraseExporter.Export runningExport;
+
+    private Button mExportDataButton;
+    private RadioGroup mFormatRadioGroup;
+    private CheckBox mGzipCheckBox;
+    private ProgressBar mExportProgressBar;
+    private TextView mExportStatusTextView;
 
     private MaterialDatePicker materialDatePicker;
     private Long startDate;
@@ -69,14 +76,19 @@ public class ExportDataUi extends Fragment {
         UiUtils.setupTitle(getActivity(), fragmentLabel);
 
         mPhraseRepository = new PhraseRepository(getActivity().getApplication());
+        mPhraseExporter = new PhraseExporter(mPhraseRepository);
 
         navController = Navigation.findNavController(getActivity(), R.id.nav_host_fragment);
 
         // now register the text view and the button with
         // their appropriate IDs
         Button mPickDateButton = view.findViewById(R.id.pick_date_button);
-        Button mExportDataButton = view.findViewById(R.id.export_data_button);
+        mExportDataButton = view.findViewById(R.id.export_data_button);
         TextView mDateRangeDisplayTextView = view.findViewById(R.id.export_date_range_text_view);
+        mFormatRadioGroup = view.findViewById(R.id.export_format_radio_group);
+        mGzipCheckBox = view.findViewById(R.id.export_gzip_checkbox);
+        mExportProgressBar = view.findViewById(R.id.export_progress_bar);
+        mExportStatusTextView = view.findViewById(R.id.export_status_text_view);
 
         //setup date range picker
         // now create instance of the material date picker
@@ -146,6 +158,11 @@ public class ExportDataUi extends Fragment {
                 new View.OnClickListener() {
                     @Override
                     public void onClick(View v) {
+                        //the same button cancels an export that's running
+                        if (runningExport != null) {
+                            runningExport.cancel();
+                            return;
+                        }
                         startDataExport();
                         //sendDataEmail();
                     }
@@ -172,49 +189,68 @@ public class ExportDataUi extends Fragment {
 //        dialog.show();
 //    }
 
-    //this export is ugly and we should rewrite it to better tie into room, especially when we add more data
-    //not exactly sure best way to do it yet
+    //streams the range out on a background thread, see PhraseExporter
     private void startDataExport(){
-        List<Phrase> phrases = mPhraseRepository.getPhraseRangeSnapshot(startDate, stopDate);
-
-
-        try {
-            String prettyDate = Calendar.getInstance().getTime().toString().replaceAll("\\s", "_").replaceAll(":", "-");
-            String fileName = "WIS_data_export_" + prettyDate + ".csv";
-            File csvfile = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS) + "/" + fileName);
-            String filePath = csvfile.toString();
-            File f = new File(filePath);
-            CSVWriter writer;
-
-            // File exist
-            if(f.exists()&&!f.isDirectory())
-            {
-                FileWriter mFileWriter = new FileWriter(filePath, true);
-                writer = new CSVWriter(mFileWriter, ',', CSVWriter.NO_QUOTE_CHARACTER);
+        PhraseExporter.Format format = (mFormatRadioGroup.getCheckedRadioButtonId() == R.id.export_format_jsonl) ? PhraseExporter.Format.JSON_LINES : PhraseExporter.Format.CSV;
+        boolean gzip = mGzipCheckBox.isChecked();
+
+        String prettyDate = Calendar.getInstance().getTime().toString().replaceAll("\\s", "_").replaceAll(":", "-");
+        String fileName = "WIS_data_export_" + prettyDate + format.getExtension() + (gzip ? ".gz" : "");
+        File exportFile = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS) + "/" + fileName);
+
+        setExportRunning(true);
+        runningExport = mPhraseExporter.export(startDate, stopDate, format, gzip, exportFile, new PhraseExporter.Listener() {
+            @Override
+            public void onProgress(long rowsWritten, long totalRows) {
+                mExportProgressBar.setMax((int) Math.max(1, totalRows));
+                mExportProgressBar.setProgress((int) rowsWritten);
+                mExportStatusTextView.setText("Exported " + rowsWritten + " of " + totalRows + " transcripts");
             }
-            else
-            {
-                writer = new CSVWriter(new FileWriter(filePath), ',', CSVWriter.NO_QUOTE_CHARACTER);
+
+            @Override
+            public void onDone(File file, long rowsWritten) {
+                setExportRunning(false);
+                mExportStatusTextView.setText("Exported " + rowsWritten + " transcripts to " + file.getName());
+                if (!isAdded()) {
+                    return;
+                }
+                //send as email
+                sendDataEmail(file.getPath(), dateRange);
             }
 
-            //write the phrases to a csv
-            String first_row = "id,timestamp,latitude,longitude,phrase";
-            writer.writeNext(first_row.split(","));
-            for (Phrase p : phrases) {
-                String row = p.getId() + "," + p.getTimestamp() + "," + Double.toString(p.getLocation().getLatitude()) + "," + Double.toString(p.getLocation().getLongitude()) + "," + p.getPhrase();
-                Log.d(TAG, "writing row: " + row);
-                String [] row_s = row.split(",");
-                writer.writeNext(row_s);
+            @Override
+            public void onCancelled() {
+                setExportRunning(false);
+                mExportStatusTextView.setText("Export cancelled");
             }
 
-            //close the writer
-            writer.close();
+            @Override
+            public void onError(Exception e) {
+                setExportRunning(false);
+                mExportStatusTextView.setText("Export failed: " + e.getMessage());
+            }
+        });
+    }
 
-            //send as email
-            sendDataEmail(filePath, dateRange);
-        } catch (IOException e){
-            e.printStackTrace();
+    private void setExportRunning(boolean running){
+        if (!running){
+            runningExport = null;
+        }
+        mExportDataButton.setText(running ? "Cancel Export" : "Export Data Now");
+        mExportProgressBar.setVisibility(running ? View.VISIBLE : View.INVISIBLE);
+        for (int i = 0; i < mFormatRadioGroup.getChildCount(); i++){
+            mFormatRadioGroup.getChildAt(i).setEnabled(!running);
+        }
+        mGzipCheckBox.setEnabled(!running);
+    }
+
+    @Override
+    public void onDestroyView() {
+        //nobody's left to send the file to
+        if (runningExport != null) {
+            runningExport.cancel();
         }
+        super.onDestroyView();
     }
 
     private void sendDataEmail(String filePath, String dateRange){
@@ -5,10 +5,14 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.text.SimpleDateFormat;
 import java.util.List;
+import java.util.Objects;
 
 import com.smartglassesmanager.androidsmartphone.database.phrase.Phrase;
 
@@ -18,7 +22,21 @@ import com.smartglassesmanager.androidsmartphone.R;
 public class PhraseListAdapter extends RecyclerView.Adapter<PhraseListAdapter.PhraseViewHolder> {
     private ItemClickListenerPhrase clickListener;
     private final LayoutInflater mInflater;
-    private List<Phrase> mPhrases; // Cached copy of phrases
+    //diffs each new list against the current one off the main thread, so an update only rebinds the rows that changed
+    private final AsyncListDiffer<Phrase> mDiffer = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+
+    private static final DiffUtil.ItemCallback<Phrase> DIFF_CALLBACK = new DiffUtil.ItemCallback<Phrase>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Phrase oldPhrase, @NonNull Phrase newPhrase) {
+            return oldPhrase.getId() == newPhrase.getId();
+        }
+
+        //only what's shown in the row
+        @Override
+        public boolean areContentsTheSame(@NonNull Phrase oldPhrase, @NonNull Phrase newPhrase) {
+            return oldPhrase.getTimestamp() == newPhrase.getTimestamp() && Objects.equals(oldPhrase.getPhrase(), newPhrase.getPhrase());
+        }
+    };
 
     class PhraseViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener{
         private final TextView phraseItemView;
@@ -33,7 +51,7 @@ public class PhraseListAdapter extends RecyclerView.Adapter<PhraseListAdapter.Ph
         @Override
         public void onClick(View view){
             if(clickListener != null){
-                clickListener.onClick(view, mPhrases.get(getAdapterPosition()));
+                clickListener.onClick(view, mDiffer.getCurrentList().get(getAdapterPosition()));
             }
         }
     }
@@ -53,29 +71,25 @@ public class PhraseListAdapter extends RecyclerView.Adapter<PhraseListAdapter.Ph
 
     @Override
     public void onBindViewHolder(PhraseViewHolder holder, int position) {
-        if (mPhrases != null) {
-            Phrase current = mPhrases.get(position);
+        Phrase current = mDiffer.getCurrentList().get(position);
 //            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("L-d hh:mma").withZone(ZoneId.systemDefault());
-            //SimpleDateFormat formatski = new SimpleDateFormat("L-d hh:mma");
-            SimpleDateFormat formatski = new SimpleDateFormat("EEE LLL d, yy, H:mm");
-            holder.phraseItemView.setText(formatski.format(current.getTimestamp()) + " - " + current.getPhrase());
-        } else {
-            // Covers the case of data not being ready yet.
-            holder.phraseItemView.setText("No Phrase");
-        }
+        //SimpleDateFormat formatski = new SimpleDateFormat("L-d hh:mma");
+        SimpleDateFormat formatski = new SimpleDateFormat("EEE LLL d, yy, H:mm");
+        holder.phraseItemView.setText(formatski.format(current.getTimestamp()) + " - " + current.getPhrase());
     }
 
+    //the list must not be changed after it's passed in, it's diffed in the background
     void setPhrases(List<Phrase> phrases){
-        mPhrases = phrases;
-        notifyDataSetChanged();
+        mDiffer.submitList(phrases);
+    }
+
+    //the callback runs once the new list is showing
+    void setPhrases(List<Phrase> phrases, Runnable onShown){
+        mDiffer.submitList(phrases, onShown);
     }
 
-    // getItemCount() is called many times, and when it is first called,
-    // mPhrases has not been updated (means initially, it's null, and we can't return null).
     @Override
     public int getItemCount() {
-        if (mPhrases != null)
-            return mPhrases.size();
-        else return 0;
+        return mDiffer.getCurrentList().size();
     }
 }
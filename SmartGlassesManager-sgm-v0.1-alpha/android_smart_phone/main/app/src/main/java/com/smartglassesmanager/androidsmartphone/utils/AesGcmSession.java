@@ -0,0 +1,85 @@
+package com.smartglassesmanager.androidsmartphone.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated encryption for the ASG audio stream, AES-128-GCM with a key derived once per connection.
+ *
+ * The session key is HMAC-SHA256(secret, salt) with a fresh random salt per connection, so the per frame nonce
+ * can simply be built from the stream id and frame sequence number without ever repeating under the same key.
+ * Ciphers are held per thread and everything works on caller supplied buffers, in place is fine.
+ * Must match utils/AesGcmSession on the ASG.
+ */
+public class AesGcmSession {
+    public static final int SALT_LENGTH = 16;
+    public static final int TAG_LENGTH = 16;
+    private static final int NONCE_LENGTH = 12;
+
+    private final SecretKeySpec sessionKey;
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<>();
+    private final ThreadLocal<byte []> nonces = new ThreadLocal<>();
+
+    public AesGcmSession(String secret, byte [] salt) throws GeneralSecurityException {
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        byte [] derived = hmac.doFinal(salt);
+        sessionKey = new SecretKeySpec(derived, 0, 16, "AES");
+    }
+
+    public static byte [] newSalt(){
+        byte [] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Encrypt the remaining bytes of plain into out, followed by the tag, and authenticate aad (e.g. the frame header) with it.
+     * Needs plain.remaining() + TAG_LENGTH bytes in out. Returns number of bytes written.
+     */
+    public int encrypt(short streamId, int sequenceNumber, ByteBuffer aad, ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException {
+        Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, streamId, sequenceNumber);
+        cipher.updateAAD(aad);
+        return cipher.doFinal(plain, out);
+    }
+
+    /**
+     * Decrypt and verify the remaining bytes of encrypted (ciphertext + tag) into out, which can be a view of the same memory
+     * for an in place decrypt. Throws if the frame was tampered with or the wrong key was used. Returns number of plain bytes.
+     */
+    public int decrypt(short streamId, int sequenceNumber, ByteBuffer aad, ByteBuffer encrypted, ByteBuffer out) throws GeneralSecurityException {
+        Cipher cipher = getCipher(Cipher.DECRYPT_MODE, streamId, sequenceNumber);
+        cipher.updateAAD(aad);
+        return cipher.doFinal(encrypted, out);
+    }
+
+    private Cipher getCipher(int mode, short streamId, int sequenceNumber) throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+        if (cipher == null){
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            ciphers.set(cipher);
+        }
+        byte [] nonce = nonces.get();
+        if (nonce == null){
+            nonce = new byte[NONCE_LENGTH];
+            nonces.set(nonce);
+        }
+
+        //nonce = stream id (2 bytes) | zeros | sequence number (4 bytes), big endian
+        nonce[0] = (byte) (streamId >> 8);
+        nonce[1] = (byte) streamId;
+        nonce[8] = (byte) (sequenceNumber >> 24);
+        nonce[9] = (byte) (sequenceNumber >> 16);
+        nonce[10] = (byte) (sequenceNumber >> 8);
+        nonce[11] = (byte) sequenceNumber;
+        cipher.init(mode, sessionKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        return cipher;
+    }
+}
@@ -0,0 +1,303 @@
+package com.smartglassesmanager.androidsmartphone.comms;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The ASP's decoders against frames built the way the ASG sends them. The ASG's encoders are in the other app, so the
+ * frames here come from reference encoders for the same wire format.
+ */
+public class AudioCodecTest {
+    //40 ms at 16 kHz, about what one AudioRecord read gives us on the ASG
+    private static final int FRAME_SAMPLES = 640;
+
+    //REFERENCE ENCODERS
+
+    //G.711 mu-law, straight from the segment table
+    private static byte encodeMuLaw(short pcm){
+        int sample = pcm;
+        int sign = 0;
+        if (sample < 0){
+            sign = 0x80;
+            sample = -sample;
+        }
+        sample = Math.min(sample, 32635) + 0x84;
+        int exponent = 31 - Integer.numberOfLeadingZeros(sample) - 7;
+        int mantissa = (sample >> (exponent + 3)) & 0x0f;
+        return (byte) ~(sign | (exponent << 4) | mantissa);
+    }
+
+    //IMA ADPCM frame: header (predictor, step index, flags), then nibbles low first. Returns the step index to carry on with
+    private static int encodeAdpcm(short [] pcm, int offset, int samples, int index, ByteBuffer dst){
+        int predictor = (samples > 0) ? pcm[offset] : 0;
+        dst.put((byte) predictor).put((byte) (predictor >> 8)).put((byte) index);
+        dst.put((byte) ((samples % 2 == 1) ? ImaAdpcmAudioCodec.FLAG_ODD_SAMPLES : 0));
+        int packed = 0;
+        for (int i = 0; i < samples; i++){
+            int step = ImaAdpcmAudioCodec.STEP_TABLE[index];
+            int diff = pcm[offset + i] - predictor;
+            int nibble = (diff < 0) ? 8 : 0;
+            diff = Math.abs(diff);
+            int quantized = Math.min(7, (diff << 2) / step);
+            nibble |= quantized;
+            int delta = step >> 3;
+            if ((quantized & 4) != 0) delta += step;
+            if ((quantized & 2) != 0) delta += step >> 1;
+            if ((quantized & 1) != 0) delta += step >> 2;
+            predictor = Math.max(-32768, Math.min(32767, predictor + (((nibble & 8) != 0) ? -delta : delta)));
+            index = Math.max(0, Math.min(88, index + ImaAdpcmAudioCodec.INDEX_TABLE[nibble]));
+            if (i % 2 == 0){
+                packed = nibble;
+            } else {
+                dst.put((byte) (packed | (nibble << 4)));
+            }
+        }
+        if (samples % 2 == 1){
+            dst.put((byte) packed);
+        }
+        return index;
+    }
+
+    private static ByteBuffer adpcmFrame(short [] pcm, int offset, int samples, int index){
+        ByteBuffer frame = ByteBuffer.allocate(ImaAdpcmAudioCodec.HEADER_SIZE + (samples + 1) / 2);
+        encodeAdpcm(pcm, offset, samples, index, frame);
+        frame.flip();
+        return frame;
+    }
+
+    //a few tones and some noise, loud enough to use most of the 16 bits
+    static short [] speechLike(int samples, long seed){
+        Random random = new Random(seed);
+        short [] pcm = new short[samples];
+        for (int i = 0; i < samples; i++){
+            double t = i / 16000.0;
+            double envelope = 0.5 + 0.5 * Math.sin(2 * Math.PI * 3 * t);
+            double v = envelope * (9000 * Math.sin(2 * Math.PI * 220 * t) + 5000 * Math.sin(2 * Math.PI * 1250 * t) + 2000 * Math.sin(2 * Math.PI * 3100 * t))
+                    + 300 * random.nextGaussian();
+            pcm[i] = (short) Math.max(-32768, Math.min(32767, Math.round(v)));
+        }
+        return pcm;
+    }
+
+    static double snrDb(short [] reference, short [] decoded){
+        double signal = 0;
+        double noise = 0;
+        for (int i = 0; i < reference.length; i++){
+            signal += (double) reference[i] * reference[i];
+            double error = reference[i] - decoded[i];
+            noise += error * error;
+        }
+        return 10 * Math.log10(signal / Math.max(noise, 1));
+    }
+
+    //decode a whole frame, in chunks of maxSamples like PcmRingBuffer does
+    private static short [] decodeAll(AudioCodec codec, ByteBuffer frame, int maxSamples){
+        codec.startDecode(frame);
+        short [] out = new short[codec.getRemainingSamples()];
+        int n = 0;
+        while (codec.hasRemaining()){
+            int decoded = codec.decode(out, n, Math.min(maxSamples, out.length - n));
+            assertTrue(decoded > 0);
+            n += decoded;
+        }
+        assertEquals(out.length, n);
+        assertEquals(0, codec.decode(new short[1], 0, 1));
+        return out;
+    }
+
+    //MU-LAW
+
+    @Test
+    public void muLawDecodesEveryCodeToItsSegment(){
+        MuLawAudioCodec codec = new MuLawAudioCodec();
+        byte [] codes = new byte[256];
+        for (int i = 0; i < 256; i++){
+            codes[i] = (byte) i;
+        }
+        short [] decoded = decodeAll(codec, ByteBuffer.wrap(codes), 256);
+        for (int i = 0; i < 256; i++){
+            //every decoded level has to encode back to the same code, except negative zero
+            if (i != 0x7f){
+                assertEquals("code " + i, (byte) i, encodeMuLaw(decoded[i]));
+            }
+        }
+        assertEquals(0, decoded[0xff]);
+        assertEquals(0, decoded[0x7f]);
+        assertEquals(32124, decoded[0x80]);
+        assertEquals(-32124, decoded[0x00]);
+    }
+
+    @Test
+    public void muLawRoundTrip(){
+        short [] pcm = speechLike(16000, 1);
+        byte [] encoded = new byte[pcm.length];
+        for (int i = 0; i < pcm.length; i++){
+            encoded[i] = encodeMuLaw(pcm[i]);
+        }
+        short [] decoded = decodeAll(new MuLawAudioCodec(), ByteBuffer.wrap(encoded), 333);
+        assertTrue(snrDb(pcm, decoded) > 35);
+    }
+
+    //IMA ADPCM
+
+    @Test
+    public void adpcmRoundTrip(){
+        short [] pcm = speechLike(16000, 2);
+        short [] decoded = new short[pcm.length];
+        ImaAdpcmAudioCodec codec = new ImaAdpcmAudioCodec();
+        int index = 0;
+        for (int offset = 0; offset < pcm.length; offset += FRAME_SAMPLES){
+            int samples = Math.min(FRAME_SAMPLES, pcm.length - offset);
+            ByteBuffer frame = ByteBuffer.allocate(ImaAdpcmAudioCodec.HEADER_SIZE + (samples + 1) / 2);
+            index = encodeAdpcm(pcm, offset, samples, index, frame);
+            frame.flip();
+            short [] frameDecoded = decodeAll(codec, frame, 100);
+            System.arraycopy(frameDecoded, 0, decoded, offset, samples);
+        }
+        assertTrue(snrDb(pcm, decoded) > 20);
+    }
+
+    @Test
+    public void adpcmHeader(){
+        short [] pcm = speechLike(101, 3);
+        ByteBuffer frame = adpcmFrame(pcm, 0, 101, 40);
+        assertEquals(ImaAdpcmAudioCodec.HEADER_SIZE + 51, frame.remaining());
+
+        ImaAdpcmAudioCodec codec = new ImaAdpcmAudioCodec();
+        codec.startDecode(frame);
+        //odd flag: the padding nibble isn't a sample
+        assertEquals(101, codec.getRemainingSamples());
+        short [] decoded = decodeAll(codec, frame, 101);
+        //a frame starts from the predictor in its header, so the first sample is close to exact
+        assertTrue(Math.abs(decoded[0] - pcm[0]) <= ImaAdpcmAudioCodec.STEP_TABLE[40]);
+        assertEquals(0, frame.position());
+    }
+
+    @Test
+    public void adpcmFrameTooShortForHeader(){
+        ImaAdpcmAudioCodec codec = new ImaAdpcmAudioCodec();
+        codec.startDecode(ByteBuffer.wrap(new byte[ImaAdpcmAudioCodec.HEADER_SIZE - 1]));
+        assertFalse(codec.hasRemaining());
+        codec.startDecode(ByteBuffer.wrap(new byte[ImaAdpcmAudioCodec.HEADER_SIZE]));
+        assertFalse(codec.hasRemaining());
+    }
+
+    @Test
+    public void adpcmOutOfRangeStepIndexIsClamped(){
+        ByteBuffer frame = ByteBuffer.wrap(new byte[]{0, 0, (byte) 200, 0, 0x77, 0x77});
+        short [] decoded = decodeAll(new ImaAdpcmAudioCodec(), frame, 4);
+        assertEquals(4, decoded.length);
+        assertEquals(32767, decoded[3]);
+    }
+
+    @Test
+    public void adpcmDroppedFrameDoesntCorruptTheNext(){
+        short [] pcm = speechLike(3 * FRAME_SAMPLES, 4);
+        ByteBuffer [] frames = new ByteBuffer[3];
+        int index = 0;
+        for (int f = 0; f < 3; f++){
+            frames[f] = ByteBuffer.allocate(ImaAdpcmAudioCodec.HEADER_SIZE + FRAME_SAMPLES / 2);
+            index = encodeAdpcm(pcm, f * FRAME_SAMPLES, FRAME_SAMPLES, index, frames[f]);
+            frames[f].flip();
+        }
+
+        ImaAdpcmAudioCodec inOrder = new ImaAdpcmAudioCodec();
+        decodeAll(inOrder, frames[0], FRAME_SAMPLES);
+        decodeAll(inOrder, frames[1], FRAME_SAMPLES);
+        short [] expected = decodeAll(inOrder, frames[2], FRAME_SAMPLES);
+
+        //the middle frame never arrives
+        ImaAdpcmAudioCodec withDrop = new ImaAdpcmAudioCodec();
+        decodeAll(withDrop, frames[0], FRAME_SAMPLES);
+        short [] afterDrop = decodeAll(withDrop, frames[2], FRAME_SAMPLES);
+        assertArrayEquals(expected, afterDrop);
+
+        short [] reference = Arrays.copyOfRange(pcm, 2 * FRAME_SAMPLES, 3 * FRAME_SAMPLES);
+        assertTrue(snrDb(reference, afterDrop) > 20);
+    }
+
+    //FRAMES
+
+    private static ByteBuffer frame(byte version, byte sampleFormat, short streamId, int sequence, long captureTime, byte [] payload){
+        ByteBuffer frame = ByteBuffer.allocate(AudioFrameProtocol.HEADER_SIZE + payload.length).order(ByteOrder.BIG_ENDIAN);
+        frame.put(version).put(sampleFormat).putShort(streamId).putInt(sequence).putLong(captureTime).put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    @Test
+    public void frameHeader(){
+        byte [] payload = {1, 2, 3, 4, 5};
+        ByteBuffer frame = frame(AudioFrameProtocol.VERSION, AudioFrameProtocol.SAMPLE_FORMAT_IMA_ADPCM_16KHZ, AudioFrameProtocol.STREAM_ID_MIC, 0x12345678, 1700000000123L, payload);
+        assertTrue(AudioFrameProtocol.isValid(frame));
+        assertFalse(AudioFrameProtocol.isEncrypted(frame));
+        assertEquals(AudioFrameProtocol.SAMPLE_FORMAT_IMA_ADPCM_16KHZ, AudioFrameProtocol.getSampleFormat(frame));
+        assertEquals(AudioFrameProtocol.STREAM_ID_MIC, AudioFrameProtocol.getStreamId(frame));
+        assertEquals(0x12345678, AudioFrameProtocol.getSequenceNumber(frame));
+        assertEquals(1700000000123L, AudioFrameProtocol.getCaptureTime(frame));
+        assertEquals(payload.length, AudioFrameProtocol.getPayloadLength(frame));
+        byte [] read = new byte[payload.length];
+        assertEquals(payload.length, AudioFrameProtocol.readPayload(frame, read, 0));
+        assertArrayEquals(payload, read);
+        assertEquals(0, frame.position());
+    }
+
+    @Test
+    public void frameHeaderAtAnOffset(){
+        //the websocket can hand us a buffer that doesn't start at 0
+        ByteBuffer frame = frame(AudioFrameProtocol.VERSION, (byte) (AudioFrameProtocol.SAMPLE_FORMAT_MULAW_16KHZ | AudioFrameProtocol.SAMPLE_FORMAT_ENCRYPTED), (short) 7, -1, 42, new byte[3]);
+        ByteBuffer shifted = ByteBuffer.allocate(frame.remaining() + 5);
+        shifted.position(5);
+        shifted.put(frame);
+        shifted.position(5);
+        assertTrue(AudioFrameProtocol.isValid(shifted));
+        assertTrue(AudioFrameProtocol.isEncrypted(shifted));
+        assertEquals(AudioFrameProtocol.SAMPLE_FORMAT_MULAW_16KHZ, AudioFrameProtocol.getSampleFormat(shifted));
+        assertEquals(7, AudioFrameProtocol.getStreamId(shifted));
+        assertEquals(-1, AudioFrameProtocol.getSequenceNumber(shifted));
+        assertEquals(42, AudioFrameProtocol.getCaptureTime(shifted));
+        assertEquals(3, AudioFrameProtocol.getPayloadLength(shifted));
+    }
+
+    @Test
+    public void invalidFrames(){
+        assertFalse(AudioFrameProtocol.isValid(ByteBuffer.allocate(AudioFrameProtocol.HEADER_SIZE - 1)));
+        assertFalse(AudioFrameProtocol.isValid(frame((byte) 2, AudioFrameProtocol.SAMPLE_FORMAT_PCM_16BIT_LE_16KHZ, AudioFrameProtocol.STREAM_ID_MIC, 0, 0, new byte[0])));
+        assertTrue(AudioFrameProtocol.isValid(frame(AudioFrameProtocol.VERSION, AudioFrameProtocol.SAMPLE_FORMAT_PCM_16BIT_LE_16KHZ, AudioFrameProtocol.STREAM_ID_MIC, 0, 0, new byte[0])));
+        assertFalse(AudioCodec.isSupported((byte) 9));
+        assertNull(AudioCodec.create((byte) 9));
+    }
+
+    //what AspWebsocketServer does with a frame: pick the codec from the header, skip the header and decode the rest
+    private static short [] decodeFrame(byte sampleFormat, byte [] payload){
+        ByteBuffer frame = frame(AudioFrameProtocol.VERSION, sampleFormat, AudioFrameProtocol.STREAM_ID_MIC, 0, 0, payload);
+        AudioCodec codec = AudioCodec.create(AudioFrameProtocol.getSampleFormat(frame));
+        assertEquals(sampleFormat, codec.getSampleFormat());
+        frame.position(frame.position() + AudioFrameProtocol.HEADER_SIZE);
+        return decodeAll(codec, frame, 256);
+    }
+
+    @Test
+    public void decodeEachFormatFromAFrame(){
+        short [] pcm = speechLike(FRAME_SAMPLES + 1, 5);
+        ByteBuffer raw = ByteBuffer.allocate(pcm.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        byte [] muLaw = new byte[pcm.length];
+        for (int i = 0; i < pcm.length; i++){
+            raw.putShort(pcm[i]);
+            muLaw[i] = encodeMuLaw(pcm[i]);
+        }
+        ByteBuffer adpcmFrame = adpcmFrame(pcm, 0, pcm.length, 0);
+        byte [] adpcm = new byte[adpcmFrame.remaining()];
+        adpcmFrame.get(adpcm);
+
+        assertArrayEquals(pcm, decodeFrame(AudioFrameProtocol.SAMPLE_FORMAT_PCM_16BIT_LE_16KHZ, raw.array()));
+        assertTrue(snrDb(pcm, decodeFrame(AudioFrameProtocol.SAMPLE_FORMAT_MULAW_16KHZ, muLaw)) > 35);
+        assertTrue(snrDb(pcm, decodeFrame(AudioFrameProtocol.SAMPLE_FORMAT_IMA_ADPCM_16KHZ, adpcm)) > 20);
+    }
+}
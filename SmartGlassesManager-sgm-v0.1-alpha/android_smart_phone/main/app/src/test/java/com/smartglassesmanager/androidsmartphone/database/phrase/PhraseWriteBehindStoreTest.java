@@ -0,0 +1,230 @@
+package com.smartglassesmanager.androidsmartphone.database.phrase;
+
+import androidx.room.DatabaseConfiguration;
+import androidx.room.InvalidationTracker;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+
+import com.smartglassesmanager.androidsmartphone.database.BaseRepository;
+import com.smartglassesmanager.androidsmartphone.database.WearableAiRoomDatabase;
+import com.smartglassesmanager.androidsmartphone.database.mediafile.MediaFileDao;
+import com.smartglassesmanager.androidsmartphone.database.memorycache.MemoryCacheDao;
+import com.smartglassesmanager.androidsmartphone.database.memorycache.MemoryCacheTimesDao;
+import com.smartglassesmanager.androidsmartphone.database.voicecommand.VoiceCommandDao;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * PhraseWriteBehindStore against an in memory phrase table, with transactions that can be made to fail, to check
+ * what a retried batch writes.
+ */
+public class PhraseWriteBehindStoreTest {
+    private FakeDatabase db;
+    private PhraseWriteBehindStore store;
+
+    //rows by id, and what's written in the transaction that's running, only touched on the write thread
+    private static class FakeDatabase extends WearableAiRoomDatabase {
+        final Map<Long, Phrase> rows = new HashMap<>();
+        private Map<Long, Phrase> transactionRows;
+        //how many of the next transactions fail, and what to run in a failing one before it fails
+        int failNext = 0;
+        Runnable whileFailing;
+
+        private final PhraseDao phraseDao = (PhraseDao) Proxy.newProxyInstance(PhraseDao.class.getClassLoader(), new Class<?>[]{PhraseDao.class}, (proxy, method, args) -> {
+            switch (method.getName()){
+                case "getMaxId":
+                    return null;
+                case "insertAll":
+                    for (Object phrase : (List<?>) args[0]){
+                        transactionRows.put(((Phrase) phrase).getId(), (Phrase) phrase);
+                    }
+                    return null;
+                case "update":
+                    Phrase row = transactionRows.get((Long) args[0]);
+                    if (row != null){
+                        String address = (args[6] != null) ? (String) args[6] : row.getAddress();
+                        Phrase updated = new Phrase((String) args[1], row.getTimestamp(), row.getMedium(), (Double) args[2], (Double) args[3], (Double) args[4], (Float) args[5], address);
+                        updated.setId(row.getId());
+                        transactionRows.put(row.getId(), updated);
+                    }
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+
+        @Override
+        public void runInTransaction(Runnable body){
+            transactionRows = new HashMap<>(rows);
+            body.run();
+            if (failNext > 0){
+                failNext--;
+                if (whileFailing != null){
+                    whileFailing.run();
+                }
+                throw new IllegalStateException("transaction failed");
+            }
+            rows.clear();
+            rows.putAll(transactionRows);
+        }
+
+        @Override
+        public PhraseDao phraseDao(){
+            return phraseDao;
+        }
+
+        @Override
+        public VoiceCommandDao voiceCommandDao(){
+            return null;
+        }
+
+        @Override
+        public MediaFileDao mediaFileDao(){
+            return null;
+        }
+
+        @Override
+        public MemoryCacheDao memoryCacheDao(){
+            return null;
+        }
+
+        @Override
+        public MemoryCacheTimesDao memoryCacheTimesDao(){
+            return null;
+        }
+
+        @Override
+        protected SupportSQLiteOpenHelper createOpenHelper(DatabaseConfiguration config){
+            return null;
+        }
+
+        @Override
+        protected InvalidationTracker createInvalidationTracker(){
+            return null;
+        }
+
+        @Override
+        public void clearAllTables(){
+        }
+    }
+
+    @Before
+    public void setUp(){
+        db = new FakeDatabase();
+        store = PhraseWriteBehindStore.getInstance(db);
+        //nothing goes out on its own, only on flush, and retries come quickly
+        store.setFlushSettings(1000, 50);
+    }
+
+    @After
+    public void tearDown(){
+        store.close();
+    }
+
+    //wait for everything already on the write thread, including a retry scheduled by a failed flush
+    private void waitForWrites(long ms) throws Exception {
+        Thread.sleep(ms);
+        BaseRepository.getWriteExecutor().submit(() -> {}).get(5, TimeUnit.SECONDS);
+    }
+
+    private Phrase newPhrase(String words, long timestamp){
+        Phrase phrase = new Phrase(words, timestamp, "transcript_english");
+        store.insert(phrase);
+        return phrase;
+    }
+
+    @Test
+    public void writesInsertsAndCoalescedUpdates() throws Exception {
+        Phrase phrase = newPhrase("", 1000);
+        store.update(phrase.getId(), "hello", null, null);
+        store.update(phrase.getId(), "hello there", null, null);
+        store.flush();
+        waitForWrites(0);
+
+        Phrase row = db.rows.get(phrase.getId());
+        assertEquals("hello there", row.getPhrase());
+        assertEquals(1000, row.getTimestamp());
+        assertEquals("transcript_english", row.getMedium());
+        assertEquals(1, store.getFlushCount());
+        assertEquals(2, store.getCoalescedWriteCount());
+    }
+
+    @Test
+    public void failedFlushIsRetried() throws Exception {
+        Phrase phrase = newPhrase("hello", 1000);
+        db.failNext = 1;
+        store.flush();
+        waitForWrites(0);
+        assertTrue(db.rows.isEmpty());
+        assertEquals(1, store.getFlushFailureCount());
+
+        waitForWrites(200);
+        assertEquals("hello", db.rows.get(phrase.getId()).getPhrase());
+    }
+
+    @Test
+    public void updateDuringFailedInsertKeepsTimestampAndMedium() throws Exception {
+        Phrase phrase = newPhrase("", 1000);
+        db.failNext = 1;
+        //comes in after the batch was taken, so it's queued as an update of a row that isn't there yet
+        db.whileFailing = () -> store.update(phrase.getId(), "hello", null, "somewhere");
+        store.flush();
+        waitForWrites(0);
+        assertTrue(db.rows.isEmpty());
+
+        waitForWrites(200);
+        Phrase row = db.rows.get(phrase.getId());
+        assertNotNull(row);
+        assertEquals("hello", row.getPhrase());
+        assertEquals("somewhere", row.getAddress());
+        assertEquals(1000, row.getTimestamp());
+        assertEquals("transcript_english", row.getMedium());
+    }
+
+    @Test
+    public void updateDuringFailedUpdateKeepsNewerText() throws Exception {
+        Phrase phrase = newPhrase("hello", 1000);
+        store.flush();
+        waitForWrites(0);
+
+        store.update(phrase.getId(), "hello there", null, null);
+        db.failNext = 1;
+        db.whileFailing = () -> store.update(phrase.getId(), "hello there friend", null, null);
+        store.flush();
+        waitForWrites(200);
+
+        Phrase row = db.rows.get(phrase.getId());
+        assertEquals("hello there friend", row.getPhrase());
+        assertEquals(1000, row.getTimestamp());
+        assertEquals("transcript_english", row.getMedium());
+    }
+
+    @Test
+    public void repeatedFailuresKeepEveryWrite() throws Exception {
+        List<Phrase> phrases = new ArrayList<>();
+        for (int i = 0; i < 3; i++){
+            phrases.add(newPhrase("phrase " + i, 1000 + i));
+        }
+        db.failNext = 2;
+        db.whileFailing = () -> store.update(phrases.get(0).getId(), "phrase 0 again", null, null);
+        store.flush();
+        waitForWrites(300);
+
+        assertEquals(2, store.getFlushFailureCount());
+        assertEquals(3, db.rows.size());
+        assertEquals("phrase 0 again", db.rows.get(phrases.get(0).getId()).getPhrase());
+        for (int i = 0; i < 3; i++){
+            assertEquals(1000 + i, db.rows.get(phrases.get(i).getId()).getTimestamp());
+        }
+    }
+}
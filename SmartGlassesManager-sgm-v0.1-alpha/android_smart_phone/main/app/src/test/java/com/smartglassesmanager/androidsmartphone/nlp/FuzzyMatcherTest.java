@@ -0,0 +1,166 @@
+package com.smartglassesmanager.androidsmartphone.nlp;
+
+import org.junit.Test;
+
+import info.debatty.java.stringsimilarity.JaroWinkler;
+
+import static org.junit.Assert.*;
+
+/**
+ * FuzzyMatcher has to give the same match as the loop findNearMatches used to run: the library's Jaro-Winkler over
+ * every window of the transcript (plus a space), first best window wins, and only a score above the threshold counts.
+ */
+public class FuzzyMatcherTest {
+    private static final String [] TRANSCRIPTS = {
+            "hey computer what time is it",
+            "okay so um hey compooter search for coffee shops near me",
+            "affective memory start recording",
+            "fective memory",
+            "i said effective memory not affective",
+            "qwerty asdfgh zxcvbn",
+            "the the the the the",
+            "Hey Computer",
+            "computer",
+            "a",
+            " ",
+            "hey      computer   ",
+            "naïve café résumé",
+            "stop stop stop listening now please",
+    };
+
+    private static final String [] PATTERNS = {
+            "hey computer",
+            "computer",
+            "effective memory",
+            "stop listening",
+            "the",
+            "search for",
+            "café",
+            "hey computer   ",
+            "x",
+    };
+
+    private static final double [] THRESHOLDS = {0, 0.5, 0.7, 0.85, 0.9, 0.99};
+
+    private final JaroWinkler jaroWinkler = new JaroWinkler();
+
+    //the findNearMatches loop from before FuzzyMatcher, on the library's Jaro-Winkler
+    private FuzzyMatch reference(String incomingString, String toFindString, double threshold){
+        int highestIndex = -1;
+        double highestSimilarity = -1d;
+        toFindString = toFindString.replaceAll("\\s+$", "");
+        incomingString = incomingString + " ";
+        for (int i = 0; i <= (incomingString.length() - toFindString.length()); i++) {
+            String substring = incomingString.substring(i, i + toFindString.length());
+            double similarity = jaroWinkler.similarity(substring, toFindString);
+            if (similarity > highestSimilarity){
+                highestIndex = i;
+                highestSimilarity = similarity;
+            }
+        }
+        if (highestSimilarity > threshold){
+            FuzzyMatch match = new FuzzyMatch(Math.min(highestIndex, incomingString.length() - 1), highestSimilarity);
+            match.setToFindString(toFindString);
+            return match;
+        }
+        return null;
+    }
+
+    private void assertSameMatch(String incoming, String toFind, double threshold){
+        FuzzyMatch expected = reference(incoming, toFind, threshold);
+        FuzzyMatch actual = new NlpUtils(null).findNearMatches(incoming, toFind, threshold);
+        String what = "\"" + toFind + "\" in \"" + incoming + "\" above " + threshold;
+        if (expected == null){
+            assertNull(what, actual);
+            return;
+        }
+        assertNotNull(what, actual);
+        assertEquals(what, expected.getIndex(), actual.getIndex());
+        assertEquals(what, expected.getSimilarity(), actual.getSimilarity(), 0);
+        assertEquals(what, expected.getToFindString(), actual.getToFindString());
+    }
+
+    @Test
+    public void matchesLibraryOnCorpus(){
+        for (String incoming : TRANSCRIPTS){
+            for (String toFind : PATTERNS){
+                for (double threshold : THRESHOLDS){
+                    assertSameMatch(incoming, toFind, threshold);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reusedMatcherMatchesLibrary(){
+        //scratch buffers grow and shrink between calls, the results mustn't depend on what came before
+        FuzzyMatcher matcher = new FuzzyMatcher();
+        for (int round = 0; round < 2; round++){
+            for (String toFind : PATTERNS){
+                FuzzyMatcher.Pattern pattern = FuzzyMatcher.compile(toFind);
+                for (String incoming : TRANSCRIPTS){
+                    FuzzyMatch expected = reference(incoming, toFind, 0.5);
+                    assertEquals(expected != null, matcher.find(incoming, pattern, 0.5));
+                    if (expected != null){
+                        assertEquals(expected.getIndex(), matcher.getOffset());
+                        assertEquals(expected.getSimilarity(), matcher.getScore(), 0);
+                        assertEquals(pattern.length(), matcher.getLength());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void emptyText(){
+        assertSameMatch("", "hey computer", 0);
+        assertSameMatch("", "x", 0);
+        assertSameMatch("", "", 0);
+        assertNull(new NlpUtils(null).findNearMatches("", "hey computer", 0));
+    }
+
+    @Test
+    public void emptyPattern(){
+        assertSameMatch("hey computer", "", 0.5);
+        assertSameMatch("hey computer", "   ", 0.5);
+        FuzzyMatch match = new NlpUtils(null).findNearMatches("hey computer", "", 0.5);
+        assertNotNull(match);
+        assertEquals(0, match.getIndex());
+    }
+
+    @Test
+    public void patternLongerThanText(){
+        assertSameMatch("hey", "hey computer", 0);
+        assertSameMatch("computer", "hey computer", 0);
+        //one char short, only the added space makes the window long enough
+        assertSameMatch("hey compute", "hey computer", 0);
+        FuzzyMatcher matcher = new FuzzyMatcher();
+        assertFalse(matcher.find("ok", FuzzyMatcher.compile("hey computer"), 0));
+        assertEquals(-1, matcher.getOffset());
+    }
+
+    @Test
+    public void scoreEqualToThresholdIsNoMatch(){
+        String incoming = "okay so um hey compooter search";
+        FuzzyMatch best = reference(incoming, "hey computer", 0);
+        assertNotNull(best);
+        assertTrue(best.getSimilarity() < 1);
+        assertSameMatch(incoming, "hey computer", best.getSimilarity());
+        assertNull(new NlpUtils(null).findNearMatches(incoming, "hey computer", best.getSimilarity()));
+        assertSameMatch(incoming, "hey computer", Math.nextDown(best.getSimilarity()));
+        assertNotNull(new NlpUtils(null).findNearMatches(incoming, "hey computer", Math.nextDown(best.getSimilarity())));
+
+        //an exact match scores 1, which isn't above a threshold of 1
+        assertSameMatch("hey computer", "hey computer", 1);
+        assertNull(new NlpUtils(null).findNearMatches("hey computer", "hey computer", 1));
+    }
+
+    @Test
+    public void tiedWindowsFirstWins(){
+        assertSameMatch("stop stop stop", "stop", 0.5);
+        assertEquals(0, new NlpUtils(null).findNearMatches("stop stop stop", "stop", 0.5).getIndex());
+        //same imperfect score in both places
+        assertSameMatch("xtop and xtop", "stop", 0.5);
+        assertEquals(0, new NlpUtils(null).findNearMatches("xtop and xtop", "stop", 0.5).getIndex());
+    }
+}
@@ -0,0 +1,200 @@
+package com.smartglassesmanager.androidsmartphone.utils;
+
+import com.smartglassesmanager.androidsmartphone.comms.AudioFrameProtocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.AEADBadTagException;
+
+import static org.junit.Assert.*;
+
+/**
+ * AES-GCM audio frames: they have to round trip, anything tampered with (header, payload, tag) or decrypted under
+ * the wrong stream, sequence number or session has to be rejected, and a sequence number used again in a new session
+ * mustn't give the same ciphertext.
+ */
+public class AesGcmSessionTest {
+    private static final String SECRET = "test secret";
+    private static final short STREAM = AudioFrameProtocol.STREAM_ID_MIC;
+
+    private static byte [] payload(int length, long seed){
+        byte [] payload = new byte[length];
+        new Random(seed).nextBytes(payload);
+        return payload;
+    }
+
+    //a frame the way the ASG sends it: header, encrypted payload, tag
+    private static byte [] encryptedFrame(AesGcmSession session, int sequence, byte [] payload) throws GeneralSecurityException {
+        ByteBuffer frame = ByteBuffer.allocate(AudioFrameProtocol.HEADER_SIZE + payload.length + AesGcmSession.TAG_LENGTH).order(ByteOrder.BIG_ENDIAN);
+        frame.put(AudioFrameProtocol.VERSION);
+        frame.put((byte) (AudioFrameProtocol.SAMPLE_FORMAT_PCM_16BIT_LE_16KHZ | AudioFrameProtocol.SAMPLE_FORMAT_ENCRYPTED));
+        frame.putShort(STREAM);
+        frame.putInt(sequence);
+        frame.putLong(1700000000000L);
+        frame.put(payload);
+        byte [] bytes = frame.array();
+        int written = session.encrypt(STREAM, sequence, ByteBuffer.wrap(bytes, 0, AudioFrameProtocol.HEADER_SIZE),
+                ByteBuffer.wrap(bytes, AudioFrameProtocol.HEADER_SIZE, payload.length),
+                ByteBuffer.wrap(bytes, AudioFrameProtocol.HEADER_SIZE, payload.length + AesGcmSession.TAG_LENGTH));
+        assertEquals(payload.length + AesGcmSession.TAG_LENGTH, written);
+        return bytes;
+    }
+
+    //what AspWebsocketServer does, in place in the received buffer
+    private static byte [] decryptFrame(AesGcmSession session, byte [] bytes) throws GeneralSecurityException {
+        ByteBuffer frame = ByteBuffer.wrap(bytes);
+        assertTrue(AudioFrameProtocol.isEncrypted(frame));
+        AudioFrameProtocol.decrypt(frame, session);
+        byte [] plain = new byte[AudioFrameProtocol.getPayloadLength(frame)];
+        AudioFrameProtocol.readPayload(frame, plain, 0);
+        return plain;
+    }
+
+    private static void assertRejected(AesGcmSession session, byte [] frame){
+        try {
+            decryptFrame(session, frame);
+            fail("frame was accepted");
+        } catch (AEADBadTagException e){
+            //expected
+        } catch (GeneralSecurityException e){
+            fail("expected a bad tag, got " + e);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws GeneralSecurityException {
+        byte [] salt = AesGcmSession.newSalt();
+        AesGcmSession asg = new AesGcmSession(SECRET, salt);
+        AesGcmSession asp = new AesGcmSession(SECRET, salt);
+        for (int sequence = 0; sequence < 50; sequence++){
+            byte [] payload = payload(sequence * 37, sequence);
+            byte [] frame = encryptedFrame(asg, sequence, payload);
+            assertEquals(AudioFrameProtocol.HEADER_SIZE + payload.length + AesGcmSession.TAG_LENGTH, frame.length);
+            if (payload.length >= 16){
+                assertFalse(Arrays.equals(payload, Arrays.copyOfRange(frame, AudioFrameProtocol.HEADER_SIZE, AudioFrameProtocol.HEADER_SIZE + payload.length)));
+            }
+            assertArrayEquals(payload, decryptFrame(asp, frame));
+        }
+    }
+
+    @Test
+    public void tamperedHeaderIsRejected() throws GeneralSecurityException {
+        byte [] salt = AesGcmSession.newSalt();
+        AesGcmSession session = new AesGcmSession(SECRET, salt);
+        byte [] frame = encryptedFrame(session, 7, payload(1280, 1));
+        //the capture time isn't part of the nonce, only the associated data protects it
+        for (int i = 8; i < AudioFrameProtocol.HEADER_SIZE; i++){
+            byte [] tampered = frame.clone();
+            tampered[i] ^= 1;
+            assertRejected(session, tampered);
+        }
+        //nor is the sample format
+        byte [] tampered = frame.clone();
+        tampered[1] = (byte) (AudioFrameProtocol.SAMPLE_FORMAT_MULAW_16KHZ | AudioFrameProtocol.SAMPLE_FORMAT_ENCRYPTED);
+        assertRejected(session, tampered);
+    }
+
+    @Test
+    public void tamperedPayloadOrTagIsRejected() throws GeneralSecurityException {
+        AesGcmSession session = new AesGcmSession(SECRET, AesGcmSession.newSalt());
+        byte [] frame = encryptedFrame(session, 7, payload(1280, 2));
+        for (int i : new int[]{AudioFrameProtocol.HEADER_SIZE, AudioFrameProtocol.HEADER_SIZE + 640, frame.length - AesGcmSession.TAG_LENGTH - 1, frame.length - AesGcmSession.TAG_LENGTH, frame.length - 1}){
+            byte [] tampered = frame.clone();
+            tampered[i] ^= (byte) 0x80;
+            assertRejected(session, tampered);
+        }
+        //cut short
+        assertRejected(session, Arrays.copyOf(frame, frame.length - 1));
+        assertArrayEquals(payload(1280, 2), decryptFrame(session, frame));
+    }
+
+    @Test
+    public void wrongSequenceStreamOrSessionIsRejected() throws GeneralSecurityException {
+        byte [] salt = AesGcmSession.newSalt();
+        AesGcmSession session = new AesGcmSession(SECRET, salt);
+        byte [] payload = payload(1280, 3);
+        byte [] frame = encryptedFrame(session, 7, payload);
+
+        //a frame replayed under another sequence number, the header is rewritten to match so only the nonce differs
+        ByteBuffer replayed = ByteBuffer.wrap(frame.clone());
+        replayed.putInt(4, 8);
+        ByteBuffer header = ByteBuffer.wrap(replayed.array(), 0, AudioFrameProtocol.HEADER_SIZE);
+        ByteBuffer encrypted = ByteBuffer.wrap(replayed.array(), AudioFrameProtocol.HEADER_SIZE, payload.length + AesGcmSession.TAG_LENGTH);
+        try {
+            session.decrypt(STREAM, 7, header, encrypted, ByteBuffer.allocate(payload.length + AesGcmSession.TAG_LENGTH));
+            fail("header was changed but it decrypted");
+        } catch (AEADBadTagException e){
+            //expected
+        }
+        assertRejected(session, replayed.array());
+
+        ByteBuffer otherStream = ByteBuffer.wrap(frame.clone());
+        otherStream.putShort(2, (short) 2);
+        assertRejected(session, otherStream.array());
+
+        byte [] otherSalt = salt.clone();
+        otherSalt[0] ^= 1;
+        assertRejected(new AesGcmSession(SECRET, otherSalt), frame);
+        assertRejected(new AesGcmSession("other secret", salt), frame);
+    }
+
+    @Test
+    public void sequenceNumberSetsTheNonce() throws GeneralSecurityException {
+        byte [] salt = AesGcmSession.newSalt();
+        AesGcmSession session = new AesGcmSession(SECRET, salt);
+        byte [] payload = payload(1280, 4);
+        byte [] first = encryptedFrame(session, 7, payload);
+        byte [] next = encryptedFrame(session, 8, payload);
+        //same header apart from the sequence number, so the ciphertexts only differ because the nonce did
+        assertFalse(Arrays.equals(Arrays.copyOfRange(first, AudioFrameProtocol.HEADER_SIZE, first.length), Arrays.copyOfRange(next, AudioFrameProtocol.HEADER_SIZE, next.length)));
+        //the nonce is only the stream and sequence number, the same frame again under the same key gives the same bytes
+        assertArrayEquals(first, encryptedFrame(session, 7, payload));
+
+        //the sequence starts over on a reconnect, the new salt gives a new key so the same nonce is never used twice with one key
+        AesGcmSession reconnected = new AesGcmSession(SECRET, AesGcmSession.newSalt());
+        byte [] afterReconnect = encryptedFrame(reconnected, 7, payload);
+        assertFalse(Arrays.equals(first, afterReconnect));
+        assertArrayEquals(payload, decryptFrame(reconnected, afterReconnect));
+    }
+
+    @Test
+    public void newSaltEveryTime(){
+        byte [] a = AesGcmSession.newSalt();
+        byte [] b = AesGcmSession.newSalt();
+        assertEquals(AesGcmSession.SALT_LENGTH, a.length);
+        assertFalse(Arrays.equals(a, b));
+    }
+
+    @Test
+    public void sessionsOnSeveralThreads() throws Exception {
+        //ciphers are per thread, one session is shared by the websocket threads
+        byte [] salt = AesGcmSession.newSalt();
+        AesGcmSession session = new AesGcmSession(SECRET, salt);
+        Thread [] threads = new Thread[4];
+        Throwable [] failures = new Throwable[threads.length];
+        for (int t = 0; t < threads.length; t++){
+            int id = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int sequence = 0; sequence < 200; sequence++){
+                        byte [] payload = payload(640, id * 1000 + sequence);
+                        assertArrayEquals(payload, decryptFrame(session, encryptedFrame(session, id * 1000 + sequence, payload)));
+                    }
+                } catch (Throwable e){
+                    failures[id] = e;
+                }
+            });
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++){
+            threads[t].join();
+            assertNull(failures[t]);
+        }
+    }
+}